@@ -0,0 +1,37 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.criteria;
+
+/**
+ * Formata o valor de uma coluna exportada pelo {@link ResultExporter}.
+ */
+public interface ColumnFormatter {
+
+	/**
+	 * Formata o valor da coluna.
+	 * 
+	 * @param value
+	 *            valor da coluna, possivelmente <code>null</code>
+	 * @return texto exportado, ou <code>null</code> para valor vazio
+	 */
+	String format(Object value);
+
+}
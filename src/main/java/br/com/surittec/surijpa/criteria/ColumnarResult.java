@@ -0,0 +1,349 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.criteria;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Resultado de uma consulta de projeção organizado por colunas, em vez de uma
+ * lista de <code>Object[]</code> com cada célula encaixotada. Cada expressão
+ * do SELECT vira uma coluna:
+ * <ul>
+ * <li>{@link Type#LONG}: valores inteiros em um <code>long[]</code>;</li>
+ * <li>{@link Type#DOUBLE}: valores decimais em um <code>double[]</code>
+ * (<code>BigDecimal</code> é convertido, podendo perder precisão);</li>
+ * <li>{@link Type#OBJECT}: demais valores (textos, datas) codificados por
+ * dicionário, com um <code>int[]</code> de códigos e uma única instância de
+ * cada valor distinto.</li>
+ * </ul>
+ * Os nulos são indicados por uma máscara por coluna; nas posições nulas os
+ * arrays primitivos contêm zero e os códigos, -1.
+ *
+ * O tipo de cada coluna é definido pelo primeiro valor não nulo; uma coluna
+ * {@link Type#LONG} passa a {@link Type#DOUBLE} se receber um valor decimal.
+ * Obtido com {@link JPQL#getColumnarResult()}.
+ */
+public class ColumnarResult {
+
+	private static final Pattern RESULT_VARIABLE = Pattern.compile("(?i)^.*\\s+as\\s+(\\w+)\\s*$");
+
+	/**
+	 * Tipo de armazenamento de uma coluna.
+	 */
+	public enum Type {
+		LONG, DOUBLE, OBJECT
+	}
+
+	private final List<String> names;
+	private final Column[] columns;
+	private int rows;
+
+	// ----------------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------------
+
+	ColumnarResult(List<String> selects) {
+		List<String> names = new ArrayList<String>(selects.size());
+		for (String select : selects) {
+			Matcher matcher = RESULT_VARIABLE.matcher(select.trim());
+			names.add(matcher.matches() ? matcher.group(1) : select.trim());
+		}
+		this.names = Collections.unmodifiableList(names);
+		this.columns = new Column[selects.size()];
+		for (int i = 0; i < columns.length; i++)
+			columns[i] = new Column();
+	}
+
+	// ----------------------------------------------------------------------------
+	// PUBLIC
+	// ----------------------------------------------------------------------------
+
+	public int getRowCount() {
+		return rows;
+	}
+
+	public int getColumnCount() {
+		return columns.length;
+	}
+
+	/**
+	 * Retorna os nomes das colunas: a variável de resultado (<code>as nome</code>)
+	 * ou a própria expressão do SELECT.
+	 * 
+	 * @return
+	 */
+	public List<String> getColumnNames() {
+		return names;
+	}
+
+	/**
+	 * Retorna a posição da coluna pelo nome, ou -1.
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public int getColumnIndex(String name) {
+		return names.indexOf(name);
+	}
+
+	/**
+	 * Retorna o tipo da coluna, ou <code>null</code> se ela só tiver nulos.
+	 * 
+	 * @param column
+	 * @return
+	 */
+	public Type getType(int column) {
+		return columns[column].type;
+	}
+
+	/**
+	 * Retorna os valores de uma coluna {@link Type#LONG}, um por linha.
+	 * 
+	 * @param column
+	 * @return
+	 */
+	public long[] getLongs(int column) {
+		Column c = check(column, Type.LONG);
+		return c.longs != null ? c.longs : new long[rows];
+	}
+
+	/**
+	 * Retorna os valores de uma coluna {@link Type#DOUBLE}, um por linha.
+	 * 
+	 * @param column
+	 * @return
+	 */
+	public double[] getDoubles(int column) {
+		Column c = check(column, Type.DOUBLE);
+		return c.doubles != null ? c.doubles : new double[rows];
+	}
+
+	/**
+	 * Retorna os códigos de uma coluna {@link Type#OBJECT}, um por linha,
+	 * que indexam {@link #getDictionary(int)}.
+	 * 
+	 * @param column
+	 * @return
+	 */
+	public int[] getCodes(int column) {
+		Column c = check(column, Type.OBJECT);
+		return c.codes;
+	}
+
+	/**
+	 * Retorna os valores distintos de uma coluna {@link Type#OBJECT}.
+	 * 
+	 * @param column
+	 * @return
+	 */
+	public List<Object> getDictionary(int column) {
+		Column c = check(column, Type.OBJECT);
+		return Collections.unmodifiableList(c.dictionary);
+	}
+
+	public boolean isNull(int row, int column) {
+		return columns[column].nulls.get(row);
+	}
+
+	/**
+	 * Retorna uma cópia da máscara de nulos da coluna.
+	 * 
+	 * @param column
+	 * @return
+	 */
+	public BitSet getNulls(int column) {
+		return (BitSet) columns[column].nulls.clone();
+	}
+
+	/**
+	 * Retorna o valor de uma célula, encaixotado. Indicado apenas para acessos
+	 * pontuais.
+	 * 
+	 * @param row
+	 * @param column
+	 * @return
+	 */
+	public Object getValue(int row, int column) {
+		Column c = columns[column];
+		if (row >= rows)
+			throw new IndexOutOfBoundsException(String.format("Row %d of %d", row, rows));
+		if (c.nulls.get(row) || c.type == null)
+			return null;
+		switch (c.type) {
+		case LONG:
+			return c.longs[row];
+		case DOUBLE:
+			return c.doubles[row];
+		default:
+			return c.dictionary.get(c.codes[row]);
+		}
+	}
+
+	// ----------------------------------------------------------------------------
+	// PACKAGE
+	// ----------------------------------------------------------------------------
+
+	void add(Object[] row) {
+		for (int i = 0; i < columns.length; i++)
+			columns[i].add(rows, row[i]);
+		rows++;
+	}
+
+	void trim() {
+		for (Column column : columns)
+			column.trim(rows);
+	}
+
+	// ----------------------------------------------------------------------------
+	// PRIVATE
+	// ----------------------------------------------------------------------------
+
+	private Column check(int column, Type type) {
+		Column c = columns[column];
+		if (c.type != null && c.type != type)
+			throw new IllegalStateException(String.format("Column %s is %s, not %s", names.get(column), c.type, type));
+		if (c.type == null && type == Type.OBJECT && c.codes == null) {
+			c.codes = new int[rows];
+			Arrays.fill(c.codes, -1);
+		}
+		return c;
+	}
+
+	private static final class Column {
+
+		private Type type;
+		private long[] longs;
+		private double[] doubles;
+		private int[] codes;
+		private List<Object> dictionary;
+		private Map<Object, Integer> index;
+		private final BitSet nulls = new BitSet();
+
+		private void add(int row, Object value) {
+			if (value == null) {
+				nulls.set(row);
+				if (codes != null) {
+					ensure(row);
+					codes[row] = -1;
+				}
+				return;
+			}
+
+			if (type == null)
+				init(row, value);
+			else if (type == Type.LONG && isDecimal(value))
+				promote();
+
+			ensure(row);
+			switch (type) {
+			case LONG:
+				if (!isInteger(value))
+					throw new IllegalStateException(String.format("Cannot store %s in a numeric column", value.getClass().getName()));
+				longs[row] = ((Number) value).longValue();
+				break;
+			case DOUBLE:
+				if (!(value instanceof Number))
+					throw new IllegalStateException(String.format("Cannot store %s in a numeric column", value.getClass().getName()));
+				doubles[row] = ((Number) value).doubleValue();
+				break;
+			default:
+				Integer code = index.get(value);
+				if (code == null) {
+					code = dictionary.size();
+					dictionary.add(value);
+					index.put(value, code);
+				}
+				codes[row] = code;
+			}
+		}
+
+		private void init(int row, Object value) {
+			int capacity = Math.max(16, row + 1);
+			if (isInteger(value)) {
+				type = Type.LONG;
+				longs = new long[capacity];
+			} else if (isDecimal(value)) {
+				type = Type.DOUBLE;
+				doubles = new double[capacity];
+			} else {
+				type = Type.OBJECT;
+				dictionary = new ArrayList<Object>();
+				index = new HashMap<Object, Integer>();
+				int[] previous = codes;
+				codes = new int[capacity];
+				Arrays.fill(codes, -1);
+				if (previous != null)
+					System.arraycopy(previous, 0, codes, 0, Math.min(previous.length, capacity));
+			}
+		}
+
+		private void promote() {
+			doubles = new double[longs.length];
+			for (int i = 0; i < longs.length; i++)
+				doubles[i] = longs[i];
+			longs = null;
+			type = Type.DOUBLE;
+		}
+
+		private void ensure(int row) {
+			if (longs != null && row >= longs.length)
+				longs = Arrays.copyOf(longs, Math.max(row + 1, longs.length * 2));
+			if (doubles != null && row >= doubles.length)
+				doubles = Arrays.copyOf(doubles, Math.max(row + 1, doubles.length * 2));
+			if (codes != null && row >= codes.length) {
+				int length = codes.length;
+				codes = Arrays.copyOf(codes, Math.max(row + 1, length * 2));
+				Arrays.fill(codes, length, codes.length, -1);
+			}
+		}
+
+		private void trim(int rows) {
+			if (longs != null)
+				longs = Arrays.copyOf(longs, rows);
+			if (doubles != null)
+				doubles = Arrays.copyOf(doubles, rows);
+			if (codes != null)
+				codes = Arrays.copyOf(codes, rows);
+			index = null;
+		}
+
+		private static boolean isInteger(Object value) {
+			return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte
+					|| value instanceof BigInteger;
+		}
+
+		private static boolean isDecimal(Object value) {
+			return value instanceof Double || value instanceof Float || value instanceof BigDecimal;
+		}
+
+	}
+
+}
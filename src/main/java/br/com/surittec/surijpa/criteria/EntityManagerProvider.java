@@ -0,0 +1,48 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.criteria;
+
+import javax.persistence.EntityManager;
+
+/**
+ * Fornece o EntityManager usado em cada execução de uma consulta da
+ * {@link JPQL}, por exemplo o de uma réplica de leitura (ver
+ * {@link JPQL#readFrom(EntityManagerProvider)}). O EntityManager obtido em
+ * {@link #acquire()} é devolvido com {@link #release(EntityManager)} logo após
+ * a execução.
+ */
+public interface EntityManagerProvider {
+
+	/**
+	 * Obtém o EntityManager de uma execução.
+	 * 
+	 * @return
+	 */
+	EntityManager acquire();
+
+	/**
+	 * Devolve o EntityManager obtido em {@link #acquire()}.
+	 * 
+	 * @param entityManager
+	 */
+	void release(EntityManager entityManager);
+
+}
@@ -0,0 +1,321 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.criteria;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.persistence.Query;
+
+import br.com.surittec.surijpa.util.MetricsUtil;
+
+/**
+ * Aprendizado do tamanho dos resultados por modelo de query (o texto JPQL
+ * gerado pela {@link JPQL}, sem os valores dos parâmetros, e a faixa do
+ * <code>maxResults</code>, arredondado para a potência de 2 seguinte, de
+ * forma que a mesma query paginada e sem limite sejam aprendidas em
+ * separado). São mantidos os modelos usados mais recentemente. Com
+ * {@link #enable(int, int)}, cada execução de lista registra a quantidade de
+ * linhas retornadas, e as execuções seguintes do mesmo modelo recebem o fetch
+ * size JDBC adequado pela hint {@link #FETCH_SIZE_HINT}, dentro dos limites
+ * configurados: varreduras grandes fazem menos idas ao banco e buscas pequenas
+ * não reservam buffers desnecessários.
+ *
+ * Com {@link #setWarnThreshold(int)}, resultados acima do limite registram um
+ * aviso (uma vez por modelo) e a métrica {@link #METRIC_LARGE_RESULT}, como
+ * proteção contra consultas sem limite como <code>findAll()</code>.
+ */
+public abstract class FetchSizeAdvisor {
+
+	public static final String FETCH_SIZE_HINT = "org.hibernate.fetchSize";
+
+	public static final String METRIC_LARGE_RESULT = "surijpa.result.large";
+
+	private static final Logger LOGGER = Logger.getLogger(FetchSizeAdvisor.class.getName());
+
+	private static final int MAX_TEMPLATES = 5000;
+	private static final double SMOOTHING = 0.2;
+
+	private static final Map<Object, Template> TEMPLATES = Collections.synchronizedMap(new LinkedHashMap<Object, Template>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Object, Template> eldest) {
+			return size() > MAX_TEMPLATES;
+		}
+
+	});
+
+	private static volatile boolean enabled;
+	private static volatile int minFetchSize;
+	private static volatile int maxFetchSize;
+	private static volatile int warnThreshold;
+
+	/**
+	 * Passa a aprender o tamanho dos resultados e a definir o fetch size das
+	 * queries entre os limites informados.
+	 * 
+	 * @param minFetchSize
+	 * @param maxFetchSize
+	 */
+	public static void enable(int minFetchSize, int maxFetchSize) {
+		if (minFetchSize <= 0 || maxFetchSize < minFetchSize)
+			throw new IllegalArgumentException("fetch size bounds must be positive and ordered");
+		FetchSizeAdvisor.minFetchSize = minFetchSize;
+		FetchSizeAdvisor.maxFetchSize = maxFetchSize;
+		FetchSizeAdvisor.enabled = true;
+	}
+
+	/**
+	 * Deixa de definir o fetch size, mantendo o aviso de resultados grandes
+	 * caso configurado.
+	 */
+	public static void disable() {
+		enabled = false;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Define a quantidade de linhas a partir da qual um resultado é
+	 * considerado grande, ou zero para não avisar.
+	 * 
+	 * @param rows
+	 */
+	public static void setWarnThreshold(int rows) {
+		warnThreshold = Math.max(0, rows);
+	}
+
+	public static int getWarnThreshold() {
+		return warnThreshold;
+	}
+
+	/**
+	 * Retorna o aprendido para o modelo de query sem <code>maxResults</code>,
+	 * ou <code>null</code> se ele ainda não foi executado.
+	 * 
+	 * @param jpql
+	 * @return
+	 */
+	public static Template getTemplate(String jpql) {
+		return getTemplate(jpql, null);
+	}
+
+	/**
+	 * Retorna o aprendido para o modelo de query com o
+	 * <code>maxResults</code> informado, ou <code>null</code> se ele ainda
+	 * não foi executado.
+	 * 
+	 * @param jpql
+	 * @param maxResults
+	 * @return
+	 */
+	public static Template getTemplate(String jpql, Integer maxResults) {
+		return TEMPLATES.get(getKey(jpql, getBucket(maxResults)));
+	}
+
+	/**
+	 * Retorna uma cópia do aprendido para todos os modelos, dos maiores
+	 * resultados médios para os menores.
+	 * 
+	 * @return
+	 */
+	public static List<Template> getTemplates() {
+		List<Template> values;
+		synchronized (TEMPLATES) {
+			values = new ArrayList<Template>(TEMPLATES.values());
+		}
+		List<Template> templates = new ArrayList<Template>(values.size());
+		for (Template template : values) {
+			synchronized (template) {
+				templates.add(template.copy());
+			}
+		}
+		Collections.sort(templates);
+		return templates;
+	}
+
+	/**
+	 * Descarta o aprendido.
+	 */
+	public static void reset() {
+		TEMPLATES.clear();
+	}
+
+	// ----------------------------------------------------------------------------
+	// PACKAGE
+	// ----------------------------------------------------------------------------
+
+	static boolean isRecording() {
+		return enabled || warnThreshold > 0;
+	}
+
+	static void applyTo(Query query, String jpql, Integer maxResults) {
+		if (!enabled)
+			return;
+		Template template = getTemplate(jpql, maxResults);
+		if (template == null)
+			return;
+
+		int fetchSize = template.getFetchSize();
+		if (maxResults != null && maxResults > 0)
+			fetchSize = Math.min(fetchSize, maxResults + 1);
+		query.setHint(FETCH_SIZE_HINT, fetchSize);
+	}
+
+	static void record(String jpql, Integer maxResults, int rows) {
+		Integer bucket = getBucket(maxResults);
+		Object key = getKey(jpql, bucket);
+		Template template;
+		synchronized (TEMPLATES) {
+			template = TEMPLATES.get(key);
+			if (template == null) {
+				template = new Template(jpql, bucket);
+				TEMPLATES.put(key, template);
+			}
+		}
+
+		boolean warn;
+		synchronized (template) {
+			template.add(rows);
+			warn = warnThreshold > 0 && rows > warnThreshold && !template.warned;
+			if (warn)
+				template.warned = true;
+		}
+
+		if (warnThreshold > 0 && rows > warnThreshold) {
+			MetricsUtil.increment(METRIC_LARGE_RESULT);
+			if (warn)
+				LOGGER.warning(String.format("Query returned %d rows (threshold %d): %s", rows, warnThreshold, jpql));
+		}
+	}
+
+	// ----------------------------------------------------------------------------
+	// PRIVATE
+	// ----------------------------------------------------------------------------
+
+	private static Integer getBucket(Integer maxResults) {
+		if (maxResults == null || maxResults <= 0)
+			return null;
+		int bucket = Integer.highestOneBit(maxResults);
+		return bucket == maxResults || bucket == 1 << 30 ? bucket : bucket << 1;
+	}
+
+	private static Object getKey(String jpql, Integer bucket) {
+		return Arrays.asList(jpql, bucket);
+	}
+
+	// ----------------------------------------------------------------------------
+	// TEMPLATE
+	// ----------------------------------------------------------------------------
+
+	/**
+	 * Tamanhos observados de um modelo de query. A média é exponencial, para
+	 * acompanhar mudanças no volume dos dados.
+	 */
+	public static final class Template implements Comparable<Template> {
+
+		private final String jpql;
+		private final Integer maxResults;
+		private long executions;
+		private double averageRows;
+		private int maxRows;
+		private boolean warned;
+
+		private Template(String jpql, Integer maxResults) {
+			this.jpql = jpql;
+			this.maxResults = maxResults;
+		}
+
+		public String getJpql() {
+			return jpql;
+		}
+
+		/**
+		 * Retorna a faixa de <code>maxResults</code> do modelo (a potência de
+		 * 2 igual ou seguinte), ou <code>null</code> para queries sem limite.
+		 * 
+		 * @return
+		 */
+		public Integer getMaxResults() {
+			return maxResults;
+		}
+
+		public synchronized long getExecutions() {
+			return executions;
+		}
+
+		public synchronized double getAverageRows() {
+			return averageRows;
+		}
+
+		public synchronized int getMaxRows() {
+			return maxRows;
+		}
+
+		/**
+		 * Retorna o fetch size para a próxima execução: a média de linhas mais
+		 * uma (para o driver identificar o fim em uma única ida ao banco),
+		 * dentro dos limites configurados.
+		 * 
+		 * @return
+		 */
+		public synchronized int getFetchSize() {
+			long expected = (long) Math.ceil(averageRows) + 1;
+			return (int) Math.max(minFetchSize, Math.min(maxFetchSize, expected));
+		}
+
+		@Override
+		public int compareTo(Template other) {
+			return Double.compare(other.averageRows, averageRows);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s [maxResults=%s, executions=%d, averageRows=%.1f, maxRows=%d]", jpql, maxResults, executions, averageRows, maxRows);
+		}
+
+		private void add(int rows) {
+			averageRows = executions == 0 ? rows : averageRows + SMOOTHING * (rows - averageRows);
+			maxRows = Math.max(maxRows, rows);
+			executions++;
+		}
+
+		private Template copy() {
+			Template copy = new Template(jpql, maxResults);
+			copy.executions = executions;
+			copy.averageRows = averageRows;
+			copy.maxRows = maxRows;
+			copy.warned = warned;
+			return copy;
+		}
+
+	}
+
+}
@@ -1,547 +1,1656 @@
-/*
- * SURITTEC
- * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
- * and individual contributors as indicated by the @authors tag
- *
- * This is free software; you can redistribute it and/or modify it
- * under the terms of the GNU Lesser General Public License as
- * published by the Free Software Foundation; either version 2.1 of
- * the License, or (at your option) any later version.
- *
- * This software is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
- * Lesser General Public License for more details.
- *
- * You should have received a copy of the GNU Lesser General Public
- * License along with this software; if not, write to the Free
- * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
- * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
- */
-package br.com.surittec.surijpa.criteria;
-
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
-import javax.persistence.EntityManager;
-import javax.persistence.Query;
-
-import org.apache.commons.lang.StringUtils;
-
-/**
- * Suporte para construo de queries em JPQL.
- */
-public class JPQL {
-
-	private EntityManager entityManager;
-
-	private List<String> select;
-	private List<String> from;
-	private List<String> where;
-	private Map<String, Object> params;
-	private List<String> group;
-	private List<String> having;
-	private List<String> order;
-
-	private Integer firstResult;
-	private Integer maxResults;
-
-	// ----------------------------------------------------------------------------
-	// CONSTRUCTOR
-	// ----------------------------------------------------------------------------
-
-	public JPQL(EntityManager entityManager) {
-		this.entityManager = entityManager;
-		this.select = new ArrayList<String>();
-		this.from = new ArrayList<String>();
-		this.where = new ArrayList<String>();
-		this.params = new HashMap<String, Object>();
-		this.group = new ArrayList<String>();
-		this.having = new ArrayList<String>();
-		this.order = new ArrayList<String>();
-	}
-
-	// ----------------------------------------------------------------------------
-	// PUBLIC
-	// ----------------------------------------------------------------------------
-
-	/**
-	 * Inclui clusulas SELECT para as queries.
-	 * 
-	 * @param select
-	 * @return
-	 */
-	public JPQL select(String... select) {
-		return select(Arrays.asList(select));
-	}
-
-	/**
-	 * Inclui clusulas SELECT para as queries.
-	 * 
-	 * @param select
-	 * @return
-	 */
-	public JPQL select(Collection<String> selects) {
-		this.select.addAll(selects);
-		return this;
-	}
-
-	/**
-	 * Inclui clusulas FROM para as queries.
-	 * 
-	 * @param from
-	 * @return
-	 */
-	public JPQL from(String... from) {
-		return from(Arrays.asList(from));
-	}
-
-	/**
-	 * Inclui clusulas FROM para as queries.
-	 * 
-	 * @param from
-	 * @return
-	 */
-	public JPQL from(Collection<String> froms) {
-		this.from.addAll(froms);
-		return this;
-	}
-
-	/**
-	 * Alias para o mtodo from()
-	 * 
-	 * @param joins
-	 * @return
-	 */
-	public JPQL join(String... joins) {
-		return from(joins);
-	}
-
-	/**
-	 * Alias para o mtodo from()
-	 * 
-	 * @param joins
-	 * @return
-	 */
-	public JPQL join(Collection<String> joins) {
-		return from(joins);
-	}
-
-	/**
-	 * Alias para o mtodo from()
-	 * 
-	 * @param joins
-	 * @return
-	 */
-	public JPQL innerJoin(String... joins) {
-		return join(true, false, Arrays.asList(joins));
-	}
-
-	/**
-	 * Alias para o mtodo from()
-	 * 
-	 * @param joins
-	 * @return
-	 */
-	public JPQL innerJoin(Collection<String> joins) {
-		return join(true, false, joins);
-	}
-
-	/**
-	 * Alias para o mtodo from()
-	 * 
-	 * @param joins
-	 * @return
-	 */
-	public JPQL innerJoinFetch(String... joins) {
-		return join(true, true, Arrays.asList(joins));
-	}
-
-	/**
-	 * Alias para o mtodo from()
-	 * 
-	 * @param joins
-	 * @return
-	 */
-	public JPQL innerJoinFetch(Collection<String> joins) {
-		return join(true, true, joins);
-	}
-	
-	/**
-	 * Alias para o mtodo from()
-	 * 
-	 * @param joins
-	 * @return
-	 */
-	public JPQL innerJoin(boolean fetch, String... joins) {
-		return join(true, fetch, Arrays.asList(joins));
-	}
-
-	/**
-	 * Alias para o mtodo from()
-	 * 
-	 * @param joins
-	 * @return
-	 */
-	public JPQL innerJoin(boolean fetch, Collection<String> joins) {
-		return join(true, fetch, joins);
-	}
-
-	/**
-	 * Alias para o mtodo from()
-	 * 
-	 * @param joins
-	 * @return
-	 */
-	public JPQL leftJoin(String... joins) {
-		return join(false, false, Arrays.asList(joins));
-	}
-
-	/**
-	 * Alias para o mtodo from()
-	 * 
-	 * @param joins
-	 * @return
-	 */
-	public JPQL leftJoin(Collection<String> joins) {
-		return join(false, false, joins);
-	}
-
-	/**
-	 * Alias para o mtodo from()
-	 * 
-	 * @param joins
-	 * @return
-	 */
-	public JPQL leftJoinFetch(String... joins) {
-		return join(false, true, Arrays.asList(joins));
-	}
-
-	/**
-	 * Alias para o mtodo from()
-	 * 
-	 * @param joins
-	 * @return
-	 */
-	public JPQL leftJoinFetch(Collection<String> joins) {
-		return join(false, true, joins);
-	}
-	
-	/**
-	 * Alias para o mtodo from()
-	 * 
-	 * @param joins
-	 * @return
-	 */
-	public JPQL leftJoin(boolean fetch, String... joins) {
-		return join(false, fetch, Arrays.asList(joins));
-	}
-
-	/**
-	 * Alias para o mtodo from()
-	 * 
-	 * @param joins
-	 * @return
-	 */
-	public JPQL leftJoin(boolean fetch, Collection<String> joins) {
-		return join(false, fetch, joins);
-	}
-
-	/**
-	 * Alias para o mtodo and()
-	 * 
-	 * @param where
-	 * @return
-	 */
-	public JPQL where(String... condition) {
-		return and(condition);
-	}
-
-	/**
-	 * Alias para o mtodo and()
-	 * 
-	 * @param where
-	 * @return
-	 */
-	public JPQL where(Collection<String> conditions) {
-		return and(conditions);
-	}
-
-	/**
-	 * Inclui clusulas AND no WHERE para as queries.
-	 * 
-	 * @param where
-	 * @return
-	 */
-	public JPQL and(String... condition) {
-		return and(Arrays.asList(condition));
-	}
-
-	/**
-	 * Inclui clusulas AND no WHERE para as queries.
-	 * 
-	 * @param where
-	 * @return
-	 */
-	public JPQL and(Collection<String> conditions) {
-		this.where.addAll(conditions);
-		return this;
-	}
-
-	/**
-	 * Inclui clusulas OR no WHERE para as queries
-	 * 
-	 * @param where
-	 * @return
-	 */
-	public JPQL or(String... condition) {
-		return or(Arrays.asList(condition));
-	}
-
-	/**
-	 * Inclui clusulas OR no WHERE para as queries
-	 * 
-	 * @param where
-	 * @return
-	 */
-	public JPQL or(Collection<String> conditions) {
-		return and(String.format("(%s)", StringUtils.join(conditions, " OR ")));
-	}
-
-	/**
-	 * Inclui valores para os parmetros nominais das clusulas.
-	 * 
-	 * @param paramName
-	 * @param paramValue
-	 * @return
-	 */
-	public JPQL withParam(String paramName, Object paramValue) {
-		this.params.put(paramName, paramValue);
-		return this;
-	}
-
-	/**
-	 * Inclui clusulas GROUP BY para as queries.
-	 * 
-	 * @param group
-	 * @return
-	 */
-	public JPQL groupBy(String... group) {
-		return groupBy(Arrays.asList(group));
-	}
-
-	/**
-	 * Inclui clusulas GROUP BY para as queries.
-	 * 
-	 * @param group
-	 * @return
-	 */
-	public JPQL groupBy(Collection<String> groups) {
-		this.group.addAll(groups);
-		return this;
-	}
-	
-	/**
-	 * Inclui clusulas HAVING para as queries.
-	 * 
-	 * @param having
-	 * @return
-	 */
-	public JPQL having(String... having) {
-		return having(Arrays.asList(having));
-	}
-	
-	/**
-	 * Inclui clusulas HAVING para as queries.
-	 * 
-	 * @param group
-	 * @return
-	 */
-	public JPQL having(Collection<String> havings) {
-		this.having.addAll(havings);
-		return this;
-	}
-
-	/**
-	 * Inclui clusulas ORDER BY para as queries.
-	 * 
-	 * @param order
-	 * @return
-	 */
-	public JPQL orderBy(String... order) {
-		return orderBy(Arrays.asList(order));
-	}
-
-	/**
-	 * Inclui clusulas ORDER BY para as queries.
-	 * 
-	 * @param order
-	 * @return
-	 */
-	public JPQL orderBy(Collection<String> orders) {
-		this.order.addAll(orders);
-		return this;
-	}
-
-	/**
-	 * Informa qual ser o ndice do primeiro resultado retornado pela query.
-	 * 
-	 * @param firstResult
-	 * @return
-	 */
-	public JPQL firstResult(Integer firstResult) {
-		this.firstResult = firstResult;
-		return this;
-	}
-
-	/**
-	 * Limita a quantidade de resultados trazidos pela query.
-	 * 
-	 * @param firstResult
-	 * @return
-	 */
-	public JPQL maxResults(Integer maxResults) {
-		this.maxResults = maxResults;
-		return this;
-	}
-
-	/**
-	 * Retorna uma lista de entidades que atendem aos critrios da busca. J faz
-	 * o <code>cast</code> para a classe <code>resultType</code> passada.
-	 * 
-	 * @param resultType
-	 * @return
-	 */
-	@SuppressWarnings("unchecked")
-	public <T> List<T> getResultList(Class<T> resultType) {
-		return getQuery().getResultList();
-	}
-
-	/**
-	 * Retorna uma lista de entidades que atendem aos critrios da busca.
-	 * 
-	 * @return
-	 */
-	public List<?> getResultList() {
-		return getQuery().getResultList();
-	}
-
-	/**
-	 * Retorna uma nica entidade que atenda aos critrios da busca. J faz o
-	 * <code>cast</code> para a classe <code>resultType</code> passada.
-	 * 
-	 * @param resultType
-	 * @return
-	 */
-	@SuppressWarnings("unchecked")
-	public <T> T getSingleResult(Class<T> resultType) {
-		return (T) getSingleResult();
-	}
-
-	/**
-	 * Retorna uma nica entidade que atenda aos critrios da busca.
-	 * 
-	 * @return
-	 */
-	public Object getSingleResult() {
-		return getQuery().getSingleResult();
-	}
-
-	/**
-	 * Retorna uma nica entidade que atenda aos critrios da busca. Trata o
-	 * caso de no haver resultado, retornando <code>null</code>. J faz o
-	 * <code>cast</code> para a classe <code>resultType</code> passada.
-	 * 
-	 * @param resultType
-	 * @return
-	 */
-	@SuppressWarnings("unchecked")
-	public <T> T getAnyResult(Class<T> resultType) {
-		return (T) getAnyResult();
-	}
-
-	/**
-	 * Retorna uma nica entidade que atenda aos critrios da busca. Trata o
-	 * caso de no haver resultado, retornando <code>null</code>.
-	 * 
-	 * @return
-	 */
-	public Object getAnyResult() {
-		List<?> result = getResultList();
-		if (result != null && !result.isEmpty())
-			return result.get(0);
-		return null;
-	}
-
-	@Override
-	public String toString() {
-		StringBuilder query = new StringBuilder();
-
-		if (!select.isEmpty())
-			append(query, "select", select, ",");
-		append(query, "from", from);
-		if (!where.isEmpty())
-			append(query, "where", where, "and");
-		if (!group.isEmpty())
-			append(query, "group by", group, ",");
-		if (!having.isEmpty())
-			append(query, "having", having, ",");
-		if (!order.isEmpty())
-			append(query, "order by", order, ",");
-
-		return query.toString();
-	}
-
-	// ----------------------------------------------------------------------------
-	// PRIVATE
-	// ----------------------------------------------------------------------------
-
-	private JPQL join(boolean inner, boolean fetch, Collection<String> joins) {
-		List<String> list = new ArrayList<String>();
-		for (String join : joins) {
-			list.add(String.format("%s join %s %s", inner ? "inner" : "left", fetch ? "fetch" : "", join));
-		}
-		return from(list);
-	}
-	
-	private Query getQuery() {
-		Query query = entityManager.createQuery(this.toString());
-
-		for (String paramName : params.keySet()) {
-			query.setParameter(paramName, params.get(paramName));
-		}
-
-		if (firstResult != null)
-			query.setFirstResult(firstResult);
-		if (maxResults != null)
-			query.setMaxResults(maxResults);
-
-		return query;
-	}
-
-	private void append(StringBuilder sb, String part, List<?> values, String separator) {
-		append(sb, part);
-		for (int i = 0; i < values.size(); i++) {
-			append(sb, values.get(i));
-			if (i != (values.size() - 1))
-				append(sb, separator);
-			sb.append(" ");
-		}
-	}
-
-	private void append(StringBuilder sb, String part, List<?> values) {
-		append(sb, part);
-		for (Object value : values)
-			append(sb, value);
-	}
-
-	private void append(StringBuilder sb, Object value) {
-		sb.append(value);
-		sb.append(" ");
-	}
-
-}
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.criteria;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.Cache;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+import javax.persistence.QueryTimeoutException;
+import javax.persistence.metamodel.EntityType;
+
+import org.apache.commons.lang.StringUtils;
+
+import br.com.surittec.surijpa.util.Deadline;
+import br.com.surittec.surijpa.util.EntityUtil;
+import br.com.surittec.surijpa.util.MetricsUtil;
+import br.com.surittec.surijpa.util.QueryComment;
+import br.com.surittec.surijpa.util.SortedIdSet;
+
+/**
+ * Suporte para construção de queries em JPQL.
+ */
+public class JPQL {
+
+	/**
+	 * Hint padrão do JPA para o timeout de lock, em milissegundos.
+	 */
+	public static final String LOCK_TIMEOUT_HINT = "javax.persistence.lock.timeout";
+
+	/**
+	 * Timeout de lock que ignora as linhas já bloqueadas (SKIP LOCKED). Só é
+	 * gerado pelo Hibernate 5.2 ou superior, nos dialetos que suportam
+	 * (PostgreSQL 9.5+, Oracle, MySQL 8+, SQL Server). No Hibernate 4.x e nos
+	 * demais dialetos, em que a query seria gerada com um FOR UPDATE comum ou
+	 * com NOWAIT, a execução falha com {@link UnsupportedOperationException}
+	 * (ver {@link EntityUtil#supportsSkipLocked(EntityManager)}).
+	 */
+	public static final int SKIP_LOCKED = -2;
+
+	/**
+	 * Timeout de lock que falha imediatamente caso a linha já esteja
+	 * bloqueada (NOWAIT).
+	 */
+	public static final int NO_WAIT = 0;
+
+	private static final int ID_CHUNK_SIZE = 10000;
+	private static final int COLUMNAR_FETCH_SIZE = 1000;
+	private static final String LAST_ID_PARAM = "ids_last";
+
+	/**
+	 * Forma de compartilhar o resultado entre chamadas concorrentes
+	 * agrupadas por {@link JPQL#coalesce(Coalescing)}.
+	 */
+	public enum Coalescing {
+
+		/**
+		 * Todas as chamadas recebem uma lista somente leitura. As chamadas que
+		 * aguardaram compartilham entre si uma única cópia desanexada
+		 * (serializada) do resultado, que não deve ser alterada.
+		 */
+		SHARED,
+
+		/**
+		 * Cada chamada que aguardou recebe a sua própria cópia desanexada
+		 * (serializada) do resultado.
+		 */
+		COPY
+
+	}
+
+
+	private EntityManager entityManager;
+
+	private String update;
+	private String delete;
+	private List<String> set;
+	private Class<?> entityClass;
+	private String alias;
+	private boolean incrementVersion;
+	private List<Object> synchronize;
+
+	private List<String> select;
+	private List<String> from;
+	private List<String> where;
+	private Map<String, Object> params;
+	private List<String> group;
+	private List<String> having;
+	private List<String> order;
+
+	private Integer firstResult;
+	private Integer maxResults;
+	private Integer timeout;
+	private Coalescing coalescing;
+	private ResultLimit resultLimit;
+	private LockModeType lockMode;
+	private Integer lockTimeout;
+	private String comment;
+	private EntityManagerProvider reader;
+
+	// ----------------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------------
+
+	public JPQL(EntityManager entityManager) {
+		this.entityManager = entityManager;
+		this.set = new ArrayList<String>();
+		this.synchronize = new ArrayList<Object>();
+		this.select = new ArrayList<String>();
+		this.from = new ArrayList<String>();
+		this.where = new ArrayList<String>();
+		this.params = new HashMap<String, Object>();
+		this.group = new ArrayList<String>();
+		this.having = new ArrayList<String>();
+		this.order = new ArrayList<String>();
+	}
+
+	// ----------------------------------------------------------------------------
+	// PUBLIC
+	// ----------------------------------------------------------------------------
+
+	/**
+	 * Inclui cláusulas SELECT para as queries.
+	 * 
+	 * @param select
+	 * @return
+	 */
+	public JPQL select(String... select) {
+		return select(Arrays.asList(select));
+	}
+
+	/**
+	 * Inclui cláusulas SELECT para as queries.
+	 * 
+	 * @param select
+	 * @return
+	 */
+	public JPQL select(Collection<String> selects) {
+		this.select.addAll(selects);
+		return this;
+	}
+
+	/**
+	 * Transforma a query em um UPDATE em massa da entidade informada (ex.:
+	 * <code>"Pedido p"</code>), a ser executado com {@link #executeUpdate()}.
+	 * 
+	 * @param entity
+	 * @return
+	 */
+	public JPQL update(String entity) {
+		this.update = entity;
+		return this;
+	}
+
+	/**
+	 * Transforma a query em um UPDATE em massa da classe de entidade
+	 * informada. Conhecendo a classe, é possível usar
+	 * {@link #incrementVersion()} e a invalidação do cache de segundo nível.
+	 * 
+	 * @param entityClass
+	 * @param alias
+	 * @return
+	 */
+	public JPQL update(Class<?> entityClass, String alias) {
+		this.entityClass = entityClass;
+		this.alias = alias;
+		return update(String.format("%s %s", EntityUtil.getEntityName(entityManager, entityClass), alias));
+	}
+
+	/**
+	 * Transforma a query em um DELETE em massa da entidade informada (ex.:
+	 * <code>"Pedido p"</code>), a ser executado com {@link #executeUpdate()}.
+	 * 
+	 * @param entity
+	 * @return
+	 */
+	public JPQL delete(String entity) {
+		this.delete = entity;
+		return this;
+	}
+
+	/**
+	 * Transforma a query em um DELETE em massa da classe de entidade
+	 * informada. Conhecendo a classe, é possível invalidar o cache de segundo
+	 * nível após a execução.
+	 * 
+	 * @param entityClass
+	 * @param alias
+	 * @return
+	 */
+	public JPQL delete(Class<?> entityClass, String alias) {
+		this.entityClass = entityClass;
+		this.alias = alias;
+		return delete(String.format("%s %s", EntityUtil.getEntityName(entityManager, entityClass), alias));
+	}
+
+	/**
+	 * Inclui atribuições SET para o UPDATE em massa (ex.:
+	 * <code>set("p.status", ":status")</code> ou
+	 * <code>set("p.acessos", "p.acessos + 1")</code>).
+	 * 
+	 * @param attribute
+	 * @param value
+	 * @return
+	 */
+	public JPQL set(String attribute, String value) {
+		this.set.add(String.format("%s = %s", attribute, value));
+		return this;
+	}
+
+	/**
+	 * Incrementa o atributo de versão da entidade no UPDATE em massa. O
+	 * atributo é obtido do metamodelo, portanto a query deve ter sido criada
+	 * com {@link #update(Class, String)}.
+	 * 
+	 * @return
+	 */
+	public JPQL incrementVersion() {
+		this.incrementVersion = true;
+		return this;
+	}
+
+	/**
+	 * Informa instâncias gerenciadas afetadas pelo UPDATE/DELETE em massa.
+	 * Após a execução, as que estiverem no contexto de persistência são
+	 * atualizadas com <code>refresh</code> (UPDATE) ou desanexadas com
+	 * <code>detach</code> (DELETE).
+	 * 
+	 * @param entities
+	 * @return
+	 */
+	public JPQL synchronize(Collection<?> entities) {
+		this.synchronize.addAll(entities);
+		return this;
+	}
+
+	/**
+	 * Inclui cláusulas FROM para as queries.
+	 * 
+	 * @param from
+	 * @return
+	 */
+	public JPQL from(String... from) {
+		return from(Arrays.asList(from));
+	}
+
+	/**
+	 * Inclui cláusulas FROM para as queries.
+	 * 
+	 * @param from
+	 * @return
+	 */
+	public JPQL from(Collection<String> froms) {
+		this.from.addAll(froms);
+		return this;
+	}
+
+	/**
+	 * Alias para o método from()
+	 * 
+	 * @param joins
+	 * @return
+	 */
+	public JPQL join(String... joins) {
+		return from(joins);
+	}
+
+	/**
+	 * Alias para o método from()
+	 * 
+	 * @param joins
+	 * @return
+	 */
+	public JPQL join(Collection<String> joins) {
+		return from(joins);
+	}
+
+	/**
+	 * Alias para o método from()
+	 * 
+	 * @param joins
+	 * @return
+	 */
+	public JPQL innerJoin(String... joins) {
+		return join(true, false, Arrays.asList(joins));
+	}
+
+	/**
+	 * Alias para o método from()
+	 * 
+	 * @param joins
+	 * @return
+	 */
+	public JPQL innerJoin(Collection<String> joins) {
+		return join(true, false, joins);
+	}
+
+	/**
+	 * Alias para o método from()
+	 * 
+	 * @param joins
+	 * @return
+	 */
+	public JPQL innerJoinFetch(String... joins) {
+		return join(true, true, Arrays.asList(joins));
+	}
+
+	/**
+	 * Alias para o método from()
+	 * 
+	 * @param joins
+	 * @return
+	 */
+	public JPQL innerJoinFetch(Collection<String> joins) {
+		return join(true, true, joins);
+	}
+	
+	/**
+	 * Alias para o método from()
+	 * 
+	 * @param joins
+	 * @return
+	 */
+	public JPQL innerJoin(boolean fetch, String... joins) {
+		return join(true, fetch, Arrays.asList(joins));
+	}
+
+	/**
+	 * Alias para o método from()
+	 * 
+	 * @param joins
+	 * @return
+	 */
+	public JPQL innerJoin(boolean fetch, Collection<String> joins) {
+		return join(true, fetch, joins);
+	}
+
+	/**
+	 * Alias para o método from()
+	 * 
+	 * @param joins
+	 * @return
+	 */
+	public JPQL leftJoin(String... joins) {
+		return join(false, false, Arrays.asList(joins));
+	}
+
+	/**
+	 * Alias para o método from()
+	 * 
+	 * @param joins
+	 * @return
+	 */
+	public JPQL leftJoin(Collection<String> joins) {
+		return join(false, false, joins);
+	}
+
+	/**
+	 * Alias para o método from()
+	 * 
+	 * @param joins
+	 * @return
+	 */
+	public JPQL leftJoinFetch(String... joins) {
+		return join(false, true, Arrays.asList(joins));
+	}
+
+	/**
+	 * Alias para o método from()
+	 * 
+	 * @param joins
+	 * @return
+	 */
+	public JPQL leftJoinFetch(Collection<String> joins) {
+		return join(false, true, joins);
+	}
+	
+	/**
+	 * Alias para o método from()
+	 * 
+	 * @param joins
+	 * @return
+	 */
+	public JPQL leftJoin(boolean fetch, String... joins) {
+		return join(false, fetch, Arrays.asList(joins));
+	}
+
+	/**
+	 * Alias para o método from()
+	 * 
+	 * @param joins
+	 * @return
+	 */
+	public JPQL leftJoin(boolean fetch, Collection<String> joins) {
+		return join(false, fetch, joins);
+	}
+
+	/**
+	 * Alias para o método and()
+	 * 
+	 * @param where
+	 * @return
+	 */
+	public JPQL where(String... condition) {
+		return and(condition);
+	}
+
+	/**
+	 * Alias para o método and()
+	 * 
+	 * @param where
+	 * @return
+	 */
+	public JPQL where(Collection<String> conditions) {
+		return and(conditions);
+	}
+
+	/**
+	 * Inclui cláusulas AND no WHERE para as queries.
+	 * 
+	 * @param where
+	 * @return
+	 */
+	public JPQL and(String... condition) {
+		return and(Arrays.asList(condition));
+	}
+
+	/**
+	 * Inclui cláusulas AND no WHERE para as queries.
+	 * 
+	 * @param where
+	 * @return
+	 */
+	public JPQL and(Collection<String> conditions) {
+		this.where.addAll(conditions);
+		return this;
+	}
+
+	/**
+	 * Inclui cláusulas OR no WHERE para as queries
+	 * 
+	 * @param where
+	 * @return
+	 */
+	public JPQL or(String... condition) {
+		return or(Arrays.asList(condition));
+	}
+
+	/**
+	 * Inclui cláusulas OR no WHERE para as queries
+	 * 
+	 * @param where
+	 * @return
+	 */
+	public JPQL or(Collection<String> conditions) {
+		return and(String.format("(%s)", StringUtils.join(conditions, " OR ")));
+	}
+
+	/**
+	 * Alias para o método andIf()
+	 * 
+	 * @param value
+	 * @param condition
+	 * @return
+	 */
+	public JPQL whereIf(Object value, String condition) {
+		return andIf(value, condition);
+	}
+
+	/**
+	 * Inclui a cláusula AND no WHERE e o valor do seu único parâmetro
+	 * nominal (que pode aparecer mais de uma vez) apenas se o valor estiver
+	 * presente (não nulo, não vazio e não composto apenas por espaços).
+	 * Substitui o padrão
+	 * <code>(:p is null or e.x = :p)</code>, gerando apenas os predicados
+	 * ativos e permitindo o uso de índices.
+	 * 
+	 * @param value
+	 * @param condition
+	 *            ex.: <code>"e.nome = :nome"</code>
+	 * @return
+	 */
+	public JPQL andIf(Object value, String condition) {
+		if (isPresent(value)) {
+			and(condition);
+			withParam(getParamName(condition), value);
+		}
+		return this;
+	}
+
+	/**
+	 * Combina com OR a cláusula informada e a última cláusula do WHERE, apenas
+	 * se o valor estiver presente. Sem cláusula anterior, equivale a
+	 * {@link #andIf(Object, String)}.
+	 * 
+	 * @param value
+	 * @param condition
+	 * @return
+	 */
+	public JPQL orIf(Object value, String condition) {
+		if (isPresent(value)) {
+			if (where.isEmpty()) {
+				and(condition);
+			} else {
+				String last = where.remove(where.size() - 1);
+				or(last, condition);
+			}
+			withParam(getParamName(condition), value);
+		}
+		return this;
+	}
+
+	/**
+	 * Inclui a cláusula LIKE apenas se o valor estiver presente. Quando o
+	 * valor não possui curingas, é usado como prefixo (<code>valor%</code>),
+	 * forma que ainda permite o uso de índices.
+	 * 
+	 * @param value
+	 * @param condition
+	 *            ex.: <code>"e.nome like :nome"</code>
+	 * @return
+	 */
+	public JPQL likeIf(String value, String condition) {
+		if (isPresent(value) && !value.contains("%"))
+			value = value + "%";
+		return andIf(value, condition);
+	}
+
+	/**
+	 * Inclui as cláusulas de intervalo <code>path >= :min</code> e
+	 * <code>path <= :max</code> apenas para os limites presentes. Os nomes
+	 * dos parâmetros são derivados do path (ex.: <code>e.data</code> gera
+	 * <code>e_data_min</code> e <code>e_data_max</code>).
+	 * 
+	 * @param path
+	 * @param min
+	 * @param max
+	 * @return
+	 */
+	public JPQL betweenIf(String path, Object min, Object max) {
+		String param = path.replaceAll("\\W", "_");
+		andIf(min, String.format("%s >= :%s_min", path, param));
+		andIf(max, String.format("%s <= :%s_max", path, param));
+		return this;
+	}
+
+	/**
+	 * Inclui a cláusula <code>exists (subquery)</code> no WHERE (ver
+	 * {@link #subquery(JPQL)}).
+	 * 
+	 * @param subquery
+	 * @return
+	 */
+	public JPQL exists(JPQL subquery) {
+		return and(String.format("exists %s", subquery(subquery)));
+	}
+
+	/**
+	 * Inclui a cláusula <code>not exists (subquery)</code> no WHERE (ver
+	 * {@link #subquery(JPQL)}).
+	 * 
+	 * @param subquery
+	 * @return
+	 */
+	public JPQL notExists(JPQL subquery) {
+		return and(String.format("not exists %s", subquery(subquery)));
+	}
+
+	/**
+	 * Inclui a cláusula <code>path in (subquery)</code> no WHERE, no lugar
+	 * de buscar os valores em uma consulta separada e passá-los como
+	 * parâmetro (ver {@link #subquery(JPQL)}).
+	 * 
+	 * @param path
+	 *            ex.: <code>"p.cliente.id"</code>
+	 * @param subquery
+	 * @return
+	 */
+	public JPQL in(String path, JPQL subquery) {
+		return and(String.format("%s in %s", path, subquery(subquery)));
+	}
+
+	/**
+	 * Inclui a cláusula <code>path not in (subquery)</code> no WHERE (ver
+	 * {@link #subquery(JPQL)}).
+	 * 
+	 * @param path
+	 * @param subquery
+	 * @return
+	 */
+	public JPQL notIn(String path, JPQL subquery) {
+		return and(String.format("%s not in %s", path, subquery(subquery)));
+	}
+
+	/**
+	 * Retorna a query informada entre parênteses, para ser usada como
+	 * subquery em uma cláusula desta query, por exemplo
+	 * <code>and("p.valor > all " + jpql.subquery(sub))</code>. Os parâmetros
+	 * com valor na subquery são incluídos nesta query, renomeados
+	 * (<code>nome_sq1</code>, ...) quando já houver um parâmetro com valor de
+	 * mesmo nome; parâmetros sem valor também são renomeados nesse caso e,
+	 * caso contrário, mantêm o nome e podem ser informados depois com
+	 * {@link #withParam(String, Object)}. Literais entre aspas simples não
+	 * são alterados. A subquery é lida no momento da
+	 * chamada, pode referenciar os aliases desta query e deve usar aliases
+	 * próprios diferentes. A ordenação da subquery é ignorada.
+	 * 
+	 * @param subquery
+	 * @return
+	 */
+	public String subquery(JPQL subquery) {
+		if (subquery.update != null || subquery.delete != null || subquery.select.isEmpty())
+			throw new IllegalArgumentException("A subquery must be a select query");
+		if (subquery.firstResult != null || subquery.maxResults != null)
+			throw new IllegalArgumentException("A subquery cannot be paginated");
+
+		JPQL sub = subquery.copy(subquery.entityManager);
+		sub.order.clear();
+
+		String text = sub.toString().trim();
+		List<int[]> positions = findParams(text);
+		Set<String> subNames = new LinkedHashSet<String>(sub.params.keySet());
+		for (int[] position : positions)
+			subNames.add(text.substring(position[0] + 1, position[1]));
+
+		// Colidem os nomes já com valor nesta query, tenham ou não valor na
+		// subquery: sem valor, o parâmetro receberia o valor desta query.
+		Set<String> taken = new HashSet<String>(params.keySet());
+		taken.addAll(subNames);
+		Map<String, String> names = new HashMap<String, String>();
+		for (String name : subNames) {
+			String renamed = name;
+			if (params.containsKey(name)) {
+				for (int i = 1; taken.contains(renamed); i++)
+					renamed = String.format("%s_sq%d", name, i);
+				taken.add(renamed);
+				names.put(name, renamed);
+			}
+			if (sub.params.containsKey(name))
+				params.put(renamed, sub.params.get(name));
+		}
+
+		StringBuilder jpql = new StringBuilder("(");
+		int last = 0;
+		for (int[] position : positions) {
+			String name = names.get(text.substring(position[0] + 1, position[1]));
+			if (name != null) {
+				jpql.append(text, last, position[0] + 1).append(name);
+				last = position[1];
+			}
+		}
+		return jpql.append(text, last, text.length()).append(")").toString();
+	}
+
+	/**
+	 * Inclui valores para os parâmetros nominais das cláusulas.
+	 * 
+	 * @param paramName
+	 * @param paramValue
+	 * @return
+	 */
+	public JPQL withParam(String paramName, Object paramValue) {
+		this.params.put(paramName, paramValue);
+		return this;
+	}
+
+	/**
+	 * Inclui cláusulas GROUP BY para as queries.
+	 * 
+	 * @param group
+	 * @return
+	 */
+	public JPQL groupBy(String... group) {
+		return groupBy(Arrays.asList(group));
+	}
+
+	/**
+	 * Inclui cláusulas GROUP BY para as queries.
+	 * 
+	 * @param group
+	 * @return
+	 */
+	public JPQL groupBy(Collection<String> groups) {
+		this.group.addAll(groups);
+		return this;
+	}
+	
+	/**
+	 * Inclui cláusulas HAVING para as queries.
+	 * 
+	 * @param having
+	 * @return
+	 */
+	public JPQL having(String... having) {
+		return having(Arrays.asList(having));
+	}
+	
+	/**
+	 * Inclui cláusulas HAVING para as queries.
+	 * 
+	 * @param group
+	 * @return
+	 */
+	public JPQL having(Collection<String> havings) {
+		this.having.addAll(havings);
+		return this;
+	}
+
+	/**
+	 * Inclui cláusulas ORDER BY para as queries.
+	 * 
+	 * @param order
+	 * @return
+	 */
+	public JPQL orderBy(String... order) {
+		return orderBy(Arrays.asList(order));
+	}
+
+	/**
+	 * Inclui cláusulas ORDER BY para as queries.
+	 * 
+	 * @param order
+	 * @return
+	 */
+	public JPQL orderBy(Collection<String> orders) {
+		this.order.addAll(orders);
+		return this;
+	}
+
+	/**
+	 * Informa qual será o índice do primeiro resultado retornado pela query.
+	 * 
+	 * @param firstResult
+	 * @return
+	 */
+	public JPQL firstResult(Integer firstResult) {
+		this.firstResult = firstResult;
+		return this;
+	}
+
+	/**
+	 * Limita a quantidade de resultados trazidos pela query.
+	 * 
+	 * @param firstResult
+	 * @return
+	 */
+	public JPQL maxResults(Integer maxResults) {
+		this.maxResults = maxResults;
+		return this;
+	}
+
+	/**
+	 * Define o timeout da query (hint <code>javax.persistence.query.timeout</code>).
+	 * Havendo um {@link Deadline} ativo, prevalece o menor dos dois. O valor é
+	 * arredondado para cima em segundos inteiros, a resolução do JDBC (ver
+	 * {@link Deadline#getQueryTimeout(Integer)}).
+	 * 
+	 * @param timeout
+	 * @param unit
+	 * @return
+	 */
+	public JPQL timeout(long timeout, TimeUnit unit) {
+		this.timeout = (int) Math.min(Integer.MAX_VALUE, unit.toMillis(timeout));
+		return this;
+	}
+
+	/**
+	 * Define o comentário incluído no SQL da consulta (ver
+	 * {@link QueryComment}), por exemplo <code>PedidoRepository.findPendentes</code>.
+	 * Deve ser fixo por ponto do código, para não prejudicar o cache de planos.
+	 * 
+	 * @param comment
+	 * @return
+	 */
+	public JPQL comment(String comment) {
+		this.comment = comment;
+		return this;
+	}
+
+	/**
+	 * Define o modo de lock das entidades retornadas pela consulta, por exemplo
+	 * {@link LockModeType#PESSIMISTIC_WRITE}. Exige uma transação ativa.
+	 * 
+	 * @param lockMode
+	 * @return
+	 */
+	public JPQL lock(LockModeType lockMode) {
+		this.lockMode = lockMode;
+		return this;
+	}
+
+	/**
+	 * Define o modo de lock e o timeout de lock em milissegundos (hint
+	 * <code>javax.persistence.lock.timeout</code>). Aceita também
+	 * {@link #NO_WAIT} e {@link #SKIP_LOCKED}.
+	 * 
+	 * @param lockMode
+	 * @param lockTimeout
+	 * @return
+	 */
+	public JPQL lock(LockModeType lockMode, int lockTimeout) {
+		this.lockMode = lockMode;
+		this.lockTimeout = lockTimeout;
+		return this;
+	}
+
+	/**
+	 * Agrupa execuções concorrentes desta mesma query (mesmo JPQL, parâmetros
+	 * e paginação): enquanto uma execução de {@link #getResultList()} está em
+	 * andamento, as demais aguardam e recebem o seu resultado. Indicado apenas
+	 * para consultas somente leitura, já que a chamada que aguarda não enxerga
+	 * as suas próprias alterações ainda não confirmadas.
+	 * <p>
+	 * As chamadas que aguardam recebem cópias serializadas: as entidades não
+	 * pertencem ao seu contexto de persistência, associações lazy ainda não
+	 * carregadas não podem ser acessadas, e alterações exigem
+	 * <code>merge</code>. Se o resultado não for {@link java.io.Serializable},
+	 * cada chamada que aguardou executa a própria query.
+	 * 
+	 * @param coalescing
+	 * @return
+	 */
+	public JPQL coalesce(Coalescing coalescing) {
+		this.coalescing = coalescing;
+		return this;
+	}
+
+	/**
+	 * Define o limite de linhas de {@link #getResultList()} quando a consulta
+	 * não tem maxResults, no lugar do limite global (ver {@link ResultLimit}).
+	 * 
+	 * @param limit
+	 * @return
+	 */
+	public JPQL limit(ResultLimit limit) {
+		this.resultLimit = limit;
+		return this;
+	}
+
+	/**
+	 * Executa as consultas (SELECT sem lock) no EntityManager fornecido a
+	 * cada execução, por exemplo o de uma réplica de leitura, que é devolvido
+	 * logo após a execução. UPDATE/DELETE em massa e consultas com lock usam
+	 * sempre o EntityManager da query.
+	 * 
+	 * @param reader
+	 * @return
+	 */
+	public JPQL readFrom(EntityManagerProvider reader) {
+		this.reader = reader;
+		return this;
+	}
+
+	/**
+	 * Retorna uma lista de entidades que atendem aos critérios da busca. Já faz
+	 * o <code>cast</code> para a classe <code>resultType</code> passada.
+	 * 
+	 * @param resultType
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> List<T> getResultList(Class<T> resultType) {
+		return (List<T>) getResultList();
+	}
+
+	/**
+	 * Retorna uma lista de entidades que atendem aos critérios da busca. Sem
+	 * maxResults, aplica o {@link ResultLimit} da consulta ou o global: com a
+	 * política {@link ResultLimit.Policy#STREAM}, consultas sem ordenação são
+	 * ordenadas pelo id da raiz e, acima do limite, é retornada uma
+	 * {@link StreamResultList} somente leitura.
+	 * 
+	 * @return
+	 */
+	public List<?> getResultList() {
+		ResultLimit limit = resultLimit != null ? resultLimit : ResultLimit.getDefault();
+		if (limit == null || maxResults != null)
+			return fetch();
+
+		String idPath = limit.getPolicy() == ResultLimit.Policy.STREAM ? getKeysetIdPath() : null;
+		JPQL bounded = copy();
+		if (idPath != null && order.isEmpty())
+			bounded.orderBy(idPath);
+		bounded.maxResults = limit.getMaxRows() + 1;
+		List<?> result = bounded.fetch();
+		if (result.size() <= limit.getMaxRows())
+			return result;
+
+		MetricsUtil.increment(ResultLimit.METRIC_EXCEEDED);
+		if (idPath == null)
+			throw new ResultLimitExceededException(limit.getMaxRows(), toString());
+		@SuppressWarnings("unchecked")
+		List<Object> firstPage = (List<Object>) result;
+		return new StreamResultList<Object>(bounded, idPath, firstPage, limit.getPageSize());
+	}
+
+	/**
+	 * Retorna uma lista preguiçosa dos resultados, que carrega as páginas sob
+	 * demanda a partir do índice acessado (ver {@link LazyResultList}). Já faz
+	 * o <code>cast</code> para a classe <code>resultType</code> passada.
+	 * 
+	 * @param resultType
+	 * @param pageSize
+	 * @return
+	 */
+	public <T> List<T> getLazyResultList(Class<T> resultType, int pageSize) {
+		return new LazyResultList<T>(this, pageSize);
+	}
+
+	/**
+	 * Retorna uma lista preguiçosa dos resultados, que carrega as páginas sob
+	 * demanda a partir do índice acessado (ver {@link LazyResultList}).
+	 * 
+	 * @param pageSize
+	 * @return
+	 */
+	public List<?> getLazyResultList(int pageSize) {
+		return new LazyResultList<Object>(this, pageSize);
+	}
+
+	/**
+	 * Retorna os ids (atributo id da entidade raiz do FROM, obtido do
+	 * metamodelo) que atendem aos critérios da busca, sem repetições, em um
+	 * <code>long[]</code>. Sem paginação definida, os ids são lidos em blocos
+	 * ordenados pelo id (keyset), sem montar a lista de ids encaixotados; com
+	 * paginação, é feita uma única consulta na ordem da query.
+	 * 
+	 * @return
+	 */
+	public long[] getLongIds() {
+		LongIds ids = new LongIds();
+		fetchIds(ids);
+		return Arrays.copyOf(ids.values, ids.size);
+	}
+
+	/**
+	 * Mesmo que {@link #getLongIds()}, para ids inteiros.
+	 * 
+	 * @return
+	 * @throws ArithmeticException
+	 *             se algum id não couber em um <code>int</code>
+	 */
+	public int[] getIntIds() {
+		IntIds ids = new IntIds();
+		fetchIds(ids);
+		return Arrays.copyOf(ids.values, ids.size);
+	}
+
+	/**
+	 * Mesmo que {@link #getLongIds()}, retornando um conjunto ordenado e
+	 * compacto.
+	 * 
+	 * @return
+	 */
+	public SortedIdSet getIdSet() {
+		return SortedIdSet.of(getLongIds());
+	}
+
+	/**
+	 * Retorna o resultado da projeção organizado por colunas primitivas (ver
+	 * {@link ColumnarResult}). No Hibernate as linhas são lidas numa única
+	 * passagem com <code>ScrollableResults</code> (FORWARD_ONLY), sem montar a
+	 * lista de <code>Object[]</code>; nos demais provedores a lista é montada
+	 * com {@link Query#getResultList()} e convertida. Sem maxResults, aplica
+	 * o {@link ResultLimit} da consulta ou o global como na política
+	 * {@link ResultLimit.Policy#FAIL}.
+	 * 
+	 * @return
+	 */
+	public ColumnarResult getColumnarResult() {
+		return getColumnarResult(COLUMNAR_FETCH_SIZE);
+	}
+
+	/**
+	 * Mesmo que {@link #getColumnarResult()}, com o tamanho de lote lido do
+	 * banco a cada ida (fetch size do JDBC).
+	 * 
+	 * @param fetchSize
+	 * @return
+	 */
+	public ColumnarResult getColumnarResult(int fetchSize) {
+		if (select.isEmpty())
+			throw new IllegalStateException("Columnar results require a SELECT clause");
+
+		ResultLimit limit = maxResults == null ? (resultLimit != null ? resultLimit : ResultLimit.getDefault()) : null;
+		ColumnarResult result = new ColumnarResult(select);
+		EntityManager entityManager = acquireReader();
+		try {
+			Query query = getQuery(entityManager, toString());
+			if (limit != null)
+				query.setMaxResults(limit.getMaxRows() + 1);
+			if (!scroll(query, fetchSize, result))
+				addRows(result, query.getResultList());
+		} catch (QueryTimeoutException e) {
+			throw Deadline.timedOut(e);
+		} finally {
+			releaseReader(entityManager);
+		}
+		if (limit != null && result.getRowCount() > limit.getMaxRows()) {
+			MetricsUtil.increment(ResultLimit.METRIC_EXCEEDED);
+			throw new ResultLimitExceededException(limit.getMaxRows(), toString());
+		}
+		result.trim();
+		return result;
+	}
+
+	/**
+	 * Cria a exportação do resultado em streaming para CSV ou JSON (ver
+	 * {@link ResultExporter}).
+	 * 
+	 * @param format
+	 * @return
+	 */
+	public ResultExporter export(ResultExporter.Format format) {
+		return new ResultExporter(this, format);
+	}
+
+	/**
+	 * Retorna uma única entidade que atenda aos critérios da busca. Já faz o
+	 * <code>cast</code> para a classe <code>resultType</code> passada.
+	 * 
+	 * @param resultType
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T getSingleResult(Class<T> resultType) {
+		return (T) getSingleResult();
+	}
+
+	/**
+	 * Retorna uma única entidade que atenda aos critérios da busca.
+	 * 
+	 * @return
+	 */
+	public Object getSingleResult() {
+		EntityManager entityManager = acquireReader();
+		try {
+			return getQuery(entityManager, toString()).getSingleResult();
+		} catch (QueryTimeoutException e) {
+			throw Deadline.timedOut(e);
+		} finally {
+			releaseReader(entityManager);
+		}
+	}
+
+	/**
+	 * Retorna uma única entidade que atenda aos critérios da busca. Trata o
+	 * caso de não haver resultado, retornando <code>null</code>. Já faz o
+	 * <code>cast</code> para a classe <code>resultType</code> passada.
+	 * 
+	 * @param resultType
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T getAnyResult(Class<T> resultType) {
+		return (T) getAnyResult();
+	}
+
+	/**
+	 * Retorna uma única entidade que atenda aos critérios da busca. Trata o
+	 * caso de não haver resultado, retornando <code>null</code>.
+	 * 
+	 * @return
+	 */
+	public Object getAnyResult() {
+		List<?> result = getResultList();
+		if (result != null && !result.isEmpty())
+			return result.get(0);
+		return null;
+	}
+
+	/**
+	 * Executa o UPDATE/DELETE em massa, invalidando o cache de segundo nível
+	 * da entidade (quando conhecida) e sincronizando as instâncias informadas
+	 * em {@link #synchronize(Collection)}.
+	 * <p>
+	 * O comando vai direto ao banco, sem passar pelo contexto de persistência:
+	 * instâncias gerenciadas afetadas e não informadas em
+	 * {@link #synchronize(Collection)} continuam com o estado anterior, e um
+	 * flush posterior delas pode sobrescrever a alteração ou, com
+	 * {@link #incrementVersion()}, falhar com
+	 * {@link javax.persistence.OptimisticLockException}.
+	 * 
+	 * @return quantidade de registros afetados
+	 */
+	public int executeUpdate() {
+		if (update == null && delete == null)
+			throw new IllegalStateException("executeUpdate requires update() or delete()");
+
+		int count;
+		Query query = getQuery();
+		try {
+			count = query.executeUpdate();
+		} catch (QueryTimeoutException e) {
+			throw Deadline.timedOut(e);
+		}
+
+		Cache cache = entityManager.getEntityManagerFactory().getCache();
+		if (entityClass != null && cache != null)
+			cache.evict(entityClass);
+
+		for (Object entity : synchronize) {
+			if (entityManager.contains(entity)) {
+				if (delete != null)
+					entityManager.detach(entity);
+				else
+					entityManager.refresh(entity);
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Cria uma cópia desta query associada ao EntityManager informado, por
+	 * exemplo para executá-la em outra thread ou em outra base de dados. A
+	 * cópia sempre executa no EntityManager informado: o leitor de
+	 * {@link #readFrom(EntityManagerProvider)} não é copiado.
+	 * 
+	 * @param entityManager
+	 * @return
+	 */
+	public JPQL copy(EntityManager entityManager) {
+		JPQL copy = new JPQL(entityManager);
+		copy.update = update;
+		copy.delete = delete;
+		copy.set.addAll(set);
+		copy.entityClass = entityClass;
+		copy.alias = alias;
+		copy.incrementVersion = incrementVersion;
+		copy.synchronize.addAll(synchronize);
+		copy.select.addAll(select);
+		copy.from.addAll(from);
+		copy.where.addAll(where);
+		copy.params.putAll(params);
+		copy.group.addAll(group);
+		copy.having.addAll(having);
+		copy.order.addAll(order);
+		copy.firstResult = firstResult;
+		copy.maxResults = maxResults;
+		copy.timeout = timeout;
+		copy.coalescing = coalescing;
+		copy.resultLimit = resultLimit;
+		copy.lockMode = lockMode;
+		copy.lockTimeout = lockTimeout;
+		copy.comment = comment;
+		return copy;
+	}
+
+	/**
+	 * Cria uma cópia desta query no mesmo EntityManager, mantendo o leitor de
+	 * {@link #readFrom(EntityManagerProvider)}, para as páginas e partes de
+	 * uma mesma leitura.
+	 */
+	JPQL copy() {
+		JPQL copy = copy(entityManager);
+		copy.reader = reader;
+		return copy;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder query = new StringBuilder();
+
+		if (update != null) {
+			append(query, "update");
+			append(query, update);
+			append(query, "set", getSet(), ",");
+		} else if (delete != null) {
+			append(query, "delete from");
+			append(query, delete);
+		} else {
+			if (!select.isEmpty())
+				append(query, "select", select, ",");
+			append(query, "from", from);
+		}
+		if (!where.isEmpty())
+			append(query, "where", where, "and");
+		if (!group.isEmpty())
+			append(query, "group by", group, ",");
+		if (!having.isEmpty())
+			append(query, "having", having, ",");
+		if (!order.isEmpty())
+			append(query, "order by", order, ",");
+
+		return query.toString();
+	}
+
+	// ----------------------------------------------------------------------------
+	// PACKAGE
+	// ----------------------------------------------------------------------------
+
+	EntityManager getEntityManager() {
+		return entityManager;
+	}
+
+	List<String> getSelects() {
+		return select;
+	}
+
+	List<String> getGroups() {
+		return group;
+	}
+
+	List<String> getHavings() {
+		return having;
+	}
+
+	List<String> getOrders() {
+		return order;
+	}
+
+	/**
+	 * Caminho do id da entidade raiz (ex.: <code>p.id</code>), usado na
+	 * paginação pelo id.
+	 * 
+	 * @throws IllegalStateException
+	 *             se a raiz não tiver alias ou um id simples
+	 */
+	String getIdPath() {
+		if (from.isEmpty())
+			throw new IllegalStateException("Query has no FROM clause");
+		String[] root = from.get(0).trim().split("\\s+");
+		if (root.length < 2)
+			throw new IllegalStateException(String.format("The root entity needs an alias: %s", from.get(0)));
+
+		String idAttribute = null;
+		for (EntityType<?> entityType : entityManager.getMetamodel().getEntities()) {
+			if (entityType.getName().equals(root[0]))
+				idAttribute = EntityUtil.getIdAttributeName(entityManager, entityType.getJavaType());
+		}
+		if (idAttribute == null)
+			throw new IllegalStateException(String.format("%s has no single basic id attribute", root[0]));
+
+		String rootAlias = root[1].equalsIgnoreCase("as") && root.length > 2 ? root[2] : root[1];
+		return String.format("%s.%s", rootAlias, idAttribute);
+	}
+
+	/**
+	 * Caminho do id da raiz para a paginação pelo id (política
+	 * {@link ResultLimit.Policy#STREAM} e {@link LazyResultList}), ou
+	 * <code>null</code> se a consulta não puder ser percorrida pelo id:
+	 * agrupada, com projeções ou ordenada por outro atributo.
+	 */
+	String getKeysetIdPath() {
+		if (!group.isEmpty() || !having.isEmpty())
+			return null;
+		String idPath;
+		try {
+			idPath = getIdPath();
+		} catch (IllegalStateException e) {
+			return null;
+		}
+
+		String rootAlias = idPath.substring(0, idPath.lastIndexOf('.'));
+		if (select.size() > 1 || (select.size() == 1 && !select.get(0).trim().replaceAll("(?i)^distinct\\s+", "").equals(rootAlias)))
+			return null;
+		if (order.isEmpty())
+			return idPath;
+		String first = order.size() == 1 ? order.get(0).trim().replaceAll("(?i)\\s+asc$", "") : null;
+		return idPath.equals(first) ? idPath : null;
+	}
+
+	/**
+	 * Restringe esta query às linhas com id maior que o informado, para a
+	 * paginação pelo id; não faz nada se <code>last</code> for
+	 * <code>null</code>.
+	 */
+	JPQL afterId(String idPath, Object last) {
+		if (last != null)
+			and(String.format("%s > :%s", idPath, LAST_ID_PARAM)).withParam(LAST_ID_PARAM, last);
+		return this;
+	}
+
+	/**
+	 * Cria a query de contagem derivada desta query, sem ordenação, paginação
+	 * nem fetch joins.
+	 */
+	JPQL toCountQuery() {
+		if (!group.isEmpty())
+			throw new IllegalStateException("Cannot derive a count query from a grouped query");
+
+		JPQL count = copy();
+		count.select.clear();
+		count.select.add(String.format("count(%s)", getCountExpression()));
+		count.from.clear();
+		for (String item : from)
+			count.from.add(item.replaceAll("(?i)join\\s+fetch", "join"));
+		count.order.clear();
+		count.firstResult = null;
+		count.maxResults = null;
+		count.coalescing = null;
+		count.lockMode = null;
+		count.lockTimeout = null;
+		return count;
+	}
+
+	Integer getFirstResult() {
+		return firstResult;
+	}
+
+	Integer getMaxResults() {
+		return maxResults;
+	}
+
+	// ----------------------------------------------------------------------------
+	// PRIVATE
+	// ----------------------------------------------------------------------------
+
+	private String getCountExpression() {
+		if (select.size() == 1 && !select.get(0).trim().toLowerCase().startsWith("new "))
+			return select.get(0).trim();
+
+		if (from.isEmpty())
+			throw new IllegalStateException("Query has no FROM clause");
+		String[] root = from.get(0).trim().split("\\s+");
+		if (root.length < 2)
+			throw new IllegalStateException(String.format("The root entity needs an alias: %s", from.get(0)));
+		return root[root.length - 1];
+	}
+
+	private boolean isPresent(Object value) {
+		if (value == null)
+			return false;
+		if (value instanceof String)
+			return StringUtils.isNotBlank((String) value);
+		if (value instanceof Collection)
+			return !((Collection<?>) value).isEmpty();
+		if (value instanceof Map)
+			return !((Map<?, ?>) value).isEmpty();
+		if (value.getClass().isArray())
+			return Array.getLength(value) > 0;
+		return true;
+	}
+
+	private String getParamName(String condition) {
+		String name = null;
+		for (int[] param : findParams(condition)) {
+			String found = condition.substring(param[0] + 1, param[1]);
+			if (name != null && !name.equals(found))
+				throw new IllegalArgumentException(String.format("More than one named parameter in condition: %s", condition));
+			name = found;
+		}
+		if (name == null)
+			throw new IllegalArgumentException(String.format("No named parameter in condition: %s", condition));
+		return name;
+	}
+
+	/**
+	 * Retorna as posições (início e fim) dos parâmetros nominais do trecho
+	 * JPQL, ignorando o conteúdo dos literais entre aspas simples.
+	 */
+	private static List<int[]> findParams(String jpql) {
+		List<int[]> params = new ArrayList<int[]>();
+		boolean literal = false;
+		for (int i = 0; i < jpql.length(); i++) {
+			char c = jpql.charAt(i);
+			if (c == '\'') {
+				literal = !literal;
+			} else if (c == ':' && !literal) {
+				int end = i + 1;
+				while (end < jpql.length() && (Character.isLetterOrDigit(jpql.charAt(end)) || jpql.charAt(end) == '_'))
+					end++;
+				if (end > i + 1) {
+					params.add(new int[] { i, end });
+					i = end - 1;
+				}
+			}
+		}
+		return params;
+	}
+
+	private JPQL join(boolean inner, boolean fetch, Collection<String> joins) {
+		List<String> list = new ArrayList<String>();
+		for (String join : joins) {
+			list.add(String.format("%s join %s %s", inner ? "inner" : "left", fetch ? "fetch" : "", join));
+		}
+		return from(list);
+	}
+	
+	private List<String> getSet() {
+		if (!incrementVersion)
+			return set;
+
+		if (entityClass == null)
+			throw new IllegalStateException("incrementVersion requires update(Class, String)");
+
+		String attribute = EntityUtil.getVersionAttributeName(entityManager, entityClass);
+		if (attribute == null)
+			throw new IllegalStateException(String.format("%s has no version attribute", entityClass.getName()));
+
+		List<String> sets = new ArrayList<String>(set);
+		String version = String.format("%s.%s", alias, attribute);
+		sets.add(String.format("%s = %s + 1", version, version));
+		return sets;
+	}
+
+	private void fetchIds(IdSink sink) {
+		String idPath = getIdPath();
+		JPQL ids = copy();
+		ids.select.clear();
+		ids.select.add(String.format("distinct %s", idPath));
+		ids.coalescing = null;
+		ids.lockMode = null;
+		ids.lockTimeout = null;
+
+		if (firstResult != null || maxResults != null) {
+			// SELECT DISTINCT exige as expressões do ORDER BY no SELECT
+			// (PostgreSQL, Oracle, SQL Server); as linhas repetidas por elas
+			// são removidas aqui.
+			for (String expression : order)
+				ids.select.add(expression.trim().replaceFirst("(?i)\\s+(asc|desc)$", ""));
+			Set<Object> seen = new HashSet<Object>();
+			for (Object row : ids.getResultList()) {
+				Object id = row instanceof Object[] ? ((Object[]) row)[0] : row;
+				if (seen.add(id))
+					sink.add((Number) id);
+			}
+			return;
+		}
+
+		ids.order.clear();
+		ids.order.add(idPath);
+		ids.maxResults = ID_CHUNK_SIZE;
+		Object last = null;
+		while (true) {
+			JPQL chunk = ids.copy().afterId(idPath, last);
+			List<?> result = chunk.getResultList();
+			for (Object id : result)
+				sink.add((Number) id);
+			if (result.size() < ID_CHUNK_SIZE)
+				return;
+			last = result.get(result.size() - 1);
+		}
+	}
+
+	private void addRows(ColumnarResult result, List<?> rows) {
+		for (Object row : rows)
+			result.add(row instanceof Object[] ? (Object[]) row : new Object[] { row });
+	}
+
+	/**
+	 * Lê as linhas da query numa única passagem com o ScrollableResults do
+	 * Hibernate. Retorna <code>false</code> em outros provedores.
+	 */
+	private boolean scroll(Query query, int fetchSize, ColumnarResult result) {
+		Object scrollable;
+		Method next, get, close;
+		try {
+			Class<?> hibernateQuery = Class.forName("org.hibernate.Query");
+			Class<?> scrollMode = Class.forName("org.hibernate.ScrollMode");
+			Class<?> scrollableResults = Class.forName("org.hibernate.ScrollableResults");
+			next = scrollableResults.getMethod("next");
+			get = scrollableResults.getMethod("get");
+			close = scrollableResults.getMethod("close");
+			Object unwrapped = query.unwrap(hibernateQuery);
+			hibernateQuery.getMethod("setFetchSize", int.class).invoke(unwrapped, fetchSize);
+			scrollable = hibernateQuery.getMethod("scroll", scrollMode).invoke(unwrapped, scrollMode.getField("FORWARD_ONLY").get(null));
+		} catch (ClassNotFoundException | NoSuchMethodException | NoSuchFieldException e) {
+			return false;
+		} catch (InvocationTargetException e) {
+			throw unwrap(e);
+		} catch (IllegalAccessException e) {
+			throw new PersistenceException(e);
+		}
+
+		try {
+			while ((Boolean) next.invoke(scrollable))
+				result.add((Object[]) get.invoke(scrollable));
+		} catch (InvocationTargetException e) {
+			throw unwrap(e);
+		} catch (IllegalAccessException e) {
+			throw new PersistenceException(e);
+		} finally {
+			try {
+				close.invoke(scrollable);
+			} catch (InvocationTargetException | IllegalAccessException e) {
+				// a falha original, se houver, é mais relevante
+			}
+		}
+		return true;
+	}
+
+	private RuntimeException unwrap(InvocationTargetException e) {
+		return e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new PersistenceException(e.getCause());
+	}
+
+	private List<?> fetch() {
+		final EntityManager entityManager = acquireReader();
+		try {
+			if (coalescing != null && lockMode == null) {
+				return SingleFlight.execute(getCoalescingKey(), coalescing, new Callable<List<?>>() {
+					@Override
+					public List<?> call() {
+						return execute(entityManager);
+					}
+				});
+			}
+			return execute(entityManager);
+		} finally {
+			releaseReader(entityManager);
+		}
+	}
+
+	private EntityManager acquireReader() {
+		return reader != null && lockMode == null ? reader.acquire() : entityManager;
+	}
+
+	private void releaseReader(EntityManager entityManager) {
+		if (reader != null && lockMode == null)
+			reader.release(entityManager);
+	}
+
+	private List<?> execute(EntityManager entityManager) {
+		String jpql = toString();
+		Query query = getQuery(entityManager, jpql);
+		FetchSizeAdvisor.applyTo(query, jpql, maxResults);
+
+		List<?> result;
+		try {
+			result = query.getResultList();
+		} catch (QueryTimeoutException e) {
+			throw Deadline.timedOut(e);
+		}
+
+		if (FetchSizeAdvisor.isRecording())
+			FetchSizeAdvisor.record(jpql, maxResults, result.size());
+		return result;
+	}
+
+	private Object getCoalescingKey() {
+		return Arrays.asList(entityManager.getEntityManagerFactory(), toString(), new HashMap<String, Object>(params), firstResult, maxResults);
+	}
+
+	private Query getQuery() {
+		return getQuery(entityManager, this.toString());
+	}
+
+	private Query getQuery(EntityManager entityManager, String jpql) {
+		Query query = entityManager.createQuery(jpql);
+
+		for (String paramName : params.keySet()) {
+			query.setParameter(paramName, params.get(paramName));
+		}
+
+		if (firstResult != null)
+			query.setFirstResult(firstResult);
+		if (maxResults != null)
+			query.setMaxResults(maxResults);
+
+		if (lockMode != null)
+			query.setLockMode(lockMode);
+		if (lockTimeout != null) {
+			if (lockTimeout == SKIP_LOCKED && !EntityUtil.supportsSkipLocked(entityManager))
+				throw new UnsupportedOperationException("SKIP LOCKED requires Hibernate 5.2+ and a dialect that supports it");
+			query.setHint(LOCK_TIMEOUT_HINT, lockTimeout);
+		}
+
+		Deadline.applyTo(query, timeout);
+		QueryComment.applyTo(query, comment);
+
+		return query;
+	}
+
+	private void append(StringBuilder sb, String part, List<?> values, String separator) {
+		append(sb, part);
+		for (int i = 0; i < values.size(); i++) {
+			append(sb, values.get(i));
+			if (i != (values.size() - 1))
+				append(sb, separator);
+			sb.append(" ");
+		}
+	}
+
+	private void append(StringBuilder sb, String part, List<?> values) {
+		append(sb, part);
+		for (Object value : values)
+			append(sb, value);
+	}
+
+	private void append(StringBuilder sb, Object value) {
+		sb.append(value);
+		sb.append(" ");
+	}
+
+	private interface IdSink {
+
+		void add(Number id);
+
+	}
+
+	private static final class LongIds implements IdSink {
+
+		private long[] values = new long[ID_CHUNK_SIZE];
+		private int size;
+
+		@Override
+		public void add(Number id) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = id.longValue();
+		}
+
+	}
+
+	private static final class IntIds implements IdSink {
+
+		private int[] values = new int[ID_CHUNK_SIZE];
+		private int size;
+
+		@Override
+		public void add(Number id) {
+			long value = id.longValue();
+			if (value != (int) value)
+				throw new ArithmeticException(String.format("Id %s does not fit in an int", id));
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = (int) value;
+		}
+
+	}
+
+}
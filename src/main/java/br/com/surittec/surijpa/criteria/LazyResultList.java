@@ -0,0 +1,184 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.criteria;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import br.com.surittec.surijpa.util.EntityUtil;
+
+/**
+ * Lista somente leitura sobre o resultado de uma {@link JPQL}, que carrega as
+ * páginas sob demanda a partir do índice acessado. Mantém em memória apenas as
+ * páginas usadas mais recentemente e só executa a query de contagem derivada
+ * quando {@link #size()} é chamado.
+ *
+ * Quando a query seleciona a entidade raiz ordenada pelo id (ou sem
+ * ordenação, caso em que passa a ser ordenada pelo id), a página seguinte a
+ * uma página em memória é carregada pelo id da sua última linha, sem o custo
+ * do OFFSET; as demais páginas, acessadas diretamente, usam
+ * firstResult/maxResults.
+ *
+ * A iteração com {@link #iterator()} percorre as páginas em sequência e
+ * termina na primeira página incompleta, sem precisar da contagem.
+ */
+public class LazyResultList<T> extends AbstractList<T> {
+
+	/**
+	 * Quantidade padrão de páginas mantidas em memória.
+	 */
+	public static final int DEFAULT_MAX_PAGES = 10;
+
+	private final JPQL query;
+	private final int pageSize;
+	private final int offset;
+	private final Integer limit;
+	private final String idPath;
+	private final Map<Integer, List<T>> pages;
+
+	private Integer size;
+
+	// ----------------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------------
+
+	public LazyResultList(JPQL query, int pageSize) {
+		this(query, pageSize, DEFAULT_MAX_PAGES);
+	}
+
+	public LazyResultList(JPQL query, int pageSize, final int maxPages) {
+		if (pageSize <= 0 || maxPages <= 0)
+			throw new IllegalArgumentException("pageSize and maxPages must be positive");
+		this.query = query.copy();
+		this.idPath = query.getKeysetIdPath();
+		if (idPath != null && query.getOrders().isEmpty())
+			this.query.orderBy(idPath);
+		this.pageSize = pageSize;
+		this.offset = query.getFirstResult() != null ? query.getFirstResult() : 0;
+		this.limit = query.getMaxResults();
+		this.pages = new LinkedHashMap<Integer, List<T>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, List<T>> eldest) {
+				return size() > maxPages;
+			}
+		};
+	}
+
+	// ----------------------------------------------------------------------------
+	// PUBLIC
+	// ----------------------------------------------------------------------------
+
+	@Override
+	public T get(int index) {
+		if (index < 0 || (limit != null && index >= limit))
+			throw new IndexOutOfBoundsException(String.valueOf(index));
+
+		List<T> page = getPage(index / pageSize);
+		int position = index % pageSize;
+		if (position >= page.size())
+			throw new IndexOutOfBoundsException(String.valueOf(index));
+		return page.get(position);
+	}
+
+	/**
+	 * Retorna a quantidade de resultados, executando a query de contagem
+	 * derivada na primeira chamada.
+	 */
+	@Override
+	public int size() {
+		if (size == null) {
+			long count = ((Number) query.toCountQuery().getSingleResult()).longValue();
+			count = Math.max(0, count - offset);
+			if (limit != null)
+				count = Math.min(count, limit);
+			size = (int) Math.min(Integer.MAX_VALUE, count);
+		}
+		return size;
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return new Iterator<T>() {
+
+			private int index;
+
+			@Override
+			public boolean hasNext() {
+				if (size != null)
+					return index < size;
+				if (limit != null && index >= limit)
+					return false;
+				return index % pageSize < getPage(index / pageSize).size();
+			}
+
+			@Override
+			public T next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return get(index++);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+		};
+	}
+
+	/**
+	 * Descarta as páginas carregadas e a contagem, para que sejam consultadas
+	 * novamente.
+	 */
+	public void reset() {
+		pages.clear();
+		size = null;
+	}
+
+	// ----------------------------------------------------------------------------
+	// PRIVATE
+	// ----------------------------------------------------------------------------
+
+	@SuppressWarnings("unchecked")
+	private List<T> getPage(int number) {
+		List<T> page = pages.get(number);
+		if (page == null) {
+			int max = limit != null ? Math.min(pageSize, limit - number * pageSize) : pageSize;
+			List<T> previous = idPath != null && number > 0 ? pages.get(number - 1) : null;
+			if (previous != null && previous.size() == pageSize) {
+				Object lastId = EntityUtil.getIdentifier(query.getEntityManager(), previous.get(pageSize - 1));
+				page = (List<T>) query.copy().afterId(idPath, lastId).firstResult(null).maxResults(max).getResultList();
+			} else {
+				int first = offset + number * pageSize;
+				page = (List<T>) query.copy().firstResult(first).maxResults(max).getResultList();
+			}
+			pages.put(number, page);
+		}
+		return page;
+	}
+
+}
@@ -0,0 +1,471 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.criteria;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+
+import br.com.surittec.surijpa.util.Deadline;
+
+/**
+ * Executa em paralelo uma query de agregação (GROUP BY com SUM, COUNT, MIN,
+ * MAX e AVG), dividindo o espaço de um atributo numérico inteiro (ex.: o id)
+ * em faixas. Cada faixa é agregada em um EntityManager próprio e os
+ * resultados parciais são combinados: SUM, COUNT, MIN e MAX diretamente, e
+ * AVG reconstruído a partir da soma e da contagem.
+ *
+ * <pre>
+ * JPQL query = new JPQL(entityManager).select("v.dia", "sum(v.valor)", "avg(v.valor)").from("Venda v").groupBy("v.dia");
+ * List&lt;Object[]&gt; result = new ParallelAggregation(entityManagerFactory, query, "v.id").partitions(8).getResultList();
+ * </pre>
+ *
+ * Também pode agregar a mesma query em vários EntityManagers, por exemplo um
+ * por shard, combinando os resultados da mesma forma (ver
+ * {@link #ParallelAggregation(List, JPQL)}).
+ *
+ * As expressões do SELECT que não são agregações devem constar do GROUP BY.
+ * Não são suportados HAVING nem COUNT(DISTINCT ...). O ORDER BY da query não é
+ * aplicado ao resultado combinado; use {@link #orderBy(Comparator)}.
+ */
+public class ParallelAggregation {
+
+	private static final Pattern AGGREGATE = Pattern.compile("(?is)^\\s*(sum|count|min|max|avg)\\s*\\((.*)\\)\\s*$");
+
+	private static final String LOWER_PARAM = "split_lo";
+	private static final String UPPER_PARAM = "split_hi";
+
+	private enum Function {
+		GROUP, SUM, COUNT, MIN, MAX, AVG
+	}
+
+	private final EntityManagerFactory entityManagerFactory;
+	private final List<EntityManager> entityManagers;
+	private final JPQL query;
+	private final String splitPath;
+
+	private int partitions = Runtime.getRuntime().availableProcessors();
+	private Number min;
+	private Number max;
+	private ExecutorService executor;
+	private Comparator<Object[]> order;
+
+	// ----------------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------------
+
+	/**
+	 * @param entityManagerFactory
+	 *            fábrica dos EntityManagers de cada faixa
+	 * @param query
+	 *            query de agregação
+	 * @param splitPath
+	 *            atributo numérico inteiro usado para dividir as faixas
+	 */
+	public ParallelAggregation(EntityManagerFactory entityManagerFactory, JPQL query, String splitPath) {
+		this.entityManagerFactory = entityManagerFactory;
+		this.entityManagers = null;
+		this.query = query;
+		this.splitPath = splitPath;
+	}
+
+	/**
+	 * Agrega a query completa em cada um dos EntityManagers (ex.: shards), em
+	 * paralelo, e combina os resultados. Cada EntityManager é usado por uma
+	 * única thread durante a execução.
+	 * 
+	 * @param entityManagers
+	 *            EntityManagers de cada base
+	 * @param query
+	 *            query de agregação
+	 */
+	public ParallelAggregation(List<EntityManager> entityManagers, JPQL query) {
+		this.entityManagerFactory = null;
+		this.entityManagers = entityManagers;
+		this.query = query;
+		this.splitPath = null;
+	}
+
+	// ----------------------------------------------------------------------------
+	// PUBLIC
+	// ----------------------------------------------------------------------------
+
+	/**
+	 * Quantidade de faixas executadas em paralelo. O padrão é a quantidade de
+	 * processadores; o ideal também considera as conexões disponíveis.
+	 * 
+	 * @param partitions
+	 * @return
+	 */
+	public ParallelAggregation partitions(int partitions) {
+		if (partitions <= 0)
+			throw new IllegalArgumentException("partitions must be positive");
+		this.partitions = partitions;
+		return this;
+	}
+
+	/**
+	 * Limites (inclusivos) do atributo de divisão. Quando não informados, são
+	 * obtidos com uma consulta de <code>min</code>/<code>max</code>.
+	 * 
+	 * @param min
+	 * @param max
+	 * @return
+	 */
+	public ParallelAggregation range(Number min, Number max) {
+		this.min = min;
+		this.max = max;
+		return this;
+	}
+
+	/**
+	 * Executor das faixas. Quando não informado, é criado um executor
+	 * temporário com uma thread por faixa.
+	 * 
+	 * @param executor
+	 * @return
+	 */
+	public ParallelAggregation executor(ExecutorService executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	/**
+	 * Ordenação aplicada ao resultado combinado.
+	 * 
+	 * @param order
+	 * @return
+	 */
+	public ParallelAggregation orderBy(Comparator<Object[]> order) {
+		this.order = order;
+		return this;
+	}
+
+	/**
+	 * Executa a agregação. O firstResult/maxResults da query, se houver, é
+	 * aplicado ao resultado combinado.
+	 * 
+	 * @return uma linha por grupo, com as colunas na ordem do SELECT
+	 */
+	public List<Object[]> getResultList() {
+		if (!query.getHavings().isEmpty())
+			throw new IllegalArgumentException("HAVING cannot be split across partitions");
+
+		List<String> selects = query.getSelects();
+		Function[] functions = new Function[selects.size()];
+		List<String> partialSelects = new ArrayList<String>();
+		for (int i = 0; i < selects.size(); i++) {
+			String select = selects.get(i).trim();
+			Matcher matcher = AGGREGATE.matcher(select);
+			if (matcher.matches()) {
+				functions[i] = Function.valueOf(matcher.group(1).toUpperCase());
+				if (matcher.group(2).trim().toLowerCase().startsWith("distinct"))
+					throw new IllegalArgumentException(String.format("DISTINCT aggregates cannot be merged: %s", select));
+				if (functions[i] == Function.AVG) {
+					partialSelects.add(String.format("sum(%s)", matcher.group(2)));
+					partialSelects.add(String.format("count(%s)", matcher.group(2)));
+				} else {
+					partialSelects.add(select);
+				}
+			} else if (query.getGroups().contains(select)) {
+				functions[i] = Function.GROUP;
+				partialSelects.add(select);
+			} else {
+				throw new IllegalArgumentException(String.format("Select expression is neither an aggregate nor grouped: %s", select));
+			}
+		}
+
+		List<Callable<List<?>>> tasks;
+		if (entityManagers != null) {
+			tasks = createTasks(partialSelects);
+		} else {
+			Number lower = min;
+			Number upper = max;
+			if (lower == null || upper == null) {
+				Object[] range = findRange();
+				lower = (Number) range[0];
+				upper = (Number) range[1];
+				if (lower == null || upper == null)
+					return new ArrayList<Object[]>();
+			}
+			tasks = createTasks(partialSelects, lower, upper);
+		}
+
+		Map<List<Object>, Object[]> merged = new LinkedHashMap<List<Object>, Object[]>();
+		for (List<?> partial : execute(tasks, executor)) {
+			for (Object row : partial)
+				merge(merged, functions, row instanceof Object[] ? (Object[]) row : new Object[] { row });
+		}
+
+		List<Object[]> result = new ArrayList<Object[]>(merged.size());
+		for (Object[] row : merged.values())
+			result.add(finish(functions, row));
+
+		if (order != null)
+			Collections.sort(result, order);
+
+		int first = query.getFirstResult() != null ? Math.min(query.getFirstResult(), result.size()) : 0;
+		int last = query.getMaxResults() != null ? Math.min(result.size(), first + query.getMaxResults()) : result.size();
+		return new ArrayList<Object[]>(result.subList(first, last));
+	}
+
+	// ----------------------------------------------------------------------------
+	// PACKAGE
+	// ----------------------------------------------------------------------------
+
+	/**
+	 * Executa as tarefas em paralelo no executor informado ou, se
+	 * <code>null</code>, em um executor temporário com uma thread por tarefa.
+	 */
+	static List<List<?>> execute(List<Callable<List<?>>> tasks, ExecutorService executor) {
+		if (tasks.isEmpty())
+			return new ArrayList<List<?>>();
+		ExecutorService service = executor != null ? executor : Executors.newFixedThreadPool(tasks.size());
+		try {
+			List<List<?>> results = new ArrayList<List<?>>(tasks.size());
+			for (Future<List<?>> future : service.invokeAll(tasks))
+				results.add(future.get());
+			return results;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new PersistenceException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new PersistenceException(e);
+		} finally {
+			if (executor == null)
+				service.shutdownNow();
+		}
+	}
+
+	/**
+	 * Cria uma tarefa que executa a query no EntityManager informado,
+	 * propagando o {@link Deadline} da thread atual.
+	 */
+	static Callable<List<?>> task(final JPQL query) {
+		final Long deadline = Deadline.get();
+		return new Callable<List<?>>() {
+			@Override
+			public List<?> call() {
+				Deadline.set(deadline);
+				try {
+					return query.getResultList();
+				} finally {
+					Deadline.clear();
+				}
+			}
+		};
+	}
+
+	// ----------------------------------------------------------------------------
+	// PRIVATE
+	// ----------------------------------------------------------------------------
+
+	private Object[] findRange() {
+		EntityManager entityManager = entityManagerFactory.createEntityManager();
+		try {
+			JPQL range = partial(entityManager, Arrays.asList(String.format("min(%s)", splitPath), String.format("max(%s)", splitPath)));
+			range.getGroups().clear();
+			return (Object[]) range.getSingleResult();
+		} finally {
+			entityManager.close();
+		}
+	}
+
+	private JPQL partial(EntityManager entityManager, List<String> selects) {
+		JPQL partial = query.copy(entityManager);
+		partial.getSelects().clear();
+		partial.getSelects().addAll(selects);
+		partial.getOrders().clear();
+		partial.firstResult(null);
+		partial.maxResults(null);
+		partial.coalesce(null);
+		return partial;
+	}
+
+	private List<Callable<List<?>>> createTasks(List<String> partialSelects) {
+		List<Callable<List<?>>> tasks = new ArrayList<Callable<List<?>>>();
+		for (EntityManager entityManager : entityManagers)
+			tasks.add(task(partial(entityManager, partialSelects)));
+		return tasks;
+	}
+
+	private List<Callable<List<?>>> createTasks(final List<String> partialSelects, Number lower, Number upper) {
+		long low = lower.longValue();
+		long high = upper.longValue();
+		final Long deadline = Deadline.get();
+
+		List<Callable<List<?>>> tasks = new ArrayList<Callable<List<?>>>();
+		if (low > high)
+			return tasks;
+
+		// Calculado com BigInteger: high - low pode exceder um long.
+		BigInteger span = BigInteger.valueOf(high).subtract(BigInteger.valueOf(low)).add(BigInteger.ONE);
+		BigInteger steps = BigInteger.valueOf(partitions);
+		long step = span.add(steps).subtract(BigInteger.ONE).divide(steps).min(BigInteger.valueOf(Long.MAX_VALUE)).longValue();
+
+		long start = low;
+		while (true) {
+			long end = start > high - step + 1 ? high : start + step - 1;
+			final Number from = convert(start, lower);
+			final Number to = convert(end, lower);
+			tasks.add(new Callable<List<?>>() {
+				@Override
+				public List<?> call() {
+					Deadline.set(deadline);
+					EntityManager entityManager = entityManagerFactory.createEntityManager();
+					try {
+						JPQL partial = partial(entityManager, partialSelects);
+						partial.and(String.format("%s >= :%s", splitPath, LOWER_PARAM), String.format("%s <= :%s", splitPath, UPPER_PARAM));
+						partial.withParam(LOWER_PARAM, from).withParam(UPPER_PARAM, to);
+						// Materializa antes de fechar o EntityManager, inclusive
+						// quando o ResultLimit devolve uma lista paginada.
+						return new ArrayList<Object>(partial.getResultList());
+					} finally {
+						entityManager.close();
+						Deadline.clear();
+					}
+				}
+			});
+			if (end == high)
+				return tasks;
+			start = end + 1;
+		}
+	}
+
+	private void merge(Map<List<Object>, Object[]> merged, Function[] functions, Object[] row) {
+		List<Object> key = new ArrayList<Object>();
+		int column = 0;
+		for (Function function : functions) {
+			if (function == Function.GROUP)
+				key.add(row[column]);
+			column += function == Function.AVG ? 2 : 1;
+		}
+
+		Object[] current = merged.get(key);
+		if (current == null) {
+			merged.put(key, row.clone());
+			return;
+		}
+
+		column = 0;
+		for (Function function : functions) {
+			switch (function) {
+			case SUM:
+			case COUNT:
+				current[column] = add(current[column], row[column]);
+				break;
+			case AVG:
+				current[column] = add(current[column], row[column]);
+				current[column + 1] = add(current[column + 1], row[column + 1]);
+				column++;
+				break;
+			case MIN:
+				current[column] = current[column] == null || (row[column] != null && compare(row[column], current[column]) < 0) ? row[column] : current[column];
+				break;
+			case MAX:
+				current[column] = current[column] == null || (row[column] != null && compare(row[column], current[column]) > 0) ? row[column] : current[column];
+				break;
+			default:
+				break;
+			}
+			column++;
+		}
+	}
+
+	private Object[] finish(Function[] functions, Object[] row) {
+		Object[] result = new Object[functions.length];
+		int column = 0;
+		for (int i = 0; i < functions.length; i++) {
+			if (functions[i] == Function.AVG) {
+				Number sum = (Number) row[column];
+				Number count = (Number) row[column + 1];
+				result[i] = sum == null || count == null || count.longValue() == 0 ? null : sum.doubleValue() / count.longValue();
+				column += 2;
+			} else {
+				result[i] = row[column++];
+			}
+		}
+		return result;
+	}
+
+	private static Number convert(long value, Number sample) {
+		if (sample instanceof Integer)
+			return (int) value;
+		if (sample instanceof Short)
+			return (short) value;
+		if (sample instanceof Byte)
+			return (byte) value;
+		if (sample instanceof BigInteger)
+			return BigInteger.valueOf(value);
+		if (sample instanceof BigDecimal)
+			return BigDecimal.valueOf(value);
+		return value;
+	}
+
+	private static Object add(Object a, Object b) {
+		if (a == null)
+			return b;
+		if (b == null)
+			return a;
+		if (a instanceof BigDecimal || b instanceof BigDecimal)
+			return toBigDecimal(a).add(toBigDecimal(b));
+		if (a instanceof BigInteger || b instanceof BigInteger)
+			return toBigDecimal(a).add(toBigDecimal(b)).toBigInteger();
+		if (a instanceof Double || a instanceof Float || b instanceof Double || b instanceof Float)
+			return ((Number) a).doubleValue() + ((Number) b).doubleValue();
+		return ((Number) a).longValue() + ((Number) b).longValue();
+	}
+
+	private static BigDecimal toBigDecimal(Object value) {
+		if (value instanceof BigDecimal)
+			return (BigDecimal) value;
+		if (value instanceof BigInteger)
+			return new BigDecimal((BigInteger) value);
+		if (value instanceof Double || value instanceof Float)
+			return BigDecimal.valueOf(((Number) value).doubleValue());
+		return BigDecimal.valueOf(((Number) value).longValue());
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static int compare(Object a, Object b) {
+		return ((Comparable) a).compareTo(b);
+	}
+
+}
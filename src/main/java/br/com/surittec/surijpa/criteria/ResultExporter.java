@@ -0,0 +1,449 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.criteria;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+
+import br.com.surittec.surijpa.util.EntityUtil;
+
+/**
+ * Exporta o resultado de uma {@link JPQL} diretamente para um {@link Writer} ou
+ * {@link OutputStream}, em CSV ou JSON, sem materializar a lista completa. As
+ * linhas são buscadas em blocos e o writer é descarregado a cada bloco, de
+ * forma que os primeiros bytes são enviados antes do fim da consulta. Como a
+ * escrita é síncrona, um consumidor lento desacelera a leitura.
+ *
+ * Sem ORDER BY, ou ordenada apenas pelo id da entidade raiz, a query é
+ * paginada pelo id (cada bloco começa após o último id do bloco anterior),
+ * com custo constante por bloco. Com outra ordenação, DISTINCT, GROUP BY ou
+ * construtores no SELECT, os blocos são buscados com firstResult/maxResults;
+ * nesse caso o ORDER BY deve ser determinístico para que os blocos sejam
+ * estáveis.
+ *
+ * Entidades exportadas continuam gerenciadas pelo EntityManager da query; ao
+ * exportar muitas entidades, prefira projeções ou use {@link #clear(boolean)}
+ * com um EntityManager dedicado à exportação.
+ *
+ * <pre>
+ * jpql.export(ResultExporter.Format.CSV)
+ * 		.column("id")
+ * 		.column("nome")
+ * 		.column("cadastro", dateFormatter)
+ * 		.writeTo(response.getWriter());
+ * </pre>
+ */
+public class ResultExporter {
+
+	/**
+	 * Quantidade padrão de linhas buscadas por bloco.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 1000;
+
+	/**
+	 * Formato de saída.
+	 */
+	public enum Format {
+
+		/**
+		 * CSV (RFC 4180) com linha de cabeçalho.
+		 */
+		CSV,
+
+		/**
+		 * Array JSON com um objeto por linha.
+		 */
+		JSON
+
+	}
+
+	private static final ColumnFormatter DEFAULT_FORMATTER = new ColumnFormatter() {
+		@Override
+		public String format(Object value) {
+			if (value == null)
+				return null;
+			if (value instanceof Calendar)
+				value = ((Calendar) value).getTime();
+			if (value instanceof Date)
+				return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format((Date) value);
+			return value.toString();
+		}
+	};
+
+	private final JPQL query;
+	private final Format format;
+	private final List<Column> columns = new ArrayList<Column>();
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private boolean clear;
+
+	// ----------------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------------
+
+	public ResultExporter(JPQL query, Format format) {
+		this.query = query;
+		this.format = format;
+	}
+
+	// ----------------------------------------------------------------------------
+	// PUBLIC
+	// ----------------------------------------------------------------------------
+
+	/**
+	 * Inclui a próxima coluna da projeção (na ordem do SELECT) ou, para
+	 * resultados que não são projeções, a propriedade de mesmo nome.
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public ResultExporter column(String name) {
+		return column(name, DEFAULT_FORMATTER);
+	}
+
+	/**
+	 * Inclui a próxima coluna da projeção (na ordem do SELECT) ou, para
+	 * resultados que não são projeções, a propriedade de mesmo nome, com o
+	 * formatador informado.
+	 * 
+	 * @param name
+	 * @param formatter
+	 * @return
+	 */
+	public ResultExporter column(String name, ColumnFormatter formatter) {
+		columns.add(new Column(name, columns.size(), name, formatter));
+		return this;
+	}
+
+	/**
+	 * Inclui uma coluna com o valor da propriedade informada de cada resultado
+	 * (getter ou atributo).
+	 * 
+	 * @param name
+	 * @param property
+	 * @param formatter
+	 * @return
+	 */
+	public ResultExporter property(String name, String property, ColumnFormatter formatter) {
+		columns.add(new Column(name, -1, property, formatter));
+		return this;
+	}
+
+	/**
+	 * Quantidade de linhas buscadas por bloco.
+	 * 
+	 * @param chunkSize
+	 * @return
+	 */
+	public ResultExporter chunkSize(int chunkSize) {
+		if (chunkSize <= 0)
+			throw new IllegalArgumentException("chunkSize must be positive");
+		this.chunkSize = chunkSize;
+		return this;
+	}
+
+	/**
+	 * Define se o contexto de persistência do EntityManager da query é limpo
+	 * após cada bloco (padrão <code>false</code>), mantendo constante o
+	 * consumo de memória ao exportar entidades. Como as alterações pendentes
+	 * e as entidades já carregadas desse EntityManager são descartadas, use
+	 * apenas com um EntityManager dedicado à exportação.
+	 * 
+	 * @param clear
+	 * @return
+	 */
+	public ResultExporter clear(boolean clear) {
+		this.clear = clear;
+		return this;
+	}
+
+	/**
+	 * Exporta em UTF-8 para o stream informado.
+	 * 
+	 * @param output
+	 * @return quantidade de linhas exportadas
+	 * @throws IOException
+	 */
+	public long writeTo(OutputStream output) throws IOException {
+		Writer writer = new OutputStreamWriter(output, Charset.forName("UTF-8"));
+		long rows = writeTo(writer);
+		writer.flush();
+		return rows;
+	}
+
+	/**
+	 * Exporta para o writer informado, que não é fechado.
+	 * 
+	 * @param writer
+	 * @return quantidade de linhas exportadas
+	 * @throws IOException
+	 */
+	public long writeTo(Writer writer) throws IOException {
+		List<Column> columns = getColumns();
+		String idPath = getKeysetPath();
+
+		writeHeader(writer, columns);
+		long rows = idPath != null ? writeByKeyset(writer, columns, idPath) : writeByOffset(writer, columns);
+		writeFooter(writer);
+		writer.flush();
+		return rows;
+	}
+
+	// ----------------------------------------------------------------------------
+	// PRIVATE
+	// ----------------------------------------------------------------------------
+
+	private long writeByOffset(Writer writer, List<Column> columns) throws IOException {
+		int offset = query.getFirstResult() != null ? query.getFirstResult() : 0;
+		Integer limit = query.getMaxResults();
+		long rows = 0;
+		while (limit == null || rows < limit) {
+			int max = limit != null ? (int) Math.min(chunkSize, limit - rows) : chunkSize;
+			List<?> chunk = query.copy().firstResult((int) (offset + rows)).maxResults(max).getResultList();
+			for (Object row : chunk)
+				writeRow(writer, columns, row, rows++);
+			writer.flush();
+			if (clear)
+				query.getEntityManager().clear();
+			if (chunk.size() < max)
+				break;
+		}
+		return rows;
+	}
+
+	/**
+	 * Busca cada bloco após o último id do bloco anterior. O id é incluído
+	 * como última coluna do SELECT e removido antes de escrever a linha.
+	 */
+	private long writeByKeyset(Writer writer, List<Column> columns, String idPath) throws IOException {
+		JPQL base = query.copy();
+		List<String> selects = base.getSelects();
+		int width = selects.size();
+		if (width == 0)
+			selects.add(idPath.substring(0, idPath.indexOf('.')));
+		selects.add(idPath);
+		base.getOrders().clear();
+		base.getOrders().add(idPath);
+		base.firstResult(null);
+
+		Integer offset = query.getFirstResult();
+		Integer limit = query.getMaxResults();
+		Object last = null;
+		long rows = 0;
+		while (limit == null || rows < limit) {
+			int max = limit != null ? (int) Math.min(chunkSize, limit - rows) : chunkSize;
+			JPQL chunkQuery = base.copy().afterId(idPath, last).maxResults(max);
+			if (last == null)
+				chunkQuery.firstResult(offset);
+			List<?> chunk = chunkQuery.getResultList();
+			for (Object row : chunk) {
+				Object[] values = (Object[]) row;
+				last = values[values.length - 1];
+				writeRow(writer, columns, width <= 1 ? values[0] : Arrays.copyOf(values, width), rows++);
+			}
+			writer.flush();
+			if (clear)
+				query.getEntityManager().clear();
+			if (chunk.size() < max)
+				break;
+		}
+		return rows;
+	}
+
+	/**
+	 * Caminho do id da raiz quando a query pode ser paginada por ele, ou
+	 * <code>null</code>.
+	 */
+	private String getKeysetPath() {
+		if (!query.getGroups().isEmpty() || !query.getHavings().isEmpty())
+			return null;
+		for (String select : query.getSelects()) {
+			String expression = select.trim().toLowerCase();
+			if (expression.startsWith("distinct") || expression.startsWith("new "))
+				return null;
+		}
+
+		String idPath;
+		try {
+			idPath = query.getIdPath();
+		} catch (IllegalStateException e) {
+			return null;
+		}
+
+		List<String> orders = query.getOrders();
+		if (orders.isEmpty())
+			return idPath;
+		String order = orders.size() == 1 ? orders.get(0).trim().replaceAll("(?i)\\s+asc$", "") : null;
+		return idPath.equals(order) ? idPath : null;
+	}
+
+	private List<Column> getColumns() {
+		if (!columns.isEmpty())
+			return columns;
+		List<Column> defaults = new ArrayList<Column>();
+		List<String> selects = query.getSelects();
+		for (int i = 0; i < Math.max(1, selects.size()); i++) {
+			String name = selects.isEmpty() ? "value" : selects.get(i).trim();
+			defaults.add(new Column(name, i, null, DEFAULT_FORMATTER));
+		}
+		return defaults;
+	}
+
+	private void writeHeader(Writer writer, List<Column> columns) throws IOException {
+		if (format == Format.JSON) {
+			writer.write("[");
+			return;
+		}
+		for (int i = 0; i < columns.size(); i++) {
+			if (i > 0)
+				writer.write(",");
+			writer.write(csv(columns.get(i).name));
+		}
+		writer.write("\r\n");
+	}
+
+	private void writeRow(Writer writer, List<Column> columns, Object row, long number) throws IOException {
+		if (format == Format.JSON) {
+			writer.write(number > 0 ? ",\n{" : "\n{");
+			for (int i = 0; i < columns.size(); i++) {
+				Column column = columns.get(i);
+				Object value = column.getValue(row);
+				if (i > 0)
+					writer.write(",");
+				writer.write(json(column.name));
+				writer.write(":");
+				if (column.formatter == DEFAULT_FORMATTER && (value instanceof Number || value instanceof Boolean))
+					writer.write(isFinite(value) ? value.toString() : "null");
+				else {
+					String text = column.formatter.format(value);
+					writer.write(text == null ? "null" : json(text));
+				}
+			}
+			writer.write("}");
+			return;
+		}
+
+		for (int i = 0; i < columns.size(); i++) {
+			Column column = columns.get(i);
+			if (i > 0)
+				writer.write(",");
+			String text = column.formatter.format(column.getValue(row));
+			if (text != null)
+				writer.write(csv(text));
+		}
+		writer.write("\r\n");
+	}
+
+	private void writeFooter(Writer writer) throws IOException {
+		if (format == Format.JSON)
+			writer.write("\n]");
+	}
+
+	/**
+	 * NaN e infinito não são números JSON válidos e são escritos como
+	 * <code>null</code>.
+	 */
+	private static boolean isFinite(Object value) {
+		if (value instanceof Double)
+			return !((Double) value).isNaN() && !((Double) value).isInfinite();
+		if (value instanceof Float)
+			return !((Float) value).isNaN() && !((Float) value).isInfinite();
+		return true;
+	}
+
+	private static String csv(String text) {
+		if (StringUtils.containsNone(text, ",\"\r\n"))
+			return text;
+		return "\"" + text.replace("\"", "\"\"") + "\"";
+	}
+
+	private static String json(String text) {
+		StringBuilder sb = new StringBuilder(text.length() + 2).append('"');
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20)
+					sb.append(String.format("\\u%04x", (int) c));
+				else
+					sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	private static final class Column {
+
+		private final String name;
+		private final int index;
+		private final String property;
+		private final ColumnFormatter formatter;
+
+		private Column(String name, int index, String property, ColumnFormatter formatter) {
+			this.name = name;
+			this.index = index;
+			this.property = property;
+			this.formatter = formatter;
+		}
+
+		private Object getValue(Object row) {
+			if (row instanceof Object[]) {
+				Object[] values = (Object[]) row;
+				return index >= 0 && index < values.length ? values[index] : null;
+			}
+			if (row == null || property == null || isSimple(row))
+				return row;
+			return EntityUtil.getProperty(row, property);
+		}
+
+		private static boolean isSimple(Object value) {
+			return value instanceof CharSequence || value instanceof Number || value instanceof Boolean || value instanceof Date
+					|| value instanceof Calendar || value instanceof Enum || value instanceof Character;
+		}
+
+	}
+
+}
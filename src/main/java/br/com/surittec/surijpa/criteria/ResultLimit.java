@@ -0,0 +1,129 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.criteria;
+
+/**
+ * Limite de linhas para as consultas sem paginação, como proteção contra
+ * tabelas que cresceram além do esperado. A consulta é executada com
+ * maxResults igual ao limite mais um; se o limite for ultrapassado, a
+ * {@link Policy} define se a chamada falha com
+ * {@link ResultLimitExceededException} ou passa a percorrer o resultado
+ * paginado com uma {@link StreamResultList}. Em ambos os casos é registrada a
+ * métrica {@link #METRIC_EXCEEDED}.
+ *
+ * O limite pode ser definido por consulta, em <code>JPQL.limit</code>, por
+ * repositório, em <code>getResultLimit()</code>, ou globalmente, com
+ * {@link #setDefault(ResultLimit)}.
+ */
+public class ResultLimit {
+
+	public static final String METRIC_EXCEEDED = "surijpa.result.limit.exceeded";
+
+	/**
+	 * Tamanho padrão das páginas da política {@link Policy#STREAM}.
+	 */
+	public static final int DEFAULT_PAGE_SIZE = 1000;
+
+	private static volatile ResultLimit defaultLimit;
+
+	/**
+	 * Ação executada quando o limite é ultrapassado.
+	 */
+	public enum Policy {
+
+		/**
+		 * Falha com {@link ResultLimitExceededException}.
+		 */
+		FAIL,
+
+		/**
+		 * Retorna uma {@link StreamResultList} somente leitura, que percorre
+		 * o resultado em páginas pelo id da entidade raiz, desanexando as
+		 * entidades das páginas já lidas: alterações feitas nelas e ainda não
+		 * sincronizadas seriam perdidas, por isso avançar de página com o
+		 * contexto de persistência sujo falha com
+		 * {@link IllegalStateException} (no Hibernate; nos demais provedores
+		 * as alterações são descartadas). A lista depende do EntityManager da
+		 * consulta continuar aberto. Consultas sem ordenação passam a ser
+		 * ordenadas pelo id; as que não podem ser percorridas pelo id
+		 * (agrupadas, com projeções ou ordenadas por outro atributo) falham
+		 * com {@link ResultLimitExceededException}, como em {@link #FAIL}.
+		 */
+		STREAM
+
+	}
+
+	private final int maxRows;
+	private final Policy policy;
+	private final int pageSize;
+
+	// ----------------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------------
+
+	public ResultLimit(int maxRows, Policy policy) {
+		this(maxRows, policy, DEFAULT_PAGE_SIZE);
+	}
+
+	public ResultLimit(int maxRows, Policy policy, int pageSize) {
+		if (maxRows <= 0 || pageSize <= 0)
+			throw new IllegalArgumentException("maxRows and pageSize must be positive");
+		this.maxRows = maxRows;
+		this.policy = policy;
+		this.pageSize = pageSize;
+	}
+
+	// ----------------------------------------------------------------------------
+	// PUBLIC
+	// ----------------------------------------------------------------------------
+
+	/**
+	 * Define o limite das consultas que não informam um limite próprio, ou
+	 * <code>null</code> para não limitar.
+	 * 
+	 * @param limit
+	 */
+	public static void setDefault(ResultLimit limit) {
+		defaultLimit = limit;
+	}
+
+	public static ResultLimit getDefault() {
+		return defaultLimit;
+	}
+
+	public int getMaxRows() {
+		return maxRows;
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d rows (%s)", maxRows, policy);
+	}
+
+}
@@ -0,0 +1,287 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.criteria;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.regex.Pattern;
+
+import javax.persistence.EntityManager;
+
+import br.com.surittec.surijpa.util.EntityUtil;
+
+/**
+ * Executa uma {@link JPQL} em paralelo em vários EntityManagers (ex.: um por
+ * shard) e combina os resultados como se viessem de uma única base:
+ * <ul>
+ * <li>consultas comuns são concatenadas, ordenadas pelo ORDER BY global e
+ * paginadas com o firstResult/maxResults da query. Cada base retorna no
+ * máximo firstResult + maxResults linhas. Com SELECT DISTINCT, as linhas
+ * repetidas entre as bases são removidas;</li>
+ * <li>consultas de agregação (GROUP BY, SUM, COUNT, MIN, MAX e AVG) são
+ * combinadas por {@link ParallelAggregation}.</li>
+ * </ul>
+ *
+ * A ordenação global é derivada do ORDER BY da query, cujas expressões devem
+ * constar do SELECT ou ser atributos de uma entidade selecionada (ex.:
+ * <code>p.data</code> com <code>select p</code>), com valores nulos por
+ * último. Para outros casos, informe um {@link Comparator} em
+ * {@link #orderBy(Comparator)}.
+ */
+public class ScatterGather {
+
+	private static final Pattern AGGREGATE = Pattern.compile("(?is)^\\s*(sum|count|min|max|avg)\\s*\\(.*\\)\\s*$");
+	private static final Pattern DESC = Pattern.compile("(?i)\\s+desc\\s*$");
+	private static final Pattern ASC = Pattern.compile("(?i)\\s+asc\\s*$");
+
+	private final List<EntityManager> entityManagers;
+	private final JPQL query;
+	private ExecutorService executor;
+	private Comparator<Object> order;
+
+	// ----------------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------------
+
+	/**
+	 * @param entityManagers
+	 *            EntityManagers de cada base, cada um usado por uma única
+	 *            thread durante a execução
+	 * @param query
+	 *            query a executar em todas as bases
+	 */
+	public ScatterGather(List<EntityManager> entityManagers, JPQL query) {
+		this.entityManagers = entityManagers;
+		this.query = query;
+	}
+
+	// ----------------------------------------------------------------------------
+	// PUBLIC
+	// ----------------------------------------------------------------------------
+
+	/**
+	 * Executor das consultas. Quando não informado, é criado um executor
+	 * temporário com uma thread por base.
+	 * 
+	 * @param executor
+	 * @return
+	 */
+	public ScatterGather executor(ExecutorService executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	/**
+	 * Ordenação global do resultado combinado, no lugar da derivada do ORDER
+	 * BY. Recebe as linhas como retornadas pela query (entidade, valor ou
+	 * <code>Object[]</code>).
+	 * 
+	 * @param order
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public ScatterGather orderBy(Comparator<?> order) {
+		this.order = (Comparator<Object>) order;
+		return this;
+	}
+
+	/**
+	 * Executa a query em todas as bases e retorna o resultado combinado. Já faz
+	 * o <code>cast</code> para a classe <code>resultType</code> passada.
+	 * 
+	 * @param resultType
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> List<T> getResultList(Class<T> resultType) {
+		return (List<T>) getResultList();
+	}
+
+	/**
+	 * Executa a query em todas as bases e retorna o resultado combinado.
+	 * 
+	 * @return
+	 */
+	public List<?> getResultList() {
+		if (entityManagers.size() == 1)
+			return query.copy(entityManagers.get(0)).getResultList();
+		if (isAggregate())
+			return aggregate();
+
+		Integer first = query.getFirstResult();
+		Integer max = query.getMaxResults();
+		List<Callable<List<?>>> tasks = new ArrayList<Callable<List<?>>>();
+		for (EntityManager entityManager : entityManagers) {
+			JPQL partial = query.copy(entityManager).coalesce(null).firstResult(null);
+			partial.maxResults(max != null ? (first != null ? first : 0) + max : null);
+			tasks.add(ParallelAggregation.task(partial));
+		}
+
+		List<Object> result = new ArrayList<Object>();
+		for (List<?> partial : ParallelAggregation.execute(tasks, executor))
+			result.addAll(partial);
+		if (isDistinct())
+			result = distinct(result);
+
+		Comparator<Object> comparator = order != null ? order : getOrderComparator();
+		if (comparator != null)
+			Collections.sort(result, comparator);
+
+		int from = first != null ? Math.min(first, result.size()) : 0;
+		int to = max != null ? Math.min(result.size(), from + max) : result.size();
+		return new ArrayList<Object>(result.subList(from, to));
+	}
+
+	// ----------------------------------------------------------------------------
+	// PRIVATE
+	// ----------------------------------------------------------------------------
+
+	private boolean isAggregate() {
+		if (!query.getGroups().isEmpty())
+			return true;
+		for (String select : query.getSelects()) {
+			if (AGGREGATE.matcher(select).matches())
+				return true;
+		}
+		return false;
+	}
+
+	private boolean isDistinct() {
+		List<String> selects = query.getSelects();
+		return !selects.isEmpty() && selects.get(0).trim().toLowerCase().startsWith("distinct ");
+	}
+
+	/**
+	 * Remove as linhas repetidas entre as bases, mantendo a primeira.
+	 */
+	private static List<Object> distinct(List<Object> rows) {
+		Set<Object> seen = new HashSet<Object>();
+		List<Object> result = new ArrayList<Object>(rows.size());
+		for (Object row : rows) {
+			if (seen.add(row instanceof Object[] ? Arrays.asList((Object[]) row) : row))
+				result.add(row);
+		}
+		return result;
+	}
+
+	private List<?> aggregate() {
+		ParallelAggregation aggregation = new ParallelAggregation(entityManagers, query).executor(executor);
+		Comparator<Object> comparator = order != null ? order : getOrderComparator();
+		final boolean scalar = query.getSelects().size() == 1;
+		if (comparator != null) {
+			final Comparator<Object> rows = comparator;
+			aggregation.orderBy(new Comparator<Object[]>() {
+				@Override
+				public int compare(Object[] a, Object[] b) {
+					return scalar ? rows.compare(a[0], b[0]) : rows.compare(a, b);
+				}
+			});
+		}
+
+		List<Object[]> result = aggregation.getResultList();
+		if (!scalar)
+			return result;
+		List<Object> values = new ArrayList<Object>(result.size());
+		for (Object[] row : result)
+			values.add(row[0]);
+		return values;
+	}
+
+	private Comparator<Object> getOrderComparator() {
+		List<String> orders = query.getOrders();
+		if (orders.isEmpty())
+			return null;
+
+		final List<String> selects = query.getSelects();
+		final int size = orders.size();
+		final int[] columns = new int[size];
+		final String[] paths = new String[size];
+		final boolean[] descending = new boolean[size];
+
+		for (int i = 0; i < size; i++) {
+			String expression = orders.get(i).trim();
+			descending[i] = DESC.matcher(expression).find();
+			expression = ASC.matcher(DESC.matcher(expression).replaceFirst("")).replaceFirst("").trim();
+
+			columns[i] = indexOf(selects, expression);
+			if (columns[i] < 0) {
+				int dot = expression.indexOf('.');
+				String root = dot > 0 ? expression.substring(0, dot) : null;
+				columns[i] = selects.isEmpty() ? 0 : indexOf(selects, root);
+				if (root == null || columns[i] < 0)
+					throw new IllegalArgumentException(String.format("ORDER BY expression must be selected to merge results: %s", expression));
+				paths[i] = expression.substring(dot + 1);
+			}
+		}
+
+		final boolean single = selects.size() <= 1;
+		return new Comparator<Object>() {
+			@Override
+			public int compare(Object a, Object b) {
+				for (int i = 0; i < size; i++) {
+					Object x = value(a, i);
+					Object y = value(b, i);
+					// Nulos por último também nas ordenações decrescentes
+					if (x == null || y == null) {
+						if (x != y)
+							return x == null ? 1 : -1;
+						continue;
+					}
+					int result = compareValues(x, y);
+					if (result != 0)
+						return descending[i] ? -result : result;
+				}
+				return 0;
+			}
+
+			private Object value(Object row, int i) {
+				Object value = single ? row : ((Object[]) row)[columns[i]];
+				return paths[i] != null && value != null ? EntityUtil.getProperty(value, paths[i]) : value;
+			}
+		};
+	}
+
+	private static int indexOf(List<String> selects, String expression) {
+		if (expression == null)
+			return -1;
+		for (int i = 0; i < selects.size(); i++) {
+			String select = selects.get(i).trim();
+			if (i == 0)
+				select = select.replaceFirst("(?i)^distinct\\s+", "");
+			if (select.equalsIgnoreCase(expression))
+				return i;
+		}
+		return -1;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static int compareValues(Object a, Object b) {
+		return ((Comparable) a).compareTo(b);
+	}
+
+}
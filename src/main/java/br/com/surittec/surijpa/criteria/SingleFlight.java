@@ -0,0 +1,188 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.criteria;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.persistence.PersistenceException;
+import javax.persistence.QueryTimeoutException;
+
+import org.apache.commons.lang.SerializationException;
+import org.apache.commons.lang.SerializationUtils;
+
+import br.com.surittec.surijpa.util.Deadline;
+import br.com.surittec.surijpa.util.MetricsUtil;
+
+/**
+ * Agrupa execuções concorrentes de queries idênticas: enquanto uma execução
+ * está em andamento, as demais chamadas com a mesma chave aguardam e recebem
+ * o seu resultado, em vez de irem ao banco de dados. As entidades do
+ * resultado pertencem ao contexto de persistência de quem executou a query,
+ * por isso as chamadas que aguardaram recebem cópias desanexadas
+ * (serializadas) das linhas, feitas pela thread que executou a query antes
+ * de liberar o resultado. Se o resultado não for serializável, cada chamada
+ * que aguardou executa a sua própria query.
+ */
+class SingleFlight {
+
+	static final String METRIC_COALESCED = "surijpa.singleflight.coalesced";
+
+	private static final Logger LOGGER = Logger.getLogger(SingleFlight.class.getName());
+
+	private static final ConcurrentMap<Object, Flight> IN_FLIGHT = new ConcurrentHashMap<Object, Flight>();
+
+	private SingleFlight() {
+	}
+
+	static List<?> execute(Object key, JPQL.Coalescing coalescing, Callable<List<?>> query) {
+		for (;;) {
+			Flight flight = new Flight(key, query);
+			Flight running = IN_FLIGHT.putIfAbsent(key, flight);
+
+			if (running == null) {
+				try {
+					flight.task.run();
+				} finally {
+					IN_FLIGHT.remove(key, flight);
+				}
+				List<?> result = get(flight.task);
+				return coalescing == JPQL.Coalescing.SHARED ? Collections.unmodifiableList(result) : result;
+			}
+
+			// a execução já terminou sem cópia para esta chamada: tenta de novo
+			if (!running.join())
+				continue;
+
+			MetricsUtil.increment(METRIC_COALESCED);
+			get(running.task);
+			List<?> copy = running.copy(coalescing);
+			if (copy != null)
+				return copy;
+			try {
+				List<?> result = query.call();
+				return coalescing == JPQL.Coalescing.SHARED ? Collections.unmodifiableList(result) : result;
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new PersistenceException(e);
+			}
+		}
+	}
+
+	/**
+	 * Execução em andamento de uma query. Ao terminar, e só se alguma
+	 * chamada estiver aguardando, serializa o resultado; depois disso novas
+	 * chamadas não se juntam mais a ela.
+	 */
+	private static final class Flight implements Callable<List<?>> {
+
+		private final Object key;
+		private final Callable<List<?>> query;
+		private final FutureTask<List<?>> task = new FutureTask<List<?>>(this);
+
+		private int followers;
+		private boolean landed;
+		private byte[] snapshot;
+		private List<?> shared;
+
+		private Flight(Object key, Callable<List<?>> query) {
+			this.key = key;
+			this.query = query;
+		}
+
+		@Override
+		public List<?> call() throws Exception {
+			List<?> result = query.call();
+			IN_FLIGHT.remove(key, this);
+			synchronized (this) {
+				landed = true;
+				if (followers == 0)
+					return result;
+			}
+			try {
+				byte[] snapshot = SerializationUtils.serialize(new ArrayList<Object>(result));
+				synchronized (this) {
+					this.snapshot = snapshot;
+				}
+			} catch (SerializationException e) {
+				LOGGER.log(Level.FINE, "Coalesced result is not serializable; followers will run their own query", e);
+			}
+			return result;
+		}
+
+		private synchronized boolean join() {
+			if (landed)
+				return false;
+			followers++;
+			return true;
+		}
+
+		private List<?> copy(JPQL.Coalescing coalescing) {
+			byte[] snapshot;
+			synchronized (this) {
+				if (this.snapshot == null)
+					return null;
+				if (coalescing == JPQL.Coalescing.SHARED && shared != null)
+					return shared;
+				snapshot = this.snapshot;
+			}
+			List<?> copy = (List<?>) SerializationUtils.deserialize(snapshot);
+			if (coalescing != JPQL.Coalescing.SHARED)
+				return copy;
+			synchronized (this) {
+				if (shared == null)
+					shared = Collections.unmodifiableList(copy);
+				return shared;
+			}
+		}
+
+	}
+
+	private static List<?> get(FutureTask<List<?>> task) {
+		try {
+			if (Deadline.isActive())
+				return task.get(Deadline.getRemaining(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+			return task.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new PersistenceException(e.getCause());
+		} catch (TimeoutException e) {
+			MetricsUtil.increment(Deadline.METRIC_EXPIRED);
+			throw new QueryTimeoutException("Request deadline has expired while waiting for a coalesced query");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new PersistenceException(e);
+		}
+	}
+
+}
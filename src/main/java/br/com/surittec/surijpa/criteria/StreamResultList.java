@@ -0,0 +1,153 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.criteria;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.persistence.EntityManager;
+
+import br.com.surittec.surijpa.util.EntityUtil;
+
+/**
+ * Lista somente leitura do resultado de uma {@link JPQL} que ultrapassou o
+ * {@link ResultLimit} com a política {@link ResultLimit.Policy#STREAM}. As
+ * linhas são lidas em páginas pelo id da entidade raiz
+ * (<code>p.id &gt; :ultimo order by p.id</code>), a começar pelas linhas já
+ * lidas pela consulta limitada, e apenas a página atual fica em memória: ao
+ * avançar, as entidades da página anterior são desanexadas do EntityManager
+ * da consulta. Para que alterações nessas entidades não sejam descartadas em
+ * silêncio, avançar de página com alterações pendentes no contexto de
+ * persistência lança {@link IllegalStateException}: execute
+ * <code>flush</code> antes (verificação feita apenas no Hibernate).
+ *
+ * A lista deve ser percorrida uma única vez, em ordem, com
+ * {@link #iterator()} ou com {@link #get(int)} em índices crescentes; voltar a
+ * uma página já percorrida lança {@link UnsupportedOperationException}.
+ * {@link #size()} executa a query de contagem derivada.
+ */
+public class StreamResultList<T> extends AbstractList<T> {
+
+	private final JPQL query;
+	private final String idPath;
+	private final int pageSize;
+	private final int offset;
+
+	private List<T> page;
+	private int pageStart;
+	private boolean last;
+	private Integer size;
+
+	// ----------------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------------
+
+	StreamResultList(JPQL query, String idPath, List<T> firstPage, int pageSize) {
+		this.query = query.copy().firstResult(null).maxResults(pageSize);
+		this.idPath = idPath;
+		this.pageSize = pageSize;
+		this.offset = query.getFirstResult() != null ? query.getFirstResult() : 0;
+		this.page = firstPage;
+	}
+
+	// ----------------------------------------------------------------------------
+	// PUBLIC
+	// ----------------------------------------------------------------------------
+
+	@Override
+	public T get(int index) {
+		if (index < 0 || !load(index))
+			throw new IndexOutOfBoundsException(String.valueOf(index));
+		return page.get(index - pageStart);
+	}
+
+	/**
+	 * Retorna a quantidade de resultados, executando a query de contagem
+	 * derivada na primeira chamada.
+	 */
+	@Override
+	public int size() {
+		if (size == null) {
+			long count = ((Number) query.toCountQuery().getSingleResult()).longValue();
+			size = (int) Math.min(Integer.MAX_VALUE, Math.max(0, count - offset));
+		}
+		return size;
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return new Iterator<T>() {
+
+			private int index;
+
+			@Override
+			public boolean hasNext() {
+				return load(index);
+			}
+
+			@Override
+			public T next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return get(index++);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+		};
+	}
+
+	// ----------------------------------------------------------------------------
+	// PRIVATE
+	// ----------------------------------------------------------------------------
+
+	private boolean load(int index) {
+		if (index < pageStart)
+			throw new UnsupportedOperationException(String.format("Row %d was already passed; the list can only be read forward", index));
+		while (index >= pageStart + page.size()) {
+			if (last)
+				return false;
+			nextPage();
+		}
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void nextPage() {
+		EntityManager entityManager = query.getEntityManager();
+		if (EntityUtil.hasPendingChanges(entityManager))
+			throw new IllegalStateException("The persistence context has pending changes; flush them before advancing a StreamResultList, which detaches the page read");
+		Object lastId = page.isEmpty() ? null : EntityUtil.getIdentifier(entityManager, page.get(page.size() - 1));
+		for (T entity : page) {
+			if (entityManager.contains(entity))
+				entityManager.detach(entity);
+		}
+		pageStart += page.size();
+		page = (List<T>) query.copy().afterId(idPath, lastId).getResultList();
+		last = page.size() < pageSize;
+	}
+
+}
@@ -0,0 +1,640 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.repository;
+
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.Column;
+import javax.persistence.EntityManager;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.JoinColumn;
+import javax.persistence.PersistenceException;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.persistence.TransactionRequiredException;
+import javax.persistence.metamodel.Attribute.PersistentAttributeType;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.IdentifiableType;
+import javax.persistence.metamodel.SingularAttribute;
+import javax.persistence.metamodel.Type.PersistenceType;
+import javax.sql.DataSource;
+
+import org.apache.commons.lang.StringUtils;
+
+import br.com.surittec.surijpa.util.EntityUtil;
+import br.com.surittec.surijpa.util.MetricsUtil;
+
+/**
+ * Inserção em massa, somente de inclusão, para entidades imutáveis de alto
+ * volume (logs de auditoria, eventos). As entidades são gravadas diretamente
+ * via JDBC, com INSERTs de várias linhas ou batch JDBC, sem passar pelo
+ * contexto de persistência: não ficam gerenciadas, não disparam callbacks nem
+ * cascatas e não são vistas pelo cache de segundo nível.
+ *
+ * As colunas são obtidas do metamodelo e das anotações
+ * <code>@Table</code>, <code>@Column</code>, <code>@JoinColumn</code>,
+ * <code>@Enumerated</code> e <code>@Temporal</code>; sem anotação, é usado o
+ * nome do atributo. São suportados atributos básicos e associações
+ * <code>ManyToOne</code>/<code>OneToOne</code> com chave estrangeira simples,
+ * em entidades sem herança. Ids <code>@GeneratedValue</code> nulos são
+ * omitidos do INSERT (o banco deve gerá-los, ex.: IDENTITY) e, quando o
+ * driver retorna uma chave gerada por linha, atribuídos às entidades. Drivers
+ * que retornam apenas a última chave de um INSERT de várias linhas (SQL
+ * Server) deixam os ids nulos; use {@link Mode#JDBC_BATCH} se forem
+ * necessários.
+ *
+ * Sem um {@link DataSource} informado, as alterações pendentes do
+ * EntityManager são sincronizadas (<code>flush</code>) e o INSERT usa a sua
+ * conexão, participando da transação corrente: no Hibernate, por
+ * <code>Session.doReturningWork</code>; nos demais provedores, por
+ * <code>EntityManager.unwrap(Connection.class)</code>. Com um DataSource, cada
+ * chamada usa uma conexão e uma transação próprias.
+ */
+public class BulkInserter<E> {
+
+	public static final String METRIC_ROWS = "surijpa.bulkinsert.rows";
+
+	private static final int MAX_ROWS_PER_STATEMENT = 1000;
+
+	/**
+	 * Forma de envio das linhas.
+	 */
+	public enum Mode {
+
+		/**
+		 * INSERT de várias linhas, exceto em bancos que não suportam
+		 * (Oracle), onde é usado batch JDBC.
+		 */
+		AUTO,
+
+		/**
+		 * <code>insert into t (...) values (...), (...)</code>.
+		 */
+		MULTI_ROW,
+
+		/**
+		 * Um INSERT por linha, enviado em batch JDBC.
+		 */
+		JDBC_BATCH
+
+	}
+
+	private final EntityManager entityManager;
+	private final Class<E> type;
+	private final String table;
+	private final List<ColumnMapping> columns = new ArrayList<ColumnMapping>();
+	private ColumnMapping id;
+	private boolean generatedId;
+
+	private DataSource dataSource;
+	private Mode mode = Mode.AUTO;
+	private int batchSize = EntityUtil.DEFAULT_BATCH_SIZE;
+
+	// ----------------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------------
+
+	public BulkInserter(EntityManager entityManager, Class<E> type) {
+		this.entityManager = entityManager;
+		this.type = type;
+
+		EntityType<E> entityType = entityManager.getMetamodel().entity(type);
+		IdentifiableType<? super E> supertype = entityType.getSupertype();
+		if (supertype != null && supertype.getPersistenceType() == PersistenceType.ENTITY)
+			throw new IllegalArgumentException(String.format("Bulk insert does not support entity inheritance: %s", type.getName()));
+
+		Table annotation = type.getAnnotation(Table.class);
+		String tableName = annotation != null && !annotation.name().isEmpty() ? annotation.name() : entityType.getName();
+		this.table = annotation != null && !annotation.schema().isEmpty() ? annotation.schema() + "." + tableName : tableName;
+
+		for (SingularAttribute<? super E, ?> attribute : entityType.getSingularAttributes()) {
+			ColumnMapping column = map(attribute);
+			if (attribute.isId()) {
+				id = column;
+				generatedId = ((AnnotatedElement) attribute.getJavaMember()).isAnnotationPresent(GeneratedValue.class);
+			} else {
+				columns.add(column);
+			}
+		}
+		if (id == null)
+			throw new IllegalArgumentException(String.format("Bulk insert requires a single id attribute: %s", type.getName()));
+	}
+
+	// ----------------------------------------------------------------------------
+	// PUBLIC
+	// ----------------------------------------------------------------------------
+
+	/**
+	 * Usa conexões do DataSource informado, com transação própria por
+	 * chamada, em vez da conexão do EntityManager.
+	 * 
+	 * @param dataSource
+	 * @return
+	 */
+	public BulkInserter<E> dataSource(DataSource dataSource) {
+		this.dataSource = dataSource;
+		return this;
+	}
+
+	/**
+	 * Forma de envio das linhas (padrão {@link Mode#AUTO}).
+	 * 
+	 * @param mode
+	 * @return
+	 */
+	public BulkInserter<E> mode(Mode mode) {
+		this.mode = mode;
+		return this;
+	}
+
+	/**
+	 * Quantidade de linhas por INSERT de várias linhas, limitada a 1000 e ao
+	 * número de parâmetros aceito pelo banco, ou por batch JDBC.
+	 * 
+	 * @param batchSize
+	 * @return
+	 */
+	public BulkInserter<E> batchSize(int batchSize) {
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("batchSize must be positive");
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * Insere as entidades.
+	 * 
+	 * @param entities
+	 * @return estatísticas da inserção
+	 */
+	public Result insert(Collection<? extends E> entities) {
+		long start = System.nanoTime();
+		if (entities.isEmpty())
+			return new Result(0, 0, 0);
+
+		List<E> withId = new ArrayList<E>();
+		List<E> withoutId = new ArrayList<E>();
+		for (E entity : entities) {
+			if (generatedId && id.get(entity) == null)
+				withoutId.add(entity);
+			else
+				withId.add(entity);
+		}
+
+		try {
+			int statements = dataSource != null ? insertWithDataSource(withId, withoutId) : insertWithEntityManager(withId, withoutId);
+			MetricsUtil.add(METRIC_ROWS, entities.size());
+			return new Result(entities.size(), statements, System.nanoTime() - start);
+		} catch (SQLException e) {
+			throw new PersistenceException(String.format("Bulk insert into %s failed", table), e);
+		}
+	}
+
+	// ----------------------------------------------------------------------------
+	// PRIVATE
+	// ----------------------------------------------------------------------------
+
+	private int insertWithDataSource(List<E> withId, List<E> withoutId) throws SQLException {
+		Connection connection = dataSource.getConnection();
+		try {
+			boolean autoCommit = connection.getAutoCommit();
+			if (autoCommit)
+				connection.setAutoCommit(false);
+			try {
+				int statements = insert(connection, withId, withoutId);
+				connection.commit();
+				return statements;
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				if (autoCommit)
+					connection.setAutoCommit(true);
+			}
+		} finally {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				// ignora falha ao devolver a conexão
+			}
+		}
+	}
+
+	/**
+	 * Sincroniza as alterações pendentes do EntityManager e insere pela sua
+	 * conexão. No Hibernate, que não suporta
+	 * <code>unwrap(Connection.class)</code>, a conexão é obtida com
+	 * <code>Session.doReturningWork</code>, chamado por reflexão.
+	 */
+	private int insertWithEntityManager(final List<E> withId, final List<E> withoutId) throws SQLException {
+		try {
+			entityManager.flush();
+		} catch (TransactionRequiredException e) {
+			// sem transação não há alterações a sincronizar antes do INSERT
+		}
+
+		Class<?> sessionType;
+		Class<?> workType;
+		try {
+			sessionType = Class.forName("org.hibernate.Session");
+			workType = Class.forName("org.hibernate.jdbc.ReturningWork");
+		} catch (ClassNotFoundException e) {
+			return insert(unwrapConnection(), withId, withoutId);
+		}
+
+		Object work = Proxy.newProxyInstance(workType.getClassLoader(), new Class<?>[] { workType }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (!method.getName().equals("execute"))
+					return method.invoke(this, args);
+				return insert((Connection) args[0], withId, withoutId);
+			}
+		});
+		try {
+			return (Integer) sessionType.getMethod("doReturningWork", workType).invoke(entityManager.unwrap(sessionType), work);
+		} catch (InvocationTargetException e) {
+			// o Hibernate converte a SQLException em JDBCException
+			Throwable cause = e.getCause();
+			if (cause.getCause() instanceof SQLException)
+				throw (SQLException) cause.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new PersistenceException(cause);
+		} catch (Exception e) {
+			throw new PersistenceException("Cannot obtain the JDBC Connection of the Hibernate Session; configure a DataSource", e);
+		}
+	}
+
+	private Connection unwrapConnection() {
+		try {
+			return entityManager.unwrap(Connection.class);
+		} catch (PersistenceException e) {
+			throw new PersistenceException("The provider cannot unwrap a JDBC Connection; configure a DataSource", e);
+		}
+	}
+
+	private boolean isMultiRow(Connection connection) throws SQLException {
+		if (mode != Mode.AUTO)
+			return mode == Mode.MULTI_ROW;
+		String product = connection.getMetaData().getDatabaseProductName();
+		return product == null || !product.toLowerCase().contains("oracle");
+	}
+
+	private int getRowsPerStatement(Connection connection, int columnCount) throws SQLException {
+		// Limite de parâmetros por comando: 2100 no SQL Server, 32767 no
+		// PostgreSQL; e de 1000 linhas por VALUES no SQL Server
+		String product = StringUtils.defaultString(connection.getMetaData().getDatabaseProductName()).toLowerCase();
+		int maxParams = product.contains("sql server") ? 2000 : 30000;
+		return Math.max(1, Math.min(Math.min(batchSize, MAX_ROWS_PER_STATEMENT), maxParams / Math.max(1, columnCount)));
+	}
+
+	private int insert(Connection connection, List<E> withId, List<E> withoutId) throws SQLException {
+		boolean multiRow = isMultiRow(connection);
+		return insert(connection, withId, true, multiRow) + insert(connection, withoutId, false, multiRow);
+	}
+
+	private int insert(Connection connection, List<E> entities, boolean includeId, boolean multiRow) throws SQLException {
+		if (entities.isEmpty())
+			return 0;
+
+		List<ColumnMapping> mappings = new ArrayList<ColumnMapping>(columns.size() + 1);
+		if (includeId)
+			mappings.add(id);
+		mappings.addAll(columns);
+
+		String[] generatedKeys = includeId ? null : new String[] { id.column };
+		int statements = 0;
+		if (multiRow) {
+			int rows = getRowsPerStatement(connection, mappings.size());
+			for (int from = 0; from < entities.size(); from += rows) {
+				List<E> chunk = entities.subList(from, Math.min(entities.size(), from + rows));
+				PreparedStatement statement = prepare(connection, getSql(mappings, chunk.size()), generatedKeys);
+				try {
+					int index = 1;
+					for (E entity : chunk) {
+						for (ColumnMapping mapping : mappings)
+							mapping.bind(statement, index++, entity);
+					}
+					statement.executeUpdate();
+					statements++;
+					readGeneratedKeys(statement, chunk, generatedKeys);
+				} finally {
+					statement.close();
+				}
+			}
+		} else {
+			PreparedStatement statement = prepare(connection, getSql(mappings, 1), generatedKeys);
+			try {
+				for (int from = 0; from < entities.size(); from += batchSize) {
+					List<E> chunk = entities.subList(from, Math.min(entities.size(), from + batchSize));
+					for (E entity : chunk) {
+						int index = 1;
+						for (ColumnMapping mapping : mappings)
+							mapping.bind(statement, index++, entity);
+						statement.addBatch();
+					}
+					statement.executeBatch();
+					statements++;
+					readGeneratedKeys(statement, chunk, generatedKeys);
+				}
+			} finally {
+				statement.close();
+			}
+		}
+		return statements;
+	}
+
+	private PreparedStatement prepare(Connection connection, String sql, String[] generatedKeys) throws SQLException {
+		return generatedKeys != null ? connection.prepareStatement(sql, generatedKeys) : connection.prepareStatement(sql);
+	}
+
+	private void readGeneratedKeys(PreparedStatement statement, List<E> entities, String[] generatedKeys) throws SQLException {
+		if (generatedKeys == null)
+			return;
+		ResultSet keys = statement.getGeneratedKeys();
+		if (keys == null)
+			return;
+		List<Long> values = new ArrayList<Long>(entities.size());
+		try {
+			while (keys.next())
+				values.add(keys.getLong(1));
+		} finally {
+			keys.close();
+		}
+		// Alguns drivers (SQL Server) retornam apenas a última chave de um
+		// INSERT de várias linhas: sem uma chave por linha, não há como
+		// associá-las às entidades.
+		if (values.size() != entities.size())
+			return;
+		for (int i = 0; i < entities.size(); i++)
+			id.set(entities.get(i), EntityUtil.toIdType(values.get(i), id.javaType));
+	}
+
+	private String getSql(List<ColumnMapping> mappings, int rows) {
+		StringBuilder sql = new StringBuilder("insert into ").append(table).append(" (");
+		StringBuilder row = new StringBuilder("(");
+		for (int i = 0; i < mappings.size(); i++) {
+			if (i > 0) {
+				sql.append(", ");
+				row.append(", ");
+			}
+			sql.append(mappings.get(i).column);
+			row.append("?");
+		}
+		sql.append(") values ");
+		row.append(")");
+		for (int i = 0; i < rows; i++) {
+			if (i > 0)
+				sql.append(", ");
+			sql.append(row);
+		}
+		return sql.toString();
+	}
+
+	private ColumnMapping map(SingularAttribute<? super E, ?> attribute) {
+		Member member = attribute.getJavaMember();
+		AnnotatedElement element = (AnnotatedElement) member;
+		PersistentAttributeType attributeType = attribute.getPersistentAttributeType();
+
+		if (attributeType == PersistentAttributeType.BASIC) {
+			Column column = element.getAnnotation(Column.class);
+			String name = column != null && !column.name().isEmpty() ? column.name() : attribute.getName();
+			Enumerated enumerated = element.getAnnotation(Enumerated.class);
+			Temporal temporal = element.getAnnotation(Temporal.class);
+			ColumnMapping mapping = new ColumnMapping(name, member, attribute.getJavaType(), null,
+					enumerated != null ? enumerated.value() : EnumType.ORDINAL, temporal != null ? temporal.value() : null);
+			mapping.version = attribute.isVersion();
+			return mapping;
+		}
+
+		if (attributeType == PersistentAttributeType.MANY_TO_ONE || attributeType == PersistentAttributeType.ONE_TO_ONE) {
+			EntityType<?> target = entityManager.getMetamodel().entity(attribute.getJavaType());
+			String targetId = EntityUtil.getIdAttributeName(entityManager, attribute.getJavaType());
+			JoinColumn joinColumn = element.getAnnotation(JoinColumn.class);
+			if (targetId == null)
+				throw new IllegalArgumentException(String.format("Bulk insert requires a simple foreign key: %s.%s", type.getName(), attribute.getName()));
+			String name = joinColumn != null && !joinColumn.name().isEmpty() ? joinColumn.name() : attribute.getName() + "_" + targetId;
+			return new ColumnMapping(name, member, target.getIdType().getJavaType(), entityManager, EnumType.ORDINAL, null);
+		}
+
+		throw new IllegalArgumentException(String.format("Bulk insert does not support the %s attribute %s.%s", attributeType, type.getName(),
+				attribute.getName()));
+	}
+
+	/**
+	 * Estatísticas de uma inserção em massa.
+	 */
+	public static final class Result {
+
+		private final int rows;
+		private final int statements;
+		private final long elapsed;
+
+		private Result(int rows, int statements, long elapsed) {
+			this.rows = rows;
+			this.statements = statements;
+			this.elapsed = elapsed;
+		}
+
+		public int getRows() {
+			return rows;
+		}
+
+		/**
+		 * Quantidade de comandos enviados ao banco (INSERTs de várias linhas
+		 * ou batches JDBC).
+		 * 
+		 * @return
+		 */
+		public int getStatements() {
+			return statements;
+		}
+
+		public long getElapsed(TimeUnit unit) {
+			return unit.convert(elapsed, TimeUnit.NANOSECONDS);
+		}
+
+		public double getRowsPerSecond() {
+			return elapsed == 0 ? 0 : rows * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d rows in %d statements, %.0f rows/s", rows, statements, getRowsPerSecond());
+		}
+
+	}
+
+	private static final class ColumnMapping {
+
+		private final String column;
+		private final Member member;
+		private final Class<?> javaType;
+		private final EntityManager reference;
+		private final EnumType enumType;
+		private final TemporalType temporalType;
+		private final int sqlType;
+		private boolean version;
+
+		private ColumnMapping(String column, Member member, Class<?> javaType, EntityManager reference, EnumType enumType,
+				TemporalType temporalType) {
+			this.column = column;
+			this.member = member;
+			this.javaType = javaType;
+			this.reference = reference;
+			this.enumType = enumType;
+			this.temporalType = temporalType;
+			this.sqlType = sqlType(javaType, enumType, temporalType);
+			if (member instanceof Field)
+				((Field) member).setAccessible(true);
+			else
+				((Method) member).setAccessible(true);
+		}
+
+		private Object get(Object entity) {
+			try {
+				return member instanceof Field ? ((Field) member).get(entity) : ((Method) member).invoke(entity);
+			} catch (Exception e) {
+				throw new PersistenceException(String.format("Cannot read %s of %s", member.getName(), entity.getClass().getName()), e);
+			}
+		}
+
+		private void set(Object entity, Object value) {
+			try {
+				if (member instanceof Field) {
+					((Field) member).set(entity, value);
+				} else {
+					String setter = "set" + member.getName().replaceFirst("^(get|is)", "");
+					Method method = member.getDeclaringClass().getDeclaredMethod(setter, ((Method) member).getReturnType());
+					method.setAccessible(true);
+					method.invoke(entity, value);
+				}
+			} catch (Exception e) {
+				throw new PersistenceException(String.format("Cannot write %s of %s", member.getName(), entity.getClass().getName()), e);
+			}
+		}
+
+		private void bind(PreparedStatement statement, int index, Object entity) throws SQLException {
+			Object value = get(entity);
+			if (value != null && reference != null)
+				value = EntityUtil.getIdentifier(reference, value);
+			if (value == null && version && Number.class.isAssignableFrom(javaType))
+				value = EntityUtil.toIdType(0, javaType);
+
+			if (value == null) {
+				statement.setNull(index, sqlType != Types.NULL ? sqlType : getParameterType(statement, index));
+			} else if (value instanceof Enum) {
+				Enum<?> constant = (Enum<?>) value;
+				if (enumType == EnumType.STRING)
+					statement.setString(index, constant.name());
+				else
+					statement.setInt(index, constant.ordinal());
+			} else if (value instanceof Calendar) {
+				statement.setObject(index, temporal(((Calendar) value).getTime()));
+			} else if (value instanceof Date && !(value instanceof java.sql.Date || value instanceof java.sql.Time || value instanceof java.sql.Timestamp)) {
+				statement.setObject(index, temporal((Date) value));
+			} else {
+				statement.setObject(index, value);
+			}
+		}
+
+		/**
+		 * Tipo SQL usado para gravar nulos: alguns drivers, como o da Oracle,
+		 * rejeitam <code>setNull</code> com {@link Types#NULL}. Retorna
+		 * {@link Types#NULL} para tipos sem correspondência direta, que são
+		 * resolvidos pelos metadados dos parâmetros da instrução.
+		 */
+		private static int sqlType(Class<?> javaType, EnumType enumType, TemporalType temporalType) {
+			if (javaType == Long.class || javaType == long.class)
+				return Types.BIGINT;
+			if (javaType == Integer.class || javaType == int.class)
+				return Types.INTEGER;
+			if (javaType == Short.class || javaType == short.class)
+				return Types.SMALLINT;
+			if (javaType == Byte.class || javaType == byte.class)
+				return Types.TINYINT;
+			if (javaType == Double.class || javaType == double.class)
+				return Types.DOUBLE;
+			if (javaType == Float.class || javaType == float.class)
+				return Types.FLOAT;
+			if (javaType == Boolean.class || javaType == boolean.class)
+				return Types.BIT;
+			if (javaType == Character.class || javaType == char.class)
+				return Types.CHAR;
+			if (javaType == BigDecimal.class || javaType == BigInteger.class)
+				return Types.NUMERIC;
+			if (javaType == String.class)
+				return Types.VARCHAR;
+			if (javaType == byte[].class)
+				return Types.VARBINARY;
+			if (javaType.isEnum())
+				return enumType == EnumType.STRING ? Types.VARCHAR : Types.INTEGER;
+			if (javaType == java.sql.Date.class)
+				return Types.DATE;
+			if (javaType == java.sql.Time.class)
+				return Types.TIME;
+			if (Date.class.isAssignableFrom(javaType) || Calendar.class.isAssignableFrom(javaType))
+				return temporalType == TemporalType.DATE ? Types.DATE : temporalType == TemporalType.TIME ? Types.TIME : Types.TIMESTAMP;
+			return Types.NULL;
+		}
+
+		private static int getParameterType(PreparedStatement statement, int index) {
+			try {
+				return statement.getParameterMetaData().getParameterType(index);
+			} catch (SQLException e) {
+				// driver sem metadados de parâmetros
+				return Types.NULL;
+			}
+		}
+
+		private Object temporal(Date date) {
+			if (temporalType == TemporalType.DATE)
+				return new java.sql.Date(date.getTime());
+			if (temporalType == TemporalType.TIME)
+				return new java.sql.Time(date.getTime());
+			return new java.sql.Timestamp(date.getTime());
+		}
+
+	}
+
+}
@@ -0,0 +1,438 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.repository;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+
+import org.apache.commons.lang.SerializationUtils;
+
+import br.com.surittec.surijpa.util.EntityUtil;
+import br.com.surittec.surijpa.util.MetricsUtil;
+
+/**
+ * Cache de aplicação (near-cache) de entidades por tipo e chave primária,
+ * independente do cache de segundo nível do provedor. Indicado para entidades
+ * de referência muito lidas e raramente alteradas.
+ *
+ * As entidades são guardadas serializadas, como cópias desanexadas. Cada
+ * leitura devolve uma nova cópia desanexada, portanto alterações nela não
+ * afetam o cache nem outras leituras, e associações lazy não inicializadas
+ * no momento da carga não estarão disponíveis. Apenas entidades
+ * {@link Serializable} dos tipos marcados com {@link #cacheable(Class...)}
+ * são guardadas.
+ *
+ * O cache é limitado por quantidade de entradas (LRU), por tamanho estimado
+ * em bytes e por tempo de vida. Os repositórios invalidam as entradas em
+ * <code>save</code> e <code>remove</code> e as atualizam em
+ * <code>refresh</code>; operações em massa ou feitas fora do repositório
+ * devem chamar {@link #invalidate(Class)}.
+ *
+ * A invalidação acontece antes do commit da transação que alterou a
+ * entidade, então uma leitura concorrente ainda pode encontrar a versão
+ * anterior no banco. Para que ela não volte ao cache, a invalidação deixa
+ * uma marca com a versão (<code>@Version</code>) conhecida da entidade, e só
+ * são aceitas cópias com versão maior, isto é, já com a alteração
+ * confirmada. Em entidades sem versão, a chave invalidada não volta ao cache
+ * até a marca expirar (o tempo de vida do cache), e a transação de escrita
+ * deve terminar antes disso.
+ */
+public class EntityCache {
+
+	public static final String METRIC_HIT = "surijpa.cache.hit";
+	public static final String METRIC_MISS = "surijpa.cache.miss";
+	public static final String METRIC_REJECTED = "surijpa.cache.rejected";
+
+	private static final int ENTRY_OVERHEAD = 64;
+
+	private final int maxEntries;
+	private final long maxBytes;
+	private final long ttl;
+
+	private final Set<Class<?>> cacheableTypes = Collections.synchronizedSet(new HashSet<Class<?>>());
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	private final LinkedHashMap<Key, Tombstone> tombstones = new LinkedHashMap<Key, Tombstone>(16, 0.75f, true);
+	private long bytes;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	// ----------------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------------
+
+	public EntityCache(int maxEntries, long ttl, TimeUnit unit) {
+		this(maxEntries, Long.MAX_VALUE, ttl, unit);
+	}
+
+	public EntityCache(int maxEntries, long maxBytes, long ttl, TimeUnit unit) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.ttl = unit.toNanos(ttl);
+	}
+
+	// ----------------------------------------------------------------------------
+	// PUBLIC
+	// ----------------------------------------------------------------------------
+
+	/**
+	 * Marca os tipos de entidade que podem ser guardados no cache.
+	 *
+	 * @param types
+	 * @return
+	 */
+	public EntityCache cacheable(Class<?>... types) {
+		Collections.addAll(cacheableTypes, types);
+		return this;
+	}
+
+	/**
+	 * Informa se o tipo (ou um de seus supertipos) foi marcado como cacheável.
+	 *
+	 * @param type
+	 * @return
+	 */
+	public boolean isCacheable(Class<?> type) {
+		for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+			if (cacheableTypes.contains(c))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Retorna uma cópia desanexada da entidade, ou <code>null</code> se ela não
+	 * estiver no cache ou tiver expirado.
+	 *
+	 * @param type
+	 * @param primaryKey
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public <E> E get(Class<E> type, Object primaryKey) {
+		Entry entry;
+		synchronized (entries) {
+			Key key = new Key(type, primaryKey);
+			entry = entries.get(key);
+			if (entry != null && entry.isExpired()) {
+				remove(key);
+				entry = null;
+			}
+		}
+
+		if (entry == null) {
+			misses.incrementAndGet();
+			MetricsUtil.increment(METRIC_MISS);
+			return null;
+		}
+
+		hits.incrementAndGet();
+		MetricsUtil.increment(METRIC_HIT);
+		return (E) SerializationUtils.deserialize(entry.snapshot);
+	}
+
+	/**
+	 * Guarda uma cópia da entidade, identificada pela sua classe de entidade
+	 * (desconsiderando proxies), chave primária e versão (ver
+	 * {@link #put(Class, Object, Object, Object)}).
+	 *
+	 * @param entityManager
+	 * @param entity
+	 */
+	public void put(EntityManager entityManager, Object entity) {
+		Class<?> entityClass = EntityUtil.getEntityClass(entityManager, entity);
+		if (entityClass != null)
+			put(entityClass, EntityUtil.getIdentifier(entityManager, entity), entity, EntityUtil.getVersion(entityManager, entity));
+	}
+
+	/**
+	 * Guarda uma cópia da entidade sem versão conhecida (ver
+	 * {@link #put(Class, Object, Object, Object)}).
+	 *
+	 * @param type
+	 * @param primaryKey
+	 * @param entity
+	 */
+	public void put(Class<?> type, Object primaryKey, Object entity) {
+		put(type, primaryKey, entity, null);
+	}
+
+	/**
+	 * Guarda uma cópia da entidade, caso o tipo seja cacheável, a entidade
+	 * seja {@link Serializable} e a versão seja posterior à da última
+	 * invalidação da chave, se houver.
+	 *
+	 * @param type
+	 * @param primaryKey
+	 * @param entity
+	 * @param version
+	 *            versão da entidade, ou <code>null</code> se desconhecida
+	 */
+	public void put(Class<?> type, Object primaryKey, Object entity, Object version) {
+		if (primaryKey == null || !(entity instanceof Serializable) || !isCacheable(type))
+			return;
+
+		Entry entry = new Entry(SerializationUtils.serialize((Serializable) entity), System.nanoTime() + ttl);
+		synchronized (entries) {
+			Key key = new Key(type, primaryKey);
+			if (!accepts(key, version)) {
+				MetricsUtil.increment(METRIC_REJECTED);
+				return;
+			}
+			remove(key);
+			entries.put(key, entry);
+			bytes += entry.size();
+
+			Iterator<Entry> eldest = entries.values().iterator();
+			while (eldest.hasNext() && (entries.size() > maxEntries || bytes > maxBytes)) {
+				bytes -= eldest.next().size();
+				eldest.remove();
+			}
+		}
+	}
+
+	/**
+	 * Remove a entidade do cache pela sua classe de entidade, chave primária e
+	 * versão atual (ver {@link #invalidate(Class, Object, Object)}).
+	 *
+	 * @param entityManager
+	 * @param entity
+	 */
+	public void invalidate(EntityManager entityManager, Object entity) {
+		Class<?> entityClass = EntityUtil.getEntityClass(entityManager, entity);
+		if (entityClass != null)
+			invalidate(entityClass, EntityUtil.getIdentifier(entityManager, entity), EntityUtil.getVersion(entityManager, entity));
+	}
+
+	/**
+	 * Remove a entidade do cache sem versão conhecida: a chave não volta ao
+	 * cache até a marca de invalidação expirar.
+	 *
+	 * @param type
+	 * @param primaryKey
+	 */
+	public void invalidate(Class<?> type, Object primaryKey) {
+		invalidate(type, primaryKey, null);
+	}
+
+	/**
+	 * Remove a entidade do cache, inclusive quando guardada por um supertipo,
+	 * e deixa uma marca que recusa cópias com versão igual ou anterior à
+	 * informada até o tempo de vida do cache.
+	 *
+	 * @param type
+	 * @param primaryKey
+	 * @param version
+	 *            versão que está sendo alterada, ou <code>null</code> se
+	 *            desconhecida
+	 */
+	public void invalidate(Class<?> type, Object primaryKey, Object version) {
+		if (primaryKey == null)
+			return;
+		Tombstone tombstone = new Tombstone(version, System.nanoTime() + ttl);
+		synchronized (entries) {
+			for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+				Key key = new Key(c, primaryKey);
+				remove(key);
+				tombstones.put(key, tombstone);
+			}
+			Iterator<Tombstone> eldest = tombstones.values().iterator();
+			while (eldest.hasNext() && tombstones.size() > maxEntries) {
+				eldest.next();
+				eldest.remove();
+			}
+		}
+	}
+
+	/**
+	 * Remove do cache todas as entidades do tipo e de seus subtipos.
+	 *
+	 * @param type
+	 */
+	public void invalidate(Class<?> type) {
+		synchronized (entries) {
+			Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<Key, Entry> entry = it.next();
+				if (type.isAssignableFrom(entry.getKey().type)) {
+					bytes -= entry.getValue().size();
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove todas as entidades do cache.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+			tombstones.clear();
+			bytes = 0;
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * Retorna o tamanho estimado do cache em bytes: as cópias serializadas mais
+	 * um custo fixo por entrada.
+	 *
+	 * @return
+	 */
+	public long getEstimatedSize() {
+		synchronized (entries) {
+			return bytes;
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Retorna a proporção de leituras atendidas pelo cache, entre 0 e 1.
+	 *
+	 * @return
+	 */
+	public double getHitRatio() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	public void resetStatistics() {
+		hits.set(0);
+		misses.set(0);
+	}
+
+	// ----------------------------------------------------------------------------
+	// PRIVATE
+	// ----------------------------------------------------------------------------
+
+	private boolean accepts(Key key, Object version) {
+		Tombstone tombstone = tombstones.get(key);
+		if (tombstone == null)
+			return true;
+		if (tombstone.isExpired() || tombstone.isSupersededBy(version)) {
+			tombstones.remove(key);
+			return true;
+		}
+		return false;
+	}
+
+	private void remove(Key key) {
+		Entry previous = entries.remove(key);
+		if (previous != null)
+			bytes -= previous.size();
+	}
+
+	private static final class Key {
+
+		private final Class<?> type;
+		private final Object primaryKey;
+
+		private Key(Class<?> type, Object primaryKey) {
+			this.type = type;
+			this.primaryKey = primaryKey;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * type.hashCode() + primaryKey.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return type.equals(other.type) && primaryKey.equals(other.primaryKey);
+		}
+
+	}
+
+	private static final class Tombstone {
+
+		private final Object version;
+		private final long expiresAt;
+
+		private Tombstone(Object version, long expiresAt) {
+			this.version = version;
+			this.expiresAt = expiresAt;
+		}
+
+		private boolean isExpired() {
+			return System.nanoTime() - expiresAt > 0;
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private boolean isSupersededBy(Object other) {
+			if (version == null || other == null)
+				return false;
+			if (version instanceof Number && other instanceof Number)
+				return ((Number) other).longValue() > ((Number) version).longValue();
+			if (version instanceof Comparable && version.getClass().isInstance(other))
+				return ((Comparable) other).compareTo(version) > 0;
+			return false;
+		}
+
+	}
+
+	private static final class Entry {
+
+		private final byte[] snapshot;
+		private final long expiresAt;
+
+		private Entry(byte[] snapshot, long expiresAt) {
+			this.snapshot = snapshot;
+			this.expiresAt = expiresAt;
+		}
+
+		private boolean isExpired() {
+			return System.nanoTime() - expiresAt > 0;
+		}
+
+		private long size() {
+			return snapshot.length + ENTRY_OVERHEAD;
+		}
+
+	}
+
+}
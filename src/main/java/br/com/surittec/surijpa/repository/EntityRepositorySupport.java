@@ -1,467 +1,976 @@
-/*
- * SURITTEC
- * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
- * and individual contributors as indicated by the @authors tag
- *
- * This is free software; you can redistribute it and/or modify it
- * under the terms of the GNU Lesser General Public License as
- * published by the Free Software Foundation; either version 2.1 of
- * the License, or (at your option) any later version.
- *
- * This software is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
- * Lesser General Public License for more details.
- *
- * You should have received a copy of the GNU Lesser General Public
- * License along with this software; if not, write to the Free
- * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
- * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
- */
-package br.com.surittec.surijpa.repository;
-
-import java.io.Serializable;
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Member;
-import java.lang.reflect.Method;
-import java.lang.reflect.ParameterizedType;
-import java.lang.reflect.Type;
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.List;
-import java.util.Map;
-
-import javax.persistence.EntityManager;
-import javax.persistence.OptimisticLockException;
-import javax.persistence.TypedQuery;
-
-import br.com.surittec.surijpa.criteria.JPQL;
-import br.com.surittec.surijpa.util.EntityUtil;
-
-/**
- * Suporte para classes de persistncia, com encapsulamento do uso do
- * {@link javax.persistence.EntityManager} e provendo algumas operaes
- * necessrias manter ou pesquisar entidades.
- */
-@SuppressWarnings("unchecked")
-public abstract class EntityRepositorySupport<E, PK extends Serializable> {
-
-	protected Class<E> type;
-
-	// ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
-	// CONSTRUCTORS
-	// ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
-
-	/**
-	 * Construtor que ja obtem de forma automatica o tipo do Repository.
-	 */
-	public EntityRepositorySupport() {
-		Type superclass = getClass().getGenericSuperclass();
-		if (superclass instanceof ParameterizedType) {
-			ParameterizedType parameterizedType = (ParameterizedType) superclass;
-			if (parameterizedType.getActualTypeArguments().length > 0) {
-				type = (Class<E>) parameterizedType.getActualTypeArguments()[0];
-			}
-		}
-	}
-
-	// ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
-	// PROTECTED METHODS
-	// ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
-
-	protected abstract EntityManager getEntityManager();
-
-	/**
-	 * Create a JPQL support
-	 * 
-	 * @return jpql
-	 */
-	protected JPQL jpql() {
-		return new JPQL(getEntityManager());
-	}
-
-	/**
-	 * Cria a JPQL support j iniciando o select
-	 * 
-	 * @param select
-	 * @return
-	 */
-	public JPQL select(String... select) {
-		return jpql().select(Arrays.asList(select));
-	}
-
-	/**
-	 * Cria a JPQL support j iniciando o select
-	 * 
-	 * @param select
-	 * @return
-	 */
-	public JPQL select(Collection<String> selects) {
-		return jpql().select(selects);
-	}
-
-	// ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
-	// PUBLIC METHODS
-	// ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
-
-	/**
-	 * Persist (new entity) or merge the given entity. The distinction on
-	 * calling either method is done based on the primary key field being null
-	 * or not. If this results in wrong behavior for a specific case, consider
-	 * using the {@link org.apache.deltaspike.data.api.EntityManagerDelegate}
-	 * which offers both {@code persist} and {@code merge}.
-	 * 
-	 * @param entity
-	 *            Entity to save.
-	 * @return Returns the modified entity.
-	 */
-	public E save(E entity) {
-		if (EntityUtil.isNew(getEntityManager(), entity)) {
-			getEntityManager().persist(entity);
-			return entity;
-		}
-		return getEntityManager().merge(entity);
-	}
-
-	/**
-	 * Persist (new entities) or merge the given entities. The distinction on
-	 * calling either method is done based on the primary key field being null
-	 * or not. If this results in wrong behavior for a specific case, consider
-	 * using the {@link org.apache.deltaspike.data.api.EntityManagerDelegate}
-	 * which offers both {@code persist} and {@code merge}.
-	 * 
-	 * @param entities
-	 *            Entities to save.
-	 * @return Returns the modified entity.
-	 */
-	public void save(Collection<E> entities) {
-		for (E e : entities)
-			save(e);
-	}
-
-	/**
-	 * Convenience access to
-	 * {@link javax.persistence.EntityManager#remove(Object)}.
-	 * 
-	 * @param entity
-	 *            Entity to remove.
-	 */
-	public void remove(E entity) {
-		getEntityManager().remove(contains(entity) ? entity : getEntityManager().merge(entity));
-	}
-
-	/**
-	 * Convenience access to
-	 * {@link javax.persistence.EntityManager#remove(Object)}.
-	 * 
-	 * @param entities
-	 *            Entities to remove.
-	 */
-	public void remove(Collection<E> entities) {
-		for (E e : entities)
-			remove(e);
-	}
-
-	/**
-	 * Convenience access to
-	 * {@link javax.persistence.EntityManager#refresh(Object)}.
-	 * 
-	 * @param entity
-	 *            Entity to refresh.
-	 */
-	public void refresh(E entity) {
-		getEntityManager().refresh(entity);
-	}
-
-	/**
-	 * Same as {@link EntityRepositorySupport#refresh(Object)} but returns the entity.
-	 * 
-	 * @param entity
-	 *            Entity to refresh.
-	 * @return Entity to refresh.
-	 */
-	public E refreshed(E entity) {
-		refresh(entity);
-		return entity;
-	}
-
-	/**
-	 * Convenience access to
-	 * {@link javax.persistence.EntityManager#refresh(Object)}.
-	 * 
-	 * @param entities
-	 *            Entities to refresh.
-	 */
-	public void refresh(Collection<E> entities) {
-		for (E e : entities)
-			refresh(e);
-	}
-
-	/**
-	 * Same as {@link EntityRepositorySupport#refresh(Collection)} but returns the
-	 * collection.
-	 * 
-	 * @param entities
-	 *            Entities to refresh.
-	 * @return Entities refreshed
-	 */
-	public <T extends Collection<E>> T refreshed(T entities) {
-		refresh(entities);
-		return entities;
-	}
-
-	/**
-	 * Check if the instance is a managed entity instance belonging to the
-	 * current persistence context.
-	 * 
-	 * @param entity
-	 *            entity instance
-	 * @return boolean indicating if entity is in persistence context
-	 * @throws IllegalArgumentException
-	 *             if not an entity
-	 */
-	public boolean contains(E entity) {
-		return getEntityManager().contains(entity);
-	}
-
-	/**
-	 * Remove the given entity from the persistence context, causing a managed
-	 * entity to become detached. Unflushed changes made to the entity if any
-	 * (including removal of the entity), will not be synchronized to the
-	 * database. Entities which previously referenced the detached entity will
-	 * continue to reference it.
-	 * 
-	 * @param entity
-	 *            entity instance
-	 * @throws IllegalArgumentException
-	 *             if the instance is not an entity
-	 */
-	public void detach(E entity) {
-		getEntityManager().detach(entity);
-	}
-
-	/**
-	 * Same as {@link EntityRepositorySupport#detach(Object)} but returns the entity.
-	 * 
-	 * @param entity
-	 * @return the entity detached
-	 */
-	public E detached(E entity) {
-		detach(entity);
-		return entity;
-	}
-
-	/**
-	 * Remove the given entities from the persistence context, causing a managed
-	 * entities to become detached. Unflushed changes made to the entities if
-	 * any (including removal of the entities), will not be synchronized to the
-	 * database. Entities which previously referenced the detached entity will
-	 * continue to reference it.
-	 * 
-	 * @param entities
-	 *            entities instances
-	 * @throws IllegalArgumentException
-	 *             if the instance is not an entity
-	 */
-	public void detach(Collection<E> entities) {
-		for (E e : entities)
-			detach(e);
-	}
-
-	/**
-	 * Same as {@link EntityRepositorySupport#detach(Collection)} but returns the
-	 * collection.
-	 * 
-	 * @param entities
-	 *            entities instances
-	 * @return entities detached
-	 * @throws IllegalArgumentException
-	 *             if the instance is not an entity
-	 */
-	public <T extends Collection<E>> T detached(T entities) {
-		detach(entities);
-		return entities;
-	}
-
-	/**
-	 * Convenience access to {@link javax.persistence.EntityManager#flush()}.
-	 */
-	public void flush() {
-		getEntityManager().flush();
-	}
-
-	/**
-	 * Entity lookup by primary key. Convenicence method around
-	 * {@link javax.persistence.EntityManager#find(Class, Object)}.
-	 * 
-	 * @param primaryKey
-	 *            DB primary key.
-	 * @return Entity identified by primary or null if it does not exist.
-	 */
-	public E findBy(PK primaryKey) {
-		return getEntityManager().find(type, primaryKey);
-	}
-	
-	/**
-	 * Entity lookup by primary key. Convenicence method around
-	 * {@link javax.persistence.EntityManager#find(Class, Object)} and check 
-	 * if version parameter is equal to persistent version.
-	 * 
-	 * @param primaryKey
-	 *            DB primary key.
-	 * @param version
-	 * @return Entity identified by primary or null if it does not exist.
-	 */
-	public E findByAndCheckVersion(PK primaryKey, Integer version) {
-		return findByAndCheckVersion(primaryKey, version, Integer.class);
-	}
-	
-	/**
-	 * Entity lookup by primary key. Convenicence method around
-	 * {@link javax.persistence.EntityManager#find(Class, Object)} and check 
-	 * if version parameter is equal to persistent version.
-	 * 
-	 * @param primaryKey
-	 *            DB primary key.
-	 * @param version
-	 * @param versionType
-	 * @return Entity identified by primary or null if it does not exist.
-	 */
-	public E findByAndCheckVersion(PK primaryKey, Object version, Class<?> versionType) {
-		E entity = findBy(primaryKey);
-		checkVersion(entity, version, versionType);
-		return entity;
-	}
-
-	/**
-	 * Checks if version parameter is equal to persistent version.
-	 * 
-	 * @param entity
-	 * @param version
-	 */
-	protected void checkVersion(E entity, Integer version){
-		checkVersion(entity, version, Integer.class);
-	}
-	
-	/**
-	 * Checks if version parameter is equal to persistent version.
-	 * 
-	 * @param entity
-	 * @param version
-	 * @param versionType
-	 */
-	protected void checkVersion(E entity, Object version, Class<?> versionType){
-		if(entity != null){
-			Member member = getEntityManager().getMetamodel().entity(type).getVersion(versionType).getJavaMember();
-			Object persistentVersion = null;
-			try{
-				if(member instanceof Field){
-					Field versionField = (Field) member;
-					versionField.setAccessible(true);
-					persistentVersion = versionField.get(entity);
-				}else{
-					Method versionMethod = (Method) member;
-					persistentVersion = versionMethod.invoke(entity);
-				}
-				if(!persistentVersion.equals(version)){
-					throw new OptimisticLockException(entity);
-				}
-			}catch(IllegalAccessException | InvocationTargetException e){
-				throw new RuntimeException(e);
-			}
-		}
-	}
-	
-	/**
-	 * Lookup all existing entities of entity class {@code <E>}.
-	 * 
-	 * @return List of entities, empty if none found.
-	 */
-	public List<E> findAll() {
-		return jpql().from(EntityUtil.getEntityName(getEntityManager(), type)).getResultList(type);
-	}
-
-	/**
-	 * Lookup a range of existing entities of entity class {@code <E>} with
-	 * support for pagination.
-	 * 
-	 * @param start
-	 *            The starting position.
-	 * @param max
-	 *            The maximum number of results to return
-	 * @return List of entities, empty if none found.
-	 */
-	public List<E> findAll(int start, int max) {
-		JPQL jpql = jpql().from(EntityUtil.getEntityName(getEntityManager(), type));
-		if (start > 0)
-			jpql.firstResult(start);
-		if (max > 0)
-			jpql.maxResults(max);
-		return jpql.getResultList(type);
-	}
-
-	/**
-	 * Find entities by the given named query.
-	 * 
-	 * @param namedQuery
-	 *            Named Query
-	 * @param params
-	 *            Named Query parameters
-	 * @return List of entities, empty if none found.
-	 */
-	public List<E> findByNamedQuery(String namedQuery, Map<String, Object> params) {
-		TypedQuery<E> query = getEntityManager().createNamedQuery(namedQuery, type);
-		if (params != null) {
-			for (String paramName : params.keySet()) {
-				query.setParameter(paramName, params.get(paramName));
-			}
-		}
-		return query.getResultList();
-	}
-
-	/**
-	 * Find any entity by the given named query.
-	 * 
-	 * @param namedQuery
-	 *            Named Query
-	 * @param params
-	 *            Named Query parameters
-	 * @return Entity
-	 */
-	public E findAnyByNamedQuery(String namedQuery, Map<String, Object> params) {
-		TypedQuery<E> query = getEntityManager().createNamedQuery(namedQuery, type);
-		if (params != null) {
-			for (String paramName : params.keySet()) {
-				query.setParameter(paramName, params.get(paramName));
-			}
-		}
-
-		List<E> result = query.getResultList();
-		if (result != null && !result.isEmpty()) {
-			return result.get(0);
-		} else {
-			return null;
-		}
-	}
-
-	/**
-	 * Find single entity by the given named query.
-	 * 
-	 * @param namedQuery
-	 *            Named Query
-	 * @param params
-	 *            Named Query parameters
-	 * @return Entity
-	 */
-	public E findUniqueByNamedQuery(String namedQuery, Map<String, Object> params) {
-		TypedQuery<E> query = getEntityManager().createNamedQuery(namedQuery, type);
-		if (params != null) {
-			for (String paramName : params.keySet()) {
-				query.setParameter(paramName, params.get(paramName));
-			}
-		}
-		return query.getSingleResult();
-	}
-
-}
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.repository;
+
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.QueryTimeoutException;
+import javax.persistence.TypedQuery;
+
+import br.com.surittec.surijpa.criteria.JPQL;
+import br.com.surittec.surijpa.criteria.LazyResultList;
+import br.com.surittec.surijpa.criteria.ResultLimit;
+import br.com.surittec.surijpa.criteria.StreamResultList;
+import br.com.surittec.surijpa.util.Deadline;
+import br.com.surittec.surijpa.util.EntityUtil;
+import br.com.surittec.surijpa.util.QueryComment;
+
+/**
+ * Suporte para classes de persistência, com encapsulamento do uso do
+ * {@link javax.persistence.EntityManager} e provendo algumas operações
+ * necessárias manter ou pesquisar entidades.
+ */
+@SuppressWarnings("unchecked")
+public abstract class EntityRepositorySupport<E, PK extends Serializable> {
+
+	protected Class<E> type;
+
+	// ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+	// CONSTRUCTORS
+	// ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+
+	/**
+	 * Construtor que ja obtem de forma automatica o tipo do Repository.
+	 */
+	public EntityRepositorySupport() {
+		Type superclass = getClass().getGenericSuperclass();
+		if (superclass instanceof ParameterizedType) {
+			ParameterizedType parameterizedType = (ParameterizedType) superclass;
+			if (parameterizedType.getActualTypeArguments().length > 0) {
+				type = (Class<E>) parameterizedType.getActualTypeArguments()[0];
+			}
+		}
+	}
+
+	// ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+	// PROTECTED METHODS
+	// ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+
+	protected abstract EntityManager getEntityManager();
+
+	/**
+	 * Quantidade de identificadores por cláusula IN usada nas operações em
+	 * lote.
+	 * 
+	 * @return batch size
+	 */
+	protected int getBatchSize() {
+		return EntityUtil.DEFAULT_BATCH_SIZE;
+	}
+
+	/**
+	 * Controle opcional do tamanho do contexto de persistência. Quando
+	 * retornado, as entidades carregadas ou salvas pelo repositório são
+	 * contabilizadas e a política do guard é aplicada ao ultrapassar o limite.
+	 * 
+	 * @return guard, ou <code>null</code> para desabilitar
+	 */
+	protected PersistenceContextGuard getPersistenceContextGuard() {
+		return null;
+	}
+
+	/**
+	 * Cache opcional de entidades por chave primária. Quando retornado, o
+	 * {@code findBy} dos tipos marcados como cacheáveis é atendido pelo cache,
+	 * e as entradas são invalidadas em {@code save}/{@code remove} e
+	 * atualizadas em {@code refresh} e {@code reload}.
+	 * 
+	 * @return cache, ou <code>null</code> para desabilitar
+	 */
+	protected EntityCache getEntityCache() {
+		return null;
+	}
+
+	/**
+	 * Fila opcional de escrita assíncrona usada por {@code saveLater}. Quando
+	 * não retornada, {@code saveLater} grava imediatamente com {@code save}.
+	 * 
+	 * @return fila, ou <code>null</code> para desabilitar
+	 */
+	protected WriteBehindQueue getWriteBehindQueue() {
+		return null;
+	}
+
+	/**
+	 * Roteamento opcional das leituras para réplicas. Quando retornado,
+	 * {@code findBy}, {@code findAll}, {@code findByNamedQuery} e as consultas
+	 * criadas por {@code select}, ao serem executadas, usam o EntityManager
+	 * escolhido pelo router, enquanto as escritas usam sempre
+	 * {@link #getEntityManager()}.
+	 * 
+	 * @return router, ou <code>null</code> para desabilitar
+	 */
+	protected ReadRouter getReadRouter() {
+		return null;
+	}
+
+	/**
+	 * Limite opcional de linhas do {@code findAll} e das consultas criadas
+	 * por {@code jpql} e {@code select} sem paginação (ver
+	 * {@link ResultLimit}). Quando não retornado, vale o limite global.
+	 * 
+	 * @return limite, ou <code>null</code> para usar o global
+	 */
+	protected ResultLimit getResultLimit() {
+		return null;
+	}
+
+	/**
+	 * Create a JPQL support
+	 * 
+	 * @return jpql
+	 */
+	protected JPQL jpql() {
+		return new JPQL(getEntityManager()).limit(getResultLimit());
+	}
+
+	/**
+	 * Cria a JPQL support já iniciando o select
+	 * 
+	 * @param select
+	 * @return
+	 */
+	public JPQL select(String... select) {
+		return readQuery().select(Arrays.asList(select));
+	}
+
+	/**
+	 * Cria a JPQL support já iniciando o select
+	 * 
+	 * @param select
+	 * @return
+	 */
+	public JPQL select(Collection<String> selects) {
+		return readQuery().select(selects);
+	}
+
+	/**
+	 * Cria a JPQL support já iniciando um UPDATE em massa da entidade
+	 * 
+	 * @param alias
+	 * @return
+	 */
+	public JPQL update(String alias) {
+		written();
+		return jpql().update(type, alias);
+	}
+
+	/**
+	 * Cria a JPQL support já iniciando um DELETE em massa da entidade
+	 * 
+	 * @param alias
+	 * @return
+	 */
+	public JPQL delete(String alias) {
+		written();
+		return jpql().delete(type, alias);
+	}
+
+	// ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+	// PUBLIC METHODS
+	// ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+
+	/**
+	 * Persist (new entity) or merge the given entity. The distinction on
+	 * calling either method is done based on the primary key field being null
+	 * or not. If this results in wrong behavior for a specific case, consider
+	 * using the {@link org.apache.deltaspike.data.api.EntityManagerDelegate}
+	 * which offers both {@code persist} and {@code merge}.
+	 * 
+	 * @param entity
+	 *            Entity to save.
+	 * @return Returns the modified entity.
+	 */
+	public E save(E entity) {
+		if (EntityUtil.isNew(getEntityManager(), entity)) {
+			getEntityManager().persist(entity);
+			return saved(entity);
+		}
+		return saved(getEntityManager().merge(entity));
+	}
+
+	/**
+	 * Queue the given entity to be saved asynchronously by the
+	 * {@link #getWriteBehindQueue()}, coalescing repeated saves of the same
+	 * entity. The entity is saved in its own transaction, after this call
+	 * returns and outside the current persistence context. Without a queue
+	 * the entity is saved immediately.
+	 * 
+	 * @param entity
+	 *            Entity to save.
+	 */
+	public void saveLater(E entity) {
+		WriteBehindQueue queue = getWriteBehindQueue();
+		if (queue == null) {
+			save(entity);
+			return;
+		}
+		invalidate(entity);
+		queue.save(entity);
+	}
+
+	/**
+	 * Append-only bulk insert of new immutable entities (audit logs, events)
+	 * straight through JDBC, with multi-row INSERTs or JDBC batches of
+	 * {@link #getBatchSize()} rows on the connection of the current
+	 * transaction. The entities are not managed and bypass callbacks,
+	 * cascades and caches (see {@link BulkInserter}).
+	 * 
+	 * @param entities
+	 *            Entities to insert.
+	 * @return Insert statistics, including rows per second.
+	 */
+	public BulkInserter.Result append(Collection<E> entities) {
+		written();
+		return new BulkInserter<E>(getEntityManager(), type).batchSize(getBatchSize()).insert(entities);
+	}
+
+	/**
+	 * Persist (new entities) or merge the given entities. The distinction on
+	 * calling either method is done based on the primary key field being null
+	 * or not. If this results in wrong behavior for a specific case, consider
+	 * using the {@link org.apache.deltaspike.data.api.EntityManagerDelegate}
+	 * which offers both {@code persist} and {@code merge}.
+	 * 
+	 * @param entities
+	 *            Entities to save.
+	 * @return Returns the modified entity.
+	 */
+	public void save(Collection<E> entities) {
+		saveAll(entities);
+	}
+
+	/**
+	 * Bulk version of {@link EntityRepositorySupport#save(Object)}. New
+	 * entities are persisted, while the existing ones are first loaded into
+	 * the persistence context with chunked {@code IN} queries (see
+	 * {@link #getBatchSize()}) and then merged against the managed instances,
+	 * so no merge needs its own SELECT.
+	 * 
+	 * @param entities
+	 *            Entities to save.
+	 * @return Returns the modified entities, in the same order.
+	 */
+	public List<E> saveAll(Collection<E> entities) {
+		List<Object> ids = new ArrayList<Object>(entities.size());
+		List<Object> existing = new ArrayList<Object>(entities.size());
+		for (E e : entities) {
+			Object id = EntityUtil.getIdentifier(getEntityManager(), e);
+			ids.add(id);
+			if (id != null && !contains(e))
+				existing.add(id);
+		}
+
+		EntityUtil.findByIds(getEntityManager(), type, existing, getBatchSize(), commentHint("saveAll"));
+
+		List<E> result = new ArrayList<E>(entities.size());
+		int i = 0;
+		for (E e : entities) {
+			if (ids.get(i++) == null) {
+				getEntityManager().persist(e);
+				result.add(e);
+			} else {
+				result.add(getEntityManager().merge(e));
+			}
+		}
+		return saved(result);
+	}
+
+	/**
+	 * Convenience access to
+	 * {@link javax.persistence.EntityManager#remove(Object)}.
+	 * 
+	 * @param entity
+	 *            Entity to remove.
+	 */
+	public void remove(E entity) {
+		written();
+		getEntityManager().remove(contains(entity) ? entity : getEntityManager().merge(entity));
+		invalidate(entity);
+	}
+
+	/**
+	 * Convenience access to
+	 * {@link javax.persistence.EntityManager#remove(Object)}.
+	 * 
+	 * @param entities
+	 *            Entities to remove.
+	 */
+	public void remove(Collection<E> entities) {
+		for (E e : entities)
+			remove(e);
+	}
+
+	/**
+	 * Convenience access to
+	 * {@link javax.persistence.EntityManager#refresh(Object)}.
+	 * 
+	 * @param entity
+	 *            Entity to refresh.
+	 */
+	public void refresh(E entity) {
+		getEntityManager().refresh(entity);
+		EntityCache cache = getEntityCache();
+		if (cache != null)
+			cache.put(getEntityManager(), entity);
+	}
+
+	/**
+	 * Same as {@link EntityRepositorySupport#refresh(Object)} but returns the entity.
+	 * 
+	 * @param entity
+	 *            Entity to refresh.
+	 * @return Entity to refresh.
+	 */
+	public E refreshed(E entity) {
+		refresh(entity);
+		return entity;
+	}
+
+	/**
+	 * Refresh the given managed entities in place with chunked {@code IN}
+	 * queries (see {@link #getBatchSize()}), bypassing and refreshing the
+	 * second-level cache, instead of one SELECT per entity. Unflushed changes
+	 * are discarded and the instances stay managed. Entities with cascading
+	 * associations, and providers other than Hibernate, fall back to
+	 * {@link javax.persistence.EntityManager#refresh(Object)} for each entity.
+	 * 
+	 * @param entities
+	 *            Entities to refresh.
+	 * @throws javax.persistence.EntityNotFoundException
+	 *             if some entity no longer exists.
+	 */
+	public void refresh(Collection<E> entities) {
+		EntityUtil.refresh(getEntityManager(), entities, getBatchSize());
+		EntityCache cache = getEntityCache();
+		if (cache != null) {
+			for (E entity : entities)
+				cache.put(getEntityManager(), entity);
+		}
+	}
+
+	/**
+	 * Same as {@link EntityRepositorySupport#refresh(Collection)} but returns the
+	 * collection.
+	 * 
+	 * @param entities
+	 *            Entities to refresh.
+	 * @return Entities refreshed
+	 */
+	public <T extends Collection<E>> T refreshed(T entities) {
+		refresh(entities);
+		return entities;
+	}
+
+	/**
+	 * Reload the given entities from the database with chunked {@code IN}
+	 * queries (see {@link #getBatchSize()}), bypassing and refreshing the
+	 * second-level cache, returning new instances; {@link #refresh(Collection)}
+	 * refreshes the given instances in place instead. Managed entities
+	 * are detached first, discarding unflushed changes, and the fresh managed
+	 * instances are returned in a new list, in the same order; the given
+	 * collection is not modified and other references to the old instances
+	 * become stale. Entities that no longer exist are left out.
+	 * 
+	 * @param entities
+	 *            Entities to reload.
+	 * @return Fresh managed instances.
+	 */
+	public List<E> reload(Collection<E> entities) {
+		List<E> reloaded = EntityUtil.reload(getEntityManager(), entities, getBatchSize());
+		EntityCache cache = getEntityCache();
+		if (cache != null) {
+			for (E entity : reloaded)
+				cache.put(getEntityManager(), entity);
+		}
+		return reloaded;
+	}
+
+	/**
+	 * Check if the instance is a managed entity instance belonging to the
+	 * current persistence context.
+	 * 
+	 * @param entity
+	 *            entity instance
+	 * @return boolean indicating if entity is in persistence context
+	 * @throws IllegalArgumentException
+	 *             if not an entity
+	 */
+	public boolean contains(E entity) {
+		return getEntityManager().contains(entity);
+	}
+
+	/**
+	 * Remove the given entity from the persistence context, causing a managed
+	 * entity to become detached. Unflushed changes made to the entity if any
+	 * (including removal of the entity), will not be synchronized to the
+	 * database. Entities which previously referenced the detached entity will
+	 * continue to reference it.
+	 * 
+	 * @param entity
+	 *            entity instance
+	 * @throws IllegalArgumentException
+	 *             if the instance is not an entity
+	 */
+	public void detach(E entity) {
+		getEntityManager().detach(entity);
+	}
+
+	/**
+	 * Same as {@link EntityRepositorySupport#detach(Object)} but returns the entity.
+	 * 
+	 * @param entity
+	 * @return the entity detached
+	 */
+	public E detached(E entity) {
+		detach(entity);
+		return entity;
+	}
+
+	/**
+	 * Remove the given entities from the persistence context, causing a managed
+	 * entities to become detached. Unflushed changes made to the entities if
+	 * any (including removal of the entities), will not be synchronized to the
+	 * database. Entities which previously referenced the detached entity will
+	 * continue to reference it.
+	 * 
+	 * @param entities
+	 *            entities instances
+	 * @throws IllegalArgumentException
+	 *             if the instance is not an entity
+	 */
+	public void detach(Collection<E> entities) {
+		for (E e : entities)
+			detach(e);
+	}
+
+	/**
+	 * Same as {@link EntityRepositorySupport#detach(Collection)} but returns the
+	 * collection.
+	 * 
+	 * @param entities
+	 *            entities instances
+	 * @return entities detached
+	 * @throws IllegalArgumentException
+	 *             if the instance is not an entity
+	 */
+	public <T extends Collection<E>> T detached(T entities) {
+		detach(entities);
+		return entities;
+	}
+
+	/**
+	 * Convenience access to {@link javax.persistence.EntityManager#flush()}.
+	 */
+	public void flush() {
+		written();
+		getEntityManager().flush();
+	}
+
+	/**
+	 * Entity lookup by primary key. Convenicence method around
+	 * {@link javax.persistence.EntityManager#find(Class, Object)}. Cacheable
+	 * types of the {@link #getEntityCache()} are returned as detached copies
+	 * when found in the cache, unless the entity is already managed by the
+	 * persistence context, in which case the managed instance is returned.
+	 * 
+	 * @param primaryKey
+	 *            DB primary key.
+	 * @return Entity identified by primary or null if it does not exist.
+	 */
+	public E findBy(PK primaryKey) {
+		EntityCache cache = getEntityCache();
+		boolean cacheable = cache != null && cache.isCacheable(type);
+		E entity = cacheable ? EntityUtil.getManaged(getEntityManager(), type, primaryKey) : null;
+		if (entity == null && cacheable)
+			entity = cache.get(type, primaryKey);
+		if (entity == null) {
+			EntityManager entityManager = acquireReader();
+			try {
+				entity = loaded(entityManager, entityManager.find(type, primaryKey, Deadline.getHints()));
+				if (cacheable && entity != null)
+					cache.put(entityManager, entity);
+			} finally {
+				releaseReader(entityManager);
+			}
+		}
+		return entity;
+	}
+	
+	/**
+	 * Entity lookup by primary key. Convenicence method around
+	 * {@link javax.persistence.EntityManager#find(Class, Object)} and check 
+	 * if version parameter is equal to persistent version.
+	 * 
+	 * @param primaryKey
+	 *            DB primary key.
+	 * @param version
+	 * @return Entity identified by primary or null if it does not exist.
+	 */
+	public E findByAndCheckVersion(PK primaryKey, Integer version) {
+		return findByAndCheckVersion(primaryKey, version, Integer.class);
+	}
+	
+	/**
+	 * Entity lookup by primary key. Convenicence method around
+	 * {@link javax.persistence.EntityManager#find(Class, Object)} and check 
+	 * if version parameter is equal to persistent version.
+	 * 
+	 * @param primaryKey
+	 *            DB primary key.
+	 * @param version
+	 * @param versionType
+	 * @return Entity identified by primary or null if it does not exist.
+	 */
+	public E findByAndCheckVersion(PK primaryKey, Object version, Class<?> versionType) {
+		E entity = findBy(primaryKey);
+		checkVersion(entity, version, versionType);
+		return entity;
+	}
+
+	/**
+	 * Checks if version parameter is equal to persistent version.
+	 * 
+	 * @param entity
+	 * @param version
+	 */
+	protected void checkVersion(E entity, Integer version){
+		checkVersion(entity, version, Integer.class);
+	}
+	
+	/**
+	 * Checks if version parameter is equal to persistent version.
+	 * 
+	 * @param entity
+	 * @param version
+	 * @param versionType
+	 */
+	protected void checkVersion(E entity, Object version, Class<?> versionType){
+		if(entity != null){
+			Member member = getEntityManager().getMetamodel().entity(type).getVersion(versionType).getJavaMember();
+			Object persistentVersion = null;
+			try{
+				if(member instanceof Field){
+					Field versionField = (Field) member;
+					versionField.setAccessible(true);
+					persistentVersion = versionField.get(entity);
+				}else{
+					Method versionMethod = (Method) member;
+					persistentVersion = versionMethod.invoke(entity);
+				}
+				if(!persistentVersion.equals(version)){
+					throw new OptimisticLockException(entity);
+				}
+			}catch(IllegalAccessException | InvocationTargetException e){
+				throw new RuntimeException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Lookup all existing entities of entity class {@code <E>}. Above the
+	 * {@link #getResultLimit()} with the {@link ResultLimit.Policy#STREAM}
+	 * policy, the list is a read-only {@link StreamResultList}, read forward
+	 * once in pages ordered by id.
+	 * 
+	 * @return List of entities, empty if none found.
+	 */
+	public List<E> findAll() {
+		// Pela JPQL do repositório, que obtém o EntityManager de leitura a
+		// cada execução, inclusive nas páginas da política STREAM.
+		return loaded(readQuery().from(EntityUtil.getEntityName(getEntityManager(), type)).comment(comment("findAll")).getResultList(type));
+	}
+
+	/**
+	 * Lookup a range of existing entities of entity class {@code <E>} with
+	 * support for pagination.
+	 * 
+	 * @param start
+	 *            The starting position.
+	 * @param max
+	 *            The maximum number of results to return
+	 * @return List of entities, empty if none found.
+	 */
+	public List<E> findAll(int start, int max) {
+		EntityManager entityManager = acquireReader();
+		try {
+			JPQL jpql = new JPQL(entityManager).from(EntityUtil.getEntityName(entityManager, type)).comment(comment("findAll"));
+			if (start > 0)
+				jpql.firstResult(start);
+			if (max > 0)
+				jpql.maxResults(max);
+			return loaded(entityManager, jpql.getResultList(type));
+		} finally {
+			releaseReader(entityManager);
+		}
+	}
+
+	/**
+	 * Lookup the entities with the given primitive ids, with chunked
+	 * {@code IN} queries (see {@link #getBatchSize()}). Ids that do not
+	 * exist are ignored and the order is not preserved.
+	 * 
+	 * @param ids
+	 *            Primary keys.
+	 * @return List of entities, empty if none found.
+	 */
+	public List<E> findByIds(long[] ids) {
+		EntityManager entityManager = acquireReader();
+		try {
+			return loaded(entityManager, EntityUtil.findByIds(entityManager, type, ids, getBatchSize(), commentHint("findByIds")));
+		} finally {
+			releaseReader(entityManager);
+		}
+	}
+
+	/**
+	 * Lookup the entities with the given primitive ids, with chunked
+	 * {@code IN} queries (see {@link #getBatchSize()}). Ids that do not
+	 * exist are ignored and the order is not preserved.
+	 * 
+	 * @param ids
+	 *            Primary keys.
+	 * @return List of entities, empty if none found.
+	 */
+	public List<E> findByIds(int[] ids) {
+		EntityManager entityManager = acquireReader();
+		try {
+			return loaded(entityManager, EntityUtil.findByIds(entityManager, type, ids, getBatchSize(), commentHint("findByIds")));
+		} finally {
+			releaseReader(entityManager);
+		}
+	}
+
+	/**
+	 * Remove the entities with the given primitive ids, loading them in chunks
+	 * (see {@link #getBatchSize()}) so cascades and callbacks still apply.
+	 * Ids that do not exist are ignored.
+	 * 
+	 * @param ids
+	 *            Primary keys.
+	 */
+	public void removeByIds(long[] ids) {
+		int batchSize = getBatchSize();
+		for (int from = 0; from < ids.length; from += batchSize) {
+			long[] chunk = Arrays.copyOfRange(ids, from, Math.min(ids.length, from + batchSize));
+			remove(loaded(EntityUtil.findByIds(getEntityManager(), type, chunk, batchSize, commentHint("removeByIds"))));
+		}
+	}
+
+	/**
+	 * Remove the entities with the given primitive ids, loading them in chunks
+	 * (see {@link #getBatchSize()}) so cascades and callbacks still apply.
+	 * Ids that do not exist are ignored.
+	 * 
+	 * @param ids
+	 *            Primary keys.
+	 */
+	public void removeByIds(int[] ids) {
+		int batchSize = getBatchSize();
+		for (int from = 0; from < ids.length; from += batchSize) {
+			int[] chunk = Arrays.copyOfRange(ids, from, Math.min(ids.length, from + batchSize));
+			remove(loaded(EntityUtil.findByIds(getEntityManager(), type, chunk, batchSize, commentHint("removeByIds"))));
+		}
+	}
+
+	/**
+	 * Check in bulk that the given numeric versions are the current versions
+	 * of the entities, reading only ids and versions in chunked {@code IN}
+	 * queries.
+	 * 
+	 * @param ids
+	 *            Primary keys.
+	 * @param versions
+	 *            Expected version of each id, at the same position.
+	 * @throws OptimisticLockException
+	 *             if a version differs or an entity no longer exists
+	 */
+	public void checkVersions(long[] ids, long[] versions) {
+		EntityUtil.checkVersions(getEntityManager(), type, ids, versions, getBatchSize());
+	}
+
+	/**
+	 * Select and lock up to {@code batchSize} entities matching the given
+	 * query, skipping the rows already locked by other transactions with
+	 * {@code SKIP LOCKED}. Concurrent workers calling this method on a job
+	 * table get disjoint batches without blocking each other. The query always
+	 * runs on the primary {@link #getEntityManager()}, and the locks are held
+	 * until the current transaction ends, so a transaction must be active.
+	 * <p>
+	 * {@code SKIP LOCKED} requires Hibernate 5.2+ and a dialect that supports
+	 * it (see {@link JPQL#SKIP_LOCKED}). Otherwise the rows are locked with a
+	 * plain {@code FOR UPDATE}: workers still get disjoint batches, but each
+	 * one waits for the transaction holding the previous batch to end, and
+	 * then gets only the rows that still match the query, so the query must
+	 * leave out completed entities (e.g. by status).
+	 * 
+	 * @param query
+	 *            Query selecting the candidate entities, ideally ordered.
+	 * @param batchSize
+	 *            Maximum number of entities to claim.
+	 * @param lockMode
+	 *            Lock mode, usually {@link LockModeType#PESSIMISTIC_WRITE}.
+	 * @return Claimed entities, empty if none available.
+	 */
+	public List<E> claim(JPQL query, int batchSize, LockModeType lockMode) {
+		if (EntityUtil.supportsSkipLocked(getEntityManager()))
+			return claim(query, batchSize, lockMode, JPQL.SKIP_LOCKED);
+		return loaded(query.copy(getEntityManager()).maxResults(batchSize).lock(lockMode).getResultList(type));
+	}
+
+	/**
+	 * Same as {@link EntityRepositorySupport#claim(JPQL, int, LockModeType)} with the
+	 * given lock timeout in milliseconds, or {@link JPQL#NO_WAIT} or
+	 * {@link JPQL#SKIP_LOCKED}.
+	 * 
+	 * @param query
+	 *            Query selecting the candidate entities, ideally ordered.
+	 * @param batchSize
+	 *            Maximum number of entities to claim.
+	 * @param lockMode
+	 *            Lock mode, usually {@link LockModeType#PESSIMISTIC_WRITE}.
+	 * @param lockTimeout
+	 *            Lock timeout in milliseconds.
+	 * @return Claimed entities, empty if none available.
+	 */
+	public List<E> claim(JPQL query, int batchSize, LockModeType lockMode, int lockTimeout) {
+		return loaded(query.copy(getEntityManager()).maxResults(batchSize).lock(lockMode, lockTimeout).getResultList(type));
+	}
+
+	/**
+	 * Complete the processing of claimed entities: their changes are flushed
+	 * while the rows are still locked and the entities are detached, so the
+	 * persistence context does not grow with each batch. The locks are
+	 * released when the transaction commits.
+	 * 
+	 * @param entities
+	 *            Claimed entities.
+	 */
+	public void complete(Collection<E> entities) {
+		flush();
+		detach(entities);
+	}
+
+	/**
+	 * Give up claimed entities without writing their pending changes, by
+	 * detaching them. The rows stay locked until the current transaction
+	 * ends; roll it back to release them immediately.
+	 * 
+	 * @param entities
+	 *            Claimed entities.
+	 */
+	public void release(Collection<E> entities) {
+		detach(entities);
+	}
+
+	/**
+	 * Find entities by the given named query.
+	 * 
+	 * @param namedQuery
+	 *            Named Query
+	 * @param params
+	 *            Named Query parameters
+	 * @return List of entities, empty if none found.
+	 */
+	public List<E> findByNamedQuery(String namedQuery, Map<String, Object> params) {
+		EntityManager entityManager = acquireReader();
+		try {
+			TypedQuery<E> query = entityManager.createNamedQuery(namedQuery, type);
+			if (params != null) {
+				for (String paramName : params.keySet()) {
+					query.setParameter(paramName, params.get(paramName));
+				}
+			}
+			Deadline.applyTo(query, null);
+			QueryComment.applyTo(query, comment("findByNamedQuery"));
+			try {
+				return loaded(entityManager, query.getResultList());
+			} catch (QueryTimeoutException e) {
+				throw Deadline.timedOut(e);
+			}
+		} finally {
+			releaseReader(entityManager);
+		}
+	}
+
+	/**
+	 * Find any entity by the given named query.
+	 * 
+	 * @param namedQuery
+	 *            Named Query
+	 * @param params
+	 *            Named Query parameters
+	 * @return Entity
+	 */
+	public E findAnyByNamedQuery(String namedQuery, Map<String, Object> params) {
+		EntityManager entityManager = acquireReader();
+		try {
+			TypedQuery<E> query = entityManager.createNamedQuery(namedQuery, type);
+			if (params != null) {
+				for (String paramName : params.keySet()) {
+					query.setParameter(paramName, params.get(paramName));
+				}
+			}
+			Deadline.applyTo(query, null);
+			QueryComment.applyTo(query, comment("findAnyByNamedQuery"));
+
+			List<E> result;
+			try {
+				result = loaded(entityManager, query.getResultList());
+			} catch (QueryTimeoutException e) {
+				throw Deadline.timedOut(e);
+			}
+			if (result != null && !result.isEmpty()) {
+				return result.get(0);
+			} else {
+				return null;
+			}
+		} finally {
+			releaseReader(entityManager);
+		}
+	}
+
+	/**
+	 * Find single entity by the given named query.
+	 * 
+	 * @param namedQuery
+	 *            Named Query
+	 * @param params
+	 *            Named Query parameters
+	 * @return Entity
+	 */
+	public E findUniqueByNamedQuery(String namedQuery, Map<String, Object> params) {
+		EntityManager entityManager = acquireReader();
+		try {
+			TypedQuery<E> query = entityManager.createNamedQuery(namedQuery, type);
+			if (params != null) {
+				for (String paramName : params.keySet()) {
+					query.setParameter(paramName, params.get(paramName));
+				}
+			}
+			Deadline.applyTo(query, null);
+			QueryComment.applyTo(query, comment("findUniqueByNamedQuery"));
+			try {
+				return loaded(entityManager, query.getSingleResult());
+			} catch (QueryTimeoutException e) {
+				throw Deadline.timedOut(e);
+			}
+		} finally {
+			releaseReader(entityManager);
+		}
+	}
+
+	// ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+	// PRIVATE METHODS
+	// ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+
+	private String comment(String method) {
+		return QueryComment.getComment(getClass(), method);
+	}
+
+	private Map<String, Object> commentHint(String method) {
+		String comment = comment(method);
+		return comment != null ? Collections.<String, Object> singletonMap(QueryComment.COMMENT_HINT, comment) : Collections.<String, Object> emptyMap();
+	}
+
+	private JPQL readQuery() {
+		JPQL query = new JPQL(getEntityManager()).limit(getResultLimit());
+		ReadRouter router = getReadRouter();
+		return router != null ? query.readFrom(router.reader(getEntityManager())) : query;
+	}
+
+	private EntityManager acquireReader() {
+		ReadRouter router = getReadRouter();
+		return router != null ? router.acquire(getEntityManager()) : getEntityManager();
+	}
+
+	private void releaseReader(EntityManager entityManager) {
+		ReadRouter router = getReadRouter();
+		if (router != null)
+			router.release(entityManager);
+	}
+
+	private void written() {
+		ReadRouter router = getReadRouter();
+		if (router != null)
+			router.written(getEntityManager());
+	}
+
+	private <T> T loaded(T entity) {
+		return loaded(getEntityManager(), entity);
+	}
+
+	private <T extends Collection<?>> T loaded(T entities) {
+		return loaded(getEntityManager(), entities);
+	}
+
+	private <T> T loaded(EntityManager entityManager, T entity) {
+		if (entity != null)
+			loaded(entityManager, Collections.singletonList(entity));
+		return entity;
+	}
+
+	private <T extends Collection<?>> T loaded(EntityManager entityManager, T entities) {
+		// A lista paginada do ResultLimit carrega as entidades sob demanda e
+		// não pode ser contabilizada sem ser percorrida.
+		PersistenceContextGuard guard = getPersistenceContextGuard();
+		if (guard != null && !(entities instanceof LazyResultList) && !(entities instanceof StreamResultList))
+			guard.loaded(entityManager, entities);
+		return entities;
+	}
+
+	private <T> T saved(T entity) {
+		saved(Collections.singletonList(entity));
+		return entity;
+	}
+
+	private <T extends Collection<?>> T saved(T entities) {
+		written();
+		for (Object entity : entities)
+			invalidate(entity);
+		PersistenceContextGuard guard = getPersistenceContextGuard();
+		if (guard != null)
+			guard.saved(getEntityManager(), entities);
+		return entities;
+	}
+
+	private void invalidate(Object entity) {
+		EntityCache cache = getEntityCache();
+		if (cache != null)
+			cache.invalidate(getEntityManager(), entity);
+	}
+
+}
@@ -0,0 +1,264 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.repository;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TransactionRequiredException;
+
+import br.com.surittec.surijpa.util.EntityUtil;
+import br.com.surittec.surijpa.util.MetricsUtil;
+
+/**
+ * Limita a quantidade de entidades que os repositórios mantêm no contexto de
+ * persistência. Conta as entidades carregadas ou salvas por contexto e, ao
+ * ultrapassar o limite configurado, aplica a {@link Policy} escolhida,
+ * registrando um aviso e a métrica {@link #METRIC_FIRED}.
+ *
+ * Apenas entidades são contabilizadas, uma vez cada (por tipo e chave
+ * primária): valores escalares e linhas <code>Object[]</code> de projeções são
+ * ignorados, assim como novas cargas de uma entidade já contabilizada.
+ *
+ * O uso é opcional: basta o repositório retornar uma instância em
+ * <code>getPersistenceContextGuard()</code>.
+ */
+public class PersistenceContextGuard {
+
+	public static final String METRIC_FIRED = "surijpa.guard.fired";
+
+	private static final Logger LOGGER = Logger.getLogger(PersistenceContextGuard.class.getName());
+
+	/**
+	 * Ação executada quando o limite é ultrapassado.
+	 */
+	public enum Policy {
+
+		/**
+		 * Sincroniza as alterações pendentes com <code>flush</code> e limpa
+		 * todo o contexto de persistência com <code>clear</code>.
+		 */
+		FLUSH_AND_CLEAR,
+
+		/**
+		 * Desanexa apenas as entidades da operação que ultrapassou o limite
+		 * (e das seguintes), preservando as demais. Entidades salvas são
+		 * sincronizadas com <code>flush</code> antes de serem desanexadas.
+		 */
+		DETACH
+
+	}
+
+	private final int threshold;
+	private final Policy policy;
+	private final Map<Object, Set<Object>> tracked = Collections.synchronizedMap(new WeakHashMap<Object, Set<Object>>());
+
+	// ----------------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------------
+
+	public PersistenceContextGuard(int threshold, Policy policy) {
+		if (threshold <= 0)
+			throw new IllegalArgumentException("threshold must be positive");
+		this.threshold = threshold;
+		this.policy = policy;
+	}
+
+	// ----------------------------------------------------------------------------
+	// PUBLIC
+	// ----------------------------------------------------------------------------
+
+	/**
+	 * Contabiliza entidades carregadas no contexto de persistência.
+	 *
+	 * @param entityManager
+	 * @param entities
+	 */
+	public void loaded(EntityManager entityManager, Collection<?> entities) {
+		track(entityManager, entities, false);
+	}
+
+	/**
+	 * Contabiliza entidades salvas no contexto de persistência.
+	 *
+	 * @param entityManager
+	 * @param entities
+	 */
+	public void saved(EntityManager entityManager, Collection<?> entities) {
+		track(entityManager, entities, true);
+	}
+
+	/**
+	 * Retorna a quantidade de entidades contabilizadas no contexto atual.
+	 *
+	 * @param entityManager
+	 * @return
+	 */
+	public int getCount(EntityManager entityManager) {
+		synchronized (tracked) {
+			Set<Object> keys = tracked.get(getContext(entityManager));
+			return keys != null ? keys.size() : 0;
+		}
+	}
+
+	/**
+	 * Zera a contagem do contexto atual, por exemplo após um
+	 * <code>clear</code> feito fora do repositório.
+	 *
+	 * @param entityManager
+	 */
+	public void reset(EntityManager entityManager) {
+		tracked.remove(getContext(entityManager));
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	// ----------------------------------------------------------------------------
+	// PRIVATE
+	// ----------------------------------------------------------------------------
+
+	private void track(EntityManager entityManager, Collection<?> results, boolean written) {
+		Map<Object, Object> entities = getEntities(entityManager, results);
+		if (entities.isEmpty())
+			return;
+
+		Object context = getContext(entityManager);
+		int total;
+		synchronized (tracked) {
+			Set<Object> keys = tracked.get(context);
+			if (keys == null) {
+				keys = new HashSet<Object>();
+				tracked.put(context, keys);
+			}
+			keys.addAll(entities.keySet());
+			total = keys.size();
+		}
+
+		if (total > threshold)
+			fire(entityManager, context, entities, written, total);
+	}
+
+	private void fire(EntityManager entityManager, Object context, Map<Object, Object> entities, boolean written, int total) {
+		LOGGER.warning(String.format("Persistence context holds %d entities (threshold %d), applying %s", total, threshold, policy));
+		MetricsUtil.increment(METRIC_FIRED);
+
+		if (policy == Policy.FLUSH_AND_CLEAR) {
+			try {
+				entityManager.flush();
+				entityManager.clear();
+				tracked.remove(context);
+				return;
+			} catch (TransactionRequiredException e) {
+				// Sem transação nada pode estar pendente de flush com segurança,
+				// então apenas desanexa o resultado da operação atual.
+				LOGGER.warning("No active transaction to flush, detaching current results instead");
+			}
+		} else if (written) {
+			entityManager.flush();
+		}
+
+		for (Object entity : entities.values())
+			entityManager.detach(entity);
+
+		synchronized (tracked) {
+			Set<Object> keys = tracked.get(context);
+			if (keys != null)
+				keys.removeAll(entities.keySet());
+		}
+	}
+
+	/**
+	 * Retorna as entidades do resultado indexadas por tipo e chave primária,
+	 * descartando os demais valores e as repetições.
+	 */
+	private Map<Object, Object> getEntities(EntityManager entityManager, Collection<?> results) {
+		Map<Object, Object> entities = new LinkedHashMap<Object, Object>();
+		Map<Class<?>, Class<?>> entityClasses = new HashMap<Class<?>, Class<?>>();
+		for (Object result : results) {
+			if (result == null || result instanceof Object[])
+				continue;
+
+			Class<?> entityClass;
+			if (entityClasses.containsKey(result.getClass())) {
+				entityClass = entityClasses.get(result.getClass());
+			} else {
+				entityClass = EntityUtil.getEntityClass(entityManager, result);
+				entityClasses.put(result.getClass(), entityClass);
+			}
+			if (entityClass == null)
+				continue;
+
+			Object id = EntityUtil.getIdentifier(entityManager, result);
+			entities.put(id != null ? Arrays.asList(entityClass, id) : new IdentityKey(result), result);
+		}
+		return entities;
+	}
+
+	private Object getContext(EntityManager entityManager) {
+		// O delegate identifica o contexto de persistência corrente mesmo
+		// quando o EntityManager é um proxy gerenciado pelo container.
+		try {
+			Object delegate = entityManager.getDelegate();
+			return delegate != null ? delegate : entityManager;
+		} catch (RuntimeException e) {
+			return entityManager;
+		}
+	}
+
+	/**
+	 * Chave de entidades ainda sem chave primária, pela identidade.
+	 */
+	private static final class IdentityKey {
+
+		private final Object entity;
+
+		private IdentityKey(Object entity) {
+			this.entity = entity;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(entity);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof IdentityKey && ((IdentityKey) obj).entity == entity;
+		}
+
+	}
+
+}
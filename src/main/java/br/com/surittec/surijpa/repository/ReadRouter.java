@@ -0,0 +1,298 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.repository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import br.com.surittec.surijpa.criteria.EntityManagerProvider;
+import br.com.surittec.surijpa.util.MetricsUtil;
+
+/**
+ * Roteia as leituras dos repositórios para réplicas de leitura, mantendo as
+ * escritas no EntityManager principal. São roteados <code>findBy</code>,
+ * <code>findAll</code>, a família <code>findByNamedQuery</code> e as
+ * consultas criadas por <code>select</code>, estas no momento em que são
+ * executadas.
+ *
+ * Cada leitura roteada usa um EntityManager próprio, criado a partir do
+ * EntityManagerFactory da réplica e fechado ao final da leitura; as entidades
+ * lidas de uma réplica são devolvidas desanexadas, devem ser alteradas via
+ * <code>save</code> (merge) e suas associações lazy devem ser carregadas na
+ * própria consulta (fetch join).
+ *
+ * Enquanto o EntityManager principal tiver uma transação ativa (RESOURCE_LOCAL)
+ * ou estiver associado a uma transação JTA (JPA 2.1), as leituras usam o
+ * principal, de forma que a transação enxerga as próprias alterações e não
+ * sofre com o atraso de replicação. Quando isso não pode ser verificado (JTA
+ * com JPA 2.0), após uma escrita pelo repositório (<code>save</code>,
+ * <code>remove</code>, <code>flush</code>, <code>update</code>/
+ * <code>delete</code> em massa) as leituras do mesmo contexto de persistência
+ * passam a usar o principal. O contexto é identificado pelo delegate do
+ * EntityManager principal, que muda a cada transação em EntityManagers
+ * gerenciados pelo container.
+ *
+ * O uso é opcional: basta o repositório retornar uma instância em
+ * <code>getReadRouter()</code>.
+ */
+public class ReadRouter {
+
+	public static final String METRIC_PRIMARY = "surijpa.router.primary";
+	public static final String METRIC_REPLICA = "surijpa.router.replica";
+
+	/**
+	 * Política de escolha da réplica.
+	 */
+	public enum Policy {
+
+		/**
+		 * Alterna entre as réplicas a cada leitura.
+		 */
+		ROUND_ROBIN,
+
+		/**
+		 * Escolhe a réplica com menos leituras em andamento.
+		 */
+		LEAST_LOADED
+
+	}
+
+	private final Policy policy;
+	private final List<EntityManagerFactory> replicas;
+	private final AtomicInteger[] loads;
+	private final AtomicInteger next = new AtomicInteger();
+	private final Map<EntityManager, Integer> acquired = Collections.synchronizedMap(new IdentityHashMap<EntityManager, Integer>());
+	private final Map<Object, Boolean> written = Collections.synchronizedMap(new WeakHashMap<Object, Boolean>());
+	private volatile boolean sticky = true;
+
+	// ----------------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------------
+
+	public ReadRouter(Policy policy, EntityManagerFactory... replicas) {
+		this(policy, Arrays.asList(replicas));
+	}
+
+	public ReadRouter(Policy policy, List<EntityManagerFactory> replicas) {
+		this.policy = policy;
+		this.replicas = Collections.unmodifiableList(new ArrayList<EntityManagerFactory>(replicas));
+		this.loads = new AtomicInteger[replicas.size()];
+		for (int i = 0; i < loads.length; i++)
+			loads[i] = new AtomicInteger();
+	}
+
+	// ----------------------------------------------------------------------------
+	// PUBLIC
+	// ----------------------------------------------------------------------------
+
+	/**
+	 * Define se as leituras passam a usar o principal após uma escrita no mesmo
+	 * contexto de persistência (padrão <code>true</code>).
+	 * 
+	 * @param sticky
+	 * @return
+	 */
+	public ReadRouter sticky(boolean sticky) {
+		this.sticky = sticky;
+		return this;
+	}
+
+	/**
+	 * Escolhe o EntityManager para uma leitura, que deve ser devolvido com
+	 * {@link #release(EntityManager)} ao final.
+	 * 
+	 * @param primary
+	 * @return EntityManager novo de uma réplica, ou o próprio principal
+	 */
+	public EntityManager acquire(EntityManager primary) {
+		if (replicas.isEmpty() || isInTransaction(primary) || isSticky(primary)) {
+			MetricsUtil.increment(METRIC_PRIMARY);
+			return primary;
+		}
+
+		int index;
+		if (policy == Policy.LEAST_LOADED) {
+			int start = (next.getAndIncrement() & Integer.MAX_VALUE) % loads.length;
+			index = start;
+			for (int i = 1; i < loads.length; i++) {
+				int candidate = (start + i) % loads.length;
+				if (loads[candidate].get() < loads[index].get())
+					index = candidate;
+			}
+		} else {
+			index = (next.getAndIncrement() & Integer.MAX_VALUE) % loads.length;
+		}
+
+		EntityManager replica = replicas.get(index).createEntityManager();
+		loads[index].incrementAndGet();
+		acquired.put(replica, index);
+		MetricsUtil.increment(METRIC_REPLICA);
+		return replica;
+	}
+
+	/**
+	 * Devolve o EntityManager obtido em {@link #acquire(EntityManager)},
+	 * fechando-o se for de uma réplica.
+	 * 
+	 * @param entityManager
+	 */
+	public void release(EntityManager entityManager) {
+		Integer index = acquired.remove(entityManager);
+		if (index == null)
+			return;
+		loads[index].decrementAndGet();
+		entityManager.close();
+	}
+
+	/**
+	 * Retorna o fornecedor de EntityManagers de leitura para as consultas da
+	 * {@link br.com.surittec.surijpa.criteria.JPQL} criadas sobre o principal
+	 * (ver {@link br.com.surittec.surijpa.criteria.JPQL#readFrom(EntityManagerProvider)}).
+	 * 
+	 * @param primary
+	 * @return
+	 */
+	public EntityManagerProvider reader(final EntityManager primary) {
+		return new EntityManagerProvider() {
+			@Override
+			public EntityManager acquire() {
+				return ReadRouter.this.acquire(primary);
+			}
+
+			@Override
+			public void release(EntityManager entityManager) {
+				ReadRouter.this.release(entityManager);
+			}
+		};
+	}
+	/**
+	 * Registra uma escrita no contexto de persistência do principal.
+	 * 
+	 * @param primary
+	 */
+	public void written(EntityManager primary) {
+		if (sticky && !replicas.isEmpty())
+			written.put(getContext(primary), Boolean.TRUE);
+	}
+
+	/**
+	 * Informa se as leituras do contexto atual estão fixadas no principal.
+	 * 
+	 * @param primary
+	 * @return
+	 */
+	public boolean isSticky(EntityManager primary) {
+		if (!sticky || written.isEmpty())
+			return false;
+
+		Object context = getContext(primary);
+		if (!written.containsKey(context))
+			return false;
+		if (isResourceLocalInactive(primary)) {
+			written.remove(context);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Libera as leituras do contexto atual para as réplicas, por exemplo após
+	 * o commit de um EntityManager estendido.
+	 * 
+	 * @param primary
+	 */
+	public void reset(EntityManager primary) {
+		written.remove(getContext(primary));
+	}
+
+	/**
+	 * Retorna a quantidade de leituras em andamento na réplica.
+	 * 
+	 * @param replica
+	 *            posição da réplica
+	 * @return
+	 */
+	public int getLoad(int replica) {
+		return loads[replica].get();
+	}
+
+	public List<EntityManagerFactory> getReplicas() {
+		return replicas;
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	// ----------------------------------------------------------------------------
+	// PRIVATE
+	// ----------------------------------------------------------------------------
+
+	/**
+	 * Verifica se o principal tem uma transação RESOURCE_LOCAL ativa ou está
+	 * associado a uma transação JTA. <code>isJoinedToTransaction</code> é do
+	 * JPA 2.1 e por isso chamado por reflexão.
+	 */
+	private boolean isInTransaction(EntityManager entityManager) {
+		try {
+			if (Boolean.TRUE.equals(entityManager.getClass().getMethod("isJoinedToTransaction").invoke(entityManager)))
+				return true;
+		} catch (NoSuchMethodException e) {
+			// JPA 2.0
+		} catch (Exception e) {
+			// EntityManager fechado ou indisponível
+		}
+		try {
+			return entityManager.getTransaction().isActive();
+		} catch (IllegalStateException e) {
+			// JTA: a transação é controlada pelo container
+			return false;
+		}
+	}
+
+	private boolean isResourceLocalInactive(EntityManager entityManager) {
+		try {
+			return !entityManager.getTransaction().isActive();
+		} catch (IllegalStateException e) {
+			// JTA: a transação é controlada pelo container
+			return false;
+		}
+	}
+
+	private Object getContext(EntityManager entityManager) {
+		try {
+			Object delegate = entityManager.getDelegate();
+			return delegate != null ? delegate : entityManager;
+		} catch (RuntimeException e) {
+			return entityManager;
+		}
+	}
+
+}
@@ -0,0 +1,442 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.repository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import br.com.surittec.surijpa.util.EntityUtil;
+import br.com.surittec.surijpa.util.MetricsUtil;
+
+/**
+ * Réplica em memória de uma tabela de referência (cidades, categorias,
+ * alíquotas), lida em quase toda requisição e alterada raramente. A entidade
+ * é carregada por completo em um snapshot imutável de instâncias desanexadas,
+ * com índices hash e ordenados nos atributos declarados, e as consultas por
+ * chave, igualdade e faixa são respondidas sem acessar o banco.
+ *
+ * <pre>
+ * ReferenceData&lt;Cidade&gt; cidades = new ReferenceData&lt;Cidade&gt;(entityManagerFactory, Cidade.class)
+ * 		.index("estado.sigla", "codigoIbge")
+ * 		.sortedIndex("populacao")
+ * 		.fetch("estado.regiao")
+ * 		.versionQuery("select max(c.alteracao) from Cidade c")
+ * 		.poll(5, TimeUnit.MINUTES);
+ * List&lt;Cidade&gt; doParana = cidades.findBy("estado.sigla", "PR");
+ * </pre>
+ *
+ * O snapshot é carregado no primeiro acesso e substituído de forma atômica em
+ * {@link #reload()} ou, com {@link #poll(long, TimeUnit)}, quando o valor da
+ * query de versão muda: leituras em andamento continuam usando o snapshot
+ * anterior. As associações lazy dos caminhos indexados e dos informados em
+ * {@link #fetch(String...)} são inicializadas na carga; as demais não estarão
+ * disponíveis nas instâncias desanexadas.
+ * <p>
+ * As instâncias retornadas são as mesmas para todas as threads e não são
+ * copiadas: elas não devem ser alteradas, nem anexadas a um EntityManager com
+ * <code>merge</code>. Para alterar um registro, busque-o pelo repositório e
+ * chame {@link #reload()} depois da gravação.
+ */
+public class ReferenceData<E> {
+
+	public static final String METRIC_RELOAD = "surijpa.refdata.reload";
+
+	private static final Logger LOGGER = Logger.getLogger(ReferenceData.class.getName());
+
+	private final EntityManagerFactory entityManagerFactory;
+	private final Class<E> type;
+	private final Set<String> indexes = new LinkedHashSet<String>();
+	private final Set<String> sortedIndexes = new LinkedHashSet<String>();
+	private final Set<String> fetches = new LinkedHashSet<String>();
+	private final AtomicReference<Snapshot<E>> snapshot = new AtomicReference<Snapshot<E>>();
+	private String versionQuery;
+	private ScheduledExecutorService poller;
+
+	// ----------------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------------
+
+	public ReferenceData(EntityManagerFactory entityManagerFactory, Class<E> type) {
+		this.entityManagerFactory = entityManagerFactory;
+		this.type = type;
+	}
+
+	// ----------------------------------------------------------------------------
+	// PUBLIC
+	// ----------------------------------------------------------------------------
+
+	/**
+	 * Cria índices hash, para consultas por igualdade, nos atributos
+	 * informados (aceita caminhos como <code>estado.sigla</code>).
+	 * 
+	 * @param attributes
+	 * @return
+	 */
+	public synchronized ReferenceData<E> index(String... attributes) {
+		indexes.addAll(Arrays.asList(attributes));
+		snapshot.set(null);
+		return this;
+	}
+
+	/**
+	 * Cria índices ordenados, para consultas por igualdade e por faixa, nos
+	 * atributos informados, cujos valores devem ser {@link Comparable}.
+	 * 
+	 * @param attributes
+	 * @return
+	 */
+	public synchronized ReferenceData<E> sortedIndex(String... attributes) {
+		sortedIndexes.addAll(Arrays.asList(attributes));
+		snapshot.set(null);
+		return this;
+	}
+
+	/**
+	 * Inicializa, na carga do snapshot, as associações lazy dos caminhos
+	 * informados (como <code>estado.regiao</code>), para que possam ser
+	 * acessadas nas instâncias desanexadas.
+	 * 
+	 * @param paths
+	 * @return
+	 */
+	public synchronized ReferenceData<E> fetch(String... paths) {
+		fetches.addAll(Arrays.asList(paths));
+		snapshot.set(null);
+		return this;
+	}
+
+	/**
+	 * Query JPQL que retorna um único valor que muda sempre que a tabela muda,
+	 * como <code>max</code> de uma data de alteração ou de uma versão. Usada
+	 * por {@link #poll(long, TimeUnit)}.
+	 * 
+	 * @param versionQuery
+	 * @return
+	 */
+	public synchronized ReferenceData<E> versionQuery(String versionQuery) {
+		this.versionQuery = versionQuery;
+		return this;
+	}
+
+	/**
+	 * Verifica periodicamente a query de versão e recarrega o snapshot quando
+	 * o valor muda. Sem query de versão, recarrega a cada intervalo.
+	 * 
+	 * @param interval
+	 * @param unit
+	 * @return
+	 */
+	public synchronized ReferenceData<E> poll(long interval, TimeUnit unit) {
+		if (poller != null)
+			poller.shutdownNow();
+		poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "surijpa-refdata-" + type.getSimpleName());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		poller.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					reloadIfChanged();
+				} catch (RuntimeException e) {
+					LOGGER.log(Level.WARNING, String.format("Reference data reload of %s failed", type.getName()), e);
+				}
+			}
+		}, interval, interval, unit);
+		return this;
+	}
+
+	/**
+	 * Carrega um novo snapshot e o substitui de forma atômica.
+	 */
+	public void reload() {
+		EntityManager entityManager = entityManagerFactory.createEntityManager();
+		try {
+			snapshot.set(load(entityManager, getVersion(entityManager)));
+		} finally {
+			entityManager.close();
+		}
+	}
+
+	/**
+	 * Recarrega o snapshot apenas se a query de versão retornar um valor
+	 * diferente do snapshot atual.
+	 * 
+	 * @return se o snapshot foi recarregado
+	 */
+	public boolean reloadIfChanged() {
+		EntityManager entityManager = entityManagerFactory.createEntityManager();
+		try {
+			Object version = getVersion(entityManager);
+			Snapshot<E> current = snapshot.get();
+			if (current != null && versionQuery != null && equals(version, current.version))
+				return false;
+			snapshot.set(load(entityManager, version));
+			return true;
+		} finally {
+			entityManager.close();
+		}
+	}
+
+	/**
+	 * Busca a entidade pela chave primária.
+	 * 
+	 * @param primaryKey
+	 * @return
+	 */
+	public E findBy(Object primaryKey) {
+		return get().byId.get(primaryKey);
+	}
+
+	/**
+	 * Retorna todas as entidades.
+	 * 
+	 * @return
+	 */
+	public List<E> findAll() {
+		return get().all;
+	}
+
+	/**
+	 * Busca as entidades cujo atributo é igual ao valor informado, pelo índice
+	 * do atributo ou, sem índice, percorrendo todas as entidades.
+	 * 
+	 * @param attribute
+	 * @param value
+	 * @return
+	 */
+	public List<E> findBy(String attribute, Object value) {
+		Snapshot<E> current = get();
+		Map<Object, List<E>> index = current.indexes.get(attribute);
+		if (index == null)
+			index = current.sortedIndexes.get(attribute);
+		if (index != null) {
+			List<E> result = index.get(value);
+			return result != null ? result : Collections.<E> emptyList();
+		}
+
+		List<E> result = new ArrayList<E>();
+		for (E entity : current.all) {
+			if (equals(value, EntityUtil.getProperty(entity, attribute)))
+				result.add(entity);
+		}
+		return Collections.unmodifiableList(result);
+	}
+
+	/**
+	 * Busca a única entidade cujo atributo é igual ao valor informado.
+	 * 
+	 * @param attribute
+	 * @param value
+	 * @return a entidade, ou <code>null</code> se não existir
+	 * @throws IllegalStateException
+	 *             se houver mais de uma
+	 */
+	public E findUniqueBy(String attribute, Object value) {
+		List<E> result = findBy(attribute, value);
+		if (result.size() > 1)
+			throw new IllegalStateException(String.format("%d %s found with %s = %s", result.size(), type.getSimpleName(), attribute, value));
+		return result.isEmpty() ? null : result.get(0);
+	}
+
+	/**
+	 * Busca as entidades cujo atributo está na faixa informada, em ordem
+	 * crescente, pelo índice ordenado do atributo. Limites <code>null</code>
+	 * indicam faixa aberta.
+	 * 
+	 * @param attribute
+	 * @param from
+	 * @param fromInclusive
+	 * @param to
+	 * @param toInclusive
+	 * @return
+	 */
+	public List<E> findRange(String attribute, Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+		NavigableMap<Object, List<E>> index = get().sortedIndexes.get(attribute);
+		if (index == null)
+			throw new IllegalArgumentException(String.format("No sorted index on %s", attribute));
+
+		NavigableMap<Object, List<E>> range = index;
+		if (from != null)
+			range = range.tailMap(from, fromInclusive);
+		if (to != null)
+			range = range.headMap(to, toInclusive);
+
+		List<E> result = new ArrayList<E>();
+		for (List<E> entities : range.values())
+			result.addAll(entities);
+		return Collections.unmodifiableList(result);
+	}
+
+	/**
+	 * Retorna o valor da query de versão do snapshot atual.
+	 * 
+	 * @return
+	 */
+	public Object getVersion() {
+		return get().version;
+	}
+
+	/**
+	 * Retorna o instante (em milissegundos) da carga do snapshot atual.
+	 * 
+	 * @return
+	 */
+	public long getLoadedAt() {
+		return get().loadedAt;
+	}
+
+	/**
+	 * Encerra a verificação periódica.
+	 */
+	public synchronized void close() {
+		if (poller != null) {
+			poller.shutdownNow();
+			poller = null;
+		}
+	}
+
+	// ----------------------------------------------------------------------------
+	// PRIVATE
+	// ----------------------------------------------------------------------------
+
+	private Snapshot<E> get() {
+		Snapshot<E> current = snapshot.get();
+		if (current != null)
+			return current;
+		synchronized (this) {
+			current = snapshot.get();
+			if (current == null) {
+				reload();
+				current = snapshot.get();
+			}
+			return current;
+		}
+	}
+
+	private Object getVersion(EntityManager entityManager) {
+		String query;
+		synchronized (this) {
+			query = versionQuery;
+		}
+		return query != null ? entityManager.createQuery(query).getSingleResult() : null;
+	}
+
+	private Snapshot<E> load(EntityManager entityManager, Object version) {
+		Set<String> hashAttributes;
+		Set<String> sortedAttributes;
+		Set<String> paths = new LinkedHashSet<String>();
+		synchronized (this) {
+			hashAttributes = new LinkedHashSet<String>(indexes);
+			sortedAttributes = new LinkedHashSet<String>(sortedIndexes);
+			paths.addAll(fetches);
+		}
+		paths.addAll(hashAttributes);
+		paths.addAll(sortedAttributes);
+
+		String jpql = String.format("select e from %s e", EntityUtil.getEntityName(entityManager, type));
+		List<E> entities = entityManager.createQuery(jpql, type).getResultList();
+
+		// As associações são inicializadas com o EntityManager aberto, antes
+		// de as instâncias serem compartilhadas desanexadas.
+		Map<Object, E> byId = new HashMap<Object, E>(entities.size() * 2);
+		for (E entity : entities) {
+			byId.put(EntityUtil.getIdentifier(entityManager, entity), entity);
+			for (String path : paths)
+				EntityUtil.initialize(entityManager, entity, path);
+		}
+
+		Map<String, Map<Object, List<E>>> hash = new HashMap<String, Map<Object, List<E>>>();
+		for (String attribute : hashAttributes)
+			hash.put(attribute, index(entities, attribute, new HashMap<Object, List<E>>()));
+		Map<String, NavigableMap<Object, List<E>>> sorted = new HashMap<String, NavigableMap<Object, List<E>>>();
+		for (String attribute : sortedAttributes)
+			sorted.put(attribute, index(entities, attribute, new TreeMap<Object, List<E>>()));
+
+		MetricsUtil.increment(METRIC_RELOAD);
+		LOGGER.fine(String.format("Loaded %d %s into reference data", entities.size(), type.getSimpleName()));
+		return new Snapshot<E>(version, Collections.unmodifiableList(new ArrayList<E>(entities)), byId, hash, sorted);
+	}
+
+	private static <E, M extends Map<Object, List<E>>> M index(List<E> entities, String attribute, M index) {
+		for (E entity : entities) {
+			Object value = EntityUtil.getProperty(entity, attribute);
+			if (value == null)
+				continue;
+			List<E> list = index.get(value);
+			if (list == null) {
+				list = new ArrayList<E>(1);
+				index.put(value, list);
+			}
+			list.add(entity);
+		}
+		for (Map.Entry<Object, List<E>> entry : index.entrySet())
+			entry.setValue(Collections.unmodifiableList(entry.getValue()));
+		return index;
+	}
+
+	private static boolean equals(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	private static final class Snapshot<E> {
+
+		private final Object version;
+		private final long loadedAt = System.currentTimeMillis();
+		private final List<E> all;
+		private final Map<Object, E> byId;
+		private final Map<String, Map<Object, List<E>>> indexes;
+		private final Map<String, NavigableMap<Object, List<E>>> sortedIndexes;
+
+		private Snapshot(Object version, List<E> all, Map<Object, E> byId, Map<String, Map<Object, List<E>>> indexes,
+				Map<String, NavigableMap<Object, List<E>>> sortedIndexes) {
+			this.version = version;
+			this.all = all;
+			this.byId = byId;
+			this.indexes = indexes;
+			this.sortedIndexes = sortedIndexes;
+		}
+
+	}
+
+}
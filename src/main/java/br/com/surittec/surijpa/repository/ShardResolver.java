@@ -0,0 +1,63 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.repository;
+
+import java.math.BigInteger;
+import java.util.UUID;
+
+/**
+ * Define em qual shard fica a chave de particionamento (ex.: o tenant ou o
+ * identificador) de uma entidade.
+ */
+public interface ShardResolver {
+
+	/**
+	 * Distribui as chaves pelo hash, de forma estável enquanto a quantidade de
+	 * shards não mudar. Aceita apenas chaves cujo <code>hashCode</code> é
+	 * definido pelo valor e igual em qualquer JVM: {@link String},
+	 * {@link Long}, {@link Integer}, {@link Short}, {@link Byte},
+	 * {@link BigInteger}, {@link Character} e
+	 * {@link UUID}. Enums, datas e entidades devem ser convertidos
+	 * (ex.: <code>name()</code>) ou usar outro resolver.
+	 */
+	ShardResolver HASH = new ShardResolver() {
+		@Override
+		public int resolve(Object shardKey, int shards) {
+			if (!(shardKey instanceof String || shardKey instanceof Long || shardKey instanceof Integer || shardKey instanceof Short
+					|| shardKey instanceof Byte || shardKey instanceof BigInteger || shardKey instanceof Character
+					|| shardKey instanceof UUID))
+				throw new IllegalArgumentException(String.format("%s has no stable hash code to resolve a shard", shardKey.getClass().getName()));
+			return (shardKey.hashCode() & Integer.MAX_VALUE) % shards;
+		}
+	};
+
+	/**
+	 * Retorna a posição do shard da chave.
+	 * 
+	 * @param shardKey
+	 *            chave de particionamento, nunca <code>null</code>
+	 * @param shards
+	 *            quantidade de shards
+	 * @return posição entre 0 e <code>shards - 1</code>
+	 */
+	int resolve(Object shardKey, int shards);
+
+}
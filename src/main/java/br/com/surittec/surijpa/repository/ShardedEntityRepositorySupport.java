@@ -0,0 +1,296 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.repository;
+
+import java.io.Serializable;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import javax.persistence.EntityManager;
+
+import br.com.surittec.surijpa.criteria.JPQL;
+import br.com.surittec.surijpa.criteria.ScatterGather;
+import br.com.surittec.surijpa.util.Deadline;
+import br.com.surittec.surijpa.util.EntityUtil;
+import br.com.surittec.surijpa.util.QueryComment;
+
+/**
+ * Suporte para classes de persistência de entidades distribuídas em várias
+ * bases (shards). As operações por chave são roteadas para o shard definido
+ * pelo {@link ShardResolver}, e as consultas sem chave de particionamento são
+ * executadas em paralelo em todos os shards, com o resultado combinado por
+ * {@link ScatterGather}.
+ *
+ * Por padrão a chave de particionamento é a chave primária. Quando for outra
+ * (ex.: o tenant), sobrescreva {@link #getShardKey(Object)} e use os métodos
+ * que recebem a chave explicitamente.
+ */
+@SuppressWarnings("unchecked")
+public abstract class ShardedEntityRepositorySupport<E, PK extends Serializable> {
+
+	protected Class<E> type;
+
+	// ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+	// CONSTRUCTORS
+	// ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+
+	/**
+	 * Construtor que ja obtem de forma automatica o tipo do Repository.
+	 */
+	public ShardedEntityRepositorySupport() {
+		Type superclass = getClass().getGenericSuperclass();
+		if (superclass instanceof ParameterizedType) {
+			ParameterizedType parameterizedType = (ParameterizedType) superclass;
+			if (parameterizedType.getActualTypeArguments().length > 0) {
+				type = (Class<E>) parameterizedType.getActualTypeArguments()[0];
+			}
+		}
+	}
+
+	// ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+	// PROTECTED METHODS
+	// ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+
+	/**
+	 * EntityManagers dos shards, sempre na mesma ordem.
+	 * 
+	 * @return
+	 */
+	protected abstract List<EntityManager> getEntityManagers();
+
+	/**
+	 * Estratégia de distribuição das chaves pelos shards.
+	 * 
+	 * @return resolver, por padrão {@link ShardResolver#HASH}
+	 */
+	protected ShardResolver getShardResolver() {
+		return ShardResolver.HASH;
+	}
+
+	/**
+	 * Chave de particionamento da entidade.
+	 * 
+	 * @param entity
+	 * @return chave, por padrão a chave primária
+	 */
+	protected Object getShardKey(E entity) {
+		return EntityUtil.getIdentifier(getEntityManagers().get(0), entity);
+	}
+
+	/**
+	 * Executor das consultas em paralelo. Quando <code>null</code>, cada
+	 * consulta cria um executor temporário com uma thread por shard.
+	 * 
+	 * @return
+	 */
+	protected ExecutorService getExecutor() {
+		return null;
+	}
+
+	/**
+	 * Cria a JPQL support já iniciando o select. A query pode ser executada em
+	 * todos os shards com {@link #getResultList(JPQL, Class)} ou em um shard
+	 * com {@link #getResultList(Object, JPQL, Class)}.
+	 * 
+	 * @param select
+	 * @return
+	 */
+	public JPQL select(String... select) {
+		return new JPQL(getEntityManagers().get(0)).select(Arrays.asList(select));
+	}
+
+	/**
+	 * Cria a JPQL support já iniciando o select
+	 * 
+	 * @param selects
+	 * @return
+	 */
+	public JPQL select(Collection<String> selects) {
+		return new JPQL(getEntityManagers().get(0)).select(selects);
+	}
+
+	// ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+	// PUBLIC METHODS
+	// ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+
+	/**
+	 * Return the EntityManager of the shard holding the given shard key.
+	 * 
+	 * @param shardKey
+	 *            Shard key.
+	 * @return EntityManager of the shard.
+	 */
+	public EntityManager getEntityManager(Object shardKey) {
+		if (shardKey == null)
+			throw new IllegalArgumentException("Shard key cannot be null");
+		List<EntityManager> entityManagers = getEntityManagers();
+		return entityManagers.get(getShardResolver().resolve(shardKey, entityManagers.size()));
+	}
+
+	/**
+	 * Persist (new entity) or merge the given entity on the shard of its
+	 * {@link #getShardKey(Object)}. New entities with generated identifiers
+	 * need a shard key other than the primary key.
+	 * 
+	 * @param entity
+	 *            Entity to save.
+	 * @return Returns the modified entity.
+	 */
+	public E save(E entity) {
+		Object shardKey = getShardKey(entity);
+		if (shardKey == null)
+			throw new IllegalStateException(String.format("Cannot resolve the shard of a %s without shard key", entity.getClass().getName()));
+		EntityManager entityManager = getEntityManager(shardKey);
+		if (EntityUtil.isNew(entityManager, entity)) {
+			entityManager.persist(entity);
+			return entity;
+		}
+		return entityManager.merge(entity);
+	}
+
+	/**
+	 * Remove the given entity from the shard of its
+	 * {@link #getShardKey(Object)}.
+	 * 
+	 * @param entity
+	 *            Entity to remove.
+	 */
+	public void remove(E entity) {
+		EntityManager entityManager = getEntityManager(getShardKey(entity));
+		entityManager.remove(entityManager.contains(entity) ? entity : entityManager.merge(entity));
+	}
+
+	/**
+	 * Entity lookup by primary key. When the primary key is the shard key, only
+	 * its shard is queried; when {@link #getShardKey(Object)} is overridden,
+	 * the shard is unknown and the shards are searched in order until the
+	 * entity is found. Prefer {@link #findBy(Object, Serializable)} in that
+	 * case.
+	 * 
+	 * @param primaryKey
+	 *            DB primary key.
+	 * @return Entity identified by primary or null if it does not exist.
+	 */
+	public E findBy(PK primaryKey) {
+		if (isShardedByPrimaryKey())
+			return findBy(primaryKey, primaryKey);
+		for (EntityManager entityManager : getEntityManagers()) {
+			E entity = entityManager.find(type, primaryKey, Deadline.getHints());
+			if (entity != null)
+				return entity;
+		}
+		return null;
+	}
+
+	/**
+	 * Entity lookup by primary key on the shard of the given shard key.
+	 * 
+	 * @param shardKey
+	 *            Shard key.
+	 * @param primaryKey
+	 *            DB primary key.
+	 * @return Entity identified by primary or null if it does not exist.
+	 */
+	public E findBy(Object shardKey, PK primaryKey) {
+		return getEntityManager(shardKey).find(type, primaryKey, Deadline.getHints());
+	}
+
+	/**
+	 * Lookup all existing entities of entity class {@code <E>} on all shards.
+	 * 
+	 * @return List of entities, empty if none found.
+	 */
+	public List<E> findAll() {
+		EntityManager entityManager = getEntityManagers().get(0);
+		return getResultList(new JPQL(entityManager).from(EntityUtil.getEntityName(entityManager, type)).comment(QueryComment.getComment(getClass(), "findAll")), type);
+	}
+
+	/**
+	 * Execute the query on all shards in parallel and merge the results,
+	 * applying the global ORDER BY, firstResult/maxResults and aggregates (see
+	 * {@link ScatterGather}).
+	 * 
+	 * @param query
+	 *            Query to scatter.
+	 * @param resultType
+	 *            Result type.
+	 * @return Merged results.
+	 */
+	public <T> List<T> getResultList(JPQL query, Class<T> resultType) {
+		return scatter(query).getResultList(resultType);
+	}
+
+	/**
+	 * Execute the query only on the shard of the given shard key.
+	 * 
+	 * @param shardKey
+	 *            Shard key.
+	 * @param query
+	 *            Query to execute.
+	 * @param resultType
+	 *            Result type.
+	 * @return Results of the shard.
+	 */
+	public <T> List<T> getResultList(Object shardKey, JPQL query, Class<T> resultType) {
+		return query.copy(getEntityManager(shardKey)).getResultList(resultType);
+	}
+
+	/**
+	 * Create the scatter-gather execution of the query on all shards, for
+	 * custom ordering.
+	 * 
+	 * @param query
+	 *            Query to scatter.
+	 * @return Scatter-gather execution.
+	 */
+	public ScatterGather scatter(JPQL query) {
+		return new ScatterGather(getEntityManagers(), query).executor(getExecutor());
+	}
+
+	/**
+	 * Flush all shards.
+	 */
+	public void flush() {
+		for (EntityManager entityManager : getEntityManagers())
+			entityManager.flush();
+	}
+
+	// ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+	// PRIVATE METHODS
+	// ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+
+	private boolean isShardedByPrimaryKey() {
+		for (Class<?> c = getClass(); c != ShardedEntityRepositorySupport.class; c = c.getSuperclass()) {
+			try {
+				c.getDeclaredMethod("getShardKey", Object.class);
+				return false;
+			} catch (NoSuchMethodException e) {
+				// não sobrescrito nesta classe
+			}
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,466 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.repository;
+
+import java.io.Closeable;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+
+import org.apache.commons.lang.SerializationUtils;
+
+import br.com.surittec.surijpa.util.EntityUtil;
+import br.com.surittec.surijpa.util.MetricsUtil;
+
+/**
+ * Fila de escrita assíncrona (write-behind) para gravações frequentes sobre as
+ * mesmas linhas, como contadores e datas de último acesso. Os saves são
+ * agrupados por tipo e chave primária, mantendo apenas o estado mais recente
+ * de cada entidade, e gravados em lote por uma thread própria, com
+ * EntityManager e transação (RESOURCE_LOCAL) próprios.
+ *
+ * A gravação ocorre quando a fila atinge o tamanho de lote ou quando expira o
+ * intervalo de flush, que é a janela de durabilidade: alterações ainda na
+ * fila são perdidas se o processo terminar abruptamente. A fila é limitada
+ * por <code>maxPending</code>; ao atingir o limite, quem chama
+ * {@link #save(Object)} grava a fila de forma síncrona. Em {@link #close()} e,
+ * se habilitado, no shutdown da JVM, as alterações pendentes são gravadas.
+ *
+ * Entidades {@link Serializable} são copiadas no momento do save, de forma que
+ * alterações posteriores na instância original não são vistas pela gravação.
+ * Como a instância original não recebe a nova versão (<code>@Version</code>)
+ * gravada, a fila guarda a versão que ela mesma gerou para cada entidade e a
+ * usa nos saves seguintes feitos a partir da mesma versão original; uma
+ * alteração feita por outro processo continua falhando com
+ * {@link javax.persistence.OptimisticLockException}.
+ *
+ * Entidades novas (sem id) são agrupadas pela própria instância. Ao serem
+ * gravadas, o id e a versão gerados são atribuídos à instância original, de
+ * forma que os saves seguintes a atualizam; um save da mesma instância
+ * enquanto a sua inserção está em andamento aguarda o término da gravação,
+ * para não inserir a linha duas vezes.
+ *
+ * Um lote que falha é desfeito, com os ids e versões gerados pela tentativa
+ * restaurados, e regravado entidade a entidade; as que falharem novamente são
+ * descartadas, registrando um erro e a métrica {@link #METRIC_FAILED}.
+ */
+public class WriteBehindQueue implements Closeable {
+
+	public static final String METRIC_COALESCED = "surijpa.writebehind.coalesced";
+	public static final String METRIC_FLUSHED = "surijpa.writebehind.flushed";
+	public static final String METRIC_FAILED = "surijpa.writebehind.failed";
+
+	private static final Logger LOGGER = Logger.getLogger(WriteBehindQueue.class.getName());
+
+	private static final int MAX_VERSIONS = 10000;
+
+	private final EntityManagerFactory entityManagerFactory;
+	private final int batchSize;
+	private final int maxPending;
+
+	private final Map<Object, Object> pending = new LinkedHashMap<Object, Object>();
+	// estado enfileirado de uma entidade nova -> instância original
+	private final Map<Object, Object> created = new IdentityHashMap<Object, Object>();
+	private final Set<Object> inserting = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+	private final Object flushLock = new Object();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	private final Map<Object, Object[]> versions = new LinkedHashMap<Object, Object[]>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Object, Object[]> eldest) {
+			return size() > MAX_VERSIONS;
+		}
+
+	};
+	private final ScheduledExecutorService executor;
+	private Thread shutdownHook;
+	private volatile boolean closed;
+
+	// ----------------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------------
+
+	public WriteBehindQueue(EntityManagerFactory entityManagerFactory, int batchSize, long flushInterval, TimeUnit unit) {
+		this(entityManagerFactory, batchSize, batchSize * 4, flushInterval, unit);
+	}
+
+	public WriteBehindQueue(EntityManagerFactory entityManagerFactory, int batchSize, int maxPending, long flushInterval, TimeUnit unit) {
+		if (batchSize <= 0 || maxPending < batchSize)
+			throw new IllegalArgumentException("batchSize must be positive and not greater than maxPending");
+		this.entityManagerFactory = entityManagerFactory;
+		this.batchSize = batchSize;
+		this.maxPending = maxPending;
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "surijpa-write-behind");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flushQuietly();
+			}
+		}, flushInterval, flushInterval, unit);
+	}
+
+	// ----------------------------------------------------------------------------
+	// PUBLIC
+	// ----------------------------------------------------------------------------
+
+	/**
+	 * Registra um shutdown hook que grava as alterações pendentes no
+	 * encerramento da JVM.
+	 * 
+	 * @return
+	 */
+	public synchronized WriteBehindQueue registerShutdownHook() {
+		if (shutdownHook == null) {
+			shutdownHook = new Thread("surijpa-write-behind-shutdown") {
+				@Override
+				public void run() {
+					close();
+				}
+			};
+			Runtime.getRuntime().addShutdownHook(shutdownHook);
+		}
+		return this;
+	}
+
+	/**
+	 * Enfileira a entidade para gravação, substituindo um estado anterior da
+	 * mesma entidade ainda não gravado.
+	 * 
+	 * @param entity
+	 */
+	public void save(Object entity) {
+		if (closed)
+			throw new IllegalStateException("Write-behind queue is closed");
+
+		int size;
+		for (;;) {
+			Object state = entity instanceof Serializable ? SerializationUtils.clone((Serializable) entity) : entity;
+			synchronized (pending) {
+				if (!inserting.contains(entity)) {
+					Object key = getKey(entity);
+					Object previous = pending.remove(key);
+					if (previous != null) {
+						created.remove(previous);
+						MetricsUtil.increment(METRIC_COALESCED);
+					}
+					pending.put(key, state);
+					if (key instanceof NewEntityKey)
+						created.put(state, entity);
+					size = pending.size();
+					break;
+				}
+			}
+			synchronized (flushLock) {
+				// a inserção desta instância está em andamento: aguarda o id gerado
+			}
+		}
+
+		if (size >= maxPending)
+			flush();
+		else if (size >= batchSize && flushScheduled.compareAndSet(false, true))
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					flushScheduled.set(false);
+					flushQuietly();
+				}
+			});
+	}
+
+	/**
+	 * Grava imediatamente as alterações pendentes.
+	 * 
+	 * @return quantidade de entidades gravadas
+	 */
+	public int flush() {
+		synchronized (flushLock) {
+			int flushed = 0;
+			List<Object> batch;
+			while (!(batch = drain()).isEmpty()) {
+				try {
+					flushed += write(batch);
+				} finally {
+					release(batch);
+				}
+			}
+			return flushed;
+		}
+	}
+
+	/**
+	 * Quantidade de entidades aguardando gravação.
+	 * 
+	 * @return
+	 */
+	public int getPendingCount() {
+		synchronized (pending) {
+			return pending.size();
+		}
+	}
+
+	/**
+	 * Encerra a thread de gravação e grava as alterações pendentes.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			if (shutdownHook != null && Thread.currentThread() != shutdownHook) {
+				try {
+					Runtime.getRuntime().removeShutdownHook(shutdownHook);
+				} catch (IllegalStateException e) {
+					// JVM já em shutdown
+				}
+			}
+		}
+		executor.shutdown();
+		try {
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+
+	// ----------------------------------------------------------------------------
+	// PRIVATE
+	// ----------------------------------------------------------------------------
+
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.SEVERE, "Write-behind flush failed", e);
+		}
+	}
+
+	private List<Object> drain() {
+		synchronized (pending) {
+			List<Object> batch = new ArrayList<Object>(Math.min(batchSize, pending.size()));
+			Iterator<Object> it = pending.values().iterator();
+			while (it.hasNext() && batch.size() < batchSize) {
+				Object state = it.next();
+				Object original = created.get(state);
+				if (original != null)
+					inserting.add(original);
+				batch.add(state);
+				it.remove();
+			}
+			return batch;
+		}
+	}
+
+	private void release(List<Object> batch) {
+		synchronized (pending) {
+			for (Object state : batch) {
+				Object original = created.remove(state);
+				if (original != null)
+					inserting.remove(original);
+			}
+		}
+	}
+
+	private int write(List<Object> batch) {
+		EntityManager entityManager = entityManagerFactory.createEntityManager();
+		try {
+			Object[] originalVersions = new Object[batch.size()];
+			for (int i = 0; i < batch.size(); i++)
+				originalVersions[i] = applyWrittenVersion(entityManager, batch.get(i));
+
+			List<Object> managed = write(entityManager, batch);
+			if (managed != null) {
+				for (int i = 0; i < batch.size(); i++) {
+					recordWrittenVersion(entityManager, batch.get(i), originalVersions[i], managed.get(i));
+					assignGenerated(entityManager, batch.get(i), managed.get(i));
+				}
+				MetricsUtil.add(METRIC_FLUSHED, batch.size());
+				return batch.size();
+			}
+
+			int written = 0;
+			for (int i = 0; i < batch.size(); i++) {
+				entityManager.clear();
+				managed = write(entityManager, Collections.singletonList(batch.get(i)));
+				if (managed != null) {
+					recordWrittenVersion(entityManager, batch.get(i), originalVersions[i], managed.get(0));
+					assignGenerated(entityManager, batch.get(i), managed.get(0));
+					written++;
+				} else {
+					MetricsUtil.increment(METRIC_FAILED);
+				}
+			}
+			MetricsUtil.add(METRIC_FLUSHED, written);
+			return written;
+		} finally {
+			entityManager.close();
+		}
+	}
+
+	/**
+	 * Grava as entidades em uma transação, retornando as instâncias
+	 * gerenciadas, ou <code>null</code> se a transação falhar. Na falha, os
+	 * ids e versões atribuídos pelo <code>persist</code> são restaurados,
+	 * para que a nova tentativa não reutilize ids desfeitos pelo rollback.
+	 */
+	private List<Object> write(EntityManager entityManager, List<Object> entities) {
+		Object[] ids = new Object[entities.size()];
+		Object[] previousVersions = new Object[entities.size()];
+		for (int i = 0; i < entities.size(); i++) {
+			ids[i] = entityManagerFactory.getPersistenceUnitUtil().getIdentifier(entities.get(i));
+			previousVersions[i] = EntityUtil.getVersion(entityManager, entities.get(i));
+		}
+
+		EntityTransaction tx = entityManager.getTransaction();
+		try {
+			tx.begin();
+			List<Object> managed = new ArrayList<Object>(entities.size());
+			for (int i = 0; i < entities.size(); i++) {
+				Object entity = entities.get(i);
+				if (ids[i] == null) {
+					entityManager.persist(entity);
+					managed.add(entity);
+				} else {
+					managed.add(entityManager.merge(entity));
+				}
+			}
+			tx.commit();
+			return managed;
+		} catch (RuntimeException e) {
+			if (tx.isActive())
+				tx.rollback();
+			entityManager.clear();
+			for (int i = 0; i < entities.size(); i++)
+				restore(entityManager, entities.get(i), ids[i], previousVersions[i]);
+			LOGGER.log(entities.size() > 1 ? Level.WARNING : Level.SEVERE,
+					String.format("Write-behind of %d entities failed", entities.size()), e);
+			return null;
+		}
+	}
+
+	private void restore(EntityManager entityManager, Object entity, Object id, Object version) {
+		Class<?> entityClass = EntityUtil.getEntityClass(entityManager, entity);
+		String idAttribute = EntityUtil.getIdAttributeName(entityManager, entityClass);
+		if (id == null && idAttribute != null)
+			EntityUtil.setProperty(entity, idAttribute, null);
+		String versionAttribute = EntityUtil.getVersionAttributeName(entityManager, entityClass);
+		if (versionAttribute != null)
+			EntityUtil.setProperty(entity, versionAttribute, version);
+	}
+
+	/**
+	 * Se a fila já gravou esta entidade a partir da mesma versão, aplica a
+	 * versão gerada por aquela gravação. Retorna a versão original.
+	 */
+	private Object applyWrittenVersion(EntityManager entityManager, Object entity) {
+		Object version = EntityUtil.getVersion(entityManager, entity);
+		if (version == null || entityManagerFactory.getPersistenceUnitUtil().getIdentifier(entity) == null)
+			return null;
+		Object[] written = versions.get(getKey(entity));
+		if (written != null && written[0].equals(version)) {
+			Class<?> entityClass = EntityUtil.getEntityClass(entityManager, entity);
+			EntityUtil.setProperty(entity, EntityUtil.getVersionAttributeName(entityManager, entityClass), written[1]);
+		}
+		return version;
+	}
+
+	private void recordWrittenVersion(EntityManager entityManager, Object entity, Object originalVersion, Object managed) {
+		if (originalVersion != null)
+			versions.put(getKey(entity), new Object[] { originalVersion, EntityUtil.getVersion(entityManager, managed) });
+	}
+
+	/**
+	 * Atribui à instância original de uma entidade nova o id e a versão
+	 * gerados pela sua inserção.
+	 */
+	private void assignGenerated(EntityManager entityManager, Object state, Object managed) {
+		Object original;
+		synchronized (pending) {
+			original = created.get(state);
+		}
+		if (original == null || original == state)
+			return;
+		Class<?> entityClass = EntityUtil.getEntityClass(entityManager, original);
+		String idAttribute = EntityUtil.getIdAttributeName(entityManager, entityClass);
+		if (idAttribute != null)
+			EntityUtil.setProperty(original, idAttribute, entityManagerFactory.getPersistenceUnitUtil().getIdentifier(managed));
+		String versionAttribute = EntityUtil.getVersionAttributeName(entityManager, entityClass);
+		if (versionAttribute != null)
+			EntityUtil.setProperty(original, versionAttribute, EntityUtil.getVersion(entityManager, managed));
+	}
+
+	private Object getKey(Object entity) {
+		Object id = entityManagerFactory.getPersistenceUnitUtil().getIdentifier(entity);
+		return id != null ? Arrays.asList(entity.getClass(), id) : new NewEntityKey(entity);
+	}
+
+	/**
+	 * Chave de uma entidade nova, que ainda não tem id: a própria instância.
+	 */
+	private static final class NewEntityKey {
+
+		private final Object entity;
+
+		private NewEntityKey(Object entity) {
+			this.entity = entity;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof NewEntityKey && ((NewEntityKey) obj).entity == entity;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(entity);
+		}
+
+	}
+
+}
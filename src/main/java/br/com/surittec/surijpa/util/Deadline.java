@@ -0,0 +1,196 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.util;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.Query;
+import javax.persistence.QueryTimeoutException;
+
+/**
+ * Prazo por requisição (thread) para as operações de persistência. Enquanto
+ * houver um prazo ativo, cada query executada pelos repositórios e pela
+ * {@link br.com.surittec.surijpa.criteria.JPQL} recebe como timeout o tempo
+ * restante, e as chamadas falham imediatamente com
+ * {@link QueryTimeoutException} após o prazo expirar.
+ *
+ * <pre>
+ * Deadline.start(2, TimeUnit.SECONDS);
+ * try {
+ * 	...
+ * } finally {
+ * 	Deadline.clear();
+ * }
+ * </pre>
+ */
+public abstract class Deadline {
+
+	public static final String QUERY_TIMEOUT_HINT = "javax.persistence.query.timeout";
+
+	public static final String METRIC_EXPIRED = "surijpa.deadline.expired";
+	public static final String METRIC_TIMEOUT = "surijpa.query.timeout";
+
+	private static final ThreadLocal<Long> DEADLINE = new ThreadLocal<Long>();
+
+	/**
+	 * Inicia o prazo da thread atual, substituindo um prazo anterior.
+	 *
+	 * @param timeout
+	 * @param unit
+	 */
+	public static void start(long timeout, TimeUnit unit) {
+		DEADLINE.set(System.nanoTime() + unit.toNanos(timeout));
+	}
+
+	/**
+	 * Retorna o instante absoluto do prazo da thread atual, na escala de
+	 * {@link System#nanoTime()}, ou <code>null</code> se não houver prazo.
+	 * Usado com {@link #set(Long)} para propagar o prazo a outras threads sem
+	 * reiniciar a contagem.
+	 *
+	 * @return
+	 */
+	public static Long get() {
+		return DEADLINE.get();
+	}
+
+	/**
+	 * Define o instante absoluto do prazo da thread atual, obtido por
+	 * {@link #get()}, ou remove o prazo se <code>null</code>.
+	 *
+	 * @param deadline
+	 */
+	public static void set(Long deadline) {
+		if (deadline == null)
+			DEADLINE.remove();
+		else
+			DEADLINE.set(deadline);
+	}
+
+	/**
+	 * Remove o prazo da thread atual.
+	 */
+	public static void clear() {
+		DEADLINE.remove();
+	}
+
+	/**
+	 * Informa se a thread atual possui um prazo.
+	 *
+	 * @return
+	 */
+	public static boolean isActive() {
+		return DEADLINE.get() != null;
+	}
+
+	/**
+	 * Retorna o tempo restante do prazo, zero se já expirou, ou
+	 * {@link Long#MAX_VALUE} se não houver prazo.
+	 *
+	 * @param unit
+	 * @return
+	 */
+	public static long getRemaining(TimeUnit unit) {
+		Long deadline = DEADLINE.get();
+		if (deadline == null)
+			return Long.MAX_VALUE;
+		return unit.convert(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Falha com {@link QueryTimeoutException} caso o prazo já tenha expirado.
+	 */
+	public static void check() {
+		if (isActive() && getRemaining(TimeUnit.NANOSECONDS) == 0) {
+			MetricsUtil.increment(METRIC_EXPIRED);
+			throw new QueryTimeoutException("Request deadline has expired");
+		}
+	}
+
+	/**
+	 * Retorna o timeout efetivo em milissegundos para uma query: o menor entre
+	 * o timeout informado e o tempo restante do prazo, arredondado para cima em
+	 * segundos inteiros. O Hibernate repassa o hint ao JDBC
+	 * (<code>Statement.setQueryTimeout</code>) em segundos, truncando a divisão;
+	 * sem o arredondamento um prazo de 177 ms viraria 0, que para o JDBC
+	 * significa sem timeout.
+	 *
+	 * @param timeout
+	 *            timeout da query em milissegundos, ou <code>null</code>
+	 * @return timeout efetivo, múltiplo de 1000, ou <code>null</code> se não
+	 *         houver nenhum
+	 */
+	public static Integer getQueryTimeout(Integer timeout) {
+		check();
+		long effective = timeout != null ? timeout : Long.MAX_VALUE;
+		if (isActive())
+			effective = Math.min(effective, getRemaining(TimeUnit.MILLISECONDS));
+		if (effective == Long.MAX_VALUE)
+			return null;
+
+		long seconds = Math.max(1, (effective + 999) / 1000);
+		return (int) Math.min(Integer.MAX_VALUE / 1000, seconds) * 1000;
+	}
+
+	/**
+	 * Aplica à query o timeout efetivo (ver {@link #getQueryTimeout(Integer)}).
+	 *
+	 * @param query
+	 * @param timeout
+	 *            timeout da query em milissegundos, ou <code>null</code>
+	 */
+	public static void applyTo(Query query, Integer timeout) {
+		Integer effective = getQueryTimeout(timeout);
+		if (effective != null)
+			query.setHint(QUERY_TIMEOUT_HINT, effective);
+	}
+
+	/**
+	 * Retorna as propriedades para
+	 * {@link javax.persistence.EntityManager#find(Class, Object, Map)} com o
+	 * timeout do prazo atual, falhando se o prazo já expirou. O Hibernate 4.2
+	 * ignora o hint de timeout no <code>find</code>: o prazo é verificado antes
+	 * da chamada, mas a duração do carregamento não é limitada.
+	 *
+	 * @return
+	 */
+	public static Map<String, Object> getHints() {
+		Integer effective = getQueryTimeout(null);
+		if (effective == null)
+			return Collections.emptyMap();
+		return Collections.<String, Object> singletonMap(QUERY_TIMEOUT_HINT, effective);
+	}
+
+	/**
+	 * Contabiliza uma query cancelada por timeout, retornando a própria
+	 * exceção para ser relançada.
+	 *
+	 * @param e
+	 * @return
+	 */
+	public static QueryTimeoutException timedOut(QueryTimeoutException e) {
+		MetricsUtil.increment(METRIC_TIMEOUT);
+		return e;
+	}
+
+}
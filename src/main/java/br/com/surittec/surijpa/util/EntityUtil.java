@@ -1,43 +1,799 @@
-/*
- * SURITTEC
- * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
- * and individual contributors as indicated by the @authors tag
- *
- * This is free software; you can redistribute it and/or modify it
- * under the terms of the GNU Lesser General Public License as
- * published by the Free Software Foundation; either version 2.1 of
- * the License, or (at your option) any later version.
- *
- * This software is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
- * Lesser General Public License for more details.
- *
- * You should have received a copy of the GNU Lesser General Public
- * License along with this software; if not, write to the Free
- * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
- * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
- */
-package br.com.surittec.surijpa.util;
-
-import javax.persistence.EntityManager;
-
-/**
- * Utilitrio para buscar informaes de persistncia de entidades do modelo.
- */
-public abstract class EntityUtil {
-
-	public static String getEntityName(EntityManager entityManager, Class<?> entityClass){
-    	return entityManager.getMetamodel().entity(entityClass).getName();
-    }
-    
-    public static boolean isNew(EntityManager entityManager, Object entity){
-        try{
-            return entityManager.getEntityManagerFactory().getPersistenceUnitUtil().getIdentifier(entity) == null;
-        }catch (IllegalArgumentException e){
-            // Not an entity
-            return false;
-        }
-    }
-	
-}
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.util;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.CacheRetrieveMode;
+import javax.persistence.CacheStoreMode;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PersistenceException;
+import javax.persistence.QueryTimeoutException;
+import javax.persistence.TypedQuery;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.SingularAttribute;
+import javax.persistence.metamodel.Type.PersistenceType;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Utilitário para buscar informações de persistência de entidades do modelo.
+ */
+public abstract class EntityUtil {
+
+	/**
+	 * Quantidade padrão de identificadores por cláusula IN nas operações em lote.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 500;
+
+	public static final String CACHE_RETRIEVE_MODE_HINT = "javax.persistence.cache.retrieveMode";
+	public static final String CACHE_STORE_MODE_HINT = "javax.persistence.cache.storeMode";
+
+	public static String getEntityName(EntityManager entityManager, Class<?> entityClass){
+    	return entityManager.getMetamodel().entity(entityClass).getName();
+    }
+    
+    public static boolean isNew(EntityManager entityManager, Object entity){
+        try{
+            return entityManager.getEntityManagerFactory().getPersistenceUnitUtil().getIdentifier(entity) == null;
+        }catch (IllegalArgumentException e){
+            // Not an entity
+            return false;
+        }
+    }
+
+	/**
+	 * Retorna o identificador da entidade, ou <code>null</code> caso ela seja
+	 * nova ou não seja uma entidade.
+	 * 
+	 * @param entityManager
+	 * @param entity
+	 * @return
+	 */
+	public static Object getIdentifier(EntityManager entityManager, Object entity) {
+		try {
+			return entityManager.getEntityManagerFactory().getPersistenceUnitUtil().getIdentifier(entity);
+		} catch (IllegalArgumentException e) {
+			// Not an entity
+			return null;
+		}
+	}
+
+	/**
+	 * Retorna o nome do atributo identificador da entidade, ou
+	 * <code>null</code> caso ela não possua um identificador simples (ex.:
+	 * <code>@IdClass</code> ou <code>@EmbeddedId</code>).
+	 * 
+	 * @param entityManager
+	 * @param entityClass
+	 * @return
+	 */
+	public static String getIdAttributeName(EntityManager entityManager, Class<?> entityClass) {
+		EntityType<?> entityType = entityManager.getMetamodel().entity(entityClass);
+		if (!entityType.hasSingleIdAttribute() || entityType.getIdType().getPersistenceType() != PersistenceType.BASIC)
+			return null;
+		return entityType.getId(entityType.getIdType().getJavaType()).getName();
+	}
+
+	/**
+	 * Carrega para o contexto de persistência as entidades com os
+	 * identificadores informados, usando consultas com cláusula IN de no
+	 * máximo <code>batchSize</code> identificadores cada. Entidades sem
+	 * identificador simples não são carregadas.
+	 * 
+	 * @param entityManager
+	 * @param entityClass
+	 * @param ids
+	 * @param batchSize
+	 * @return entidades encontradas, sem ordem definida
+	 */
+	public static <E> List<E> findByIds(EntityManager entityManager, Class<E> entityClass, Collection<?> ids, int batchSize) {
+		return findByIds(entityManager, entityClass, ids, batchSize, Collections.<String, Object> emptyMap());
+	}
+
+	/**
+	 * Mesmo que {@link #findByIds(EntityManager, Class, Collection, int)} para
+	 * ids primitivos, convertidos para o tipo do id um bloco por vez.
+	 * 
+	 * @param entityManager
+	 * @param entityClass
+	 * @param ids
+	 * @param batchSize
+	 * @return
+	 */
+	public static <E> List<E> findByIds(EntityManager entityManager, Class<E> entityClass, long[] ids, int batchSize) {
+		return findByPrimitiveIds(entityManager, entityClass, ids, ids.length, batchSize, Collections.<String, Object> emptyMap());
+	}
+
+	/**
+	 * Mesmo que {@link #findByIds(EntityManager, Class, long[], int)},
+	 * aplicando as hints informadas a cada query.
+	 * 
+	 * @param entityManager
+	 * @param entityClass
+	 * @param ids
+	 * @param batchSize
+	 * @param hints
+	 * @return
+	 */
+	public static <E> List<E> findByIds(EntityManager entityManager, Class<E> entityClass, long[] ids, int batchSize, Map<String, Object> hints) {
+		return findByPrimitiveIds(entityManager, entityClass, ids, ids.length, batchSize, hints);
+	}
+
+	/**
+	 * Mesmo que {@link #findByIds(EntityManager, Class, Collection, int)} para
+	 * ids primitivos, convertidos para o tipo do id um bloco por vez.
+	 * 
+	 * @param entityManager
+	 * @param entityClass
+	 * @param ids
+	 * @param batchSize
+	 * @return
+	 */
+	public static <E> List<E> findByIds(EntityManager entityManager, Class<E> entityClass, int[] ids, int batchSize) {
+		return findByPrimitiveIds(entityManager, entityClass, ids, ids.length, batchSize, Collections.<String, Object> emptyMap());
+	}
+
+	/**
+	 * Mesmo que {@link #findByIds(EntityManager, Class, int[], int)},
+	 * aplicando as hints informadas a cada query.
+	 * 
+	 * @param entityManager
+	 * @param entityClass
+	 * @param ids
+	 * @param batchSize
+	 * @param hints
+	 * @return
+	 */
+	public static <E> List<E> findByIds(EntityManager entityManager, Class<E> entityClass, int[] ids, int batchSize, Map<String, Object> hints) {
+		return findByPrimitiveIds(entityManager, entityClass, ids, ids.length, batchSize, hints);
+	}
+
+	/**
+	 * Mesmo que {@link #findByIds(EntityManager, Class, Collection, int)},
+	 * aplicando as hints informadas a cada query. A hint
+	 * {@link QueryComment#COMMENT_HINT} substitui o comentário automático.
+	 * 
+	 * @param entityManager
+	 * @param entityClass
+	 * @param ids
+	 * @param batchSize
+	 * @param hints
+	 * @return
+	 */
+	public static <E> List<E> findByIds(EntityManager entityManager, Class<E> entityClass, Collection<?> ids, int batchSize, Map<String, Object> hints) {
+		List<E> result = new ArrayList<E>(ids.size());
+		String idAttribute = getIdAttributeName(entityManager, entityClass);
+		if (idAttribute == null || ids.isEmpty())
+			return result;
+
+		String jpql = String.format("select e from %s e where e.%s in :ids", getEntityName(entityManager, entityClass), idAttribute);
+		List<Object> chunk = new ArrayList<Object>(Math.min(batchSize, ids.size()));
+		for (Object id : ids) {
+			chunk.add(id);
+			if (chunk.size() == batchSize) {
+				result.addAll(findByIds(entityManager, entityClass, jpql, chunk, hints));
+				chunk = new ArrayList<Object>(batchSize);
+			}
+		}
+		if (!chunk.isEmpty())
+			result.addAll(findByIds(entityManager, entityClass, jpql, chunk, hints));
+		return result;
+	}
+
+	/**
+	 * Verifica em lote se as versões informadas são as versões atuais das
+	 * entidades, com queries IN que trazem apenas id e versão.
+	 * 
+	 * @param entityManager
+	 * @param entityClass
+	 * @param ids
+	 * @param versions
+	 *            versão esperada de cada id, na mesma posição
+	 * @param batchSize
+	 * @throws OptimisticLockException
+	 *             se alguma versão for diferente ou a entidade não existir
+	 */
+	public static void checkVersions(EntityManager entityManager, Class<?> entityClass, long[] ids, long[] versions, int batchSize) {
+		if (ids.length != versions.length)
+			throw new IllegalArgumentException("ids and versions must have the same length");
+
+		String idAttribute = getIdAttributeName(entityManager, entityClass);
+		String versionAttribute = getVersionAttributeName(entityManager, entityClass);
+		if (idAttribute == null || versionAttribute == null)
+			throw new IllegalArgumentException(String.format("%s needs a single id and a version attribute", entityClass.getName()));
+
+		String jpql = String.format("select e.%s, e.%s from %s e where e.%s in :ids", idAttribute, versionAttribute,
+				getEntityName(entityManager, entityClass), idAttribute);
+		Class<?> idType = entityManager.getMetamodel().entity(entityClass).getIdType().getJavaType();
+		for (int from = 0; from < ids.length; from += batchSize) {
+			int to = Math.min(ids.length, from + batchSize);
+			TypedQuery<Object[]> query = entityManager.createQuery(jpql, Object[].class).setParameter("ids", box(ids, from, to, idType));
+			Deadline.applyTo(query, null);
+			QueryComment.applyTo(query);
+			Map<Long, Long> current = new HashMap<Long, Long>();
+			try {
+				for (Object[] row : query.getResultList())
+					current.put(((Number) row[0]).longValue(), ((Number) row[1]).longValue());
+			} catch (QueryTimeoutException e) {
+				throw Deadline.timedOut(e);
+			}
+			for (int i = from; i < to; i++) {
+				Long version = current.get(ids[i]);
+				if (version == null || version != versions[i])
+					throw new OptimisticLockException(String.format("%s with id %d is not at version %d", entityClass.getName(), ids[i], versions[i]));
+			}
+		}
+	}
+
+	/**
+	 * Retorna o nome do atributo de versão da entidade, ou <code>null</code>
+	 * se ela não tiver.
+	 * 
+	 * @param entityManager
+	 * @param entityClass
+	 * @return
+	 */
+	public static String getVersionAttributeName(EntityManager entityManager, Class<?> entityClass) {
+		for (SingularAttribute<?, ?> attribute : entityManager.getMetamodel().entity(entityClass).getSingularAttributes()) {
+			if (attribute.isVersion())
+				return attribute.getName();
+		}
+		return null;
+	}
+
+	/**
+	 * Retorna o valor do atributo de versão da entidade, ou <code>null</code>
+	 * se ela não tiver versão ou não for uma entidade.
+	 * 
+	 * @param entityManager
+	 * @param entity
+	 * @return
+	 */
+	public static Object getVersion(EntityManager entityManager, Object entity) {
+		Class<?> entityClass = getEntityClass(entityManager, entity);
+		String versionAttribute = entityClass != null ? getVersionAttributeName(entityManager, entityClass) : null;
+		return versionAttribute != null ? getProperty(entity, versionAttribute) : null;
+	}
+
+	/**
+	 * Converte o id numérico para o tipo do id da entidade.
+	 * 
+	 * @param id
+	 * @param idType
+	 * @return
+	 */
+	public static Object toIdType(long id, Class<?> idType) {
+		if (idType == Integer.class || idType == int.class)
+			return (int) id;
+		if (idType == Short.class || idType == short.class)
+			return (short) id;
+		if (idType == BigInteger.class)
+			return BigInteger.valueOf(id);
+		if (idType == BigDecimal.class)
+			return BigDecimal.valueOf(id);
+		return id;
+	}
+
+	private static <E> List<E> findByPrimitiveIds(EntityManager entityManager, Class<E> entityClass, Object ids, int length, int batchSize,
+			Map<String, Object> hints) {
+		List<E> result = new ArrayList<E>(length);
+		String idAttribute = getIdAttributeName(entityManager, entityClass);
+		if (idAttribute == null || length == 0)
+			return result;
+
+		String jpql = String.format("select e from %s e where e.%s in :ids", getEntityName(entityManager, entityClass), idAttribute);
+		Class<?> idType = entityManager.getMetamodel().entity(entityClass).getIdType().getJavaType();
+		for (int from = 0; from < length; from += batchSize)
+			result.addAll(findByIds(entityManager, entityClass, jpql, box(ids, from, Math.min(length, from + batchSize), idType), hints));
+		return result;
+	}
+
+	private static List<Object> box(Object ids, int from, int to, Class<?> idType) {
+		List<Object> boxed = new ArrayList<Object>(to - from);
+		for (int i = from; i < to; i++)
+			boxed.add(toIdType(Array.getLong(ids, i), idType));
+		return boxed;
+	}
+
+	private static <E> List<E> findByIds(EntityManager entityManager, Class<E> entityClass, String jpql, List<Object> ids, Map<String, Object> hints) {
+		TypedQuery<E> query = entityManager.createQuery(jpql, entityClass).setParameter("ids", ids);
+		for (Map.Entry<String, Object> hint : hints.entrySet()) {
+			if (!hint.getKey().equals(QueryComment.COMMENT_HINT))
+				query.setHint(hint.getKey(), hint.getValue());
+		}
+		Deadline.applyTo(query, null);
+		QueryComment.applyTo(query, (String) hints.get(QueryComment.COMMENT_HINT));
+		try {
+			return query.getResultList();
+		} catch (QueryTimeoutException e) {
+			throw Deadline.timedOut(e);
+		}
+	}
+	
+	/**
+	 * Recarrega do banco, em lote, as entidades informadas, ignorando e
+	 * atualizando o cache de segundo nível, e retorna as novas instâncias
+	 * gerenciadas em uma nova lista, na mesma ordem. As instâncias
+	 * gerenciadas informadas são desanexadas antes da recarga (descartando
+	 * alterações não sincronizadas), de forma que outras referências a elas
+	 * deixam de ser atualizadas; as recargas são feitas com queries IN em
+	 * blocos de <code>batchSize</code>. Entidades sem id simples são
+	 * atualizadas uma a uma com {@link EntityManager#refresh(Object)}, e as
+	 * que não existem mais no banco são omitidas da lista.
+	 * 
+	 * @param entityManager
+	 * @param entities
+	 * @param batchSize
+	 * @return as instâncias recarregadas, na mesma ordem
+	 */
+	public static <E> List<E> reload(EntityManager entityManager, Collection<E> entities, int batchSize) {
+		Map<Class<?>, List<Object>> ids = new LinkedHashMap<Class<?>, List<Object>>();
+		List<Object> keys = new ArrayList<Object>(entities.size());
+		for (E entity : entities) {
+			Class<?> entityClass = entity != null ? getEntityClass(entityManager, entity) : null;
+			Object id = entityClass != null && getIdAttributeName(entityManager, entityClass) != null ? getIdentifier(entityManager, entity) : null;
+			if (id == null) {
+				keys.add(null);
+				continue;
+			}
+			List<Object> classIds = ids.get(entityClass);
+			if (classIds == null) {
+				classIds = new ArrayList<Object>();
+				ids.put(entityClass, classIds);
+			}
+			classIds.add(id);
+			keys.add(Arrays.asList(entityClass, id));
+			if (entityManager.contains(entity))
+				entityManager.detach(entity);
+		}
+
+		Map<String, Object> hints = new HashMap<String, Object>();
+		hints.put(CACHE_RETRIEVE_MODE_HINT, CacheRetrieveMode.BYPASS);
+		hints.put(CACHE_STORE_MODE_HINT, CacheStoreMode.REFRESH);
+
+		Map<Object, Object> fresh = new HashMap<Object, Object>();
+		for (Map.Entry<Class<?>, List<Object>> entry : ids.entrySet()) {
+			for (Object entity : findByIds(entityManager, entry.getKey(), entry.getValue(), batchSize, hints))
+				fresh.put(Arrays.asList(entry.getKey(), getIdentifier(entityManager, entity)), entity);
+		}
+
+		List<E> result = new ArrayList<E>(entities.size());
+		Iterator<Object> key = keys.iterator();
+		for (E entity : entities) {
+			Object k = key.next();
+			if (k == null) {
+				if (entity != null)
+					entityManager.refresh(entity);
+				result.add(entity);
+				continue;
+			}
+			@SuppressWarnings("unchecked")
+			E reloaded = (E) fresh.get(k);
+			if (reloaded != null)
+				result.add(reloaded);
+		}
+		return result;
+	}
+
+	/**
+	 * Atualiza do banco, em lote e no próprio lugar, as entidades gerenciadas
+	 * informadas, ignorando e atualizando o cache de segundo nível: o estado
+	 * é lido com queries IN em blocos de <code>batchSize</code> e copiado para
+	 * as instâncias informadas, que continuam gerenciadas, descartando
+	 * alterações não sincronizadas. Proxies ainda não inicializados são apenas
+	 * carregados pela mesma query. Fora do Hibernate, e para entidades com
+	 * cascata ou sem id simples, recorre a {@link EntityManager#refresh(Object)}
+	 * para cada entidade.
+	 * 
+	 * @param entityManager
+	 * @param entities
+	 * @param batchSize
+	 * @throws EntityNotFoundException
+	 *             se alguma entidade não existir mais no banco; as demais são
+	 *             atualizadas e as inexistentes ficam desanexadas
+	 */
+	public static void refresh(EntityManager entityManager, Collection<?> entities, int batchSize) {
+		if (HibernateContext.SESSION == null) {
+			for (Object entity : entities)
+				entityManager.refresh(entity);
+			return;
+		}
+
+		Object session = entityManager.unwrap(HibernateContext.SESSION);
+		Map<Class<?>, Map<Object, Object>> managed = new LinkedHashMap<Class<?>, Map<Object, Object>>();
+		Map<Class<?>, Object> persisters = new HashMap<Class<?>, Object>();
+		for (Object entity : entities) {
+			Class<?> entityClass = entity != null ? getEntityClass(entityManager, entity) : null;
+			Object id = entityClass != null && getIdAttributeName(entityManager, entityClass) != null ? getIdentifier(entityManager, entity) : null;
+			Object persister = id != null ? getPersister(session, entityClass, persisters) : null;
+			if (persister == null || (Boolean) invoke(HibernateContext.HAS_CASCADES, persister)) {
+				entityManager.refresh(entity);
+				continue;
+			}
+			if (!entityManager.contains(entity))
+				throw new IllegalArgumentException(String.format("Entity not managed: %s", entityClass.getName()));
+			Map<Object, Object> instances = managed.get(entityClass);
+			if (instances == null) {
+				instances = new LinkedHashMap<Object, Object>();
+				managed.put(entityClass, instances);
+			} else if (instances.containsKey(id)) {
+				continue;
+			}
+			// proxies não inicializados não estão no contexto e são carregados pela query
+			Object instance = getManaged(entityManager, entityClass, id);
+			instances.put(id, instance);
+			if (instance != null)
+				entityManager.detach(instance);
+		}
+
+		Map<String, Object> hints = new HashMap<String, Object>();
+		hints.put(CACHE_RETRIEVE_MODE_HINT, CacheRetrieveMode.BYPASS);
+		hints.put(CACHE_STORE_MODE_HINT, CacheStoreMode.REFRESH);
+
+		List<Object> missing = new ArrayList<Object>();
+		for (Map.Entry<Class<?>, Map<Object, Object>> entry : managed.entrySet()) {
+			Object persister = persisters.get(entry.getKey());
+			Map<Object, Object> fresh = new IdentityHashMap<Object, Object>();
+			Map<Object, Object> byId = new HashMap<Object, Object>();
+			for (Object entity : findByIds(entityManager, entry.getKey(), new ArrayList<Object>(entry.getValue().keySet()), batchSize, hints)) {
+				Object id = getIdentifier(entityManager, entity);
+				byId.put(id, entity);
+				if (entry.getValue().get(id) != null)
+					fresh.put(entity, entry.getValue().get(id));
+			}
+			for (Map.Entry<Object, Object> instance : entry.getValue().entrySet()) {
+				Object loaded = byId.get(instance.getKey());
+				if (loaded == null)
+					missing.add(instance.getKey());
+				if (loaded == null || instance.getValue() == null)
+					continue;
+				// troca a instância recém-carregada pela informada, mantendo as
+				// referências entre as entidades do lote
+				Object[] values = (Object[]) invoke(HibernateContext.GET_VALUES, persister, loaded);
+				for (int i = 0; i < values.length; i++) {
+					if (values[i] != null && fresh.containsKey(values[i]))
+						values[i] = fresh.get(values[i]);
+				}
+				entityManager.detach(loaded);
+				invoke(HibernateContext.SET_VALUES, persister, instance.getValue(), values);
+				invoke(HibernateContext.LOCK, invoke(HibernateContext.LOCK_REQUEST, session, HibernateContext.LOCK_NONE), instance.getValue());
+			}
+		}
+		if (!missing.isEmpty())
+			throw new EntityNotFoundException(String.format("No row with the given identifiers exists: %s", missing));
+	}
+
+	/**
+	 * Retorna a classe de entidade do objeto, desconsiderando subclasses
+	 * geradas pelo provedor (proxies), ou <code>null</code> se não for uma
+	 * entidade.
+	 * 
+	 * @param entityManager
+	 * @param entity
+	 * @return
+	 */
+	public static Class<?> getEntityClass(EntityManager entityManager, Object entity) {
+		for (Class<?> c = entity.getClass(); c != null && c != Object.class; c = c.getSuperclass()) {
+			try {
+				return entityManager.getMetamodel().entity(c).getJavaType();
+			} catch (IllegalArgumentException e) {
+				// não é entidade, tenta a superclasse
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Retorna o valor de uma propriedade da entidade, lido pelo getter ou
+	 * diretamente do atributo. Aceita caminhos aninhados, como
+	 * <code>cliente.nome</code>.
+	 * 
+	 * @param bean
+	 * @param property
+	 * @return
+	 */
+	public static Object getProperty(Object bean, String property) {
+		Object value = bean;
+		for (String name : property.split("\\.")) {
+			if (value == null)
+				return null;
+			value = getSimpleProperty(value, name);
+		}
+		return value;
+	}
+
+	/**
+	 * Inicializa as associações lazy do caminho informado (como
+	 * <code>estado.regiao</code> ou <code>itens.produto</code>), percorrendo
+	 * coleções e mapas, para que continuem acessíveis depois que a entidade
+	 * for desanexada. Deve ser chamado com o EntityManager da entidade aberto.
+	 * 
+	 * @param entityManager
+	 * @param bean
+	 * @param path
+	 */
+	public static void initialize(EntityManager entityManager, Object bean, String path) {
+		initialize(entityManager, bean, path.split("\\."), 0);
+	}
+
+	/**
+	 * Altera o valor de uma propriedade simples da entidade, pelo setter ou
+	 * diretamente no atributo.
+	 * 
+	 * @param bean
+	 * @param property
+	 * @param value
+	 */
+	public static void setProperty(Object bean, String property, Object value) {
+		String setter = "set" + StringUtils.capitalize(property);
+		try {
+			for (Class<?> type = bean.getClass(); type != null && type != Object.class; type = type.getSuperclass()) {
+				for (Method method : type.getDeclaredMethods()) {
+					if (method.getName().equals(setter) && method.getParameterTypes().length == 1) {
+						method.setAccessible(true);
+						method.invoke(bean, value);
+						return;
+					}
+				}
+				try {
+					Field field = type.getDeclaredField(property);
+					field.setAccessible(true);
+					field.set(bean, value);
+					return;
+				} catch (NoSuchFieldException e) {
+					// tenta a superclasse
+				}
+			}
+		} catch (Exception e) {
+			throw new PersistenceException(String.format("Cannot write property %s of %s", property, bean.getClass().getName()), e);
+		}
+		throw new IllegalArgumentException(String.format("Property %s not found in %s", property, bean.getClass().getName()));
+	}
+
+	/**
+	 * Retorna a instância da entidade já gerenciada pelo EntityManager, ou null
+	 * se ela não estiver no contexto de persistência. No Hibernate a consulta é
+	 * feita direto no contexto da Session, sem ir ao banco e sem criar proxies;
+	 * nos demais provedores, que não expõem o contexto, recorre a
+	 * EntityManager.find, que carrega a entidade do banco se necessário.
+	 * 
+	 * @param entityManager
+	 * @param entityClass
+	 * @param primaryKey
+	 * @return
+	 */
+	public static <T> T getManaged(EntityManager entityManager, Class<T> entityClass, Object primaryKey) {
+		if (HibernateContext.SESSION == null)
+			return entityManager.find(entityClass, primaryKey);
+		Object session = entityManager.unwrap(HibernateContext.SESSION);
+		Object persister = invoke(HibernateContext.GET_PERSISTER, session, entityClass.getName(), null);
+		Object key = invoke(HibernateContext.GENERATE_KEY, session, primaryKey, persister);
+		Object entity = invoke(HibernateContext.GET_ENTITY, invoke(HibernateContext.GET_CONTEXT, session), key);
+		// entidades removidas continuam no contexto até o flush
+		return entityClass.isInstance(entity) && entityManager.contains(entity) ? entityClass.cast(entity) : null;
+	}
+
+	/**
+	 * Informa se o contexto de persistência tem alterações ainda não
+	 * sincronizadas com o banco (entidades alteradas, novas ou removidas). Só
+	 * é verificado no Hibernate; nos demais provedores retorna
+	 * <code>false</code>.
+	 * 
+	 * @param entityManager
+	 * @return
+	 */
+	public static boolean hasPendingChanges(EntityManager entityManager) {
+		if (HibernateContext.SESSION == null)
+			return false;
+		return (Boolean) invoke(HibernateContext.IS_DIRTY, entityManager.unwrap(HibernateContext.SESSION));
+	}
+
+	/**
+	 * Informa se o provedor gera SKIP LOCKED para o timeout de lock
+	 * {@link br.com.surittec.surijpa.criteria.JPQL#SKIP_LOCKED}: no Hibernate,
+	 * só a partir da versão 5.2 e em dialetos que o suportam. Nos demais
+	 * provedores, em que não é possível verificar, retorna <code>true</code>.
+	 * 
+	 * @param entityManager
+	 * @return
+	 */
+	public static boolean supportsSkipLocked(EntityManager entityManager) {
+		if (HibernateContext.SESSION == null)
+			return true;
+		Object session = entityManager.unwrap(HibernateContext.SESSION);
+		try {
+			Object factory = HibernateContext.SESSION.getMethod("getFactory").invoke(session);
+			Object dialect = factory.getClass().getMethod("getDialect").invoke(factory);
+			return (Boolean) dialect.getClass().getMethod("supportsSkipLocked").invoke(dialect);
+		} catch (NoSuchMethodException e) {
+			// Hibernate anterior à 5.2
+			return false;
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new PersistenceException(e.getCause());
+		} catch (IllegalAccessException e) {
+			throw new PersistenceException("Cannot read the Hibernate dialect", e);
+		}
+	}
+
+	private static Object getPersister(Object session, Class<?> entityClass, Map<Class<?>, Object> persisters) {
+		if (!persisters.containsKey(entityClass))
+			persisters.put(entityClass, invoke(HibernateContext.GET_PERSISTER, session, entityClass.getName(), null));
+		return persisters.get(entityClass);
+	}
+
+	private static Object invoke(Method method, Object target, Object... args) {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new PersistenceException(e.getCause());
+		} catch (IllegalAccessException e) {
+			throw new PersistenceException(String.format("Cannot invoke %s", method), e);
+		}
+	}
+
+	private static void initialize(EntityManager entityManager, Object value, String[] path, int index) {
+		if (value == null)
+			return;
+		if (value instanceof Map)
+			value = ((Map<?, ?>) value).values();
+		if (value instanceof Collection) {
+			// percorrer a coleção a inicializa
+			for (Object element : (Collection<?>) value)
+				initialize(entityManager, element, path, index);
+			return;
+		}
+		if (!entityManager.getEntityManagerFactory().getPersistenceUnitUtil().isLoaded(value))
+			initialize(entityManager, value);
+		if (index < path.length)
+			initialize(entityManager, getSimpleProperty(value, path[index]), path, index + 1);
+	}
+
+	private static void initialize(EntityManager entityManager, Object proxy) {
+		try {
+			Class.forName("org.hibernate.Hibernate").getMethod("initialize", Object.class).invoke(null, proxy);
+			return;
+		} catch (ClassNotFoundException e) {
+			// outro provedor: lê os atributos da entidade
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new PersistenceException(e.getCause());
+		} catch (Exception e) {
+			throw new PersistenceException(String.format("Cannot initialize %s", proxy.getClass().getName()), e);
+		}
+		Class<?> entityClass = getEntityClass(entityManager, proxy);
+		if (entityClass != null) {
+			for (Attribute<?, ?> attribute : entityManager.getMetamodel().entity(entityClass).getAttributes())
+				getSimpleProperty(proxy, attribute.getName());
+		}
+	}
+
+	private static Object getSimpleProperty(Object bean, String property) {
+		String suffix = StringUtils.capitalize(property);
+		try {
+			for (Class<?> type = bean.getClass(); type != null && type != Object.class; type = type.getSuperclass()) {
+				for (String getter : new String[] { "get" + suffix, "is" + suffix }) {
+					try {
+						Method method = type.getDeclaredMethod(getter);
+						method.setAccessible(true);
+						return method.invoke(bean);
+					} catch (NoSuchMethodException e) {
+						// tenta o próximo
+					}
+				}
+				try {
+					Field field = type.getDeclaredField(property);
+					field.setAccessible(true);
+					return field.get(bean);
+				} catch (NoSuchFieldException e) {
+					// tenta a superclasse
+				}
+			}
+		} catch (Exception e) {
+			throw new PersistenceException(String.format("Cannot read property %s of %s", property, bean.getClass().getName()), e);
+		}
+		throw new IllegalArgumentException(String.format("Property %s not found in %s", property, bean.getClass().getName()));
+	}
+
+	/**
+	 * Métodos do Hibernate usados para consultar e atualizar o contexto de
+	 * persistência, resolvidos uma única vez; SESSION é null em outros
+	 * provedores.
+	 */
+	private static final class HibernateContext {
+
+		static final Class<?> SESSION;
+		static final Method GET_PERSISTER;
+		static final Method GENERATE_KEY;
+		static final Method GET_CONTEXT;
+		static final Method GET_ENTITY;
+		static final Method HAS_CASCADES;
+		static final Method GET_VALUES;
+		static final Method SET_VALUES;
+		static final Method LOCK_REQUEST;
+		static final Method LOCK;
+		static final Method IS_DIRTY;
+		static final Object LOCK_NONE;
+
+		static {
+			Class<?> session = null;
+			Method[] methods = new Method[10];
+			Object lockNone = null;
+			try {
+				Class<?> type = Class.forName("org.hibernate.engine.spi.SessionImplementor");
+				Class<?> persister = Class.forName("org.hibernate.persister.entity.EntityPersister");
+				Class<?> key = Class.forName("org.hibernate.engine.spi.EntityKey");
+				Class<?> context = Class.forName("org.hibernate.engine.spi.PersistenceContext");
+				Class<?> lockOptions = Class.forName("org.hibernate.LockOptions");
+				methods[0] = type.getMethod("getEntityPersister", String.class, Object.class);
+				methods[1] = type.getMethod("generateEntityKey", java.io.Serializable.class, persister);
+				methods[2] = type.getMethod("getPersistenceContext");
+				methods[3] = context.getMethod("getEntity", key);
+				methods[4] = persister.getMethod("hasCascades");
+				methods[5] = persister.getMethod("getPropertyValues", Object.class);
+				methods[6] = persister.getMethod("setPropertyValues", Object.class, Object[].class);
+				methods[7] = Class.forName("org.hibernate.Session").getMethod("buildLockRequest", lockOptions);
+				methods[8] = Class.forName("org.hibernate.Session$LockRequest").getMethod("lock", Object.class);
+				methods[9] = Class.forName("org.hibernate.Session").getMethod("isDirty");
+				lockNone = lockOptions.getField("NONE").get(null);
+				session = type;
+			} catch (ClassNotFoundException | NoSuchMethodException | NoSuchFieldException | IllegalAccessException e) {
+				// outro provedor ou versão do Hibernate
+			}
+			SESSION = session;
+			GET_PERSISTER = methods[0];
+			GENERATE_KEY = methods[1];
+			GET_CONTEXT = methods[2];
+			GET_ENTITY = methods[3];
+			HAS_CASCADES = methods[4];
+			GET_VALUES = methods[5];
+			SET_VALUES = methods[6];
+			LOCK_REQUEST = methods[7];
+			LOCK = methods[8];
+			IS_DIRTY = methods[9];
+			LOCK_NONE = lockNone;
+		}
+	}
+
+}
@@ -0,0 +1,96 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.util;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Contadores de métricas das operações de persistência, compartilhados pela
+ * aplicação e identificados por nome.
+ */
+public abstract class MetricsUtil {
+
+	private static final ConcurrentMap<String, AtomicLong> COUNTERS = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**
+	 * Incrementa o contador informado.
+	 * 
+	 * @param name
+	 * @return valor atual do contador
+	 */
+	public static long increment(String name) {
+		return add(name, 1);
+	}
+
+	/**
+	 * Soma o valor informado ao contador.
+	 * 
+	 * @param name
+	 * @param delta
+	 * @return valor atual do contador
+	 */
+	public static long add(String name, long delta) {
+		AtomicLong counter = COUNTERS.get(name);
+		if (counter == null) {
+			AtomicLong created = new AtomicLong();
+			counter = COUNTERS.putIfAbsent(name, created);
+			if (counter == null)
+				counter = created;
+		}
+		return counter.addAndGet(delta);
+	}
+
+	/**
+	 * Retorna o valor atual do contador, ou zero caso ele não exista.
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public static long get(String name) {
+		AtomicLong counter = COUNTERS.get(name);
+		return counter != null ? counter.get() : 0;
+	}
+
+	/**
+	 * Retorna uma cópia de todos os contadores, ordenados pelo nome.
+	 * 
+	 * @return
+	 */
+	public static Map<String, Long> getAll() {
+		Map<String, Long> all = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : COUNTERS.entrySet())
+			all.put(entry.getKey(), entry.getValue().get());
+		return Collections.unmodifiableMap(all);
+	}
+
+	/**
+	 * Zera todos os contadores.
+	 */
+	public static void reset() {
+		COUNTERS.clear();
+	}
+
+}
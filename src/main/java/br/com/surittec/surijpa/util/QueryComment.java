@@ -0,0 +1,181 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.util;
+
+import javax.persistence.Query;
+
+/**
+ * Identificação das queries no SQL gerado por meio de comentários, para
+ * relacionar as queries dos logs de queries lentas do banco com o código. O
+ * comentário é informado pela hint {@link #COMMENT_HINT} (no Hibernate,
+ * requer <code>hibernate.use_sql_comments=true</code>; provedores que não a
+ * conhecem a ignoram).
+ *
+ * Com {@link #enable(boolean)}, as queries da {@link br.com.surittec.surijpa.criteria.JPQL}
+ * e dos repositórios recebem como comentário a classe e o método que as
+ * chamou fora da biblioteca, por exemplo <code>PedidoRepository.findPendentes</code>.
+ * Uma query pode receber um comentário explícito com
+ * <code>JPQL.comment(String)</code>. Os métodos herdados dos repositórios
+ * (<code>findAll</code>, <code>findByIds</code>, named queries) informam o
+ * repositório e o método com {@link #getComment(Class, String)}, já que a
+ * pilha apontaria para o chamador do repositório.
+ *
+ * O comentário depende apenas do ponto do código, de forma que o SQL de cada
+ * query continua estável para o cache de planos e de statements. Incluir o id
+ * de rastreamento da requisição ({@link #setTraceId(String)}) torna cada SQL
+ * único e deve ser habilitado apenas para diagnóstico.
+ */
+public abstract class QueryComment {
+
+	public static final String COMMENT_HINT = "org.hibernate.comment";
+
+	private static final String LIBRARY_PACKAGE = "br.com.surittec.surijpa.";
+	private static final String[] SKIPPED_PACKAGES = { "java.", "javax.", "sun.", "com.sun.", "jdk.", "org.jboss.", "org.apache.deltaspike." };
+
+	private static final ThreadLocal<String> TRACE_ID = new ThreadLocal<String>();
+
+	private static volatile boolean enabled;
+	private static volatile boolean includeTraceId;
+
+	/**
+	 * Passa a identificar automaticamente as queries pelo ponto do código que
+	 * as chamou.
+	 * 
+	 * @param includeTraceId
+	 *            se o id de rastreamento da thread entra no comentário
+	 */
+	public static void enable(boolean includeTraceId) {
+		QueryComment.includeTraceId = includeTraceId;
+		QueryComment.enabled = true;
+	}
+
+	/**
+	 * Desliga a identificação automática.
+	 */
+	public static void disable() {
+		enabled = false;
+		includeTraceId = false;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Define o id de rastreamento (requisição, trace) da thread atual.
+	 * 
+	 * @param traceId
+	 */
+	public static void setTraceId(String traceId) {
+		TRACE_ID.set(traceId);
+	}
+
+	public static String getTraceId() {
+		return TRACE_ID.get();
+	}
+
+	/**
+	 * Remove o id de rastreamento da thread atual.
+	 */
+	public static void clearTraceId() {
+		TRACE_ID.remove();
+	}
+
+	/**
+	 * Aplica à query o comentário com o ponto do código que a chamou, caso a
+	 * identificação automática esteja habilitada.
+	 * 
+	 * @param query
+	 */
+	public static void applyTo(Query query) {
+		applyTo(query, null);
+	}
+
+	/**
+	 * Aplica à query o comentário informado ou, se <code>null</code> e a
+	 * identificação automática estiver habilitada, o ponto do código que a
+	 * chamou.
+	 * 
+	 * @param query
+	 * @param comment
+	 */
+	public static void applyTo(Query query, String comment) {
+		if (comment == null) {
+			if (!enabled)
+				return;
+			comment = getCaller();
+		}
+
+		String traceId = includeTraceId ? TRACE_ID.get() : null;
+		if (traceId != null)
+			comment = String.format("%s trace=%s", comment, traceId);
+		query.setHint(COMMENT_HINT, sanitize(comment));
+	}
+
+	/**
+	 * Retorna o comentário <code>Classe.metodo</code> para a classe (nome
+	 * simples, desconsiderando subclasses de proxies) e o método informados,
+	 * ou <code>null</code> se a identificação automática estiver desligada.
+	 * 
+	 * @param type
+	 * @param method
+	 * @return
+	 */
+	public static String getComment(Class<?> type, String method) {
+		if (!enabled)
+			return null;
+		while (type.getSuperclass() != null && (type.getName().contains("$$") || type.getName().contains("$Proxy")))
+			type = type.getSuperclass();
+		return String.format("%s.%s", type.getSimpleName(), method);
+	}
+
+	/**
+	 * Retorna a classe (nome simples) e o método do primeiro ponto da pilha
+	 * fora desta biblioteca, do JDK e de proxies.
+	 * 
+	 * @return
+	 */
+	public static String getCaller() {
+		StackTraceElement[] stack = new Throwable().getStackTrace();
+		for (StackTraceElement element : stack) {
+			String className = element.getClassName();
+			if (isSkipped(className))
+				continue;
+			return String.format("%s.%s", className.substring(className.lastIndexOf('.') + 1), element.getMethodName());
+		}
+		return "unknown";
+	}
+
+	private static boolean isSkipped(String className) {
+		if (className.startsWith(LIBRARY_PACKAGE) || className.contains("$$") || className.contains("$Proxy"))
+			return true;
+		for (String prefix : SKIPPED_PACKAGES) {
+			if (className.startsWith(prefix))
+				return true;
+		}
+		return false;
+	}
+
+	private static String sanitize(String comment) {
+		return comment.replace("*/", "* /").replace("/*", "/ *");
+	}
+
+}
@@ -0,0 +1,122 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Conjunto imutável e compacto de identificadores numéricos, guardado como um
+ * <code>long[]</code> ordenado e sem repetições (8 bytes por id). A busca é
+ * feita por pesquisa binária.
+ */
+public final class SortedIdSet implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final SortedIdSet EMPTY = new SortedIdSet(new long[0]);
+
+	private final long[] ids;
+
+	private SortedIdSet(long[] ids) {
+		this.ids = ids;
+	}
+
+	/**
+	 * Cria o conjunto a partir dos ids informados, que são copiados, ordenados
+	 * e sem repetições.
+	 * 
+	 * @param ids
+	 * @return
+	 */
+	public static SortedIdSet of(long... ids) {
+		if (ids.length == 0)
+			return EMPTY;
+		long[] sorted = ids.clone();
+		Arrays.sort(sorted);
+		int size = 1;
+		for (int i = 1; i < sorted.length; i++) {
+			if (sorted[i] != sorted[size - 1])
+				sorted[size++] = sorted[i];
+		}
+		return new SortedIdSet(size == sorted.length ? sorted : Arrays.copyOf(sorted, size));
+	}
+
+	/**
+	 * Cria o conjunto a partir dos ids informados.
+	 * 
+	 * @param ids
+	 * @return
+	 */
+	public static SortedIdSet of(int... ids) {
+		long[] values = new long[ids.length];
+		for (int i = 0; i < ids.length; i++)
+			values[i] = ids[i];
+		return of(values);
+	}
+
+	public boolean contains(long id) {
+		return Arrays.binarySearch(ids, id) >= 0;
+	}
+
+	public int size() {
+		return ids.length;
+	}
+
+	public boolean isEmpty() {
+		return ids.length == 0;
+	}
+
+	/**
+	 * Retorna o id na posição informada, em ordem crescente.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public long get(int index) {
+		return ids[index];
+	}
+
+	/**
+	 * Retorna uma cópia dos ids, em ordem crescente.
+	 * 
+	 * @return
+	 */
+	public long[] toArray() {
+		return ids.clone();
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(ids);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof SortedIdSet && Arrays.equals(ids, ((SortedIdSet) obj).ids);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("SortedIdSet[size=%d]", ids.length);
+	}
+
+}
@@ -0,0 +1,104 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcDataSource;
+
+import br.com.surittec.surijpa.model.Cliente;
+import br.com.surittec.surijpa.model.Pedido;
+
+/**
+ * Unidade de persistência dos testes sobre um banco H2 em memória, um banco
+ * por nome.
+ */
+public final class TestPersistence {
+
+	public static final String UNIT = "surijpa-test";
+
+	private TestPersistence() {
+	}
+
+	public static EntityManagerFactory create(String database) {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("javax.persistence.jdbc.url", url(database));
+		return Persistence.createEntityManagerFactory(UNIT, properties);
+	}
+
+	public static EntityManagerFactory create(DataSource dataSource) {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("hibernate.connection.datasource", dataSource);
+		return Persistence.createEntityManagerFactory(UNIT, properties);
+	}
+
+	public static DataSource dataSource(String database) {
+		JdbcDataSource dataSource = new JdbcDataSource();
+		dataSource.setURL(url(database));
+		return dataSource;
+	}
+
+	/**
+	 * Grava os pedidos informados em uma transação própria.
+	 */
+	public static List<Pedido> persist(EntityManagerFactory entityManagerFactory, List<Pedido> pedidos) {
+		EntityManager entityManager = entityManagerFactory.createEntityManager();
+		try {
+			entityManager.getTransaction().begin();
+			for (Pedido pedido : pedidos) {
+				if (pedido.getCliente() != null && pedido.getCliente().getId() == null)
+					entityManager.persist(pedido.getCliente());
+				entityManager.persist(pedido);
+			}
+			entityManager.getTransaction().commit();
+			return pedidos;
+		} finally {
+			entityManager.close();
+		}
+	}
+
+	/**
+	 * Remove todos os dados dos testes.
+	 */
+	public static void clean(EntityManagerFactory entityManagerFactory) {
+		EntityManager entityManager = entityManagerFactory.createEntityManager();
+		try {
+			entityManager.getTransaction().begin();
+			entityManager.createQuery(String.format("delete from %s", Pedido.class.getSimpleName())).executeUpdate();
+			entityManager.createQuery(String.format("delete from %s", Cliente.class.getSimpleName())).executeUpdate();
+			entityManager.getTransaction().commit();
+		} finally {
+			entityManager.close();
+		}
+	}
+
+	private static String url(String database) {
+		return String.format("jdbc:h2:mem:%s;DB_CLOSE_DELAY=-1", database);
+	}
+
+}
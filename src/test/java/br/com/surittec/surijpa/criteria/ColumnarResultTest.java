@@ -0,0 +1,137 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.criteria;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import br.com.surittec.surijpa.TestPersistence;
+import br.com.surittec.surijpa.model.Pedido;
+import br.com.surittec.surijpa.test.RecordedStatements;
+import br.com.surittec.surijpa.test.StatementRecorder;
+
+public class ColumnarResultTest {
+
+	private static final StatementRecorder recorder = new StatementRecorder();
+
+	private static EntityManagerFactory entityManagerFactory;
+
+	private EntityManager entityManager;
+
+	@BeforeClass
+	public static void setUpClass() {
+		entityManagerFactory = TestPersistence.create(recorder.wrap(TestPersistence.dataSource("columnar")));
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		entityManagerFactory.close();
+	}
+
+	@Before
+	public void setUp() {
+		TestPersistence.persist(entityManagerFactory, Arrays.asList(new Pedido("a", "NOVO", 1d), new Pedido("b", "PAGO", 2.5d),
+				new Pedido("c", "NOVO", 4d), new Pedido("d", null, 8d)));
+		entityManager = entityManagerFactory.createEntityManager();
+	}
+
+	@After
+	public void tearDown() {
+		entityManager.close();
+		TestPersistence.clean(entityManagerFactory);
+	}
+
+	@Test
+	public void integerColumnIsPromotedToDoubleOnTheFirstDecimal() {
+		ColumnarResult result = new ColumnarResult(Arrays.asList("valor"));
+		result.add(new Object[] { 1L });
+		result.add(new Object[] { 2 });
+		result.add(new Object[] { new BigDecimal("2.5") });
+		result.add(new Object[] { 3L });
+		result.trim();
+
+		assertEquals(ColumnarResult.Type.DOUBLE, result.getType(0));
+		assertArrayEquals(new double[] { 1, 2, 2.5, 3 }, result.getDoubles(0), 0);
+	}
+
+	@Test
+	public void nullsAreMaskedAndCodedAsMinusOne() {
+		ColumnarResult result = new ColumnarResult(Arrays.asList("p.status as status", "p.valor"));
+		result.add(new Object[] { null, null });
+		result.add(new Object[] { "NOVO", 1L });
+		result.add(new Object[] { null, 2L });
+		result.trim();
+
+		assertEquals(Arrays.asList("status", "p.valor"), result.getColumnNames());
+		assertArrayEquals(new int[] { -1, 0, -1 }, result.getCodes(0));
+		assertArrayEquals(new long[] { 0, 1, 2 }, result.getLongs(1));
+		assertTrue(result.isNull(0, 0));
+		assertTrue(result.isNull(0, 1));
+		assertFalse(result.isNull(1, 1));
+		assertNull(result.getValue(2, 0));
+	}
+
+	@Test
+	public void repeatedValuesShareOneDictionaryEntry() {
+		ColumnarResult result = new JPQL(entityManager).select("p.status").from("Pedido p").orderBy("p.descricao").getColumnarResult();
+
+		assertEquals(4, result.getRowCount());
+		assertEquals(ColumnarResult.Type.OBJECT, result.getType(0));
+		assertEquals(Arrays.<Object> asList("NOVO", "PAGO"), result.getDictionary(0));
+		assertArrayEquals(new int[] { 0, 1, 0, -1 }, result.getCodes(0));
+	}
+
+	@Test
+	public void groupedQueryIsReadInASinglePass() {
+		RecordedStatements statements = recorder.record(new Runnable() {
+			@Override
+			public void run() {
+				ColumnarResult result = new JPQL(entityManager).select("p.status", "count(p)", "sum(p.valor)").from("Pedido p")
+						.where("p.status is not null").groupBy("p.status").orderBy("p.status").getColumnarResult(1);
+				assertEquals(2, result.getRowCount());
+				assertArrayEquals(new long[] { 2, 1 }, result.getLongs(1));
+				assertArrayEquals(new double[] { 5, 2.5 }, result.getDoubles(2), 0);
+			}
+		});
+		statements.assertStatements(1, 0, 0, 0);
+	}
+
+	@Test(expected = ResultLimitExceededException.class)
+	public void resultLimitApplies() {
+		new JPQL(entityManager).select("p.descricao").from("Pedido p").limit(new ResultLimit(3, ResultLimit.Policy.FAIL)).getColumnarResult();
+	}
+
+}
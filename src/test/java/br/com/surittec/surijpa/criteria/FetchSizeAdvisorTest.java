@@ -0,0 +1,64 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.criteria;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class FetchSizeAdvisorTest {
+
+	private static final String SELECT = "select p from Pedido p";
+
+	@After
+	public void tearDown() {
+		FetchSizeAdvisor.reset();
+	}
+
+	@Test
+	public void pagedAndUnboundedExecutionsAreLearnedSeparately() {
+		FetchSizeAdvisor.record(SELECT, null, 50000);
+		FetchSizeAdvisor.record(SELECT, 20, 20);
+		FetchSizeAdvisor.record(SELECT, 25, 25);
+
+		assertEquals(50000d, FetchSizeAdvisor.getTemplate(SELECT).getAverageRows(), 0);
+		assertEquals(2, FetchSizeAdvisor.getTemplate(SELECT, 20).getExecutions());
+		assertEquals(Integer.valueOf(32), FetchSizeAdvisor.getTemplate(SELECT, 30).getMaxResults());
+		assertNull(FetchSizeAdvisor.getTemplate(SELECT, 100));
+	}
+
+	@Test
+	public void leastRecentlyUsedTemplatesAreEvicted() {
+		FetchSizeAdvisor.record(SELECT, null, 1);
+		for (int i = 0; i < 5000; i++) {
+			FetchSizeAdvisor.getTemplate(SELECT);
+			FetchSizeAdvisor.record(SELECT + " where p.id = " + i, null, 1);
+		}
+
+		assertNotNull(FetchSizeAdvisor.getTemplate(SELECT));
+		assertNull(FetchSizeAdvisor.getTemplate(SELECT + " where p.id = 0"));
+		assertNotNull(FetchSizeAdvisor.getTemplate(SELECT + " where p.id = 4999"));
+	}
+
+}
@@ -0,0 +1,228 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.criteria;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.persistence.Cache;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import br.com.surittec.surijpa.TestPersistence;
+import br.com.surittec.surijpa.model.Pedido;
+
+public class JPQLTest {
+
+	private static EntityManagerFactory entityManagerFactory;
+
+	private EntityManager entityManager;
+
+	@BeforeClass
+	public static void setUpClass() {
+		entityManagerFactory = TestPersistence.create("jpql");
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		entityManagerFactory.close();
+	}
+
+	@Before
+	public void setUp() {
+		TestPersistence.persist(entityManagerFactory, Arrays.asList(new Pedido("ana", "NOVO", 10d), new Pedido("bia", "ana", 20d),
+				new Pedido("caio", "PAGO", 30d)));
+		entityManager = entityManagerFactory.createEntityManager();
+	}
+
+	@After
+	public void tearDown() {
+		entityManager.close();
+		TestPersistence.clean(entityManagerFactory);
+	}
+
+	@Test
+	public void andIfAcceptsTheSameParameterTwice() {
+		List<?> result = new JPQL(entityManager).from("Pedido p").likeIf("an", "(p.descricao like :q or p.status like :q)").getResultList();
+		assertEquals(2, result.size());
+	}
+
+	@Test
+	public void andIfIgnoresColonsInsideLiterals() {
+		List<?> result = new JPQL(entityManager).from("Pedido p").andIf("PAGO", "p.descricao <> 'a:b' and p.status = :status").getResultList();
+		assertEquals(1, result.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void andIfRejectsDistinctParameters() {
+		new JPQL(entityManager).from("Pedido p").andIf("x", "p.descricao = :a or p.status = :b");
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void countQueryRequiresARootAlias() {
+		new JPQL(entityManager).select("descricao", "status").from("Pedido").toCountQuery();
+	}
+
+	@Test
+	public void pagedIdsKeepTheOrderOfTheQuery() {
+		long[] ids = new JPQL(entityManager).from("Pedido p").orderBy("p.valor desc").firstResult(1).maxResults(2).getLongIds();
+
+		List<?> expected = new JPQL(entityManager).select("p.id").from("Pedido p").orderBy("p.valor desc").getResultList();
+		assertEquals(2, ids.length);
+		assertEquals(((Number) expected.get(1)).longValue(), ids[0]);
+		assertEquals(((Number) expected.get(2)).longValue(), ids[1]);
+	}
+
+	@Test(expected = ArithmeticException.class)
+	public void intIdsRejectIdsOutOfRange() {
+		entityManager.getTransaction().begin();
+		entityManager.createNativeQuery("insert into Pedido (id, version, descricao, status, valor) values (3000000000, 0, 'x', 'NOVO', 1)")
+				.executeUpdate();
+		entityManager.getTransaction().commit();
+
+		new JPQL(entityManager).from("Pedido p").getIntIds();
+	}
+
+	@Test
+	public void subqueryRenamesBoundParametersOutsideLiterals() {
+		JPQL query = new JPQL(entityManager).select("p.descricao").from("Pedido p").where("p.status <> :status").withParam("status", "PAGO");
+		String subquery = query.subquery(new JPQL(entityManager).select("s.id").from("Pedido s").where("s.status = :status")
+				.and("s.descricao <> ':status'").withParam("status", "NOVO"));
+
+		assertTrue(subquery, subquery.contains("s.status = :status_sq1"));
+		assertTrue(subquery, subquery.contains("':status'"));
+		assertEquals(Arrays.asList("ana"), query.and("p.id in " + subquery).getResultList());
+	}
+
+	@Test
+	public void subqueryRenamesUnboundParametersThatCollideWithBoundOnes() {
+		JPQL query = new JPQL(entityManager).select("p.descricao").from("Pedido p").where("p.status <> :status").withParam("status", "PAGO");
+		String subquery = query.subquery(new JPQL(entityManager).select("s.id").from("Pedido s").where("s.status = :status"));
+
+		assertTrue(subquery, subquery.contains(":status_sq1"));
+		assertEquals(Arrays.asList("ana"), query.and("p.id in " + subquery).withParam("status_sq1", "NOVO").getResultList());
+	}
+
+	@Test
+	public void updateReturnsTheRowCountAndIncrementsTheVersion() {
+		Pedido ana = find("ana");
+		entityManager.clear();
+
+		entityManager.getTransaction().begin();
+		int count = new JPQL(entityManager).update(Pedido.class, "p").set("p.status", "'PAGO'").incrementVersion().where("p.status = 'NOVO'")
+				.executeUpdate();
+		entityManager.getTransaction().commit();
+
+		assertEquals(1, count);
+		Pedido updated = find("ana");
+		assertEquals("PAGO", updated.getStatus());
+		assertEquals(Long.valueOf(ana.getVersion() + 1), updated.getVersion());
+		assertEquals(Long.valueOf(0), find("caio").getVersion());
+	}
+
+	@Test
+	public void updateRefreshesOnlyTheSynchronizedInstances() {
+		Pedido ana = find("ana");
+		Pedido bia = find("bia");
+
+		entityManager.getTransaction().begin();
+		new JPQL(entityManager).update(Pedido.class, "p").set("p.valor", "p.valor + 1").synchronize(Arrays.asList(ana)).executeUpdate();
+		entityManager.getTransaction().commit();
+
+		assertEquals(Double.valueOf(11), ana.getValor());
+		// instâncias não informadas em synchronize ficam com o estado anterior
+		assertEquals(Double.valueOf(20), bia.getValor());
+	}
+
+	@Test
+	public void deleteDetachesTheSynchronizedInstances() {
+		Pedido ana = find("ana");
+
+		entityManager.getTransaction().begin();
+		int count = new JPQL(entityManager).delete(Pedido.class, "p").where("p.descricao = 'ana'").synchronize(Arrays.asList(ana)).executeUpdate();
+		entityManager.getTransaction().commit();
+
+		assertEquals(1, count);
+		assertFalse(entityManager.contains(ana));
+	}
+
+	@Test
+	public void updateEvictsTheSecondLevelCacheOfTheEntity() {
+		final List<Object> evicted = new ArrayList<Object>();
+		final Cache cache = (Cache) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Cache.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("evict"))
+					evicted.addAll(Arrays.asList(args));
+				return null;
+			}
+		});
+		final EntityManagerFactory factory = delegate(EntityManagerFactory.class, entityManagerFactory, "getCache", cache);
+		EntityManager withCache = delegate(EntityManager.class, entityManager, "getEntityManagerFactory", factory);
+
+		entityManager.getTransaction().begin();
+		new JPQL(withCache).update(Pedido.class, "p").set("p.status", "'PAGO'").executeUpdate();
+		entityManager.getTransaction().commit();
+
+		assertEquals(Arrays.<Object> asList(Pedido.class), evicted);
+	}
+
+	private Pedido find(String descricao) {
+		return new JPQL(entityManager).select("p").from("Pedido p").where("p.descricao = :descricao").withParam("descricao", descricao)
+				.getSingleResult(Pedido.class);
+	}
+
+	/**
+	 * Cria um proxy que repassa as chamadas ao objeto informado, exceto o
+	 * método <code>method</code>, que retorna <code>result</code>.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> T delegate(Class<T> type, final T target, final String method, final Object result) {
+		return (T) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+				if (m.getName().equals(method))
+					return result;
+				try {
+					return m.invoke(target, args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+		});
+	}
+
+}
@@ -0,0 +1,144 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.criteria;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import br.com.surittec.surijpa.TestPersistence;
+import br.com.surittec.surijpa.model.Pedido;
+import br.com.surittec.surijpa.test.RecordedStatements;
+import br.com.surittec.surijpa.test.StatementRecorder;
+
+public class LazyResultListTest {
+
+	private static StatementRecorder recorder = new StatementRecorder();
+	private static EntityManagerFactory entityManagerFactory;
+
+	private EntityManager entityManager;
+
+	@BeforeClass
+	public static void setUpClass() {
+		entityManagerFactory = TestPersistence.create(recorder.wrap(TestPersistence.dataSource("lazy")));
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		entityManagerFactory.close();
+	}
+
+	@Before
+	public void setUp() {
+		List<Pedido> pedidos = new ArrayList<Pedido>();
+		for (int i = 0; i < 7; i++)
+			pedidos.add(new Pedido(String.valueOf((char) ('g' - i)), "NOVO", (double) i));
+		TestPersistence.persist(entityManagerFactory, pedidos);
+		entityManager = entityManagerFactory.createEntityManager();
+	}
+
+	@After
+	public void tearDown() {
+		entityManager.close();
+		TestPersistence.clean(entityManagerFactory);
+	}
+
+	@Test
+	public void sequentialPagesAreReadByIdWithoutOffset() {
+		final List<Pedido> rows = new ArrayList<Pedido>();
+		RecordedStatements statements = recorder.record(new Runnable() {
+			@Override
+			public void run() {
+				for (Pedido pedido : new JPQL(entityManager).from("Pedido p").getLazyResultList(Pedido.class, 2))
+					rows.add(pedido);
+			}
+		});
+
+		assertEquals(ids(new JPQL(entityManager).from("Pedido p").orderBy("p.id").getResultList(Pedido.class)), ids(rows));
+		assertEquals(4, statements.getCount(RecordedStatements.Kind.SELECT));
+		assertEquals(3, count(statements, "id>?"));
+		assertEquals(0, count(statements, "offset"));
+	}
+
+	@Test
+	public void directAccessUsesOffsetAndTheFollowingPageUsesTheId() {
+		final List<Pedido> expected = new JPQL(entityManager).from("Pedido p").orderBy("p.id").getResultList(Pedido.class);
+		final List<Pedido> lazy = new JPQL(entityManager).from("Pedido p").orderBy("p.id").getLazyResultList(Pedido.class, 2);
+
+		RecordedStatements statements = recorder.record(new Runnable() {
+			@Override
+			public void run() {
+				assertEquals(expected.get(4), lazy.get(4));
+				assertEquals(expected.get(6), lazy.get(6));
+			}
+		});
+
+		assertEquals(2, statements.getCount(RecordedStatements.Kind.SELECT));
+		assertTrue(statements.getStatements().get(0).contains("offset"));
+		assertTrue(statements.getStatements().get(1).contains("id>?"));
+		assertFalse(statements.getStatements().get(1).contains("offset"));
+	}
+
+	@Test
+	public void queriesOrderedByOtherAttributesUseOffset() {
+		final List<Pedido> rows = new ArrayList<Pedido>();
+		RecordedStatements statements = recorder.record(new Runnable() {
+			@Override
+			public void run() {
+				for (Pedido pedido : new JPQL(entityManager).from("Pedido p").orderBy("p.descricao").getLazyResultList(Pedido.class, 2))
+					rows.add(pedido);
+			}
+		});
+
+		assertEquals("a", rows.get(0).getDescricao());
+		assertEquals(7, rows.size());
+		assertEquals(0, count(statements, "id>?"));
+		assertEquals(3, count(statements, "offset"));
+	}
+
+	private static int count(RecordedStatements statements, String fragment) {
+		int count = 0;
+		for (String statement : statements.getStatements())
+			if (statement.contains(fragment))
+				count++;
+		return count;
+	}
+
+	private static List<Long> ids(List<Pedido> pedidos) {
+		List<Long> ids = new ArrayList<Long>();
+		for (Pedido pedido : pedidos)
+			ids.add(pedido.getId());
+		return ids;
+	}
+
+}
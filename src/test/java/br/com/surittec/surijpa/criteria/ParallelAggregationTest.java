@@ -0,0 +1,113 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.criteria;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.QueryTimeoutException;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import br.com.surittec.surijpa.TestPersistence;
+import br.com.surittec.surijpa.model.Pedido;
+import br.com.surittec.surijpa.util.Deadline;
+
+public class ParallelAggregationTest {
+
+	private static EntityManagerFactory entityManagerFactory;
+
+	private EntityManager entityManager;
+
+	@BeforeClass
+	public static void setUpClass() {
+		entityManagerFactory = TestPersistence.create("aggregation");
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		entityManagerFactory.close();
+	}
+
+	@Before
+	public void setUp() {
+		TestPersistence.persist(entityManagerFactory, Arrays.asList(new Pedido("a", "NOVO", 1d), new Pedido("b", "NOVO", 2d),
+				new Pedido("c", "PAGO", 4d)));
+		entityManager = entityManagerFactory.createEntityManager();
+	}
+
+	@After
+	public void tearDown() {
+		Deadline.clear();
+		entityManager.close();
+		TestPersistence.clean(entityManagerFactory);
+	}
+
+	@Test
+	public void splitsTheWholeLongRangeWithoutOverflow() {
+		JPQL query = new JPQL(entityManager).select("p.status", "sum(p.valor)").from("Pedido p").groupBy("p.status");
+
+		List<Object[]> result = new ParallelAggregation(entityManagerFactory, query, "p.id").range(Long.MIN_VALUE, Long.MAX_VALUE)
+				.partitions(3).orderBy(new Comparator<Object[]>() {
+					@Override
+					public int compare(Object[] o1, Object[] o2) {
+						return ((String) o1[0]).compareTo((String) o2[0]);
+					}
+				}).getResultList();
+
+		assertEquals(2, result.size());
+		assertEquals(3d, ((Number) result.get(0)[1]).doubleValue(), 0);
+		assertEquals(4d, ((Number) result.get(1)[1]).doubleValue(), 0);
+	}
+
+	@Test
+	public void tasksKeepTheCallersAbsoluteDeadline() throws Exception {
+		Deadline.start(50, TimeUnit.MILLISECONDS);
+		Callable<List<?>> task = ParallelAggregation.task(new JPQL(entityManager).select("p").from("Pedido p"));
+		Thread.sleep(100);
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			executor.submit(task).get();
+			fail("the deadline must not restart in the task thread");
+		} catch (ExecutionException e) {
+			assertEquals(QueryTimeoutException.class, e.getCause().getClass());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+}
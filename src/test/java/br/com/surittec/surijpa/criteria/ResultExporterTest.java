@@ -0,0 +1,120 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.criteria;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import br.com.surittec.surijpa.TestPersistence;
+import br.com.surittec.surijpa.model.Pedido;
+import br.com.surittec.surijpa.test.RecordedStatements;
+import br.com.surittec.surijpa.test.StatementRecorder;
+
+public class ResultExporterTest {
+
+	private static StatementRecorder recorder = new StatementRecorder();
+	private static EntityManagerFactory entityManagerFactory;
+
+	private EntityManager entityManager;
+
+	@BeforeClass
+	public static void setUpClass() {
+		entityManagerFactory = TestPersistence.create(recorder.wrap(TestPersistence.dataSource("exporter")));
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		entityManagerFactory.close();
+	}
+
+	@Before
+	public void setUp() {
+		TestPersistence.persist(entityManagerFactory, Arrays.asList(new Pedido("a", "NOVO", 1d), new Pedido("b", "NOVO", Double.NaN),
+				new Pedido("c", "PAGO", Double.POSITIVE_INFINITY), new Pedido("d", "PAGO", 4d), new Pedido("e", "PAGO", 5d)));
+		entityManager = entityManagerFactory.createEntityManager();
+	}
+
+	@After
+	public void tearDown() {
+		entityManager.close();
+		TestPersistence.clean(entityManagerFactory);
+	}
+
+	@Test
+	public void pagesEntitiesByIdWithoutClearingThePersistenceContext() {
+		final Object managed = new JPQL(entityManager).from("Pedido p").where("p.descricao = 'a'").getSingleResult();
+		final StringWriter writer = new StringWriter();
+
+		RecordedStatements statements = recorder.record(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					assertEquals(5, new JPQL(entityManager).from("Pedido p").export(ResultExporter.Format.CSV).chunkSize(2).column("descricao")
+							.writeTo(writer));
+				} catch (IOException e) {
+					throw new AssertionError(e);
+				}
+			}
+		});
+
+		assertEquals("descricao\r\na\r\nb\r\nc\r\nd\r\ne\r\n", writer.toString());
+		assertEquals(3, statements.getTotal());
+		for (String statement : statements.getStatements())
+			assertFalse(statement, statement.toLowerCase().contains("offset"));
+		assertTrue(entityManager.contains(managed));
+	}
+
+	@Test
+	public void projectionsKeepTheirColumnsAndFirstResult() throws IOException {
+		StringWriter writer = new StringWriter();
+
+		long rows = new JPQL(entityManager).select("p.descricao", "p.status").from("Pedido p").orderBy("p.id asc").firstResult(1)
+				.maxResults(3).export(ResultExporter.Format.CSV).chunkSize(2).writeTo(writer);
+
+		assertEquals(3, rows);
+		assertEquals("p.descricao,p.status\r\nb,NOVO\r\nc,PAGO\r\nd,PAGO\r\n", writer.toString());
+	}
+
+	@Test
+	public void writesNonFiniteNumbersAsJsonNull() throws IOException {
+		StringWriter writer = new StringWriter();
+
+		new JPQL(entityManager).select("p.valor").from("Pedido p").where("p.descricao in ('b', 'c')").export(ResultExporter.Format.JSON)
+				.column("valor").writeTo(writer);
+
+		assertEquals("[\n{\"valor\":null},\n{\"valor\":null}\n]", writer.toString());
+	}
+
+}
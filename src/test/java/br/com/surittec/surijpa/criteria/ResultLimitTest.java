@@ -0,0 +1,153 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.criteria;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import br.com.surittec.surijpa.TestPersistence;
+import br.com.surittec.surijpa.model.Pedido;
+import br.com.surittec.surijpa.test.RecordedStatements;
+import br.com.surittec.surijpa.test.StatementRecorder;
+
+public class ResultLimitTest {
+
+	private static StatementRecorder recorder = new StatementRecorder();
+	private static EntityManagerFactory entityManagerFactory;
+
+	private EntityManager entityManager;
+
+	@BeforeClass
+	public static void setUpClass() {
+		entityManagerFactory = TestPersistence.create(recorder.wrap(TestPersistence.dataSource("limit")));
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		entityManagerFactory.close();
+	}
+
+	@Before
+	public void setUp() {
+		List<Pedido> pedidos = new ArrayList<Pedido>();
+		for (int i = 0; i < 7; i++)
+			pedidos.add(new Pedido(String.valueOf((char) ('g' - i)), i % 2 == 0 ? "NOVO" : "PAGO", (double) i));
+		TestPersistence.persist(entityManagerFactory, pedidos);
+		entityManager = entityManagerFactory.createEntityManager();
+	}
+
+	@After
+	public void tearDown() {
+		entityManager.close();
+		TestPersistence.clean(entityManagerFactory);
+	}
+
+	@Test
+	public void streamContinuesAfterTheBoundedRowsByIdAndDetachesPassedPages() {
+		final List<Pedido> rows = new ArrayList<Pedido>();
+		RecordedStatements statements = recorder.record(new Runnable() {
+			@Override
+			public void run() {
+				List<Pedido> pedidos = new JPQL(entityManager).from("Pedido p").limit(new ResultLimit(3, ResultLimit.Policy.STREAM, 2))
+						.getResultList(Pedido.class);
+				for (Pedido pedido : pedidos)
+					rows.add(pedido);
+			}
+		});
+
+		assertEquals(7, rows.size());
+		for (int i = 1; i < rows.size(); i++)
+			assertTrue(rows.get(i - 1).getId() < rows.get(i).getId());
+		// 4 linhas da consulta limitada e páginas de 2 e 1 linhas pelo id
+		assertEquals(3, statements.getTotal());
+		for (String statement : statements.getStatements())
+			assertFalse(statement, statement.toLowerCase().contains("offset"));
+		assertFalse(entityManager.contains(rows.get(0)));
+		assertTrue(entityManager.contains(rows.get(6)));
+	}
+
+	@Test
+	public void streamIsReadOnlyAndForwardOnly() {
+		List<Pedido> pedidos = new JPQL(entityManager).from("Pedido p").limit(new ResultLimit(3, ResultLimit.Policy.STREAM, 2))
+				.getResultList(Pedido.class);
+
+		assertEquals(7, pedidos.size());
+		pedidos.get(5);
+		try {
+			pedidos.get(0);
+			throw new AssertionError("passed rows must not be read again");
+		} catch (UnsupportedOperationException e) {
+			// esperado
+		}
+		try {
+			pedidos.add(new Pedido());
+			throw new AssertionError("the list must be read-only");
+		} catch (UnsupportedOperationException e) {
+			// esperado
+		}
+	}
+
+	@Test
+	public void streamDoesNotDetachPagesWithPendingChanges() {
+		List<Pedido> pedidos = new JPQL(entityManager).from("Pedido p").limit(new ResultLimit(3, ResultLimit.Policy.STREAM, 2))
+				.getResultList(Pedido.class);
+		Pedido changed = pedidos.get(0);
+		changed.setStatus("ALTERADO");
+		try {
+			pedidos.get(5);
+			throw new AssertionError("pending changes must not be discarded");
+		} catch (IllegalStateException e) {
+			// esperado
+		}
+		assertTrue(entityManager.contains(changed));
+
+		entityManager.getTransaction().begin();
+		entityManager.flush();
+		assertEquals("b", pedidos.get(5).getDescricao());
+		entityManager.getTransaction().commit();
+		assertEquals("ALTERADO", entityManager.find(Pedido.class, changed.getId()).getStatus());
+	}
+
+	@Test(expected = ResultLimitExceededException.class)
+	public void streamFailsForQueriesThatCannotBePagedById() {
+		new JPQL(entityManager).select("p.status", "count(p)").from("Pedido p").groupBy("p.status").limit(new ResultLimit(1, ResultLimit.Policy.STREAM))
+				.getResultList();
+	}
+
+	@Test(expected = ResultLimitExceededException.class)
+	public void streamFailsForQueriesOrderedByOtherAttributes() {
+		new JPQL(entityManager).from("Pedido p").orderBy("p.descricao").limit(new ResultLimit(3, ResultLimit.Policy.STREAM)).getResultList();
+	}
+
+}
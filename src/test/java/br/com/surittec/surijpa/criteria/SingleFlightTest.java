@@ -0,0 +1,201 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.criteria;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import br.com.surittec.surijpa.TestPersistence;
+import br.com.surittec.surijpa.model.Pedido;
+import br.com.surittec.surijpa.test.StatementRecorder;
+import br.com.surittec.surijpa.util.MetricsUtil;
+
+public class SingleFlightTest {
+
+	private static final String SELECT = "select p from Pedido p order by p.id";
+
+	private static final StatementRecorder recorder = new StatementRecorder();
+
+	private static EntityManagerFactory entityManagerFactory;
+
+	private ExecutorService executor;
+
+	@BeforeClass
+	public static void setUpClass() {
+		entityManagerFactory = TestPersistence.create(recorder.wrap(TestPersistence.dataSource("singleflight")));
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		entityManagerFactory.close();
+	}
+
+	@Before
+	public void setUp() {
+		TestPersistence.persist(entityManagerFactory, Arrays.asList(new Pedido("a", "NOVO", 1d), new Pedido("b", "PAGO", 2d)));
+		executor = Executors.newSingleThreadExecutor();
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+		TestPersistence.clean(entityManagerFactory);
+	}
+
+	@Test
+	public void followersReceiveDetachedCopiesWithoutQuerying() throws Exception {
+		recorder.start();
+		List<?> follower = coalesce(SELECT, JPQL.Coalescing.SHARED);
+		recorder.stop();
+
+		recorder.getStatements().assertStatements(1, 0, 0, 0);
+		assertEquals(2, follower.size());
+		assertEquals("a", ((Pedido) follower.get(0)).getDescricao());
+		assertEquals("b", ((Pedido) follower.get(1)).getDescricao());
+	}
+
+	@Test
+	public void entitiesInsideProjectionsAreCopiedToo() throws Exception {
+		recorder.start();
+		List<?> follower = coalesce("select p.descricao, p from Pedido p order by p.id", JPQL.Coalescing.COPY);
+		recorder.stop();
+
+		recorder.getStatements().assertStatements(1, 0, 0, 0);
+		assertEquals(2, follower.size());
+		Object[] row = (Object[]) follower.get(0);
+		assertEquals("a", row[0]);
+		assertEquals("a", ((Pedido) row[1]).getDescricao());
+	}
+
+	@Test
+	public void rowsDeletedAfterTheQueryAreKept() throws Exception {
+		final String jpql = "select p from Pedido p where p.descricao = 'a'";
+		List<?> follower = coalesce(jpql, JPQL.Coalescing.COPY, new Runnable() {
+			@Override
+			public void run() {
+				EntityManager other = entityManagerFactory.createEntityManager();
+				try {
+					other.getTransaction().begin();
+					other.createQuery("delete from Pedido p where p.descricao = 'a'").executeUpdate();
+					other.getTransaction().commit();
+				} finally {
+					other.close();
+				}
+			}
+		});
+
+		assertEquals(1, follower.size());
+		assertEquals("a", ((Pedido) follower.get(0)).getDescricao());
+	}
+
+	/**
+	 * Executa a query numa thread líder, que só termina depois que a chamada
+	 * desta thread está aguardando o seu resultado, e verifica que as
+	 * entidades recebidas são cópias que não pertencem a nenhum EntityManager.
+	 */
+	private List<?> coalesce(String jpql, JPQL.Coalescing coalescing) throws Exception {
+		return coalesce(jpql, coalescing, null);
+	}
+
+	private List<?> coalesce(final String jpql, JPQL.Coalescing coalescing, final Runnable afterQuery) throws Exception {
+		final Object key = Arrays.asList(entityManagerFactory, jpql);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final EntityManager leaderEntityManager = entityManagerFactory.createEntityManager();
+		EntityManager entityManager = entityManagerFactory.createEntityManager();
+		try {
+			Future<List<?>> leader = executor.submit(new Callable<List<?>>() {
+				@Override
+				public List<?> call() {
+					return SingleFlight.execute(key, JPQL.Coalescing.SHARED, new Callable<List<?>>() {
+						@Override
+						public List<?> call() throws Exception {
+							started.countDown();
+							release.await(10, TimeUnit.SECONDS);
+							List<?> result = leaderEntityManager.createQuery(jpql).getResultList();
+							if (afterQuery != null)
+								afterQuery.run();
+							return result;
+						}
+					});
+				}
+			});
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+
+			final long coalesced = MetricsUtil.get(SingleFlight.METRIC_COALESCED);
+			Thread releaser = new Thread() {
+				@Override
+				public void run() {
+					while (MetricsUtil.get(SingleFlight.METRIC_COALESCED) == coalesced)
+						Thread.yield();
+					release.countDown();
+				}
+			};
+			releaser.start();
+
+			List<?> result = SingleFlight.execute(key, coalescing, new Callable<List<?>>() {
+				@Override
+				public List<?> call() {
+					throw new AssertionError("follower must not run the query");
+				}
+			});
+			releaser.join();
+
+			List<?> leaderResult = leader.get(10, TimeUnit.SECONDS);
+			for (int i = 0; i < result.size(); i++) {
+				Object leaderRow = leaderResult.get(i);
+				Object row = result.get(i);
+				Object leaderEntity = leaderRow instanceof Object[] ? ((Object[]) leaderRow)[1] : leaderRow;
+				Object entity = row instanceof Object[] ? ((Object[]) row)[1] : row;
+				assertNotSame(leaderEntity, entity);
+				assertSame(Pedido.class, entity.getClass());
+				assertFalse(entityManager.contains(entity));
+				assertTrue(leaderEntityManager.contains(leaderEntity));
+			}
+			return result;
+		} finally {
+			entityManager.close();
+			leaderEntityManager.close();
+		}
+	}
+
+}
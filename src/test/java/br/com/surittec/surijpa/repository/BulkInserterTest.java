@@ -0,0 +1,156 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import br.com.surittec.surijpa.TestPersistence;
+import br.com.surittec.surijpa.model.Pedido;
+import br.com.surittec.surijpa.test.RecordedStatements;
+import br.com.surittec.surijpa.test.StatementRecorder;
+
+public class BulkInserterTest {
+
+	private static StatementRecorder recorder = new StatementRecorder();
+	private static EntityManagerFactory entityManagerFactory;
+
+	private EntityManager entityManager;
+
+	@BeforeClass
+	public static void setUpClass() {
+		entityManagerFactory = TestPersistence.create(recorder.wrap(TestPersistence.dataSource("bulk")));
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		entityManagerFactory.close();
+	}
+
+	@Before
+	public void setUp() {
+		entityManager = entityManagerFactory.createEntityManager();
+	}
+
+	@After
+	public void tearDown() {
+		entityManager.close();
+		TestPersistence.clean(entityManagerFactory);
+	}
+
+	@Test
+	public void flushesPendingChangesAndJoinsTheEntityManagerTransaction() {
+		final Pedido pedido = TestPersistence.persist(entityManagerFactory, Arrays.asList(new Pedido("a", "NOVO", 1d))).get(0);
+
+		entityManager.getTransaction().begin();
+		RecordedStatements statements = recorder.record(new Runnable() {
+			@Override
+			public void run() {
+				entityManager.find(Pedido.class, pedido.getId()).setStatus("PAGO");
+				new BulkInserter<Pedido>(entityManager, Pedido.class).mode(BulkInserter.Mode.JDBC_BATCH).insert(pedidos(3));
+			}
+		});
+		entityManager.getTransaction().rollback();
+
+		List<String> sql = statements.getStatements();
+		assertTrue(sql.toString(), sql.get(1).toLowerCase().startsWith("update"));
+		assertTrue(sql.toString(), sql.get(2).toLowerCase().startsWith("insert"));
+		assertEquals(1L, count());
+	}
+
+	@Test
+	public void multiRowInsertsAreCappedAtOneThousandRows() {
+		List<Pedido> pedidos = pedidos(2500);
+		entityManager.getTransaction().begin();
+		BulkInserter.Result result = new BulkInserter<Pedido>(entityManager, Pedido.class).mode(BulkInserter.Mode.MULTI_ROW).batchSize(5000)
+				.insert(pedidos);
+		entityManager.getTransaction().commit();
+
+		assertEquals(3, result.getStatements());
+		assertEquals(2500L, count());
+		assertGeneratedIds(pedidos);
+	}
+
+	@Test
+	public void dataSourceInsertsCommitInTheirOwnTransaction() {
+		List<Pedido> pedidos = pedidos(5);
+		new BulkInserter<Pedido>(entityManager, Pedido.class).dataSource(TestPersistence.dataSource("bulk")).mode(BulkInserter.Mode.JDBC_BATCH)
+				.insert(pedidos);
+
+		assertEquals(5L, count());
+		assertGeneratedIds(pedidos);
+	}
+
+	@Test
+	public void nullsAreBoundWithTheColumnSqlType() {
+		final List<Pedido> pedidos = Arrays.asList(new Pedido("nulo", null, null));
+		entityManager.getTransaction().begin();
+		recorder.record(new Runnable() {
+			@Override
+			public void run() {
+				new BulkInserter<Pedido>(entityManager, Pedido.class).mode(BulkInserter.Mode.JDBC_BATCH).insert(pedidos);
+			}
+		});
+		entityManager.getTransaction().commit();
+
+		List<Integer> types = recorder.getNullTypes();
+		assertEquals(3, types.size());
+		assertTrue(types.toString(), types.containsAll(Arrays.asList(Types.VARCHAR, Types.DOUBLE, Types.BIGINT)));
+		assertEquals(1L, count());
+	}
+
+	private static List<Pedido> pedidos(int count) {
+		List<Pedido> pedidos = new ArrayList<Pedido>(count);
+		for (int i = 0; i < count; i++)
+			pedidos.add(new Pedido("bulk-" + i, "NOVO", (double) i));
+		return pedidos;
+	}
+
+	/**
+	 * O H2 retorna apenas a última chave gerada, como o SQL Server: os ids
+	 * devem ficar nulos, e não ser atribuídos às entidades erradas.
+	 */
+	private void assertGeneratedIds(List<Pedido> pedidos) {
+		for (Pedido pedido : pedidos) {
+			if (pedido.getId() != null)
+				assertEquals(pedido.getDescricao(), entityManager.find(Pedido.class, pedido.getId()).getDescricao());
+		}
+	}
+
+	private long count() {
+		return (Long) entityManager.createQuery("select count(p) from Pedido p").getSingleResult();
+	}
+
+}
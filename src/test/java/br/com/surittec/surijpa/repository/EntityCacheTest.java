@@ -0,0 +1,160 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.hibernate.engine.spi.EntityKey;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import br.com.surittec.surijpa.TestPersistence;
+import br.com.surittec.surijpa.model.Pedido;
+
+public class EntityCacheTest {
+
+	private static EntityManagerFactory entityManagerFactory;
+
+	private EntityCache cache;
+	private Pedido pedido;
+
+	@BeforeClass
+	public static void setUpClass() {
+		entityManagerFactory = TestPersistence.create("cache");
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		entityManagerFactory.close();
+	}
+
+	@Before
+	public void setUp() {
+		cache = new EntityCache(100, 1, TimeUnit.MINUTES).cacheable(Pedido.class);
+		pedido = TestPersistence.persist(entityManagerFactory, Arrays.asList(new Pedido("a", "NOVO", 1d))).get(0);
+	}
+
+	@After
+	public void tearDown() {
+		TestPersistence.clean(entityManagerFactory);
+	}
+
+	@Test
+	public void concurrentReadBeforeCommitDoesNotRecacheTheOldRow() {
+		EntityManager writer = entityManagerFactory.createEntityManager();
+		EntityManager reader = entityManagerFactory.createEntityManager();
+		try {
+			writer.getTransaction().begin();
+			Pedido changed = new PedidoRepository(writer).with(cache).findBy(pedido.getId());
+			changed.setStatus("PAGO");
+			new PedidoRepository(writer).with(cache).save(changed);
+			writer.flush();
+
+			// lê a linha confirmada anterior enquanto a escrita não terminou
+			assertEquals("NOVO", new PedidoRepository(reader).with(cache).findBy(pedido.getId()).getStatus());
+			assertNull(cache.get(Pedido.class, pedido.getId()));
+
+			writer.getTransaction().commit();
+		} finally {
+			writer.close();
+			reader.close();
+		}
+
+		EntityManager after = entityManagerFactory.createEntityManager();
+		try {
+			assertEquals("PAGO", new PedidoRepository(after).with(cache).findBy(pedido.getId()).getStatus());
+			assertEquals("PAGO", cache.get(Pedido.class, pedido.getId()).getStatus());
+		} finally {
+			after.close();
+		}
+	}
+
+	@Test
+	public void findByReturnsTheManagedInstance() {
+		EntityManager entityManager = entityManagerFactory.createEntityManager();
+		try {
+			PedidoRepository repository = new PedidoRepository(entityManager).with(cache);
+			assertNotNull(repository.findBy(pedido.getId()));
+			assertNotNull(cache.get(Pedido.class, pedido.getId()));
+
+			Pedido managed = entityManager.find(Pedido.class, pedido.getId());
+			managed.setStatus("ALTERADO");
+			assertSame(managed, repository.findBy(pedido.getId()));
+
+			entityManager.clear();
+			Pedido copy = repository.findBy(pedido.getId());
+			assertNotSame(managed, copy);
+			assertEquals("NOVO", copy.getStatus());
+		} finally {
+			entityManager.close();
+		}
+	}
+
+	@Test
+	public void findByMissDoesNotLeaveProxiesInTheContext() {
+		EntityManager entityManager = entityManagerFactory.createEntityManager();
+		try {
+			PedidoRepository repository = new PedidoRepository(entityManager).with(cache);
+			assertEquals(Pedido.class, repository.findBy(pedido.getId()).getClass());
+
+			assertNull(repository.findBy(999999L));
+			SessionImplementor session = entityManager.unwrap(SessionImplementor.class);
+			EntityKey key = session.generateEntityKey(999999L, session.getFactory().getEntityPersister(Pedido.class.getName()));
+			assertNull(session.getPersistenceContext().getProxy(key));
+			assertNull(session.getPersistenceContext().getEntity(key));
+		} finally {
+			entityManager.close();
+		}
+	}
+
+	@Test
+	public void proxiesAreKeyedByEntityClass() {
+		EntityManager entityManager = entityManagerFactory.createEntityManager();
+		try {
+			Pedido proxy = entityManager.getReference(Pedido.class, pedido.getId());
+			proxy.getStatus();
+			assertNotSame(Pedido.class, proxy.getClass());
+
+			cache.put(entityManager, proxy);
+			assertEquals("NOVO", cache.get(Pedido.class, pedido.getId()).getStatus());
+
+			cache.invalidate(entityManager, proxy);
+			assertNull(cache.get(Pedido.class, pedido.getId()));
+		} finally {
+			entityManager.close();
+		}
+	}
+
+}
@@ -0,0 +1,258 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.LockModeType;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import br.com.surittec.surijpa.TestPersistence;
+import br.com.surittec.surijpa.criteria.JPQL;
+import br.com.surittec.surijpa.model.Pedido;
+import br.com.surittec.surijpa.test.StatementRecorder;
+
+public class EntityRepositorySupportTest {
+
+	private static final StatementRecorder recorder = new StatementRecorder();
+
+	private static EntityManagerFactory entityManagerFactory;
+
+	private EntityManager entityManager;
+	private PedidoRepository repository;
+	private List<Pedido> pedidos;
+
+	@BeforeClass
+	public static void setUpClass() {
+		entityManagerFactory = TestPersistence.create(recorder.wrap(TestPersistence.dataSource("repository")));
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		entityManagerFactory.close();
+	}
+
+	@Before
+	public void setUp() {
+		TestPersistence.persist(entityManagerFactory, Arrays.asList(new Pedido("a", "NOVO", 1d), new Pedido("b", "NOVO", 2d)));
+		entityManager = entityManagerFactory.createEntityManager();
+		repository = new PedidoRepository(entityManager);
+		pedidos = repository.select("p").from("Pedido p").orderBy("p.id").getResultList(Pedido.class);
+		updateStatusOutside("PAGO");
+	}
+
+	@After
+	public void tearDown() {
+		if (entityManager.getTransaction().isActive())
+			entityManager.getTransaction().rollback();
+		entityManager.close();
+		TestPersistence.clean(entityManagerFactory);
+	}
+
+	@Test
+	public void refreshUpdatesTheSameInstancesOfAnUnmodifiableCollection() {
+		List<Pedido> unmodifiable = Collections.unmodifiableList(pedidos);
+
+		repository.refresh(unmodifiable);
+
+		assertEquals("PAGO", pedidos.get(0).getStatus());
+		assertEquals("PAGO", pedidos.get(1).getStatus());
+		assertTrue(entityManager.contains(pedidos.get(0)));
+	}
+
+	@Test
+	public void refreshIsBatchedAndKeepsTheInstancesClean() {
+		pedidos.get(0).setStatus("ALTERADO");
+
+		recorder.record(new Runnable() {
+			public void run() {
+				repository.refresh(pedidos);
+			}
+		}).assertStatements(1, 0, 0, 0);
+
+		assertEquals("PAGO", pedidos.get(0).getStatus());
+		assertTrue(entityManager.contains(pedidos.get(0)));
+		assertTrue(entityManager.contains(pedidos.get(1)));
+
+		entityManager.getTransaction().begin();
+		recorder.record(new Runnable() {
+			public void run() {
+				entityManager.flush();
+			}
+		}).assertStatements(0, 0, 0, 0);
+
+		pedidos.get(1).setStatus("ENVIADO");
+		entityManager.getTransaction().commit();
+		entityManager.clear();
+		assertEquals("ENVIADO", entityManager.find(Pedido.class, pedidos.get(1).getId()).getStatus());
+	}
+
+	@Test(expected = EntityNotFoundException.class)
+	public void refreshFailsForDeletedEntities() {
+		deleteOutside(pedidos.get(1).getId());
+		repository.refresh(pedidos);
+	}
+
+	@Test
+	public void reloadReturnsFreshInstancesAndLeavesOutDeletedEntities() {
+		deleteOutside(pedidos.get(1).getId());
+		List<Pedido> given = Arrays.asList(pedidos.get(0), pedidos.get(1));
+
+		List<Pedido> reloaded = repository.reload(given);
+
+		assertEquals(1, reloaded.size());
+		assertNotSame(pedidos.get(0), reloaded.get(0));
+		assertEquals("PAGO", reloaded.get(0).getStatus());
+		assertSame(pedidos.get(0), given.get(0));
+		assertFalse(entityManager.contains(pedidos.get(0)));
+	}
+
+	@Test
+	public void claimGivesConcurrentWorkersDisjointBatches() throws Exception {
+		TestPersistence.persist(entityManagerFactory, Arrays.asList(new Pedido("c", "NOVO", 3d), new Pedido("d", "NOVO", 4d), new Pedido("e", "NOVO", 5d), new Pedido("f", "NOVO", 6d)));
+
+		entityManager.getTransaction().begin();
+		List<Pedido> first = repository.claim(novos(repository), 2, LockModeType.PESSIMISTIC_WRITE);
+		assertEquals(2, first.size());
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<List<Long>> second = executor.submit(new Callable<List<Long>>() {
+				public List<Long> call() {
+					EntityManager other = entityManagerFactory.createEntityManager();
+					try {
+						PedidoRepository worker = new PedidoRepository(other);
+						other.getTransaction().begin();
+						List<Pedido> claimed = worker.claim(novos(worker), 2, LockModeType.PESSIMISTIC_WRITE);
+						worker.release(claimed);
+						other.getTransaction().commit();
+						return ids(claimed);
+					} finally {
+						other.close();
+					}
+				}
+			});
+
+			// o segundo worker aguarda o lote do primeiro
+			Thread.sleep(200);
+			for (Pedido pedido : first)
+				pedido.setStatus("PROCESSADO");
+			repository.complete(first);
+			entityManager.getTransaction().commit();
+
+			List<Long> claimed = second.get(5, TimeUnit.SECONDS);
+			assertEquals(2, claimed.size());
+			assertTrue(Collections.disjoint(ids(first), claimed));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void claimFailsWhenSkipLockedCannotBeRendered() {
+		entityManager.getTransaction().begin();
+		try {
+			repository.claim(novos(repository), 2, LockModeType.PESSIMISTIC_WRITE, JPQL.SKIP_LOCKED);
+		} finally {
+			entityManager.getTransaction().rollback();
+		}
+	}
+
+	@Test
+	public void completeFlushesAndDetachesAndReleaseOnlyDetaches() {
+		TestPersistence.persist(entityManagerFactory, Arrays.asList(new Pedido("c", "NOVO", 3d), new Pedido("d", "NOVO", 4d)));
+
+		entityManager.getTransaction().begin();
+		final List<Pedido> claimed = repository.claim(novos(repository), 2, LockModeType.PESSIMISTIC_WRITE);
+		claimed.get(0).setStatus("PROCESSADO");
+		claimed.get(1).setStatus("DESCARTADO");
+
+		recorder.record(new Runnable() {
+			public void run() {
+				repository.release(claimed.subList(1, 2));
+				repository.complete(claimed.subList(0, 1));
+			}
+		}).assertStatements(0, 0, 1, 0);
+		entityManager.getTransaction().commit();
+
+		assertFalse(entityManager.contains(claimed.get(0)));
+		assertFalse(entityManager.contains(claimed.get(1)));
+		entityManager.clear();
+		assertEquals("PROCESSADO", entityManager.find(Pedido.class, claimed.get(0).getId()).getStatus());
+		assertEquals("NOVO", entityManager.find(Pedido.class, claimed.get(1).getId()).getStatus());
+	}
+
+	private static JPQL novos(PedidoRepository repository) {
+		return repository.select("p").from("Pedido p").where("p.status = 'NOVO'").orderBy("p.id");
+	}
+
+	private static List<Long> ids(List<Pedido> pedidos) {
+		List<Long> ids = new ArrayList<Long>();
+		for (Pedido pedido : pedidos)
+			ids.add(pedido.getId());
+		return ids;
+	}
+
+	private void updateStatusOutside(String status) {
+		EntityManager other = entityManagerFactory.createEntityManager();
+		try {
+			other.getTransaction().begin();
+			other.createQuery("update Pedido p set p.status = :status").setParameter("status", status).executeUpdate();
+			other.getTransaction().commit();
+		} finally {
+			other.close();
+		}
+	}
+
+	private void deleteOutside(Long id) {
+		EntityManager other = entityManagerFactory.createEntityManager();
+		try {
+			other.getTransaction().begin();
+			other.createQuery("delete from Pedido p where p.id = :id").setParameter("id", id).executeUpdate();
+			other.getTransaction().commit();
+		} finally {
+			other.close();
+		}
+	}
+
+}
@@ -0,0 +1,107 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import br.com.surittec.surijpa.TestPersistence;
+import br.com.surittec.surijpa.model.Pedido;
+
+public class GenericEntityRepositorySupportTest {
+
+	private static EntityManagerFactory entityManagerFactory;
+
+	private EntityManager entityManager;
+	private Repository repository;
+
+	@BeforeClass
+	public static void setUpClass() {
+		entityManagerFactory = TestPersistence.create("generic");
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		entityManagerFactory.close();
+	}
+
+	@Before
+	public void setUp() {
+		entityManager = entityManagerFactory.createEntityManager();
+		repository = new Repository(entityManager);
+	}
+
+	@After
+	public void tearDown() {
+		if (entityManager.getTransaction().isActive())
+			entityManager.getTransaction().rollback();
+		entityManager.close();
+		TestPersistence.clean(entityManagerFactory);
+	}
+
+	@Test
+	public void saveAllMergesDetachedProxies() {
+		Pedido pedido = TestPersistence.persist(entityManagerFactory, Arrays.asList(new Pedido("a", "NOVO", 1d))).get(0);
+
+		EntityManager other = entityManagerFactory.createEntityManager();
+		Pedido proxy = other.getReference(Pedido.class, pedido.getId());
+		proxy.getDescricao();
+		other.close();
+		assertNotSame(Pedido.class, proxy.getClass());
+		proxy.setStatus("PAGO");
+
+		entityManager.getTransaction().begin();
+		List<Pedido> saved = repository.saveAll(Arrays.asList(proxy));
+		entityManager.getTransaction().commit();
+
+		assertEquals(1, saved.size());
+		entityManager.clear();
+		assertEquals("PAGO", entityManager.find(Pedido.class, pedido.getId()).getStatus());
+	}
+
+	static class Repository extends GenericEntityRepositorySupport {
+
+		private final EntityManager entityManager;
+
+		Repository(EntityManager entityManager) {
+			this.entityManager = entityManager;
+		}
+
+		@Override
+		protected EntityManager getEntityManager() {
+			return entityManager;
+		}
+
+	}
+
+}
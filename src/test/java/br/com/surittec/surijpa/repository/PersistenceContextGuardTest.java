@@ -0,0 +1,115 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import br.com.surittec.surijpa.TestPersistence;
+import br.com.surittec.surijpa.model.Pedido;
+
+public class PersistenceContextGuardTest {
+
+	private static EntityManagerFactory entityManagerFactory;
+
+	private EntityManager entityManager;
+	private List<Pedido> pedidos;
+
+	@BeforeClass
+	public static void setUpClass() {
+		entityManagerFactory = TestPersistence.create("guard");
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		entityManagerFactory.close();
+	}
+
+	@Before
+	public void setUp() {
+		List<Pedido> created = new ArrayList<Pedido>();
+		for (int i = 0; i < 3; i++)
+			created.add(new Pedido("p" + i, "NOVO", 1d));
+		TestPersistence.persist(entityManagerFactory, created);
+
+		entityManager = entityManagerFactory.createEntityManager();
+		pedidos = entityManager.createQuery("select p from Pedido p order by p.id", Pedido.class).getResultList();
+	}
+
+	@After
+	public void tearDown() {
+		entityManager.close();
+		TestPersistence.clean(entityManagerFactory);
+	}
+
+	@Test
+	public void ignoresScalarsAndProjections() {
+		PersistenceContextGuard guard = new PersistenceContextGuard(1, PersistenceContextGuard.Policy.DETACH);
+		guard.loaded(entityManager, Arrays.asList(1L, 2L, 3L));
+		guard.loaded(entityManager, Arrays.asList(new Object[] { pedidos.get(0), 1L }, new Object[] { pedidos.get(1), 2L }));
+		assertEquals(0, guard.getCount(entityManager));
+	}
+
+	@Test
+	public void countsRepeatedLoadsOnce() {
+		PersistenceContextGuard guard = new PersistenceContextGuard(2, PersistenceContextGuard.Policy.DETACH);
+		guard.loaded(entityManager, Arrays.asList(pedidos.get(0), pedidos.get(0)));
+		guard.loaded(entityManager, Arrays.asList(pedidos.get(0), pedidos.get(1)));
+		assertEquals(2, guard.getCount(entityManager));
+		assertTrue(entityManager.contains(pedidos.get(0)));
+	}
+
+	@Test
+	public void detachesOnlyEntitiesOfMixedResults() {
+		PersistenceContextGuard guard = new PersistenceContextGuard(2, PersistenceContextGuard.Policy.DETACH);
+		guard.loaded(entityManager, Arrays.asList(pedidos.get(0), pedidos.get(1)));
+		guard.loaded(entityManager, Arrays.<Object> asList(pedidos.get(2), "texto", 3L));
+
+		assertTrue(entityManager.contains(pedidos.get(0)));
+		assertFalse(entityManager.contains(pedidos.get(2)));
+		assertEquals(2, guard.getCount(entityManager));
+	}
+
+	@Test
+	public void flushAndClearWithoutTransactionDetachesOnlyEntities() {
+		PersistenceContextGuard guard = new PersistenceContextGuard(1, PersistenceContextGuard.Policy.FLUSH_AND_CLEAR);
+		guard.loaded(entityManager, Arrays.<Object> asList(pedidos.get(0), pedidos.get(1), 7L));
+
+		assertFalse(entityManager.contains(pedidos.get(0)));
+		assertFalse(entityManager.contains(pedidos.get(1)));
+		assertEquals(0, guard.getCount(entityManager));
+	}
+
+}
@@ -0,0 +1,156 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import br.com.surittec.surijpa.TestPersistence;
+import br.com.surittec.surijpa.criteria.JPQL;
+import br.com.surittec.surijpa.criteria.ParallelAggregation;
+import br.com.surittec.surijpa.criteria.ScatterGather;
+import br.com.surittec.surijpa.model.Pedido;
+
+public class ReadRouterTest {
+
+	private static EntityManagerFactory primaryFactory;
+	private static EntityManagerFactory replicaFactory;
+	private static EntityManagerFactory otherFactory;
+
+	private EntityManager primary;
+	private ReadRouter router;
+	private PedidoRepository repository;
+
+	@BeforeClass
+	public static void setUpClass() {
+		primaryFactory = TestPersistence.create("router-primary");
+		replicaFactory = TestPersistence.create("router-replica");
+		otherFactory = TestPersistence.create("router-other");
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		primaryFactory.close();
+		replicaFactory.close();
+		otherFactory.close();
+	}
+
+	@Before
+	public void setUp() {
+		// A réplica tem outro conteúdo, para identificar de onde veio a leitura
+		TestPersistence.persist(primaryFactory, Arrays.asList(new Pedido("primario", "NOVO", 1d)));
+		TestPersistence.persist(replicaFactory, Arrays.asList(new Pedido("replica", "NOVO", 1d)));
+		TestPersistence.persist(otherFactory, Arrays.asList(new Pedido("outro", "NOVO", 5d)));
+		primary = primaryFactory.createEntityManager();
+		router = new ReadRouter(ReadRouter.Policy.LEAST_LOADED, replicaFactory);
+		repository = new PedidoRepository(primary).with(router);
+	}
+
+	@After
+	public void tearDown() {
+		if (primary.getTransaction().isActive())
+			primary.getTransaction().rollback();
+		primary.close();
+		TestPersistence.clean(primaryFactory);
+		TestPersistence.clean(replicaFactory);
+		TestPersistence.clean(otherFactory);
+	}
+
+	@Test
+	public void readsOutsideATransactionGoToAFreshReplicaEntityManager() {
+		List<Pedido> result = repository.findAll();
+
+		assertEquals("replica", result.get(0).getDescricao());
+		assertFalse(primary.contains(result.get(0)));
+		assertEquals(0, router.getLoad(0));
+	}
+
+	@Test
+	public void readsInsideATransactionGoToThePrimary() {
+		primary.getTransaction().begin();
+
+		List<Pedido> result = repository.findAll();
+
+		assertEquals("primario", result.get(0).getDescricao());
+		assertSame(result.get(0), primary.find(Pedido.class, result.get(0).getId()));
+	}
+
+	@Test
+	public void transactionSeesItsOwnWritesBeforeCommit() {
+		primary.getTransaction().begin();
+		Pedido pedido = repository.save(new Pedido("novo", "NOVO", 2d));
+		repository.flush();
+
+		assertNotNull(repository.select("p").from("Pedido p").where("p.id = :id").withParam("id", pedido.getId()).getAnyResult());
+	}
+
+	@Test
+	public void selectQueriesHoldTheReplicaUntilTheyRun() {
+		JPQL query = repository.select("p.descricao").from("Pedido p");
+		assertEquals(0, router.getLoad(0));
+
+		assertEquals(Arrays.asList("replica"), query.getResultList());
+		assertEquals(0, router.getLoad(0));
+
+		primary.getTransaction().begin();
+		assertEquals(Arrays.asList("primario"), query.getResultList());
+	}
+
+	@Test
+	public void copiesRunOnTheGivenEntityManager() {
+		EntityManager other = otherFactory.createEntityManager();
+		try {
+			assertEquals(Arrays.asList("outro"), repository.select("p.descricao").from("Pedido p").copy(other).getResultList());
+		} finally {
+			other.close();
+		}
+	}
+
+	@Test
+	public void scatterAndAggregationOfARoutedQueryUseTheGivenEntityManagers() {
+		EntityManager other = otherFactory.createEntityManager();
+		try {
+			List<EntityManager> entityManagers = Arrays.asList(primary, other);
+			assertEquals(Arrays.asList("outro", "primario"),
+					new ScatterGather(entityManagers, repository.select("p.descricao").from("Pedido p").orderBy("p.descricao")).getResultList());
+
+			List<Object[]> sum = new ParallelAggregation(entityManagers, repository.select("sum(p.valor)").from("Pedido p")).getResultList();
+			assertEquals(6d, ((Number) sum.get(0)[0]).doubleValue(), 0);
+		} finally {
+			other.close();
+		}
+	}
+
+}
@@ -0,0 +1,79 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.repository;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import br.com.surittec.surijpa.TestPersistence;
+import br.com.surittec.surijpa.model.Cliente;
+import br.com.surittec.surijpa.model.Pedido;
+
+public class ReferenceDataTest {
+
+	private static EntityManagerFactory entityManagerFactory;
+
+	@BeforeClass
+	public static void setUpClass() {
+		entityManagerFactory = TestPersistence.create("refdata");
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		entityManagerFactory.close();
+	}
+
+	@After
+	public void tearDown() {
+		TestPersistence.clean(entityManagerFactory);
+	}
+
+	@Test
+	public void fetchedLazyAssociationsAreReadableAfterTheSnapshotIsDetached() {
+		Pedido pedido = new Pedido("a", "NOVO", 1d);
+		pedido.setCliente(new Cliente("Maria"));
+		TestPersistence.persist(entityManagerFactory, Arrays.asList(pedido));
+
+		ReferenceData<Pedido> pedidos = new ReferenceData<Pedido>(entityManagerFactory, Pedido.class).index("status").fetch("cliente");
+
+		assertEquals("Maria", pedidos.findUniqueBy("status", "NOVO").getCliente().getNome());
+	}
+
+	@Test
+	public void indexedPathsThroughLazyAssociationsAreInitialized() {
+		Pedido pedido = new Pedido("a", "NOVO", 1d);
+		pedido.setCliente(new Cliente("Maria"));
+		TestPersistence.persist(entityManagerFactory, Arrays.asList(pedido));
+
+		ReferenceData<Pedido> pedidos = new ReferenceData<Pedido>(entityManagerFactory, Pedido.class).index("cliente.id");
+
+		assertEquals("Maria", pedidos.findAll().get(0).getCliente().getNome());
+	}
+
+}
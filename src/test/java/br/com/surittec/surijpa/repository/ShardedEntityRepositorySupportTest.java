@@ -0,0 +1,168 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import br.com.surittec.surijpa.TestPersistence;
+import br.com.surittec.surijpa.model.Pedido;
+
+public class ShardedEntityRepositorySupportTest {
+
+	private static EntityManagerFactory[] factories;
+
+	private List<EntityManager> entityManagers;
+
+	@BeforeClass
+	public static void setUpClass() {
+		factories = new EntityManagerFactory[] { TestPersistence.create("shard0"), TestPersistence.create("shard1") };
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		for (EntityManagerFactory factory : factories)
+			factory.close();
+	}
+
+	@Before
+	public void setUp() {
+		TestPersistence.persist(factories[0], Arrays.asList(new Pedido("a", "NOVO", 1d), new Pedido("b", "NOVO", null)));
+		TestPersistence.persist(factories[1], Arrays.asList(new Pedido("c", "PAGO", 3d), new Pedido("d", "NOVO", 2d)));
+		entityManagers = Arrays.asList(factories[0].createEntityManager(), factories[1].createEntityManager());
+	}
+
+	@After
+	public void tearDown() {
+		for (EntityManager entityManager : entityManagers)
+			entityManager.close();
+		for (EntityManagerFactory factory : factories)
+			TestPersistence.clean(factory);
+	}
+
+	@Test
+	public void descendingOrderKeepsNullsLast() {
+		PedidoShards repository = new PedidoShards(entityManagers);
+
+		List<Pedido> result = repository.getResultList(repository.select("p").from("Pedido p").orderBy("p.valor desc"), Pedido.class);
+
+		assertEquals(Arrays.asList("c", "d", "a", "b"), descricoes(result));
+	}
+
+	@Test
+	public void distinctRowsAreMergedAcrossShards() {
+		PedidoShards repository = new PedidoShards(entityManagers);
+
+		List<String> result = repository.getResultList(repository.select("distinct p.status").from("Pedido p").orderBy("p.status"), String.class);
+
+		assertEquals(Arrays.asList("NOVO", "PAGO"), result);
+	}
+
+	@Test
+	public void findByPrimaryKeySearchesAllShardsWhenTheShardKeyIsNotThePrimaryKey() {
+		// Os ids só são únicos entre os shards se gerados globalmente
+		TestPersistence.clean(factories[0]);
+		PedidoShardsByStatus repository = new PedidoShardsByStatus(entityManagers);
+		Long id = repository.getResultList("PAGO", repository.select("p.id").from("Pedido p").where("p.descricao = 'c'"), Long.class).get(0);
+		entityManagers.get(1).clear();
+
+		Pedido pedido = repository.findBy(id);
+
+		assertNotNull(pedido);
+		assertEquals("c", pedido.getDescricao());
+		assertNull(repository.findBy(Long.MAX_VALUE));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void hashRejectsKeysWithoutAStableHashCode() {
+		ShardResolver.HASH.resolve(TimeUnit.SECONDS, 2);
+	}
+
+	private static List<String> descricoes(List<Pedido> pedidos) {
+		String[] result = new String[pedidos.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = pedidos.get(i).getDescricao();
+		return Arrays.asList(result);
+	}
+
+	private static class PedidoShards extends ShardedEntityRepositorySupport<Pedido, Long> {
+
+		private final List<EntityManager> entityManagers;
+
+		PedidoShards(List<EntityManager> entityManagers) {
+			this.entityManagers = entityManagers;
+		}
+
+		@Override
+		protected List<EntityManager> getEntityManagers() {
+			return entityManagers;
+		}
+
+	}
+
+	/**
+	 * Particionado pelo status: PAGO no shard 1, demais no shard 0.
+	 */
+	private static class PedidoShardsByStatus extends ShardedEntityRepositorySupport<Pedido, Long> {
+
+		private final List<EntityManager> entityManagers;
+
+		PedidoShardsByStatus(List<EntityManager> entityManagers) {
+			this.entityManagers = entityManagers;
+		}
+
+		@Override
+		protected List<EntityManager> getEntityManagers() {
+			return entityManagers;
+		}
+
+		@Override
+		protected Object getShardKey(Pedido entity) {
+			return entity.getStatus();
+		}
+
+		@Override
+		protected ShardResolver getShardResolver() {
+			return new ShardResolver() {
+				@Override
+				public int resolve(Object shardKey, int shards) {
+					return "PAGO".equals(shardKey) ? 1 : 0;
+				}
+			};
+		}
+
+	}
+
+}
@@ -0,0 +1,160 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import br.com.surittec.surijpa.TestPersistence;
+import br.com.surittec.surijpa.model.Pedido;
+import br.com.surittec.surijpa.util.MetricsUtil;
+
+public class WriteBehindQueueTest {
+
+	private static EntityManagerFactory entityManagerFactory;
+
+	private WriteBehindQueue queue;
+	private Pedido pedido;
+
+	@BeforeClass
+	public static void setUpClass() {
+		entityManagerFactory = TestPersistence.create("writebehind");
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		entityManagerFactory.close();
+	}
+
+	@Before
+	public void setUp() {
+		queue = new WriteBehindQueue(entityManagerFactory, 10, 1, TimeUnit.HOURS);
+		pedido = TestPersistence.persist(entityManagerFactory, Arrays.asList(new Pedido("a", "NOVO", 1d))).get(0);
+	}
+
+	@After
+	public void tearDown() {
+		queue.close();
+		TestPersistence.clean(entityManagerFactory);
+	}
+
+	@Test
+	public void repeatedSavesOfTheSameDetachedInstanceAreAllWritten() {
+		long failed = MetricsUtil.get(WriteBehindQueue.METRIC_FAILED);
+
+		pedido.setStatus("PAGO");
+		queue.save(pedido);
+		assertEquals(1, queue.flush());
+
+		pedido.setStatus("ENVIADO");
+		queue.save(pedido);
+		assertEquals(1, queue.flush());
+
+		assertEquals(failed, MetricsUtil.get(WriteBehindQueue.METRIC_FAILED));
+		assertEquals("ENVIADO", find(pedido.getId()).getStatus());
+	}
+
+	@Test
+	public void concurrentChangesStillFailTheOptimisticLock() {
+		long failed = MetricsUtil.get(WriteBehindQueue.METRIC_FAILED);
+		EntityManager entityManager = entityManagerFactory.createEntityManager();
+		try {
+			entityManager.getTransaction().begin();
+			entityManager.find(Pedido.class, pedido.getId()).setStatus("CANCELADO");
+			entityManager.getTransaction().commit();
+		} finally {
+			entityManager.close();
+		}
+
+		pedido.setStatus("PAGO");
+		queue.save(pedido);
+		assertEquals(0, queue.flush());
+
+		assertEquals(failed + 1, MetricsUtil.get(WriteBehindQueue.METRIC_FAILED));
+		assertEquals("CANCELADO", find(pedido.getId()).getStatus());
+	}
+
+	@Test
+	public void retryAfterAFailedBatchPersistsNewEntitiesAgain() {
+		long failed = MetricsUtil.get(WriteBehindQueue.METRIC_FAILED);
+		pedido.setVersion(pedido.getVersion() + 10);
+		pedido.setStatus("PAGO");
+
+		queue.save(new Pedido("b", "NOVO", 2d));
+		queue.save(pedido);
+		assertEquals(1, queue.flush());
+
+		assertEquals(failed + 1, MetricsUtil.get(WriteBehindQueue.METRIC_FAILED));
+		EntityManager entityManager = entityManagerFactory.createEntityManager();
+		try {
+			List<?> result = entityManager.createQuery("select p.descricao from Pedido p order by p.descricao").getResultList();
+			assertEquals(Arrays.asList("a", "b"), result);
+		} finally {
+			entityManager.close();
+		}
+	}
+
+	@Test
+	public void newEntitiesReceiveTheGeneratedIdAndAreNotInsertedTwice() {
+		Pedido novo = new Pedido("b", "NOVO", 2d);
+		queue.save(novo);
+		novo.setStatus("PAGO");
+		queue.save(novo);
+		assertEquals(1, queue.flush());
+		assertNotNull(novo.getId());
+		assertEquals(Long.valueOf(0), novo.getVersion());
+
+		novo.setStatus("ENVIADO");
+		queue.save(novo);
+		assertEquals(1, queue.flush());
+
+		EntityManager entityManager = entityManagerFactory.createEntityManager();
+		try {
+			List<?> result = entityManager.createQuery("select p.status from Pedido p where p.descricao = 'b'").getResultList();
+			assertEquals(Arrays.asList("ENVIADO"), result);
+		} finally {
+			entityManager.close();
+		}
+	}
+
+	private Pedido find(Long id) {
+		EntityManager entityManager = entityManagerFactory.createEntityManager();
+		try {
+			return entityManager.find(Pedido.class, id);
+		} finally {
+			entityManager.close();
+		}
+	}
+
+}
@@ -0,0 +1,45 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.test;
+
+import java.util.Random;
+
+import br.com.surittec.surijpa.repository.GenericEntityRepositorySupport;
+
+/**
+ * Operação executada repetidamente pelo {@link LoadTest}. Cada thread do teste
+ * possui o seu próprio repositório (e EntityManager), e cada execução ocorre
+ * em uma transação própria.
+ */
+public interface LoadOperation {
+
+	/**
+	 * Executa a operação.
+	 * 
+	 * @param repository
+	 *            repositório da thread atual
+	 * @param random
+	 *            gerador aleatório da thread atual
+	 * @throws Exception
+	 */
+	void execute(GenericEntityRepositorySupport repository, Random random) throws Exception;
+
+}
@@ -0,0 +1,107 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.test;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import br.com.surittec.surijpa.repository.GenericEntityRepositorySupport;
+
+/**
+ * Operações prontas para o {@link LoadTest}, sobre os métodos dos
+ * repositórios.
+ */
+public abstract class LoadOperations {
+
+	/**
+	 * Busca por chave primária, escolhida aleatoriamente entre as informadas.
+	 * 
+	 * @param entityClass
+	 * @param ids
+	 * @return
+	 */
+	public static LoadOperation findBy(final Class<?> entityClass, final List<? extends Serializable> ids) {
+		return new LoadOperation() {
+			@Override
+			public void execute(GenericEntityRepositorySupport repository, Random random) {
+				repository.findBy(entityClass, ids.get(random.nextInt(ids.size())));
+			}
+		};
+	}
+
+	/**
+	 * Busca paginada, a partir de uma posição aleatória entre zero e
+	 * <code>maxStart</code>.
+	 * 
+	 * @param entityClass
+	 * @param maxStart
+	 * @param max
+	 * @return
+	 */
+	public static LoadOperation findAll(final Class<?> entityClass, final int maxStart, final int max) {
+		return new LoadOperation() {
+			@Override
+			public void execute(GenericEntityRepositorySupport repository, Random random) {
+				repository.findAll(entityClass, maxStart > 0 ? random.nextInt(maxStart) : 0, max);
+			}
+		};
+	}
+
+	/**
+	 * Salva uma nova entidade criada pela fábrica informada.
+	 * 
+	 * @param factory
+	 * @return
+	 */
+	public static LoadOperation save(final Callable<?> factory) {
+		return new LoadOperation() {
+			@Override
+			public void execute(GenericEntityRepositorySupport repository, Random random) throws Exception {
+				repository.save(factory.call());
+				repository.flush();
+			}
+		};
+	}
+
+	/**
+	 * Remove uma entidade qualquer da classe informada, escolhida entre as
+	 * <code>maxStart</code> primeiras.
+	 * 
+	 * @param entityClass
+	 * @param maxStart
+	 * @return
+	 */
+	public static LoadOperation remove(final Class<?> entityClass, final int maxStart) {
+		return new LoadOperation() {
+			@Override
+			public void execute(GenericEntityRepositorySupport repository, Random random) {
+				List<?> found = repository.findAll(entityClass, maxStart > 0 ? random.nextInt(maxStart) : 0, 1);
+				if (!found.isEmpty()) {
+					repository.remove(found.get(0));
+					repository.flush();
+				}
+			}
+		};
+	}
+
+}
@@ -0,0 +1,315 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.LockTimeoutException;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.Persistence;
+import javax.persistence.PessimisticLockException;
+
+import br.com.surittec.surijpa.repository.GenericEntityRepositorySupport;
+
+/**
+ * Teste de carga da camada de repositórios: executa uma combinação ponderada
+ * de {@link LoadOperation}s a partir de N threads, cada uma com o seu próprio
+ * EntityManager, e mede vazão, percentis de latência e taxas de falha por
+ * bloqueio ou por conflito de versão. A unidade de persistência deve ser
+ * <code>RESOURCE_LOCAL</code>, normalmente sobre um banco de dados embarcado,
+ * e o tamanho do pool de conexões é definido pelas suas propriedades.
+ *
+ * <pre>
+ * LoadTestReport report = new LoadTest(entityManagerFactory)
+ * 		.threads(8)
+ * 		.duration(60, TimeUnit.SECONDS)
+ * 		.operation("findBy", 70, LoadOperations.findBy(Cidade.class, ids))
+ * 		.operation("save", 30, LoadOperations.save(factory))
+ * 		.run();
+ * report.writeTo(new File("target/load-test.json"));
+ * </pre>
+ */
+public class LoadTest {
+
+	private static final Logger LOGGER = Logger.getLogger(LoadTest.class.getName());
+
+	private final EntityManagerFactory entityManagerFactory;
+
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private long warmup = TimeUnit.SECONDS.toNanos(5);
+	private long duration = TimeUnit.SECONDS.toNanos(30);
+
+	private final List<String> names = new ArrayList<String>();
+	private final List<LoadOperation> operations = new ArrayList<LoadOperation>();
+	private int[] weights = new int[0];
+
+	// ----------------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------------
+
+	public LoadTest(EntityManagerFactory entityManagerFactory) {
+		this.entityManagerFactory = entityManagerFactory;
+	}
+
+	// ----------------------------------------------------------------------------
+	// PUBLIC
+	// ----------------------------------------------------------------------------
+
+	public LoadTest threads(int threads) {
+		this.threads = threads;
+		return this;
+	}
+
+	/**
+	 * Tempo inicial de execução que não é contabilizado no relatório.
+	 * 
+	 * @param warmup
+	 * @param unit
+	 * @return
+	 */
+	public LoadTest warmup(long warmup, TimeUnit unit) {
+		this.warmup = unit.toNanos(warmup);
+		return this;
+	}
+
+	/**
+	 * Tempo de execução medido, após o warmup.
+	 * 
+	 * @param duration
+	 * @param unit
+	 * @return
+	 */
+	public LoadTest duration(long duration, TimeUnit unit) {
+		this.duration = unit.toNanos(duration);
+		return this;
+	}
+
+	/**
+	 * Inclui uma operação na combinação, executada com frequência proporcional
+	 * ao seu peso.
+	 * 
+	 * @param name
+	 * @param weight
+	 * @param operation
+	 * @return
+	 */
+	public LoadTest operation(String name, int weight, LoadOperation operation) {
+		if (weight <= 0)
+			throw new IllegalArgumentException("weight must be positive");
+		names.add(name);
+		operations.add(operation);
+		weights = Arrays.copyOf(weights, weights.length + 1);
+		weights[weights.length - 1] = (weights.length > 1 ? weights[weights.length - 2] : 0) + weight;
+		return this;
+	}
+
+	/**
+	 * Executa o teste, bloqueando até o seu término.
+	 * 
+	 * @return relatório do período medido
+	 * @throws InterruptedException
+	 */
+	public LoadTestReport run() throws InterruptedException {
+		if (operations.isEmpty())
+			throw new IllegalStateException("No operation configured");
+
+		CountDownLatch ready = new CountDownLatch(threads);
+		CountDownLatch go = new CountDownLatch(1);
+		List<Worker> workers = new ArrayList<Worker>(threads);
+		for (int i = 0; i < threads; i++) {
+			Worker worker = new Worker(i, ready, go);
+			workers.add(worker);
+			worker.start();
+		}
+
+		ready.await();
+		long start = System.nanoTime();
+		for (Worker worker : workers)
+			worker.schedule(start + warmup, start + warmup + duration);
+		go.countDown();
+
+		for (Worker worker : workers)
+			worker.join();
+
+		Map<String, LoadTestReport.OperationStats> stats = new LinkedHashMap<String, LoadTestReport.OperationStats>();
+		for (String name : names)
+			stats.put(name, new LoadTestReport.OperationStats());
+		for (Worker worker : workers) {
+			if (worker.failure != null)
+				throw new IllegalStateException("Load test worker failed", worker.failure);
+			for (Map.Entry<String, LoadTestReport.OperationStats> entry : worker.stats.entrySet())
+				stats.get(entry.getKey()).merge(entry.getValue());
+		}
+
+		return new LoadTestReport(threads, duration, stats);
+	}
+
+	/**
+	 * Executa o teste a partir da linha de comando:
+	 * 
+	 * <pre>
+	 * LoadTest &lt;persistenceUnit&gt; &lt;threads&gt; &lt;seconds&gt; &lt;output.json&gt; &lt;operationClass[:weight]&gt;...
+	 * </pre>
+	 * 
+	 * As classes de operação devem implementar {@link LoadOperation} e possuir
+	 * construtor sem argumentos. As propriedades de sistema são repassadas à
+	 * unidade de persistência (ex.: URL do banco e tamanho do pool). O
+	 * relatório é gravado no arquivo informado e registrado no log.
+	 * 
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 5)
+			throw new IllegalArgumentException("Usage: LoadTest <persistenceUnit> <threads> <seconds> <output.json> <operationClass[:weight]>...");
+
+		EntityManagerFactory entityManagerFactory = Persistence.createEntityManagerFactory(args[0], new HashMap<Object, Object>(System.getProperties()));
+		try {
+			LoadTest loadTest = new LoadTest(entityManagerFactory).threads(Integer.parseInt(args[1])).duration(Long.parseLong(args[2]), TimeUnit.SECONDS);
+			for (int i = 4; i < args.length; i++) {
+				String[] operation = args[i].split(":");
+				loadTest.operation(operation[0], operation.length > 1 ? Integer.parseInt(operation[1]) : 1,
+						(LoadOperation) Class.forName(operation[0]).getDeclaredConstructor().newInstance());
+			}
+			LoadTestReport report = loadTest.run();
+			report.writeTo(new File(args[3]));
+			LOGGER.info(report.toString());
+		} finally {
+			entityManagerFactory.close();
+		}
+	}
+
+	// ----------------------------------------------------------------------------
+	// PRIVATE
+	// ----------------------------------------------------------------------------
+
+	private static LoadTestReport.Outcome classify(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof OptimisticLockException)
+				return LoadTestReport.Outcome.OPTIMISTIC_FAILURE;
+			if (cause instanceof PessimisticLockException || cause instanceof LockTimeoutException)
+				return LoadTestReport.Outcome.LOCK_FAILURE;
+		}
+		return LoadTestReport.Outcome.ERROR;
+	}
+
+	private static class Repository extends GenericEntityRepositorySupport {
+
+		private final EntityManager entityManager;
+
+		private Repository(EntityManager entityManager) {
+			this.entityManager = entityManager;
+		}
+
+		@Override
+		protected EntityManager getEntityManager() {
+			return entityManager;
+		}
+
+	}
+
+	private class Worker extends Thread {
+
+		private final CountDownLatch ready;
+		private final CountDownLatch go;
+		private final Random random;
+		private final Map<String, LoadTestReport.OperationStats> stats = new HashMap<String, LoadTestReport.OperationStats>();
+
+		private volatile long measureFrom;
+		private volatile long end;
+		private Throwable failure;
+
+		private Worker(int index, CountDownLatch ready, CountDownLatch go) {
+			super("load-test-" + index);
+			this.ready = ready;
+			this.go = go;
+			this.random = new Random(index);
+			for (String name : names)
+				stats.put(name, new LoadTestReport.OperationStats());
+		}
+
+		private void schedule(long measureFrom, long end) {
+			this.measureFrom = measureFrom;
+			this.end = end;
+		}
+
+		@Override
+		public void run() {
+			EntityManager entityManager = null;
+			try {
+				entityManager = entityManagerFactory.createEntityManager();
+				Repository repository = new Repository(entityManager);
+				ready.countDown();
+				go.await();
+
+				long now;
+				while ((now = System.nanoTime()) < end) {
+					int index = Arrays.binarySearch(weights, random.nextInt(weights[weights.length - 1]) + 1);
+					if (index < 0)
+						index = -index - 1;
+
+					LoadTestReport.Outcome outcome = execute(entityManager, repository, operations.get(index));
+					long elapsed = System.nanoTime() - now;
+					if (now >= measureFrom)
+						stats.get(names.get(index)).add(outcome, elapsed);
+				}
+			} catch (Throwable e) {
+				failure = e;
+				if (entityManager == null)
+					ready.countDown();
+			} finally {
+				if (entityManager != null)
+					entityManager.close();
+			}
+		}
+
+		private LoadTestReport.Outcome execute(EntityManager entityManager, Repository repository, LoadOperation operation) {
+			EntityTransaction transaction = entityManager.getTransaction();
+			try {
+				transaction.begin();
+				operation.execute(repository, random);
+				transaction.commit();
+				return LoadTestReport.Outcome.SUCCESS;
+			} catch (Exception e) {
+				return classify(e);
+			} finally {
+				if (transaction.isActive())
+					transaction.rollback();
+				entityManager.clear();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,236 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resultado de um {@link LoadTest}: vazão, percentis de latência e taxas de
+ * falha por operação, com exportação em JSON.
+ */
+public class LoadTestReport {
+
+	/**
+	 * Resultado de uma execução de operação.
+	 */
+	public enum Outcome {
+		SUCCESS, OPTIMISTIC_FAILURE, LOCK_FAILURE, ERROR
+	}
+
+	private final int threads;
+	private final long duration;
+	private final Map<String, OperationStats> operations;
+
+	// ----------------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------------
+
+	LoadTestReport(int threads, long duration, Map<String, OperationStats> operations) {
+		this.threads = threads;
+		this.duration = duration;
+		this.operations = Collections.unmodifiableMap(operations);
+	}
+
+	// ----------------------------------------------------------------------------
+	// PUBLIC
+	// ----------------------------------------------------------------------------
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public double getDurationSeconds() {
+		return duration / 1e9;
+	}
+
+	public Map<String, OperationStats> getOperations() {
+		return operations;
+	}
+
+	/**
+	 * Retorna a vazão total, em operações concluídas com sucesso por segundo.
+	 * 
+	 * @return
+	 */
+	public double getThroughput() {
+		long count = 0;
+		for (OperationStats stats : operations.values())
+			count += stats.getCount();
+		return count / getDurationSeconds();
+	}
+
+	/**
+	 * Grava o relatório em JSON no arquivo informado.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public void writeTo(File file) throws IOException {
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			writeTo(writer);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Grava o relatório em JSON.
+	 * 
+	 * @param writer
+	 * @throws IOException
+	 */
+	public void writeTo(Writer writer) throws IOException {
+		writer.write(String.format(Locale.ENGLISH, "{\"threads\":%d,\"durationSeconds\":%.3f,\"opsPerSecond\":%.3f,\"operations\":{", threads,
+				getDurationSeconds(), getThroughput()));
+		boolean first = true;
+		for (Map.Entry<String, OperationStats> entry : operations.entrySet()) {
+			OperationStats stats = entry.getValue();
+			if (!first)
+				writer.write(",");
+			first = false;
+			writer.write(String.format(Locale.ENGLISH, "\"%s\":{\"count\":%d,\"opsPerSecond\":%.3f,\"p50Ms\":%.3f,\"p99Ms\":%.3f,\"p999Ms\":%.3f,"
+					+ "\"maxMs\":%.3f,\"optimisticFailures\":%d,\"lockFailures\":%d,\"errors\":%d,\"optimisticFailureRate\":%.6f,\"lockFailureRate\":%.6f}",
+					entry.getKey().replace("\\", "\\\\").replace("\"", "\\\""), stats.getCount(), stats.getCount() / getDurationSeconds(),
+					stats.getPercentile(50), stats.getPercentile(99), stats.getPercentile(99.9), stats.getPercentile(100),
+					stats.getOptimisticFailures(), stats.getLockFailures(), stats.getErrors(), stats.getRate(stats.getOptimisticFailures()),
+					stats.getRate(stats.getLockFailures())));
+		}
+		writer.write("}}");
+		writer.flush();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(String.format(Locale.ENGLISH, "%d threads, %.1f s, %.1f ops/s", threads, getDurationSeconds(),
+				getThroughput()));
+		for (Map.Entry<String, OperationStats> entry : operations.entrySet()) {
+			OperationStats stats = entry.getValue();
+			sb.append(String.format(Locale.ENGLISH, "%n  %-20s %10d ops  p50 %8.3f ms  p99 %8.3f ms  p999 %8.3f ms  optimistic %d  lock %d  errors %d",
+					entry.getKey(), stats.getCount(), stats.getPercentile(50), stats.getPercentile(99), stats.getPercentile(99.9),
+					stats.getOptimisticFailures(), stats.getLockFailures(), stats.getErrors()));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Estatísticas de uma operação. As latências são das execuções concluídas
+	 * com sucesso.
+	 */
+	public static class OperationStats {
+
+		private long[] latencies = new long[1024];
+		private int count;
+		private boolean sorted = true;
+		private long optimisticFailures;
+		private long lockFailures;
+		private long errors;
+
+		OperationStats() {
+		}
+
+		void add(Outcome outcome, long latency) {
+			switch (outcome) {
+			case SUCCESS:
+				if (count == latencies.length)
+					latencies = Arrays.copyOf(latencies, count * 2);
+				latencies[count++] = latency;
+				sorted = false;
+				break;
+			case OPTIMISTIC_FAILURE:
+				optimisticFailures++;
+				break;
+			case LOCK_FAILURE:
+				lockFailures++;
+				break;
+			default:
+				errors++;
+			}
+		}
+
+		void merge(OperationStats other) {
+			if (count + other.count > latencies.length)
+				latencies = Arrays.copyOf(latencies, count + other.count);
+			System.arraycopy(other.latencies, 0, latencies, count, other.count);
+			count += other.count;
+			sorted = false;
+			optimisticFailures += other.optimisticFailures;
+			lockFailures += other.lockFailures;
+			errors += other.errors;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getOptimisticFailures() {
+			return optimisticFailures;
+		}
+
+		public long getLockFailures() {
+			return lockFailures;
+		}
+
+		public long getErrors() {
+			return errors;
+		}
+
+		/**
+		 * Retorna o percentil de latência em milissegundos (ex.: 99.9).
+		 * 
+		 * @param percentile
+		 * @return
+		 */
+		public synchronized double getPercentile(double percentile) {
+			if (count == 0)
+				return 0;
+			if (!sorted) {
+				Arrays.sort(latencies, 0, count);
+				sorted = true;
+			}
+			int index = (int) Math.ceil(percentile / 100 * count) - 1;
+			return latencies[Math.max(0, Math.min(count - 1, index))] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+		}
+
+		/**
+		 * Retorna a proporção das falhas informadas sobre o total de
+		 * execuções.
+		 * 
+		 * @param failures
+		 * @return
+		 */
+		public double getRate(long failures) {
+			long total = count + optimisticFailures + lockFailures + errors;
+			return total == 0 ? 0 : (double) failures / total;
+		}
+
+	}
+
+}
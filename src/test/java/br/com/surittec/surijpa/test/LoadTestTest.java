@@ -0,0 +1,83 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import br.com.surittec.surijpa.TestPersistence;
+import br.com.surittec.surijpa.model.Pedido;
+
+public class LoadTestTest {
+
+	private static EntityManagerFactory entityManagerFactory;
+
+	@BeforeClass
+	public static void setUp() {
+		entityManagerFactory = TestPersistence.create("loadtest");
+	}
+
+	@AfterClass
+	public static void tearDown() {
+		entityManagerFactory.close();
+	}
+
+	@Test
+	public void reportsEveryOperationOfTheMix() throws Exception {
+		List<Pedido> pedidos = new ArrayList<Pedido>();
+		for (int i = 0; i < 10; i++)
+			pedidos.add(new Pedido("p" + i, "NOVO", 1d));
+		List<Long> ids = new ArrayList<Long>();
+		for (Pedido pedido : TestPersistence.persist(entityManagerFactory, pedidos))
+			ids.add(pedido.getId());
+
+		LoadTestReport report = new LoadTest(entityManagerFactory)
+				.threads(2)
+				.warmup(0, TimeUnit.MILLISECONDS)
+				.duration(300, TimeUnit.MILLISECONDS)
+				.operation("findBy", 3, LoadOperations.findBy(Pedido.class, ids))
+				.operation("save", 1, LoadOperations.save(new Callable<Pedido>() {
+					@Override
+					public Pedido call() {
+						return new Pedido("novo", "NOVO", 2d);
+					}
+				}))
+				.run();
+
+		assertEquals(2, report.getThreads());
+		for (LoadTestReport.OperationStats stats : report.getOperations().values()) {
+			assertTrue(stats.getCount() > 0);
+			assertEquals(0, stats.getErrors());
+		}
+	}
+
+}
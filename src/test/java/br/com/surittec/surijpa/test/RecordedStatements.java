@@ -0,0 +1,176 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Instruções SQL registradas por um {@link StatementRecorder}, com asserções
+ * sobre a quantidade de instruções de cada tipo. As falhas são lançadas como
+ * {@link AssertionError}, listando as quantidades esperadas e obtidas e as
+ * instruções executadas.
+ */
+public class RecordedStatements {
+
+	/**
+	 * Tipo da instrução, identificado pela sua primeira palavra.
+	 */
+	public enum Kind {
+		SELECT, INSERT, UPDATE, DELETE, OTHER
+	}
+
+	private final List<String> statements;
+	private final Map<Kind, Integer> counts = new EnumMap<Kind, Integer>(Kind.class);
+
+	// ----------------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------------
+
+	public RecordedStatements(List<String> statements) {
+		this.statements = Collections.unmodifiableList(statements);
+		for (Kind kind : Kind.values())
+			counts.put(kind, 0);
+		for (String sql : statements) {
+			Kind kind = getKind(sql);
+			counts.put(kind, counts.get(kind) + 1);
+		}
+	}
+
+	// ----------------------------------------------------------------------------
+	// PUBLIC
+	// ----------------------------------------------------------------------------
+
+	/**
+	 * Verifica a quantidade exata de instruções de cada tipo.
+	 * 
+	 * @param select
+	 * @param insert
+	 * @param update
+	 * @param delete
+	 */
+	public void assertStatements(int select, int insert, int update, int delete) {
+		Map<Kind, Integer> expected = new EnumMap<Kind, Integer>(Kind.class);
+		expected.put(Kind.SELECT, select);
+		expected.put(Kind.INSERT, insert);
+		expected.put(Kind.UPDATE, update);
+		expected.put(Kind.DELETE, delete);
+		assertCounts(expected);
+	}
+
+	/**
+	 * Verifica a quantidade exata de instruções do tipo informado.
+	 * 
+	 * @param kind
+	 * @param count
+	 */
+	public void assertCount(Kind kind, int count) {
+		Map<Kind, Integer> expected = new EnumMap<Kind, Integer>(Kind.class);
+		expected.put(kind, count);
+		assertCounts(expected);
+	}
+
+	/**
+	 * Verifica a quantidade total de instruções.
+	 * 
+	 * @param count
+	 */
+	public void assertTotal(int count) {
+		if (statements.size() != count)
+			throw new AssertionError(String.format("Expected %d statements but %d were issued%n%s", count, statements.size(), describe()));
+	}
+
+	public int getCount(Kind kind) {
+		return counts.get(kind);
+	}
+
+	public int getTotal() {
+		return statements.size();
+	}
+
+	public List<String> getStatements() {
+		return statements;
+	}
+
+	/**
+	 * Retorna as instruções do tipo informado.
+	 * 
+	 * @param kind
+	 * @return
+	 */
+	public List<String> getStatements(Kind kind) {
+		List<String> result = new ArrayList<String>();
+		for (String sql : statements) {
+			if (getKind(sql) == kind)
+				result.add(sql);
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return describe();
+	}
+
+	// ----------------------------------------------------------------------------
+	// PRIVATE
+	// ----------------------------------------------------------------------------
+
+	private void assertCounts(Map<Kind, Integer> expected) {
+		StringBuilder diff = new StringBuilder();
+		for (Map.Entry<Kind, Integer> entry : expected.entrySet()) {
+			int actual = counts.get(entry.getKey());
+			if (actual != entry.getValue())
+				diff.append(String.format("  %s: expected %d, actual %d%n", entry.getKey(), entry.getValue(), actual));
+		}
+		if (diff.length() > 0)
+			throw new AssertionError(String.format("Unexpected statement count%n%s%s", diff, describe()));
+	}
+
+	private String describe() {
+		StringBuilder sb = new StringBuilder("Issued statements:");
+		if (statements.isEmpty())
+			sb.append(" none");
+		for (int i = 0; i < statements.size(); i++) {
+			String sql = statements.get(i);
+			sb.append(String.format("%n  %3d. [%s] %s", i + 1, getKind(sql), sql.trim().replaceAll("\\s+", " ")));
+		}
+		return sb.toString();
+	}
+
+	private static Kind getKind(String sql) {
+		String normalized = sql.replaceAll("(?s)/\\*.*?\\*/", " ").trim().toLowerCase(Locale.ENGLISH);
+		if (normalized.startsWith("select") || normalized.startsWith("with") || normalized.startsWith("("))
+			return Kind.SELECT;
+		if (normalized.startsWith("insert"))
+			return Kind.INSERT;
+		if (normalized.startsWith("update"))
+			return Kind.UPDATE;
+		if (normalized.startsWith("delete"))
+			return Kind.DELETE;
+		return Kind.OTHER;
+	}
+
+}
@@ -0,0 +1,229 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+/**
+ * Registra as instruções SQL executadas por um {@link DataSource}, permitindo
+ * verificar em testes a quantidade e o tipo de instruções emitidas pelas
+ * operações dos repositórios e da {@link br.com.surittec.surijpa.criteria.JPQL}.
+ *
+ * O DataSource retornado por {@link #wrap(DataSource)} deve ser usado pela
+ * unidade de persistência do teste (ex.: propriedade
+ * <code>javax.persistence.nonJtaDataSource</code> em
+ * <code>Persistence.createEntityManagerFactory</code>), normalmente sobre um
+ * banco de dados embarcado.
+ *
+ * <pre>
+ * RecordedStatements statements = recorder.record(new Runnable() {
+ * 	public void run() {
+ * 		repository.findBy(1L);
+ * 		repository.flush();
+ * 	}
+ * });
+ * statements.assertStatements(1, 0, 0, 0);
+ * </pre>
+ *
+ * Lembre-se de executar <code>flush</code> dentro do bloco gravado, pois as
+ * alterações só geram instruções ao serem sincronizadas. Cada entrada de um
+ * lote JDBC (<code>addBatch</code>) é contada como uma instrução.
+ */
+public class StatementRecorder {
+
+	private final List<String> statements = new ArrayList<String>();
+	private final List<Integer> queryTimeouts = new ArrayList<Integer>();
+	private final List<Integer> nullTypes = new ArrayList<Integer>();
+	private volatile boolean recording;
+
+	// ----------------------------------------------------------------------------
+	// PUBLIC
+	// ----------------------------------------------------------------------------
+
+	/**
+	 * Retorna um DataSource que registra as instruções executadas pelas
+	 * conexões obtidas do DataSource original.
+	 * 
+	 * @param dataSource
+	 * @return
+	 */
+	public DataSource wrap(final DataSource dataSource) {
+		return proxy(DataSource.class, dataSource);
+	}
+
+	/**
+	 * Executa o bloco registrando as instruções emitidas durante a execução.
+	 * 
+	 * @param work
+	 * @return instruções registradas
+	 */
+	public RecordedStatements record(Runnable work) {
+		start();
+		try {
+			work.run();
+		} finally {
+			stop();
+		}
+		return getStatements();
+	}
+
+	/**
+	 * Descarta as instruções registradas e inicia um novo registro.
+	 */
+	public void start() {
+		synchronized (statements) {
+			statements.clear();
+			queryTimeouts.clear();
+			nullTypes.clear();
+		}
+		recording = true;
+	}
+
+	/**
+	 * Encerra o registro, preservando as instruções registradas.
+	 */
+	public void stop() {
+		recording = false;
+	}
+
+	/**
+	 * Retorna as instruções registradas até o momento.
+	 * 
+	 * @return
+	 */
+	public RecordedStatements getStatements() {
+		synchronized (statements) {
+			return new RecordedStatements(new ArrayList<String>(statements));
+		}
+	}
+
+	/**
+	 * Retorna os timeouts, em segundos, definidos nas instruções
+	 * (<code>Statement.setQueryTimeout</code>) durante o registro.
+	 * 
+	 * @return
+	 */
+	public List<Integer> getQueryTimeouts() {
+		synchronized (statements) {
+			return new ArrayList<Integer>(queryTimeouts);
+		}
+	}
+
+	/**
+	 * Retorna os tipos SQL ({@link java.sql.Types}) informados em
+	 * <code>PreparedStatement.setNull</code> durante o registro.
+	 * 
+	 * @return
+	 */
+	public List<Integer> getNullTypes() {
+		synchronized (statements) {
+			return new ArrayList<Integer>(nullTypes);
+		}
+	}
+
+	// ----------------------------------------------------------------------------
+	// PRIVATE
+	// ----------------------------------------------------------------------------
+
+	private void recorded(String sql) {
+		if (recording && sql != null) {
+			synchronized (statements) {
+				statements.add(sql);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T proxy(Class<T> type, Object target) {
+		return (T) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { type }, new Handler(target, null));
+	}
+
+	private class Handler implements InvocationHandler {
+
+		private final Object target;
+		private final String sql;
+		private final List<String> batch = new ArrayList<String>();
+
+		private Handler(Object target, String sql) {
+			this.target = target;
+			this.sql = sql;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("addBatch")) {
+				batch.add(args != null && args.length > 0 ? (String) args[0] : sql);
+			} else if (name.equals("clearBatch")) {
+				batch.clear();
+			} else if (name.equals("executeBatch")) {
+				for (String entry : batch)
+					recorded(entry);
+				batch.clear();
+			} else if (name.equals("setQueryTimeout")) {
+				if (recording) {
+					synchronized (statements) {
+						queryTimeouts.add((Integer) args[0]);
+					}
+				}
+			} else if (name.equals("setNull")) {
+				if (recording) {
+					synchronized (statements) {
+						nullTypes.add((Integer) args[1]);
+					}
+				}
+			} else if (name.startsWith("execute")) {
+				recorded(args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : sql);
+			}
+
+			Object result;
+			try {
+				result = method.invoke(target, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+
+			if (result instanceof Connection) {
+				return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class }, new Handler(result, null));
+			} else if (result instanceof Statement) {
+				Class<?> statementType = result instanceof CallableStatement ? CallableStatement.class
+						: result instanceof PreparedStatement ? PreparedStatement.class : Statement.class;
+				String prepared = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : null;
+				return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { statementType }, new Handler(result, prepared));
+			}
+
+			return result;
+		}
+
+	}
+
+}
@@ -0,0 +1,73 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import br.com.surittec.surijpa.TestPersistence;
+import br.com.surittec.surijpa.model.Pedido;
+
+public class StatementRecorderTest {
+
+	private static StatementRecorder recorder;
+	private static EntityManagerFactory entityManagerFactory;
+
+	@BeforeClass
+	public static void setUp() {
+		recorder = new StatementRecorder();
+		entityManagerFactory = TestPersistence.create(recorder.wrap(TestPersistence.dataSource("recorder")));
+	}
+
+	@AfterClass
+	public static void tearDown() {
+		entityManagerFactory.close();
+	}
+
+	@Test
+	public void countsStatementsByKind() {
+		final Pedido pedido = TestPersistence.persist(entityManagerFactory, Arrays.asList(new Pedido("a", "NOVO", 1d))).get(0);
+		final EntityManager entityManager = entityManagerFactory.createEntityManager();
+		try {
+			RecordedStatements statements = recorder.record(new Runnable() {
+				@Override
+				public void run() {
+					entityManager.getTransaction().begin();
+					entityManager.find(Pedido.class, pedido.getId()).setStatus("PAGO");
+					entityManager.getTransaction().commit();
+				}
+			});
+			statements.assertStatements(1, 0, 1, 0);
+			assertEquals(2, statements.getTotal());
+		} finally {
+			entityManager.close();
+		}
+	}
+
+}
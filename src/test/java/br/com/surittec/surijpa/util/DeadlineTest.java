@@ -0,0 +1,108 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.QueryTimeoutException;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import br.com.surittec.surijpa.TestPersistence;
+import br.com.surittec.surijpa.criteria.JPQL;
+import br.com.surittec.surijpa.model.Pedido;
+import br.com.surittec.surijpa.test.StatementRecorder;
+
+public class DeadlineTest {
+
+	private static final StatementRecorder recorder = new StatementRecorder();
+
+	private static EntityManagerFactory entityManagerFactory;
+
+	@BeforeClass
+	public static void setUpClass() {
+		entityManagerFactory = TestPersistence.create(recorder.wrap(TestPersistence.dataSource("deadline")));
+		TestPersistence.persist(entityManagerFactory, Arrays.asList(new Pedido("a", "NOVO", 1d)));
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		TestPersistence.clean(entityManagerFactory);
+		entityManagerFactory.close();
+	}
+
+	@After
+	public void tearDown() {
+		Deadline.clear();
+	}
+
+	@Test
+	public void queryTimeoutIsRoundedUpToWholeSeconds() {
+		assertNull(Deadline.getQueryTimeout(null));
+		assertEquals(Integer.valueOf(1000), Deadline.getQueryTimeout(177));
+		assertEquals(Integer.valueOf(2000), Deadline.getQueryTimeout(1001));
+
+		Deadline.start(177, TimeUnit.MILLISECONDS);
+		assertEquals(Integer.valueOf(1000), Deadline.getQueryTimeout(null));
+		assertEquals(Integer.valueOf(1000), Deadline.getQueryTimeout(5000));
+		assertEquals(Collections.<String, Object> singletonMap(Deadline.QUERY_TIMEOUT_HINT, 1000), Deadline.getHints());
+
+		Deadline.start(10, TimeUnit.SECONDS);
+		assertEquals(Integer.valueOf(2000), Deadline.getQueryTimeout(1500));
+		assertTrue(Deadline.getQueryTimeout(null) == 10000 || Deadline.getQueryTimeout(null) == 9000);
+	}
+
+	@Test(expected = QueryTimeoutException.class)
+	public void expiredDeadlineFailsBeforeTheCall() {
+		Deadline.start(0, TimeUnit.MILLISECONDS);
+		Deadline.getHints();
+	}
+
+	@Test
+	public void subSecondTimeoutReachesTheStatement() {
+		EntityManager entityManager = entityManagerFactory.createEntityManager();
+		try {
+			recorder.start();
+			new JPQL(entityManager).from("Pedido p").timeout(177, TimeUnit.MILLISECONDS).getResultList();
+			assertEquals(Integer.valueOf(1), recorder.getQueryTimeouts().get(0));
+
+			Deadline.start(300, TimeUnit.MILLISECONDS);
+			recorder.start();
+			new JPQL(entityManager).from("Pedido p").getResultList();
+			assertEquals(Integer.valueOf(1), recorder.getQueryTimeouts().get(0));
+		} finally {
+			recorder.stop();
+			entityManager.close();
+		}
+	}
+
+}
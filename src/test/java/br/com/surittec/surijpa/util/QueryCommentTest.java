@@ -0,0 +1,105 @@
+/*
+ * SURITTEC
+ * Copyright 2015, TTUS TECNOLOGIA DA INFORMACAO LTDA, 
+ * and individual contributors as indicated by the @authors tag
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package br.com.surittec.surijpa.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import br.com.surittec.surijpa.TestPersistence;
+import br.com.surittec.surijpa.model.Pedido;
+import br.com.surittec.surijpa.repository.PedidoRepository;
+import br.com.surittec.surijpa.test.RecordedStatements;
+import br.com.surittec.surijpa.test.StatementRecorder;
+
+public class QueryCommentTest {
+
+	private static StatementRecorder recorder = new StatementRecorder();
+	private static EntityManagerFactory entityManagerFactory;
+
+	private EntityManager entityManager;
+
+	@BeforeClass
+	public static void setUpClass() {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("hibernate.connection.datasource", recorder.wrap(TestPersistence.dataSource("comment")));
+		properties.put("hibernate.use_sql_comments", "true");
+		entityManagerFactory = Persistence.createEntityManagerFactory(TestPersistence.UNIT, properties);
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		entityManagerFactory.close();
+	}
+
+	@Before
+	public void setUp() {
+		TestPersistence.persist(entityManagerFactory, Arrays.asList(new Pedido("a", "NOVO", 1d)));
+		entityManager = entityManagerFactory.createEntityManager();
+		QueryComment.enable(false);
+	}
+
+	@After
+	public void tearDown() {
+		QueryComment.disable();
+		entityManager.close();
+		TestPersistence.clean(entityManagerFactory);
+	}
+
+	@Test
+	public void inheritedRepositoryMethodsAreTaggedWithTheRepositoryAndMethod() {
+		final PedidoRepository repository = new PedidoRepository(entityManager);
+		RecordedStatements statements = recorder.record(new Runnable() {
+			@Override
+			public void run() {
+				repository.findAll();
+				repository.findByIds(new long[] { 1, 2 });
+			}
+		});
+
+		List<String> sql = statements.getStatements();
+		assertEquals(sql.toString(), 2, sql.size());
+		assertTrue(sql.get(0), sql.get(0).contains("/* PedidoRepository.findAll */"));
+		assertTrue(sql.get(1), sql.get(1).contains("/* PedidoRepository.findByIds */"));
+	}
+
+	@Test
+	public void commentsAreOmittedWhileDisabled() {
+		QueryComment.disable();
+		assertNull(QueryComment.getComment(PedidoRepository.class, "findAll"));
+	}
+
+}